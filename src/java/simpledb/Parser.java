@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -14,6 +16,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanCache;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
@@ -277,10 +280,29 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    /** 用 PREPARE 准备好的语句，按小写的名字 */
+    private final Map<String, PreparedStatement> prepared = new HashMap<>();
+
+    static final Pattern PREPARE_STATEMENT = Pattern.compile(
+            "PREPARE\\s+(\\w+)\\s+AS\\s+(.+)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    static final Pattern EXECUTE_STATEMENT = Pattern.compile(
+            "EXECUTE\\s+(\\w+)\\s*(?:\\((.*)\\))?\\s*;?", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    static final Pattern DEALLOCATE_STATEMENT = Pattern.compile(
+            "DEALLOCATE\\s+(\\w+)\\s*;?", Pattern.CASE_INSENSITIVE);
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, null);
+    }
+
+    /**
+     * Plan a query and, if its normalized text is given, cache its plan for
+     * later queries that differ from it only in their literals.
+     */
+    private Query handleQueryStatement(ZQuery s, TransactionId tId,
+            QueryPlanCache.NormalizedQuery normalized) throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
@@ -288,7 +310,32 @@ public class Parser {
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        if (normalized != null)
+            Database.getQueryPlanCache().put(normalized, lp);
+
+        printPlan(physicalPlan, lp);
+        return query;
+    }
+
+    /**
+     * Build the query of a statement whose plan is cached, with the literals
+     * of the statement in place of those the plan was made with.
+     */
+    private Query handleCachedQueryStatement(LogicalPlan lp,
+            List<String> literals, TransactionId tId)
+            throws simpledb.ParsingException {
+        Query query = new Query(tId);
+        OpIterator physicalPlan = lp.instantiate(tId, literals);
+        query.setPhysicalPlan(physicalPlan);
+        query.setLogicalPlan(lp);
+        if (explain)
+            System.out.println("Reusing the cached plan of " + lp.getQuery());
 
+        printPlan(physicalPlan, lp);
+        return query;
+    }
+
+    private void printPlan(OpIterator physicalPlan, LogicalPlan lp) {
         if (physicalPlan != null) {
             Class<?> c;
             try {
@@ -312,8 +359,6 @@ public class Parser {
                 e.printStackTrace();
             }
         }
-
-        return query;
     }
 
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
@@ -481,6 +526,96 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Prepare a query with a ? in place of constants of its WHERE clause, to
+     * be bound each time it runs, so that it is parsed and optimized once
+     * for all the times it runs.
+     *
+     * @param sql the query, like "SELECT * FROM t WHERE t.id = ?;"
+     * @throws ParsingException if the query is not valid or cannot be prepared
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException, IOException {
+        return new PreparedStatement(this, sql);
+    }
+
+    /**
+     * Build the query of a prepared statement with values bound to its
+     * parameters, to run as a part of the transaction tId.
+     *
+     * @param ps the statement, from {@link #prepare}
+     * @param params the values of the parameters, in the order they appear;
+     *        strings are compared with as they are, without quotes
+     * @throws ParsingException if the number of values is wrong or a value
+     *         cannot be compared with its field
+     */
+    public Query execute(PreparedStatement ps, TransactionId tId, Object... params)
+            throws simpledb.ParsingException, IOException {
+        List<String> values = new ArrayList<>(params.length);
+        for (Object p : params)
+            values.add(String.valueOf(p));
+        Query query = new Query(tId);
+        query.setPhysicalPlan(ps.bind(tId, values, explain));
+        query.setLogicalPlan(ps.getLogicalPlan());
+        return query;
+    }
+
+    /** Return the statement prepared by PREPARE with the name, or null if there is none */
+    public PreparedStatement getPreparedStatement(String name) {
+        return prepared.get(name.toLowerCase());
+    }
+
+    /** Handle PREPARE name AS query, and DEALLOCATE name */
+    private void handlePrepareStatement(Matcher m) throws simpledb.ParsingException, IOException {
+        String name = m.group(1).toLowerCase();
+        if (m.pattern() == PREPARE_STATEMENT) {
+            PreparedStatement ps = prepare(m.group(2));
+            prepared.put(name, ps);
+            System.out.println("Prepared statement " + name + " with "
+                    + ps.getParameterCount() + " parameters");
+        } else {
+            if (prepared.remove(name) == null)
+                throw new simpledb.ParsingException("Unknown prepared statement " + name);
+            System.out.println("Deallocated prepared statement " + name);
+        }
+    }
+
+    /** Build the query of EXECUTE name [(value, ...)] */
+    private Query handleExecuteStatement(Matcher m, TransactionId tId)
+            throws simpledb.ParsingException, IOException {
+        PreparedStatement ps = getPreparedStatement(m.group(1));
+        if (ps == null)
+            throw new simpledb.ParsingException("Unknown prepared statement " + m.group(1));
+        Query query = execute(ps, tId, parseValues(m.group(2)).toArray());
+        printPlan(query.getPhysicalPlan(), ps.getLogicalPlan());
+        return query;
+    }
+
+    /**
+     * Split the values of EXECUTE, separated by commas: numbers, possibly
+     * negative, or strings in single quotes, which are kept as they are
+     * between the quotes like the strings of queries.
+     */
+    static List<String> parseValues(String s) throws simpledb.ParsingException {
+        List<String> values = new ArrayList<>();
+        if (s == null || s.trim().isEmpty())
+            return values;
+        // 借用规范化把字面量换成 ?，字符串里的逗号就不会当成分隔符
+        QueryPlanCache.NormalizedQuery nq = QueryPlanCache.normalize(s);
+        String[] items = nq.getKey().split(",", -1);
+        List<String> literals = nq.getLiterals();
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i].replace(" ", "");
+            if (i < literals.size() && item.equals("?"))
+                values.add(literals.get(i));
+            else if (i < literals.size() && item.equals("-?"))
+                values.add("-" + literals.get(i));
+            else
+                throw new simpledb.ParsingException("Invalid value " + items[i].trim()
+                        + ", expected a number or a string in single quotes");
+        }
+        return values;
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -489,14 +624,51 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Run a statement. A query whose plan is in the plan cache, made for a
+     * query differing from it only in its literals, runs that plan with its
+     * literals, without being parsed or optimized; the plans of other
+     * queries are cached.
+     */
     public void processNextStatement(String s) {
-        processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+        // ZQL 不认识预备语句的命令，先认出来
+        String statement = s.trim();
+        for (Pattern p : new Pattern[] {PREPARE_STATEMENT, EXECUTE_STATEMENT, DEALLOCATE_STATEMENT}) {
+            Matcher m = p.matcher(statement);
+            if (m.matches()) {
+                processStatement(null, null, m);
+                return;
+            }
+        }
+        processStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)),
+                QueryPlanCache.normalize(s), null);
     }
 
     public void processNextStatement(InputStream is) {
+        processStatement(is, null, null);
+    }
+
+    /**
+     * Run the next statement read from is, using and filling the plan cache
+     * if it is a query whose normalized text is given, or the PREPARE,
+     * EXECUTE or DEALLOCATE statement matched by command.
+     */
+    private void processStatement(InputStream is, QueryPlanCache.NormalizedQuery normalized,
+            Matcher command) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            if (command != null && command.pattern() != EXECUTE_STATEMENT) {
+                handlePrepareStatement(command);
+                return;
+            }
+            if (normalized != null && !normalized.isQuery())
+                normalized = null;
+            LogicalPlan cached = normalized == null ? null
+                    : Database.getQueryPlanCache().get(normalized.getKey());
+            ZStatement s = null;
+            if (cached == null && command == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -509,7 +681,12 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (command != null)
+                        query = handleExecuteStatement(command, curtrans.getId());
+                    else if (cached != null)
+                        query = handleCachedQueryStatement(cached,
+                                normalized.getLiterals(), curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -517,7 +694,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), normalized);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -567,7 +744,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "prepare", "execute",
+            "deallocate" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -585,6 +763,8 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        TableStats.saveStatistics();
+        System.out.println("Query plan cache: " + Database.getQueryPlanCache());
         System.out.println("Bye");
     }
 
@@ -593,7 +773,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // 统计信息在查询第一次用到表时才从保存的文件加载，见 TableStats.getTableStats
 
         String queryFile = null;
 
@@ -660,7 +840,6 @@ public class Parser {
                     buffer.append(line, 0, split + 1);
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -669,8 +848,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -0,0 +1,153 @@
+package simpledb;
+
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.IndexPredicate;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanCache;
+import simpledb.optimizer.TableStats;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query parsed once, with a ? in place of some of the constants its
+ * filters compare with, to run many times with values bound to them.
+ * Statements are made by {@link Parser#prepare} and run by
+ * {@link Parser#execute}.
+ * <p>
+ * The plan of the statement is optimized the first time it runs, for the
+ * values bound then, and kept: later runs only build its operators again,
+ * with their values in the {@link Predicate}s of its filters and the
+ * {@link IndexPredicate}s of its index scans. Once the plan is out of date
+ * ({@link LogicalPlan#isCurrent}) the statement is parsed and optimized
+ * again.
+ * <p>
+ * A parameter, like a literal, may only be the constant of a comparison in
+ * the WHERE clause, and queries with subqueries cannot be prepared.
+ *
+ * @Threadsafe
+ */
+public class PreparedStatement {
+
+    private final Parser parser;
+    private final String sql;
+    /** sql with each parameter replaced by 0, the text that is parsed */
+    private final String parsedSql;
+    /** The constants of the filters of the query, in order; null for the parameters */
+    private final List<String> constants;
+    private final int parameterCount;
+
+    private LogicalPlan plan;
+    private long executions = 0, optimizations = 0;
+
+    /**
+     * Parse a statement.
+     *
+     * @throws ParsingException if the statement is not a query that can be
+     *         prepared
+     */
+    PreparedStatement(Parser parser, String sql) throws ParsingException, IOException {
+        this.parser = parser;
+        this.sql = sql;
+        StringBuilder text = new StringBuilder(sql.length());
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            if (c == '?' && !quoted)
+                text.append(" 0 ");
+            else
+                text.append(c);
+        }
+        this.parsedSql = text.toString();
+        this.constants = QueryPlanCache.normalize(sql, true).getLiterals();
+        this.parameterCount = Collections.frequency(constants, null);
+
+        this.plan = parse(new TransactionId());
+        if (plan.hasSubqueries())
+            throw new ParsingException("Queries with subqueries cannot be prepared");
+        if (!plan.getFilterConstants().equals(bind(Collections.nCopies(parameterCount, "0"))))
+            throw new ParsingException(
+                    "Parameters and literals may only be the constants of the comparisons in the WHERE clause");
+    }
+
+    private LogicalPlan parse(TransactionId tid) throws ParsingException, IOException {
+        LogicalPlan lp = parser.generateLogicalPlan(tid, parsedSql);
+        lp.setQuery(sql);
+        return lp;
+    }
+
+    /** The constants of the filters with the values in place of the parameters */
+    private List<String> bind(List<String> values) {
+        List<String> bound = new ArrayList<>(constants.size());
+        int next = 0;
+        for (String c : constants)
+            bound.add(c == null ? values.get(next++) : c);
+        return bound;
+    }
+
+    /**
+     * Build the physical plan of the statement with values bound to its
+     * parameters, optimizing it first if it has not been yet or is out of
+     * date.
+     *
+     * @param tid the transaction the plan runs as a part of
+     * @param values the values of the parameters, in the order they appear
+     * @param explain whether to print the join order when optimizing
+     * @throws ParsingException if the number of values is wrong or a value
+     *         cannot be compared with its field
+     */
+    synchronized OpIterator bind(TransactionId tid, List<String> values, boolean explain)
+            throws ParsingException, IOException {
+        if (values.size() != parameterCount)
+            throw new ParsingException("Expected " + parameterCount + " parameters, got " + values.size());
+        List<String> bound = bind(values);
+        if (plan.isReusable() && !plan.isCurrent())
+            plan = parse(tid);
+        OpIterator physicalPlan;
+        if (plan.isReusable()) {
+            physicalPlan = plan.instantiate(tid, bound);
+        } else {
+            physicalPlan = plan.physicalPlan(tid, TableStats.getStatsMap(), explain, bound);
+            optimizations++;
+        }
+        executions++;
+        return physicalPlan;
+    }
+
+    /** @return the text of the statement, with its parameters */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the number of parameters of the statement */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /** @return the logical plan of the statement */
+    public synchronized LogicalPlan getLogicalPlan() {
+        return plan;
+    }
+
+    /** @return the number of times the statement has run */
+    public synchronized long getExecutions() {
+        return executions;
+    }
+
+    /** @return the number of times the plan of the statement has been optimized */
+    public synchronized long getOptimizations() {
+        return optimizations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s (%d parameters, run %d times, optimized %d times)",
+                sql, parameterCount, executions, optimizations);
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.storage.TupleDesc;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -40,6 +41,8 @@ public class Catalog {
     private Map<Integer,Table> tableMap;
     private Map<String,Table> stringAboutTable;
 
+    /** 表每次加入或清空都加一，缓存的查询计划据此判断是否过时 */
+    private final AtomicLong version = new AtomicLong();
 
     /**
      * Constructor.
@@ -64,6 +67,7 @@ public class Catalog {
         // some code goes here
         tableMap.put(file.getId(),new Table(file,name,pkeyField));
         stringAboutTable.put(name,new Table(file,name,pkeyField));
+        version.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -138,6 +142,16 @@ public class Catalog {
         // some code goes here
         tableMap.clear();
         stringAboutTable.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Return a number that changes whenever a table is added to the catalog
+     * or the catalog is cleared, so that anything derived from the tables of
+     * the catalog can tell it is out of date.
+     */
+    public long getVersion() {
+        return version.get();
     }
     
     /**
@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.optimizer.QueryPlanCache;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -8,8 +9,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the log files and the
+ * cache of query plans, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -23,9 +24,11 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final QueryPlanCache _queryplancache;
 
     private Database() {
         _catalog = new Catalog();
+        _queryplancache = new QueryPlanCache();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -53,6 +56,11 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the cache of query plans of the static Database instance */
+    public static QueryPlanCache getQueryPlanCache() {
+        return _instance.get()._queryplancache;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
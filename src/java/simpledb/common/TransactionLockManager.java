@@ -39,14 +39,62 @@ public class TransactionLockManager {
         }
     }
 
-    void acquireS(TransactionId tid, PageId pid) {
-        if(!this.pageId2LockItem.containsKey(pid)) {
-            this.pageId2LockItem.put(pid, new LockItem());
+    /**
+     * Takes the lock only if it can be granted right away.
+     *
+     * @return true if tid holds the lock with perm when the call returns
+     */
+    public boolean tryLock(TransactionId tid, PageId pid, Permissions perm) {
+        LockItem lockItem = lockItem(pid);
+        lockItem.lock.lock();
+        try {
+            if(perm == Permissions.READ_ONLY) {
+                if(sharedBlocked(lockItem, tid)) return false;
+                lockItem.sharedTransactions.add(tid);
+            } else {
+                if(exclusiveBlocked(lockItem, tid)) return false;
+                lockItem.exclusiveTransaction = tid;
+            }
+            return true;
+        } finally {
+            lockItem.lock.unlock();
         }
+    }
+
+    /**
+     * Returns true if a transaction other than tid holds the exclusive lock on pid
+     */
+    public boolean isExclusiveLockedByOther(TransactionId tid, PageId pid) {
         LockItem lockItem = this.pageId2LockItem.get(pid);
+        if(lockItem == null) return false;
+        lockItem.lock.lock();
+        try {
+            return lockItem.exclusiveTransaction != null && !lockItem.exclusiveTransaction.equals(tid);
+        } finally {
+            lockItem.lock.unlock();
+        }
+    }
+
+    private LockItem lockItem(PageId pid) {
+        //并发加锁时只能有一个LockItem
+        return this.pageId2LockItem.computeIfAbsent(pid, k -> new LockItem());
+    }
+
+    private static boolean sharedBlocked(LockItem lockItem, TransactionId tid) {
+        return lockItem.exclusiveTransaction != null && !lockItem.exclusiveTransaction.equals(tid);
+    }
+
+    private static boolean exclusiveBlocked(LockItem lockItem, TransactionId tid) {
+        return lockItem.exclusiveTransaction != null && !tid.equals(lockItem.exclusiveTransaction)
+                || (!lockItem.sharedTransactions.isEmpty() &&
+                !(lockItem.sharedTransactions.size() == 1 && lockItem.sharedTransactions.contains(tid)));
+    }
+
+    void acquireS(TransactionId tid, PageId pid) {
+        LockItem lockItem = lockItem(pid);
         lockItem.lock.lock();
         try {
-            while (lockItem.exclusiveTransaction != null && !lockItem.exclusiveTransaction.equals(tid)) {
+            while (sharedBlocked(lockItem, tid)) {
                 lockItem.cond.await();
             }
             lockItem.sharedTransactions.add(tid);
@@ -59,15 +107,10 @@ public class TransactionLockManager {
     }
 
     void acquireX(TransactionId tid, PageId pid) {
-        if(!this.pageId2LockItem.containsKey(pid)) {
-            this.pageId2LockItem.put(pid, new LockItem());
-        }
-        LockItem lockItem = this.pageId2LockItem.get(pid);
+        LockItem lockItem = lockItem(pid);
         lockItem.lock.lock();
         try {
-            while (lockItem.exclusiveTransaction != null && !tid.equals(lockItem.exclusiveTransaction)
-                    || (!lockItem.sharedTransactions.isEmpty() &&
-                    !(lockItem.sharedTransactions.size() == 1 && lockItem.sharedTransactions.contains(tid)))) {
+            while (exclusiveBlocked(lockItem, tid)) {
                 lockItem.cond.await();
             }
             lockItem.exclusiveTransaction = tid;
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
@@ -93,7 +94,10 @@ public class Delete extends Operator {
         while(this.opIterator.hasNext()){
             Tuple needDeleteTuple = this.opIterator.next();
             try {
+                //删除之后元组的 RecordId 可能被清掉，先记下表
+                int tableId = needDeleteTuple.getRecordId().getPageId().getTableId();
                 Database.getBufferPool().deleteTuple(this.transactionId,needDeleteTuple);
+                TableStats.recordDelete(tableId,needDeleteTuple);
             } catch (IOException e) {
                 e.printStackTrace();
             }
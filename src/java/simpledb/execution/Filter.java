@@ -33,7 +33,7 @@ public class Filter extends Operator {
         // some code goes here
         this.p = p;
         this.child = child;
-        childs = null;
+        childs = new OpIterator[] { child };
     }
 
     public Predicate getPredicate() {
@@ -0,0 +1,244 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins each tuple of its child with the
+ * tuples of an index access method, such as a {@link simpledb.index.BTreeScan},
+ * rewinding the access method with an {@link IndexPredicate} built from the
+ * join value of each outer tuple rather than scanning the whole inner table
+ * for every outer tuple. The join field of the inner relation must be the
+ * field the index is ordered by.
+ * <p>
+ * The matches of the most recently probed join values are cached, so outer
+ * tuples that repeat a join value do not look it up in the index again.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of join values whose matches are cached */
+    public static final int PROBE_CACHE_KEYS = 1024;
+
+    /** Join values with more matches than this are not cached */
+    public static final int PROBE_CACHE_TUPLES = 64;
+
+    private final JoinPredicate p;
+    private OpIterator child;
+    private IndexOpIterator inner;
+    private final List<Predicate> innerFilters;
+    private final TupleDesc comboTD;
+
+    /** 当前的外层元组，以及与它匹配的内层元组：要么来自缓存，要么来自索引 */
+    private transient Tuple outerTuple = null;
+    private transient Iterator<Tuple> cachedIt = null;
+    private transient boolean probing = false;
+    private transient boolean innerOpen = false;
+
+    /** 正在探查的连接值和已经找到的匹配，匹配太多时为 null，不进缓存 */
+    private transient Field probeValue = null;
+    private transient List<Tuple> probeMatches = null;
+    private transient Map<Field, List<Tuple>> probeCache = null;
+    private transient int probes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join on; field2 is the key field of the inner
+     *            index, and the operator can be any but LIKE and NOT_EQUALS
+     * @param child
+     *            Iterator for the left(outer) relation to join
+     * @param inner
+     *            The index access method for the right(inner) relation; it is
+     *            opened with a predicate for each outer tuple
+     * @param innerFilters
+     *            Predicates over the fields of the inner relation its tuples
+     *            must also satisfy
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child, IndexOpIterator inner,
+                               List<Predicate> innerFilters) {
+        if (p.getOperator() == Predicate.Op.LIKE || p.getOperator() == Predicate.Op.NOT_EQUALS)
+            throw new IllegalArgumentException("cannot look up " + p.getOperator() + " in an index");
+        this.p = p;
+        this.child = child;
+        this.inner = inner;
+        this.innerFilters = innerFilters;
+        this.comboTD = TupleDesc.merge(child.getTupleDesc(), inner.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return this.child.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.inner.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    /**
+     * @return the number of times the join has looked join values up in the
+     *         index since it was opened, cached values not included
+     */
+    public int getIndexProbes() {
+        return probes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        probeCache = new LinkedHashMap<Field, List<Tuple>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Field, List<Tuple>> eldest) {
+                return size() > PROBE_CACHE_KEYS;
+            }
+        };
+        probes = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        endProbe();
+        if (innerOpen)
+            inner.close();
+        innerOpen = false;
+        probeCache = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        endProbe();
+        child.rewind();
+    }
+
+    private void endProbe() {
+        outerTuple = null;
+        cachedIt = null;
+        probing = false;
+        probeValue = null;
+        probeMatches = null;
+    }
+
+    /**
+     * The operator an index predicate looks the inner key up with: outer op
+     * key is key op' outer, with op' the mirror image of op
+     */
+    private static Predicate.Op keyOp(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    /** The next inner tuple of the current probe that passes the filters, or null */
+    private Tuple nextMatch() throws TransactionAbortedException, DbException {
+        if (cachedIt != null)
+            return cachedIt.hasNext() ? cachedIt.next() : null;
+        while (probing && inner.hasNext()) {
+            Tuple t = inner.next();
+            boolean matches = true;
+            for (Predicate f : innerFilters) {
+                if (!f.filter(t)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                if (probeMatches != null && probeMatches.size() < PROBE_CACHE_TUPLES)
+                    probeMatches.add(t);
+                else
+                    probeMatches = null;
+                return t;
+            }
+        }
+        // 探查完了，匹配不多时放进缓存
+        if (probing && probeMatches != null)
+            probeCache.put(probeValue, probeMatches);
+        probing = false;
+        return null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple
+     * whose key it satisfies the join predicate with, as {@link Join} does.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outerTuple != null) {
+                Tuple match = nextMatch();
+                if (match != null) {
+                    Tuple target = new Tuple(comboTD);
+                    int n1 = outerTuple.getTupleDesc().numFields();
+                    for (int i = 0; i < n1; i++)
+                        target.setField(i, outerTuple.getField(i));
+                    for (int i = 0; i < match.getTupleDesc().numFields(); i++)
+                        target.setField(n1 + i, match.getField(i));
+                    return target;
+                }
+                endProbe();
+            }
+
+            if (!child.hasNext())
+                return null;
+            outerTuple = child.next();
+            Field value = outerTuple.getField(p.getField1());
+            // 类型不同的值不会相等，Join 也不会连接它们
+            if (value.getType() != inner.getTupleDesc().getFieldType(p.getField2()))
+                continue;
+
+            List<Tuple> cached = probeCache.get(value);
+            if (cached != null) {
+                cachedIt = cached.iterator();
+                continue;
+            }
+            IndexPredicate ipred = new IndexPredicate(keyOp(p.getOperator()), value);
+            if (innerOpen) {
+                inner.rewind(ipred);
+            } else {
+                inner.open(ipred);
+                innerOpen = true;
+            }
+            probes++;
+            probing = true;
+            probeValue = value;
+            probeMatches = new ArrayList<>();
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child, this.inner };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+        this.inner = (IndexOpIterator) children[1];
+    }
+
+}
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -101,6 +102,7 @@ public class Insert extends Operator {
             Tuple tuple = this.opIterator.next();
             try {
                 Database.getBufferPool().insertTuple(this.transactionId,this.tableId,tuple);
+                TableStats.recordInsert(this.tableId,tuple);
                 count++;
             } catch (IOException e) {
                 e.printStackTrace();
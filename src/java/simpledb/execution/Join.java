@@ -51,7 +51,7 @@ public class Join extends Operator {
         this.child1 = child1;
         this.child2 = child2;
         this.p = p;
-        childs = null;
+        childs = new OpIterator[] { child1, child2 };
 
         child1Tuple = null;
         child2Tuple = null;
@@ -1,53 +1,145 @@
 package simpledb.execution;
 import simpledb.optimizer.LogicalJoinNode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is a bitmask over the indexes of the joins being ordered, bit
+ * i standing for the i-th join. The best plan for a set is stored as the last
+ * join it performs and the set of joins performed before it, so a plan takes a
+ * constant amount of room and the whole order is rebuilt by following the
+ * previous sets back to the first join. */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
-    
+    /** Up to this many joins, a set finds its slot by indexing an array with its mask */
+    static final int MAX_DENSE_JOINS = 20;
+
+    // 掩码 -> 槽位+1（0 表示没有计划）；连接多时掩码空间太大，改用哈希表
+    private final int[] denseSlots;
+    private final Map<Long,Integer> sparseSlots;
+
+    // 按槽位存放的计划
+    private int size = 0;
+    private long[] sets = new long[16];
+    private int[] previous = new int[16];
+    private LogicalJoinNode[] lastJoins = new LogicalJoinNode[16];
+    private double[] bestCosts = new double[16];
+    private int[] bestCardinalities = new int[16];
+
+    /** Create an empty cache for the subsets of the specified number of joins
+        @param numJoins the number of joins being ordered, at most 63
+    */
+    public PlanCache(int numJoins) {
+        if (numJoins > 63)
+            throw new IllegalArgumentException("cannot order more than 63 joins");
+        if (numJoins <= MAX_DENSE_JOINS) {
+            denseSlots = new int[1 << numJoins];
+            sparseSlots = null;
+        } else {
+            denseSlots = null;
+            sparseSlots = new HashMap<>();
+        }
+    }
+
+    private int slot(long s) {
+        if (denseSlots != null)
+            return denseSlots[(int) s] - 1;
+        Integer slot = sparseSlots.get(s);
+        return slot == null ? -1 : slot;
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
         @param s the set of joins for which a new ordering (plan) is being added
+        @param prev the set of joins performed before the last join of the plan, s without that join;
+               0 if the plan is that join alone. Must already have a plan in the cache
+        @param last the last join of the plan
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
     */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    public void addPlan(long s, long prev, LogicalJoinNode last, double cost, int card) {
+        int prevSlot = prev == 0 ? -1 : slot(prev);
+        if (prev != 0 && prevSlot < 0)
+            throw new IllegalArgumentException("no plan for the previous joins of the plan");
+        int slot = slot(s);
+        if (slot < 0) {
+            if (size == sets.length) {
+                int capacity = size * 2;
+                sets = Arrays.copyOf(sets, capacity);
+                previous = Arrays.copyOf(previous, capacity);
+                lastJoins = Arrays.copyOf(lastJoins, capacity);
+                bestCosts = Arrays.copyOf(bestCosts, capacity);
+                bestCardinalities = Arrays.copyOf(bestCardinalities, capacity);
+            }
+            slot = size++;
+            if (denseSlots != null)
+                denseSlots[(int) s] = slot + 1;
+            else
+                sparseSlots.put(s, slot);
+        }
+        sets[slot] = s;
+        previous[slot] = prevSlot;
+        lastJoins[slot] = last;
+        bestCosts[slot] = cost;
+        bestCardinalities[slot] = card;
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** Return true if the cache has a plan for the specified set of joins
+        @param s the set of joins to look up
+    */
+    public boolean contains(long s) {
+        return slot(s) >= 0;
+    }
+
+    /** Find the best join order in the cache for the specified plan
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @return the best order for s in the cache, or null if there is none
+    */
+    public List<LogicalJoinNode> getOrder(long s) {
+        int slot = slot(s);
+        if (slot < 0)
+            return null;
+        List<LogicalJoinNode> order = new ArrayList<>();
+        for (; slot >= 0; slot = previous[slot])
+            order.add(lastJoins[slot]);
+        Collections.reverse(order);
+        return order;
+    }
+
+    /** Find the set of joins the best plan for the specified set performs before its last join
+        @param s the set of joins to look up
+        @return s without the last join of its best plan, 0 if that join is the whole plan
     */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    public long getPrevious(long s) {
+        int prev = previous[slot(s)];
+        return prev < 0 ? 0 : sets[prev];
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public double getCost(long s) {
+        return bestCosts[slot(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public int getCard(long s) {
+        return bestCardinalities[slot(s)];
+    }
+
+    /** Return the number of join sets with a plan in the cache */
+    public int size() {
+        return size;
     }
 }
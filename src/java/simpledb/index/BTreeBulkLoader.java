@@ -0,0 +1,411 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+/**
+ * BTreeBulkLoader builds a new B+ tree for a BTreeFile bottom-up, from tuples
+ * given in key order. Leaf pages are filled up to the fill factor one after the
+ * other, and every page that fills up is added to its parent on the level above,
+ * which fills up the same way, so only the last two pages of each level are kept
+ * in memory. At the end, the last page of each level is evened out with the one
+ * before it if it is less than half full, and the single page of the top level
+ * becomes the root. Internal pages of an index on a string field fill up by the
+ * bytes their entries take, and the keys copied up from the leaves are cut down
+ * to the shortest prefix that separates them, as in BTreeFile.
+ * <p>
+ * The pages are added at the end of the file and written directly, not through
+ * the BufferPool and without log records: none of them is reachable until the
+ * root pointer page points to the new root, which the caller changes in its
+ * transaction once {@link #finish()} has forced them to disk.
+ *
+ * @see BTreeFile#bulkLoad
+ */
+class BTreeBulkLoader {
+	// 每次在文件末尾加这么多页，省得每页都去抢BTreeFile的锁
+	private static final int ALLOCATION_CHUNK = 64;
+
+	private final BTreeFile bf;
+	private final int tableid;
+	private final int keyField;
+	private final Type[] typeAr;
+	private final Type keyType;
+	private final int npagebytes;
+	private final int maxTuples;
+	private final int maxEntries;
+	private final int tuplesPerPage;
+	private final int entriesPerPage;
+	private final int entryBytesPerPage; // for string keys, whose entries take different room
+	private final RandomAccessFile rf;
+
+	private final List<Level> levels = new ArrayList<>();
+	private final List<Integer> chunks = new ArrayList<>(); // first page of each range added to the file
+	private final List<Integer> spare = new ArrayList<>(); // added to the file, but not used by the new tree
+	private int nextPageNo;
+	private int endPageNo;
+	private Field lastKey;
+
+	/**
+	 * Starts a new B+ tree for the given file.
+	 *
+	 * @param bf - the BTreeFile the tree is built for
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 */
+	BTreeBulkLoader(BTreeFile bf, double fillFactor) throws IOException {
+		this.bf = bf;
+		this.tableid = bf.getId();
+		this.keyField = bf.keyField();
+		this.typeAr = new Type[bf.getTupleDesc().numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = bf.getTupleDesc().getFieldType(i);
+		}
+		this.keyType = typeAr[keyField];
+		this.npagebytes = BufferPool.getPageSize();
+		this.maxTuples = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyField).getMaxTuples();
+		this.maxEntries = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyField).getMaxEntries();
+		this.tuplesPerPage = Math.max(1, (int) (fillFactor * maxTuples));
+		this.entriesPerPage = Math.max(1, (int) (fillFactor * maxEntries));
+		this.entryBytesPerPage = (int) (fillFactor * BTreeInternalPage.getEntriesCapacity(keyType));
+		this.rf = new RandomAccessFile(bf.getFile(), "rw");
+	}
+
+	/**
+	 * Adds the next tuple of the tree
+	 *
+	 * @throws DbException if its key is less than the key of the tuple before
+	 */
+	void add(Tuple t) throws DbException, IOException {
+		Field key = t.getField(keyField);
+		if(lastKey != null && key.compare(Op.LESS_THAN, lastKey)) {
+			throw new DbException("bulk load input is not sorted on field " + keyField
+					+ ": " + key + " after " + lastKey);
+		}
+		lastKey = key;
+
+		Level leaves = level(0);
+		if(leaves.cur == null) {
+			leaves.cur = new Node(allocate(BTreePageId.LEAF), key);
+		}
+		else if(leaves.cur.tuples.size() == tuplesPerPage) {
+			leaves.next(separator(leaves.cur, t));
+		}
+		leaves.cur.tuples.add(t);
+	}
+
+	/**
+	 * Writes out the pages still in memory and forces all the pages of the new
+	 * tree to disk.
+	 *
+	 * @return the id of the root page of the new tree
+	 */
+	BTreePageId finish() throws DbException, IOException {
+		if(levels.isEmpty()) {
+			// 没有元组，新树只有一个空的叶子页
+			level(0).cur = new Node(allocate(BTreePageId.LEAF), null);
+		}
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId root = null;
+		for(int depth = 0; root == null; depth++) {
+			Level level = levels.get(depth);
+			Node cur = level.cur;
+			if(level.prev == null) {
+				// nothing went up from this level, so its only page is the root
+				if(depth > 0 && cur.children.size() == 1) {
+					// the page below took in its right sibling, no need for another level
+					spare.add(cur.id.getPageNumber());
+					root = cur.children.get(0);
+					setParent(root, rootPtrId);
+				}
+				else {
+					cur.parent = rootPtrId;
+					write(cur, depth);
+					root = cur.id;
+				}
+			}
+			else if(level.balance()) {
+				cur.parent = push(depth + 1, cur);
+				write(cur, depth);
+			}
+		}
+		rf.getFD().sync();
+		rf.close();
+		return root;
+	}
+
+	/**
+	 * Returns the pages this loader added to the file and did not use. Once the
+	 * new tree is in place, they can be handed out to the next structure change.
+	 */
+	List<Integer> spare() {
+		List<Integer> pages = new ArrayList<>(spare);
+		for(int pgNo = nextPageNo; pgNo < endPageNo; pgNo++) {
+			pages.add(pgNo);
+		}
+		return pages;
+	}
+
+	/**
+	 * Gives up the new tree: returns all the pages this loader added to the
+	 * file, none of which is part of the B+ tree
+	 */
+	List<Integer> abandon() {
+		try {
+			rf.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		List<Integer> pages = new ArrayList<>();
+		for(int first : chunks) {
+			for(int pgNo = first; pgNo < first + ALLOCATION_CHUNK; pgNo++) {
+				pages.add(pgNo);
+			}
+		}
+		return pages;
+	}
+
+	private Level level(int depth) {
+		while(levels.size() <= depth) {
+			levels.add(new Level(levels.size()));
+		}
+		return levels.get(depth);
+	}
+
+	/**
+	 * Adds a page that is complete to its parent on the level above
+	 *
+	 * @return the id of the parent
+	 */
+	private BTreePageId push(int depth, Node child) throws DbException, IOException {
+		Level level = level(depth);
+		if(level.cur == null) {
+			level.cur = new Node(allocate(BTreePageId.INTERNAL), child.lowerBound);
+		}
+		else if(isFull(level.cur, child.lowerBound)) {
+			// 这一页满了，child的下界成为新页的下界，推到上一层
+			level.next(child.lowerBound);
+		}
+		else {
+			Node cur = level.cur;
+			cur.bytes += variable() ? BTreeInternalPage.getEntrySize(
+					cur.keys.isEmpty() ? null : cur.keys.get(cur.keys.size() - 1), child.lowerBound) : 0;
+			cur.keys.add(child.lowerBound);
+		}
+		level.cur.children.add(child.id);
+		return level.cur.id;
+	}
+
+	/**
+	 * Returns true if an internal page cannot take another entry with the given key
+	 * without going over the fill factor
+	 */
+	private boolean isFull(Node node, Field key) {
+		if(!variable())
+			return node.children.size() == entriesPerPage + 1;
+		return node.children.size() == maxEntries + 1 || node.bytes + BTreeInternalPage.getEntrySize(
+				node.keys.isEmpty() ? null : node.keys.get(node.keys.size() - 1), key) > entryBytesPerPage;
+	}
+
+	private boolean variable() {
+		return BTreeInternalPage.hasVariableLengthKeys(keyType);
+	}
+
+	/**
+	 * Returns the key copied up for a leaf page starting with the given tuple
+	 */
+	private Field separator(Node prev, Tuple first) {
+		Field key = first.getField(keyField);
+		if(prev == null || prev.tuples.isEmpty())
+			return key;
+		return BTreeFile.shortestSeparator(key, prev.tuples.get(prev.tuples.size() - 1).getField(keyField), key);
+	}
+
+	private BTreePageId allocate(int pgcateg) throws IOException {
+		if(nextPageNo == endPageNo) {
+			nextPageNo = bf.appendEmptyPages(ALLOCATION_CHUNK);
+			endPageNo = nextPageNo + ALLOCATION_CHUNK;
+			chunks.add(nextPageNo);
+		}
+		return new BTreePageId(tableid, nextPageNo++, pgcateg);
+	}
+
+	private void write(Node node, int depth) throws DbException, IOException {
+		BTreePage page;
+		if(depth == 0) {
+			byte[] data = BTreeFileEncoder.convertToLeafPage(node.tuples, npagebytes,
+					typeAr.length, typeAr, keyField);
+			BTreeLeafPage leaf = new BTreeLeafPage(node.id, data, keyField);
+			leaf.setLeftSiblingId(node.leftSibling);
+			leaf.setRightSiblingId(node.rightSibling);
+			page = leaf;
+		}
+		else {
+			List<BTreeEntry> entries = new ArrayList<>();
+			for(int i = 0; i < node.keys.size(); i++) {
+				entries.add(new BTreeEntry(node.keys.get(i), node.children.get(i), node.children.get(i + 1)));
+			}
+			byte[] data = BTreeFileEncoder.convertToInternalPage(entries, npagebytes, keyType,
+					node.children.get(0).pgcateg());
+			page = new BTreeInternalPage(node.id, data, keyField);
+		}
+		page.setParentId(node.parent);
+		writePage(page);
+	}
+
+	private void writePage(BTreePage page) throws IOException {
+		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
+		rf.write(page.getPageData());
+	}
+
+	/**
+	 * Changes the parent pointer of a page already written, after it moved to
+	 * another parent
+	 */
+	private void setParent(BTreePageId pid, BTreePageId parent) throws DbException, IOException {
+		BTreePage page = (BTreePage) bf.readPage(pid);
+		page.setParentId(parent);
+		writePage(page);
+	}
+
+	/**
+	 * A page of the new tree that is not complete yet, or the last complete page of
+	 * its level. Leaf pages hold tuples, internal pages hold child ids and the keys
+	 * between them.
+	 */
+	private static class Node {
+		final BTreePageId id;
+		Field lowerBound; // the key copied or pushed up to the parent
+		BTreePageId parent;
+		BTreePageId leftSibling;
+		BTreePageId rightSibling;
+		final List<Tuple> tuples = new ArrayList<>();
+		final List<BTreePageId> children = new ArrayList<>();
+		final List<Field> keys = new ArrayList<>();
+		int bytes; // the bytes the keys take on a page with variable-length entries
+
+		Node(BTreePageId id, Field lowerBound) {
+			this.id = id;
+			this.lowerBound = lowerBound;
+		}
+	}
+
+	/**
+	 * One level of the new tree: the page being filled, and the page before it,
+	 * which has been written out already
+	 */
+	private class Level {
+		final int depth;
+		Node prev;
+		Node cur;
+
+		Level(int depth) {
+			this.depth = depth;
+		}
+
+		/**
+		 * Writes out the current page, which is complete, and starts the next one
+		 *
+		 * @param lowerBound - the lowest key of the next page
+		 */
+		void next(Field lowerBound) throws DbException, IOException {
+			Node full = cur;
+			cur = new Node(allocate(depth == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL), lowerBound);
+			if(depth == 0) {
+				full.rightSibling = cur.id;
+				cur.leftSibling = full.id;
+			}
+			full.parent = push(depth + 1, full);
+			write(full, depth);
+			prev = full;
+		}
+
+		/**
+		 * Evens out the last page of the level with the page before it, if the last
+		 * page is less than half full: merges the two if everything fits in one page,
+		 * otherwise moves tuples or entries over from the page before.
+		 *
+		 * @return false if the last page was merged into the one before, and is not
+		 * part of the tree anymore
+		 */
+		boolean balance() throws DbException, IOException {
+			if(depth == 0) {
+				if(cur.tuples.size() >= maxTuples / 2) {
+					return true;
+				}
+				int total = prev.tuples.size() + cur.tuples.size();
+				if(total <= maxTuples) {
+					prev.tuples.addAll(cur.tuples);
+					prev.rightSibling = null;
+					write(prev, depth);
+					spare.add(cur.id.getPageNumber());
+					return false;
+				}
+				int move = total / 2 - cur.tuples.size();
+				List<Tuple> moved = prev.tuples.subList(prev.tuples.size() - move, prev.tuples.size());
+				cur.tuples.addAll(0, moved);
+				moved.clear();
+				cur.lowerBound = separator(prev, cur.tuples.get(0));
+				write(prev, depth);
+				return true;
+			}
+
+			if(BTreeInternalPage.getEntriesSize(keyType, cur.keys) >= BTreeInternalPage.getMinEntriesSize(keyType)) {
+				return true;
+			}
+			List<Field> merged = new ArrayList<>(prev.keys);
+			merged.add(cur.lowerBound);
+			merged.addAll(cur.keys);
+			if(merged.size() <= maxEntries
+					&& BTreeInternalPage.getEntriesSize(keyType, merged) <= BTreeInternalPage.getEntriesCapacity(keyType)) {
+				prev.keys.add(cur.lowerBound);
+				prev.keys.addAll(cur.keys);
+				prev.children.addAll(cur.children);
+				for(BTreePageId child : cur.children) {
+					setParent(child, prev.id);
+				}
+				write(prev, depth);
+				spare.add(cur.id.getPageNumber());
+				return false;
+			}
+			// the last children of prev move over, with the keys between them; the key
+			// in front of them is the new lower bound of cur
+			int nkeys = prev.keys.size();
+			int move = (prev.children.size() + cur.children.size()) / 2 - cur.children.size();
+			if(variable()) {
+				// 按字节数平分：从prev末尾搬，直到cur占到两页总字节数的一半
+				int size = BTreeInternalPage.getEntriesSize(keyType, cur.keys);
+				int target = (BTreeInternalPage.getEntriesSize(keyType, prev.keys) + size) / 2;
+				move = 0;
+				while(size < target && move < nkeys - 1) {
+					int i = nkeys - 1 - move++;
+					size += BTreeInternalPage.getEntrySize(i == 0 ? null : prev.keys.get(i - 1), prev.keys.get(i));
+				}
+				move = Math.max(1, move);
+			}
+			List<BTreePageId> movedChildren = prev.children.subList(prev.children.size() - move, prev.children.size());
+			List<Field> movedKeys = prev.keys.subList(nkeys - move + 1, nkeys);
+			cur.keys.add(0, cur.lowerBound);
+			cur.keys.addAll(0, movedKeys);
+			cur.children.addAll(0, movedChildren);
+			cur.lowerBound = prev.keys.get(nkeys - move);
+			for(BTreePageId child : movedChildren) {
+				setParent(child, cur.id);
+			}
+			movedChildren.clear();
+			prev.keys.subList(nkeys - move, nkeys).clear();
+			write(prev, depth);
+			return true;
+		}
+	}
+}
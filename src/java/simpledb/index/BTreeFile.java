@@ -2,9 +2,11 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import simpledb.common.*;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate.Op;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
@@ -16,6 +18,11 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Transactions lock the leaf pages they read and write, and the pages a split or
+ * merge changes, until they commit. On the way down the tree the root pointer page
+ * and the internal pages are only latched, so that concurrent inserts do not
+ * serialize on the pages near the root; see {@link BTreeLatches}.
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -30,6 +37,12 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private final int keyField;
 
+	private final BTreeLatches latches = new BTreeLatches();
+	// 当前线程正在做的结构修改(分裂、合并)，拿不到锁时用来撤销
+	private final ThreadLocal<Modification> modification = new ThreadLocal<>();
+	// 撤销的结构修改在文件末尾分配、但没有用上的页，受this保护
+	private final Deque<Integer> unusedPages = new ArrayDeque<>();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -166,65 +179,181 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
-	 * 
-	 * If f is null, it finds the left-most leaf page -- used for the iterator
+	 * Finds the leaf page in the B+ tree corresponding to the left-most page possibly
+	 * containing the key field f, and locks it with permission perm, for a writer. The
+	 * root pointer page and the internal pages along the path are latched, not locked:
+	 * the latch on a child is taken before the latch on its parent is released, and
+	 * the lock on the leaf is only tried while its parent is latched, so no page on the
+	 * path splits under the writer. If another transaction holds a conflicting lock on
+	 * the leaf, or has changed an internal page on the path without committing yet,
+	 * LockWait is thrown, and the caller releases the latches of the path, waits and
+	 * starts over.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
+	 * @param path - the latches held by this operation
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param exclusive - whether to latch the pages exclusively and keep the latches on
+	 * the pages a split of the leaf changes: every page below the lowest internal page
+	 * with an empty slot, and the root pointer page if there is none. Otherwise all the
+	 * latches are released once the leaf is locked.
+	 * @return the left-most leaf page possibly containing the key field f, or null
+	 * if the tree has no root page yet and exclusive is false
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLatches.Path path,
+									   Permissions perm, Field f, boolean exclusive)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		//判断是否是要寻找到的叶子节点
-		if(pid.pgcateg() == BTreePageId.LEAF){
-			Page page = Database.getBufferPool().getPage(tid,pid,perm);
-			return (BTreeLeafPage) page;
-		}
-
-		//不然的话 说明该指定页面为内部页面   =====> 权限为只读
-		BTreeInternalPage bTreeInternalPage = (BTreeInternalPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
-		Iterator<BTreeEntry> iter = bTreeInternalPage.iterator();
-		BTreeEntry bTreeEntry = null;
-		while(iter.hasNext()){
-			bTreeEntry = iter.next();
-			if(f == null){
-				//如果为空向最左边进行遍历
-				return findLeafPage(tid,dirtypages,bTreeEntry.getLeftChild(),perm,f);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		path.latch(rootPtrId, exclusive);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getLatchedPage(tid, dirtypages, rootPtrId);
+		BTreePageId pid = rootPtr.getRootId();
+		if(pid == null) {
+			if(!exclusive) {
+				path.releaseAll();
+				return null;
 			}
-			//否则的话应当找到对应的bTreeEntry
-			if(f.compare(Op.LESS_THAN_OR_EQ, bTreeEntry.getKey())){
-				return findLeafPage(tid,dirtypages,bTreeEntry.getLeftChild(),perm,f);
+			// the root has just been created, so set the root pointer to point to it
+			pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			rootPtr.setRootId(pid);
+		}
+
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			path.latch(pid, exclusive);
+			BTreeInternalPage page = (BTreeInternalPage) getLatchedPage(tid, dirtypages, pid);
+			if(!exclusive || page.getNumEmptySlots() > 0) {
+				//下面分裂最多改到这一页为止，上面的latch可以放掉
+				path.releaseAncestors();
 			}
+			//二分查找第一个不小于f的键，走它的左孩子；f为空时走最左边的孩子
+			pid = page.findChildId(f);
+		}
+
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm, false);
+		if(!exclusive) {
+			path.releaseAll();
 		}
-		assert bTreeEntry != null;
-		return findLeafPage(tid,dirtypages,bTreeEntry.getRightChild(),perm,f);
+		return leaf;
 	}
-	
+
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Finds and read-locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f. Used by the BTreeFile iterators.
+	 * <p>
+	 * Unlike the writers, readers hold only one latch at a time: the latch on a page
+	 * is released before its child is latched, so a reader never holds up a split of
+	 * the pages above it. A page that split in the meantime has a right-link to the
+	 * page with its upper half, which the reader moves to when f is above the high
+	 * key; a leaf that split is left behind the same way, and the iterators get to
+	 * its upper half through the right sibling pointer. Only merges, which free pages,
+	 * are kept out, by the shared latch on the whole tree.
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
-	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
-	 * 
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null
+	 * if the tree has no root page yet
+	 * @see BTreeInternalPage#findRightLink(Field)
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		while(true) {
+			Lock treeLatch = latches.treeLatch(false);
+			BTreeLatches.Path path = latches.path();
+			LockWait wait;
+			treeLatch.lock();
+			try {
+				Map<PageId, Page> dirtypages = new HashMap<>();
+				BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+				path.latch(rootPtrId, false);
+				BTreePageId pid = ((BTreeRootPtrPage) getLatchedPage(tid, dirtypages, rootPtrId)).getRootId();
+				path.releaseAll();
+				if(pid == null) {
+					return null;
+				}
+
+				while(pid.pgcateg() == BTreePageId.INTERNAL) {
+					path.latch(pid, false);
+					BTreeInternalPage page = (BTreeInternalPage) getLatchedPage(tid, dirtypages, pid);
+					// 读了父节点之后这一页分裂了，f在右边的新页里
+					for(BTreePageId right = page.findRightLink(f); right != null; right = page.findRightLink(f)) {
+						path.releaseAll();
+						path.latch(right, false);
+						page = (BTreeInternalPage) getLatchedPage(tid, dirtypages, right);
+					}
+					pid = page.findChildId(f);
+					path.releaseAll();
+				}
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY, false);
+			} catch(LockWait e) {
+				wait = e;
+			} finally {
+				path.releaseAll();
+				treeLatch.unlock();
+			}
+			await(tid, wait);
+		}
+	}
+
+	/**
+	 * Returns a root pointer or internal page protected by a latch of the caller
+	 * instead of a page lock.
+	 * 
+	 * @throws LockWait if another transaction has the page locked for writing
+	 */
+	private Page getLatchedPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().getPageLatched(tid, pid);
+		if(p == null) {
+			throw new LockWait(pid, Permissions.READ_ONLY);
+		}
+		return p;
+	}
+
+	/**
+	 * Waits, holding no latches, for a lock that a latched operation could not get
+	 * right away. The page is only waited for, not kept locked: the operation locks
+	 * it again under latches if it still needs it. Keeping it would let two
+	 * operations each hold a leaf the other needs, e.g. to split the root.
+	 * 
+	 * @param tid - the transaction id
+	 * @param wait - the lock the operation ran into
+	 */
+	private void await(TransactionId tid, LockWait wait) throws DbException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		boolean held = bufferPool.holdsLock(tid, wait.pid);
+		bufferPool.getPage(tid, wait.pid, wait.perm);
+		if(!held) {
+			bufferPool.unsafeReleasePage(tid, wait.pid);
+		}
+	}
+
+	/**
+	 * Returns the key to put in the parent between two leaf pages. For string
+	 * keys this is the shortest string between the last key of the left page and
+	 * the first key of the right page (suffix truncation), which takes less room
+	 * on the variable-length internal pages and so raises their fanout. Any key
+	 * in between separates the two pages as well as they do.
+	 * @param key - the key to use for other key types
+	 * @param left - the largest key of the left page
+	 * @param right - the smallest key of the right page
+	 */
+	static Field shortestSeparator(Field key, Field left, Field right) {
+		if(!(left instanceof StringField) || !(right instanceof StringField))
+			return key;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int shared = 0;
+		while(shared < l.length() && shared < r.length() && l.charAt(shared) == r.charAt(shared))
+			shared++;
+		// r的前shared+1个字符已经大于l；l本身不比它长就用l
+		if(shared == r.length() || l.length() <= shared + 1)
+			return left;
+		return new StringField(r.substring(0, shared + 1), Type.STRING_LEN);
 	}
 
 	/**
@@ -270,8 +399,11 @@ public class BTreeFile implements DbFile {
 		}
 
 		Tuple up = iterator.next();
+		// 字符串键只上推能分开两页的最短前缀
+		Field separator = shortestSeparator(up.getField(keyField), up.getField(keyField),
+				newPage.iterator().next().getField(keyField));
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid,dirtypages, page.getParentId(),field);
-		BTreeEntry insetEntry = new BTreeEntry(up.getField(keyField),page.getId(),newPage.getId());
+		BTreeEntry insetEntry = new BTreeEntry(separator,page.getId(),newPage.getId());
 		parentPage.insertEntry(insetEntry);
 
 		/**
@@ -280,7 +412,7 @@ public class BTreeFile implements DbFile {
 		if(page.getRightSiblingId() != null){
 			//右边还有叶子节点
 			BTreeLeafPage right = (BTreeLeafPage) getPage(tid,dirtypages,page.getRightSiblingId(),Permissions.READ_WRITE);
-			right.setLeftSiblingId(page.getId());
+			right.setLeftSiblingId(newPage.getId());
 			dirtypages.put(right.getId(),right);
 		}
 
@@ -298,7 +430,7 @@ public class BTreeFile implements DbFile {
 		/**
 		 * 通过验证field在哪个叶子节点上，从而确定要返回的页面
 		 */
-		if(up.getField(keyField).compare(Op.GREATER_THAN_OR_EQ,field)){
+		if(separator.compare(Op.GREATER_THAN_OR_EQ,field)){
 			return page;
 		}
 
@@ -340,7 +472,7 @@ public class BTreeFile implements DbFile {
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
 		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid,dirtypages,BTreePageId.INTERNAL);
-		int half = page.getNumEntries() / 2;
+		int half = page.getNumEntriesToSplitOff();
 		Iterator<BTreeEntry> iterator = page.reverseIterator();
 		while (iterator.hasNext() && half > 0){
 			BTreeEntry bTreeEntry = iterator.next();
@@ -352,6 +484,9 @@ public class BTreeFile implements DbFile {
 		page.deleteKeyAndRightChild(up);
 		up.setLeftChild(page.getId());
 		up.setRightChild(newPage.getId());
+		// 读者不拿着父节点的latch往下走：分裂前读了父节点的读者顺着右链接找到新页
+		newPage.setRightLink(page.getHighKey(), page.getRightLinkId());
+		page.setRightLink(up.getKey(), newPage.getId());
 		updateParentPointers(tid, dirtypages, newPage);
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
 		parentPage.insertEntry(up);
@@ -487,16 +622,44 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
+		// 结构修改时持有latch，不能等锁
+		return getPage(tid, dirtypages, pid, perm, modification.get() == null);
+	}
+
+	/**
+	 * Like {@link #getPage(TransactionId, Map, BTreePageId, Permissions)}, but if block
+	 * is false, throws LockWait instead of waiting for a lock held by another transaction.
+	 * Pages fetched with read-write permission during a structure change are recorded
+	 * in it, so that it can be backed out.
+	 */
+	private Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			boolean block) throws DbException, TransactionAbortedException {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
+		BufferPool bufferPool = Database.getBufferPool();
+		Modification m = modification.get();
+		Page p;
+		if(block) {
+			p = bufferPool.getPage(tid, pid, perm);
+		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
-			if(perm == Permissions.READ_WRITE) {
-				dirtypages.put(pid, p);
+			boolean held = bufferPool.holdsLock(tid, pid);
+			p = bufferPool.tryGetPage(tid, pid, perm);
+			if(p == null) {
+				throw new LockWait(pid, perm);
+			}
+			if(!held && m != null) {
+				m.locked.add(pid);
 			}
-			return p;
 		}
+		if(perm == Permissions.READ_WRITE) {
+			if(m != null) {
+				m.record(p);
+			}
+			dirtypages.put(pid, p);
+		}
+		return p;
 	}
 
 	/**
@@ -512,28 +675,49 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = t.getField(keyField);
+		createFileIfEmpty();
+
+		while(true) {
+			Lock treeLatch = latches.treeLatch(false);
+			BTreeLatches.Path path = latches.path();
+			LockWait wait;
+			treeLatch.lock();
+			// the leaf locked on the way down is recorded too: a retry must not keep a
+			// lock it took while it waits for another one
+			Modification m = beginModification(tid, dirtypages);
+			try {
+				// find and lock the left-most leaf page corresponding to the key field,
+				// going down with shared latches: if the leaf has an empty slot, no
+				// other page changes
+				BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, path, Permissions.READ_WRITE, key, false);
+				if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+					// go down again with exclusive latches, keeping them on the pages
+					// that change, and split the leaf page
+					leafPage = findLeafPage(tid, dirtypages, path, Permissions.READ_WRITE, key, true);
+					if(leafPage.getNumEmptySlots() == 0) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+					}
+				}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+				// insert the tuple into the leaf page
+				leafPage.insertTuple(t);
+				return new ArrayList<>(dirtypages.values());
+			} catch(LockWait e) {
+				m.rollback();
+				wait = e;
+			} catch(Exception e) {
+				// 不管是等锁还是出错，都不能留下做了一半的分裂
+				m.rollback();
+				throw e;
+			} finally {
+				modification.remove();
+				path.releaseAll();
+				treeLatch.unlock();
+			}
+			//放掉所有latch之后再等锁，然后从根重新往下找
+			await(tid, wait);
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-        return new ArrayList<>(dirtypages.values());
 	}
 	
 	/**
@@ -563,6 +747,12 @@ public class BTreeFile implements DbFile {
 		// the page and siblings
 		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			if(!parent.hasRoomForKeyChange()) {
+				// 重分配要换掉父节点里的一个键，变长的键不一定放得下：先把父节点分裂开
+				splitInternalPage(tid, dirtypages, parent, parent.iterator().next().getKey());
+				handleMinOccupancyPage(tid, dirtypages, page);
+				return;
+			}
 			Iterator<BTreeEntry> ite = parent.iterator();
 			while(ite.hasNext()) {
 				BTreeEntry e = ite.next();
@@ -656,6 +846,7 @@ public class BTreeFile implements DbFile {
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
 		BTreeLeafPage rhs;          //确定一下平衡过后的右边页面，其第一个tuple的Filed便是entry要重新设定的key
+		BTreeLeafPage lhs;
 		int numTuples = (sibling.getNumTuples() - page.getNumTuples()) / 2;
 		Tuple[] tpToMove = new Tuple[numTuples];   //应当要转移的tuple
 		int cntdown = tpToMove.length - 1;
@@ -663,9 +854,11 @@ public class BTreeFile implements DbFile {
 		if(isRightSibling){
 			//如果sibling为右边的LeafPage
 			rhs = sibling;
+			lhs = page;
 			it = sibling.iterator();
 		}else{
 			rhs = page;
+			lhs = sibling;
 			it = sibling.reverseIterator();
 		}
 		while (cntdown >= 0 && it.hasNext()){
@@ -679,7 +872,9 @@ public class BTreeFile implements DbFile {
 		}
 
 		if(rhs.getNumTuples() > 0){
-			entry.setKey(rhs.iterator().next().getField(keyField));
+			Field first = rhs.iterator().next().getField(keyField);
+			entry.setKey(lhs.getNumTuples() > 0
+					? shortestSeparator(first, lhs.reverseIterator().next().getField(keyField), first) : first);
 			parent.updateEntry(entry);
 		}
 	}
@@ -711,12 +906,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.canMergeWith(leftSibling)) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -727,7 +921,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.canMergeWith(rightSibling)) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -761,7 +955,7 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int numToMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numToMove = page.getNumEntriesToSteal(leftSibling, true);
 		BTreeEntry[] entryToMove = new BTreeEntry[numToMove];
 
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
@@ -791,6 +985,8 @@ public class BTreeFile implements DbFile {
 			page.insertEntry(parentEntry);
 			parentEntry = entry;
 		}
+		// 左边的键范围变了；合并和重分配时拿着整棵树的latch，没有读者需要右链接
+		leftSibling.setRightLink(null, null);
 		dirtypages.put(parent.getId(), parent);
 		dirtypages.put(leftSibling.getId(), leftSibling);
 		dirtypages.put(page.getId(), page);
@@ -821,7 +1017,7 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int numToMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numToMove = page.getNumEntriesToSteal(rightSibling, false);
 		BTreeEntry[] btentries = new BTreeEntry[numToMove];
 
 		Iterator<BTreeEntry> it = rightSibling.iterator();
@@ -853,6 +1049,8 @@ public class BTreeFile implements DbFile {
 			parentEntry = entry;
 
 		}
+		// 同上，左边这页的键范围变了
+		page.setRightLink(null, null);
 		dirtypages.put(parent.getId(), parent);
 		dirtypages.put(page.getId(), page);
 		dirtypages.put(rightSibling.getId(), rightSibling);
@@ -957,6 +1155,8 @@ public class BTreeFile implements DbFile {
 			updateParentPointer(tid, dirtypages, leftPage.getId(), entry.getRightChild());
 			leftPage.insertEntry(entry);
 		}
+		// the left page now covers the keys of the right page
+		leftPage.setRightLink(rightPage.getHighKey(), rightPage.getRightLinkId());
 		dirtypages.put(leftPage.getId(), leftPage);
 		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
 	}
@@ -987,8 +1187,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1003,7 +1202,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isBelowMinOccupancy()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1026,18 +1225,175 @@ public class BTreeFile implements DbFile {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		RecordId rid = t.getRecordId();
+
+		while(true) {
+			// the page is locked but not yet marked dirty: if anything below fails,
+			// the tuple has to be put back here, the abort would not restore the page
+			Modification m = beginModification(tid, dirtypages);
+			Lock treeLatch = null;
+			LockWait wait;
+			try {
+				page.deleteTuple(t);
+
+				// if the page is below minimum occupancy, get some tuples from its siblings
+				// or merge with one of the siblings
+				if(page.getNumEmptySlots() > maxEmptySlots) {
+					// merges and redistributions change the pages above the leaf from the
+					// bottom up, against the order of the latches, so they latch the whole tree
+					treeLatch = latches.treeLatch(true);
+					treeLatch.lock();
+					handleMinOccupancyPage(tid, dirtypages, page);
+				}
+				break;
+			} catch(LockWait e) {
+				m.rollback();
+				t.setRecordId(rid);
+				wait = e;
+			} catch(Exception e) {
+				m.rollback();
+				t.setRecordId(rid);
+				throw e;
+			} finally {
+				modification.remove();
+				if(treeLatch != null)
+					treeLatch.unlock();
+			}
+			await(tid, wait);
 		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * Loads many tuples at once, much faster than inserting them one by one: a new
+	 * B+ tree holding the tuples already in the file and the new ones is built
+	 * bottom-up, with its leaf and internal pages filled up to the fill factor, and
+	 * then replaces the old tree. The tuples must come in order of the key field;
+	 * wrap the input in an OrderBy if it is not sorted.
+	 * <p>
+	 * The tuples already in the file are read under tid, so the old tree does not
+	 * change until tid ends. The new pages are added at the end of the file and
+	 * forced to disk without log records, and only the change of the root pointer
+	 * page and the freeing of the old pages are part of tid: if tid aborts, the old
+	 * tree is still in place, and the new pages are left unused.
+	 * 
+	 * @param tid - the transaction id
+	 * @param sorted - the tuples to load, in order of the key field; opened and
+	 * closed by this method
+	 * @param fillFactor - the fraction of each new page to fill, between 0.5 and 1;
+	 * less than 1 leaves room for inserts without splits
+	 * @throws DbException if the tuples do not match the tuple descriptor of this
+	 * file, or are not in order
+	 * @see BTreeBulkLoader
+	 */
+	public void bulkLoad(TransactionId tid, OpIterator sorted, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1, not " + fillFactor);
+		}
+		TupleDesc input = sorted.getTupleDesc();
+		if(input.numFields() != td.numFields()) {
+			throw new DbException("bulk load input does not match the tuple descriptor of the B+ tree");
+		}
+		for(int i = 0; i < td.numFields(); i++) {
+			if(input.getFieldType(i) != td.getFieldType(i)) {
+				throw new DbException("bulk load input does not match the tuple descriptor of the B+ tree");
+			}
+		}
+		createFileIfEmpty();
+
+		// merge the tuples in the tree with the new ones into the new tree; the old
+		// leaves stay read-locked, so nobody changes them in the meantime
+		BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor);
+		DbFileIterator old = iterator(tid);
+		BTreePageId root;
+		try {
+			old.open();
+			sorted.open();
+			Tuple a = old.hasNext() ? old.next() : null;
+			Tuple b = sorted.hasNext() ? sorted.next() : null;
+			while(a != null || b != null) {
+				//键相同时旧的元组在前
+				if(b == null || (a != null && !b.getField(keyField).compare(Op.LESS_THAN, a.getField(keyField)))) {
+					loader.add(a);
+					a = old.hasNext() ? old.next() : null;
+				}
+				else {
+					loader.add(b);
+					b = sorted.hasNext() ? sorted.next() : null;
+				}
+			}
+			root = loader.finish();
+		} catch(Exception e) {
+			releaseEmptyPages(loader.abandon());
+			throw e;
+		} finally {
+			old.close();
+			sorted.close();
+		}
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		while(true) {
+			// readers and writers going down the old tree are kept out while it is replaced
+			Lock treeLatch = latches.treeLatch(true);
+			LockWait wait;
+			treeLatch.lock();
+			Modification m = beginModification(tid, dirtypages);
+			try {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				BTreePageId oldRoot = rootPtr.getRootId();
+				rootPtr.setRootId(root);
+				List<Integer> oldPages = new ArrayList<>();
+				if(oldRoot != null) {
+					collectPages(tid, dirtypages, oldRoot, oldPages);
+				}
+				for(int pgNo : oldPages) {
+					setEmptyPage(tid, dirtypages, pgNo);
+				}
+				break;
+			} catch(LockWait e) {
+				m.rollback();
+				wait = e;
+			} catch(Exception e) {
+				m.rollback();
+				releaseEmptyPages(loader.abandon());
+				throw e;
+			} finally {
+				modification.remove();
+				treeLatch.unlock();
+			}
+			await(tid, wait);
+		}
+		releaseEmptyPages(loader.spare());
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
+	/**
+	 * Adds the page numbers of a subtree to pages. Called with the tree latched
+	 * exclusively, so the internal pages are read without locks.
+	 */
+	private void collectPages(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, List<Integer> pages)
+			throws DbException, TransactionAbortedException {
+		pages.add(pid.getPageNumber());
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getLatchedPage(tid, dirtypages, pid);
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				collectPages(tid, dirtypages, e.getLeftChild(), pages);
+			}
+			if(e != null) {
+				collectPages(tid, dirtypages, e.getRightChild(), pages);
+			}
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1050,23 +1406,28 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createFileIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty
+	 */
+	private synchronized void createFileIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			bw.write(emptyRootPtrData);
+			bw.write(emptyLeafData);
+			bw.close();
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1087,26 +1448,31 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
+			try {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+				int headerPageCount = 0;
+				// try to find a header page with an empty slot
+				while(headerPage != null && headerPage.getEmptySlot() == -1) {
+					headerId = headerPage.getNextPageId();
+					if(headerId != null) {
+						headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+						headerPageCount++;
+					}
+					else {
+						headerPage = null;
+					}
 				}
-			}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				// if headerPage is not null, it must have an empty slot
+				if(headerPage != null) {
+					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+					int emptySlot = headerPage.getEmptySlot();
+					headerPage.markSlotUsed(emptySlot, true);
+					emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				}
+			} catch(LockWait e) {
+				// 结构修改时不等别的事务锁住的空闲页表，直接在文件末尾分配
+				headerId = null;
 			}
 		}
 
@@ -1114,13 +1480,23 @@ public class BTreeFile implements DbFile {
 		// or there are no free slots
 		if(headerId == null) {		
 			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				Integer unused = unusedPages.poll();
+				if(unused != null) {
+					emptyPageNo = unused;
+				}
+				else {
+					// create the new page
+					BufferedOutputStream bw = new BufferedOutputStream(
+							new FileOutputStream(f, true));
+					byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+					bw.write(emptyData);
+					bw.close();
+					emptyPageNo = numPages();
+				}
+			}
+			Modification m = modification.get();
+			if(m != null) {
+				m.appended.add(emptyPageNo);
 			}
 		}
 
@@ -1248,6 +1624,29 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * Adds empty pages at the end of this BTreeFile, for a caller that writes
+	 * them directly
+	 * 
+	 * @param n - the number of pages to add
+	 * @return the page number of the first new page
+	 */
+	synchronized int appendEmptyPages(int n) throws IOException {
+		int first = numPages() + 1;
+		try(RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) (first - 1 + n) * BufferPool.getPageSize());
+		}
+		return first;
+	}
+
+	/**
+	 * Hands pages at the end of the file that are not part of the tree to the next
+	 * structure change that needs a new page
+	 */
+	synchronized void releaseEmptyPages(List<Integer> pageNos) {
+		unusedPages.addAll(pageNos);
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1274,6 +1673,103 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Starts recording a change of the calling thread. Until the change ends, page
+	 * locks are only tried, never waited for.
+	 */
+	private Modification beginModification(TransactionId tid, Map<PageId, Page> dirtypages) {
+		Modification m = new Modification(tid, dirtypages);
+		modification.set(m);
+		return m;
+	}
+
+	/**
+	 * The pages an insert (with the splits it needs) or a delete (with the merges
+	 * or redistributions it needs) has changed so far, with their contents from
+	 * before, so that the change can be backed out when it runs into a lock held
+	 * by another transaction.
+	 */
+	private class Modification {
+		final TransactionId tid;
+		final Map<PageId, Page> dirtypages;
+		final Map<PageId, Page> pages = new LinkedHashMap<>();
+		final Map<PageId, byte[]> images = new HashMap<>();
+		final Map<PageId, TransactionId> added = new HashMap<>(); // put into dirtypages by this change, and who dirtied them before
+		final List<PageId> locked = new ArrayList<>(); // locks taken by this change
+		final List<Integer> appended = new ArrayList<>(); // pages added at the end of the file
+
+		Modification(TransactionId tid, Map<PageId, Page> dirtypages) {
+			this.tid = tid;
+			this.dirtypages = dirtypages;
+			for(Page p : dirtypages.values()) {
+				pages.put(p.getId(), p);
+				images.put(p.getId(), p.getPageData());
+				p.markDirty(true, tid);
+			}
+		}
+
+		/**
+		 * Records a page fetched for writing, before it changes. The page is marked
+		 * dirty right away, so that the BufferPool does not evict it half changed.
+		 */
+		void record(Page p) {
+			if(!pages.containsKey(p.getId())) {
+				pages.put(p.getId(), p);
+				images.put(p.getId(), p.getPageData());
+				added.put(p.getId(), p.isDirty());
+				p.markDirty(true, tid);
+			}
+		}
+
+		/**
+		 * Puts every page back as it was, and releases the locks and the new pages
+		 * the change took
+		 */
+		void rollback() throws IOException {
+			for(Page p : pages.values()) {
+				byte[] data = images.get(p.getId());
+				if(p instanceof BTreeLeafPage) {
+					((BTreeLeafPage) p).restorePageData(data);
+				}
+				else if(p instanceof BTreeInternalPage) {
+					((BTreeInternalPage) p).restorePageData(data);
+				}
+				else if(p instanceof BTreeHeaderPage) {
+					((BTreeHeaderPage) p).restorePageData(data);
+				}
+				else {
+					((BTreeRootPtrPage) p).restorePageData(data);
+				}
+			}
+			for(Map.Entry<PageId, TransactionId> e : added.entrySet()) {
+				dirtypages.remove(e.getKey());
+				pages.get(e.getKey()).markDirty(e.getValue() != null, e.getValue());
+			}
+			for(PageId pid : locked) {
+				Database.getBufferPool().unsafeReleasePage(tid, pid);
+			}
+			synchronized(BTreeFile.this) {
+				unusedPages.addAll(appended);
+			}
+		}
+	}
+
+	/**
+	 * Thrown instead of waiting for a page lock while latches are held. The operation
+	 * backs out, releases its latches, waits for the lock and starts over.
+	 */
+	private static class LockWait extends TransactionAbortedException {
+		private static final long serialVersionUID = 1L;
+
+		final BTreePageId pid;
+		final Permissions perm;
+
+		LockWait(BTreePageId pid, Permissions perm) {
+			this.pid = pid;
+			this.perm = perm;
+		}
+	}
+
 }
 
 /**
@@ -1301,11 +1797,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, null);
+		if(curp != null)
+			it = curp.iterator();
 	}
 
 	/**
@@ -1386,17 +1880,19 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+			// start at the first tuple with a key >= the field instead of the first on the page;
+			// if the leaf split after its parent was read, readNext moves on to the right
+			if(curp != null)
+				it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			if(curp != null)
+				it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -621,6 +621,11 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if(BTreeInternalPage.hasVariableLengthKeys(keyType)) {
+			// 字符串键的页是变长格式
+			entries.sort(new EntryComparator());
+			return BTreeInternalPage.createVariablePageData(entries, childPageCategory);
+		}
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -123,6 +123,18 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	/**
+	 * Puts this page back into the state it had when data was taken from it
+	 * with getPageData(). Used by BTreeFile to back out a structure change
+	 * it could not finish.
+	 */
+	void restorePageData(byte[] data) throws IOException {
+		BTreeHeaderPage p = new BTreeHeaderPage(pid, data);
+		System.arraycopy(p.header, 0, header, 0, header.length);
+		nextPage = p.nextPage;
+		prevPage = p.prevPage;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -30,6 +31,32 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// 按键排好序的索引，第一次查找时建立，槽位变化时丢弃
+	private volatile BTreeKeyIndex keyIndex = null;
+
+	// B-link：分裂出来的右边那页和分裂时上推的键，只在内存里，不写到磁盘
+	private Field highKey = null;
+	private int rightLink = 0;
+
+	// 字符串键的页用变长格式：每个键只存和前一个键不同的后缀，能放多少条目看键实际多长
+	private final boolean variable;
+	// 条目实际占的字节数，-1表示槽位变了要重算
+	private volatile int usedBytes = -1;
+
+	/**
+	 * Bytes a variable-length entry takes besides the key suffix: the length of
+	 * the prefix shared with the key before, the length of the suffix, and the
+	 * child pointer
+	 */
+	static final int VAR_ENTRY_OVERHEAD = 2 + INDEX_SIZE;
+
+	/**
+	 * The most bytes a variable-length entry can take. Inserting an entry grows
+	 * the page by at most this much: the key after the new one shares at least
+	 * as long a prefix with it as with the key it was coded against before.
+	 */
+	static final int VAR_MAX_ENTRY_SIZE = VAR_ENTRY_OVERHEAD + Type.STRING_LEN;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +70,10 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // a reader must never be sent right of a key this page covers
+        assert 0 == rightLink || (null != upperBound && upperBound.compare(Op.LESS_THAN_OR_EQ, highKey));
+
+        assert !checkOccupancy || depth <= 0 || !isBelowMinOccupancy();
 	}
 	
 	/**
@@ -62,6 +92,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages of an index on a string field have variable-length entries instead:
+	 * see {@link #getPageData()}.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -72,6 +105,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.variable = hasVariableLengthKeys(td.getFieldType(keyField));
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -92,6 +126,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(variable) {
+			readVariableEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +144,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -120,8 +160,18 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
-		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
+		return getMaxEntries(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Retrieve the maximum number of entries a page of an index on the given key
+	 * type can hold. A variable-length entry takes at least the bytes around its
+	 * key, if the key is the same as the one before.
+	 */
+	static int getMaxEntries(Type keyType) {
+		int keySize = hasVariableLengthKeys(keyType) ? 0 : keyType.getLen();
+		int entrySize = hasVariableLengthKeys(keyType) ? VAR_ENTRY_OVERHEAD : keySize + INDEX_SIZE;
+		int bitsPerEntryIncludingHeader = entrySize * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
@@ -133,13 +183,82 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		return getHeaderSize(getMaxEntries());
+	}
+
+	private static int getHeaderSize(int maxEntries) {
+		int slotsPerPage = maxEntries + 1;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return true if pages of an index on the given key type have variable-length
+	 * entries: string keys, which are mostly much shorter than the room a string
+	 * field takes in a tuple
+	 */
+	static boolean hasVariableLengthKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Returns the number of bytes left for the entries on a page of an index on
+	 * the given key type, after the parent pointer, child page category, header
+	 * and first child pointer
+	 */
+	static int getEntriesCapacity(Type keyType) {
+		int maxEntries = getMaxEntries(keyType);
+		if(!hasVariableLengthKeys(keyType))
+			return maxEntries * (keyType.getLen() + INDEX_SIZE);
+		return BufferPool.getPageSize() - (2 * INDEX_SIZE + 1 + getHeaderSize(maxEntries));
+	}
+
+	/**
+	 * Returns the number of bytes a variable-length entry with the given key takes,
+	 * coded against the key of the entry before it
+	 * @param prev - the key of the entry before, or null for the first entry of a page
+	 * @param key - the key of the entry
+	 */
+	static int getEntrySize(Field prev, Field key) {
+		String s = keyString(key);
+		return VAR_ENTRY_OVERHEAD + s.length() - (prev == null ? 0 : sharedPrefix(keyString(prev), s));
+	}
+
+	/**
+	 * Returns the characters of a string key that are stored, as many as a
+	 * string field holds on disk
+	 */
+	private static String keyString(Field key) {
+		String s = ((StringField) key).getValue();
+		return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+	}
+
+	/**
+	 * Returns the number of bytes entries with the given keys, in this order, take
+	 * on a page of an index on the given key type
+	 */
+	static int getEntriesSize(Type keyType, List<Field> keys) {
+		if(!hasVariableLengthKeys(keyType))
+			return keys.size() * (keyType.getLen() + INDEX_SIZE);
+		int size = 0;
+		Field prev = null;
+		for(Field key : keys) {
+			size += getEntrySize(prev, key);
+			prev = key;
+		}
+		return size;
+	}
+
+	private static int sharedPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while(i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -165,6 +284,49 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Puts this page back into the state it had when data was taken from it
+	 * with getPageData(). Used by BTreeFile to back out a structure change
+	 * it could not finish. The right-link is dropped, as for a page read from
+	 * disk.
+	 */
+	void restorePageData(byte[] data) throws IOException {
+		BTreeInternalPage p = new BTreeInternalPage(pid, data, keyField);
+		System.arraycopy(p.header, 0, header, 0, header.length);
+		System.arraycopy(p.keys, 0, keys, 0, keys.length);
+		System.arraycopy(p.children, 0, children, 0, children.length);
+		parent = p.parent;
+		childCategory = p.childCategory;
+		keyIndex = null;
+		usedBytes = -1;
+		highKey = null;
+		rightLink = 0;
+	}
+
+	/**
+	 * Reads the child pointers and keys of a page with variable-length entries.
+	 * @see #getPageData()
+	 */
+	private void readVariableEntries(DataInputStream dis) throws IOException {
+		children[0] = dis.readInt();
+		if(!isSlotUsed(0))
+			children[0] = -1;
+		String prev = "";
+		for(int i=1; i<numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			int shared = dis.readUnsignedByte();
+			byte[] suffix = new byte[dis.readUnsignedByte()];
+			dis.readFully(suffix);
+			// 和Type.STRING_TYPE.parse一样解码
+			prev = prev.substring(0, shared) + new String(suffix);
+			keys[i] = new StringField(prev, Type.STRING_LEN);
+			children[i] = dis.readInt();
+		}
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -266,6 +428,25 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if(variable) {
+			List<Field> used = new ArrayList<>();
+			List<Integer> usedChildren = new ArrayList<>();
+			for(int i=1; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					used.add(keys[i]);
+					usedChildren.add(children[i]);
+				}
+			}
+			try {
+				writeVariableEntries(dos, isSlotUsed(0) ? children[0] : 0, used, usedChildren,
+						len - (2 * INDEX_SIZE + 1 + header.length));
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -337,6 +518,71 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Writes the variable-length entries of a page: the first child pointer, then
+	 * for each entry, in key order, the length of the prefix its key shares with
+	 * the key before (one byte), the length of the rest of the key (one byte), the
+	 * rest of the key, one byte per character like {@link StringField#serialize},
+	 * and the child pointer on its right. The rest of the page is zeroes.
+	 * <p>
+	 * Only the keys in this front-coded form count towards the size of a page, so
+	 * how many entries fit depends on how long the keys really are and how much
+	 * of them they share, not on the longest key the field can hold.
+	 * @param capacity - the bytes left for the entries on the page
+	 * @throws IllegalStateException if the entries do not fit
+	 */
+	private static void writeVariableEntries(DataOutputStream dos, int firstChild, List<Field> keys,
+			List<Integer> rightChildren, int capacity) throws IOException {
+		if(getEntriesSize(Type.STRING_TYPE, keys) > capacity)
+			throw new IllegalStateException("entries of " + keys.size() + " keys do not fit in an internal page");
+		dos.writeInt(firstChild);
+		String prev = "";
+		for(int i=0; i<keys.size(); i++) {
+			String key = keyString(keys.get(i));
+			int shared = sharedPrefix(prev, key);
+			dos.writeByte(shared);
+			dos.writeByte(key.length() - shared);
+			dos.writeBytes(key.substring(shared));
+			dos.writeInt(rightChildren.get(i));
+			prev = key;
+		}
+		dos.write(new byte[capacity - getEntriesSize(Type.STRING_TYPE, keys)]);
+	}
+
+	/**
+	 * Creates a byte array in the format of an internal page with variable-length
+	 * entries, holding the given entries
+	 * @param entries - the entries, in key order
+	 * @param childPageCategory - the category of all child pages (leaf or internal)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IllegalStateException if the entries do not fit in a page
+	 */
+	static byte[] createVariablePageData(List<BTreeEntry> entries, int childPageCategory) throws IOException {
+		int maxEntries = getMaxEntries(Type.STRING_TYPE);
+		if(entries.size() > maxEntries)
+			throw new IllegalStateException(entries.size() + " entries do not fit in an internal page");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		byte[] header = new byte[getHeaderSize(maxEntries)];
+		int usedSlots = entries.isEmpty() ? 0 : entries.size() + 1;
+		for(int i=0; i<usedSlots; i++)
+			header[i / 8] |= 1 << (i % 8);
+		dos.write(header);
+
+		List<Field> keys = new ArrayList<>();
+		List<Integer> rightChildren = new ArrayList<>();
+		for(BTreeEntry e : entries) {
+			keys.add(e.getKey());
+			rightChildren.add(e.getRightChild().getPageNumber());
+		}
+		writeVariableEntries(dos, entries.isEmpty() ? 0 : entries.get(0).getLeftChild().getPageNumber(),
+				keys, rightChildren, getEntriesCapacity(Type.STRING_TYPE));
+		dos.flush();
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -436,6 +682,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		keyIndex = null;
+		usedBytes = -1;
 	}
 
 	/**
@@ -462,7 +710,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -567,20 +815,143 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		// start from 1 because the first key slot is not used
+		// since a node with m keys has m+1 pointers
+		int used = 0;
+		for (byte b : header)
+			used += Integer.bitCount(b & 0xFF);
+		if(isSlotUsed(0))
+			used--;
+		return used;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a page with
+	 * variable-length entries, this is the number of entries that are sure to
+	 * fit, whatever their keys.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int free = numSlots - 1 - getNumEntries();
+		if(!variable)
+			return free;
+		return Math.min(free, (getEntriesCapacity(td.getFieldType(keyField)) - getUsedBytes()) / VAR_MAX_ENTRY_SIZE);
+	}
+
+	/**
+	 * Returns the number of bytes the entries on this page take
+	 */
+	int getUsedBytes() {
+		if(!variable)
+			return getNumEntries() * (td.getFieldType(keyField).getLen() + INDEX_SIZE);
+		int used = usedBytes;
+		if(used < 0) {
+			BTreeKeyIndex index = keyIndex();
+			List<Field> sorted = new ArrayList<>(index.size());
+			for(int i=0; i<index.size(); i++)
+				sorted.add(index.key(i));
+			used = getEntriesSize(td.getFieldType(keyField), sorted);
+			usedBytes = used;
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the number of bytes each entry on this page takes, in key order
+	 */
+	private int[] getEntrySizes() {
+		BTreeKeyIndex index = keyIndex();
+		int[] sizes = new int[index.size()];
+		for(int i=0; i<sizes.length; i++)
+			sizes[i] = variable ? getEntrySize(i == 0 ? null : index.key(i-1), index.key(i))
+					: td.getFieldType(keyField).getLen() + INDEX_SIZE;
+		return sizes;
+	}
+
+	/**
+	 * Returns true if this page is below the minimum occupancy of a non-root
+	 * page: less than half full, or for a page with variable-length entries,
+	 * less than a third of its bytes used, so that the two pages of a split or
+	 * a redistribution, which cannot be evened out to the byte, are above it
+	 */
+	boolean isBelowMinOccupancy() {
+		return getUsedBytes() < getMinEntriesSize(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Returns the number of bytes the entries on a non-root page of an index on the
+	 * given key type take at least
+	 * @see #isBelowMinOccupancy()
+	 */
+	static int getMinEntriesSize(Type keyType) {
+		if(!hasVariableLengthKeys(keyType))
+			return getMaxEntries(keyType) / 2 * (keyType.getLen() + INDEX_SIZE);
+		return getEntriesCapacity(keyType) / 3;
+	}
+
+	/**
+	 * Returns true if this page and its sibling are to be merged when one of them
+	 * is below minimum occupancy, rather than to even out their entries: if the
+	 * sibling is at minimum occupancy, or for pages with variable-length entries,
+	 * if the entries of both and the key pulled down from the parent fit in one page
+	 */
+	boolean canMergeWith(BTreeInternalPage sibling) {
+		if(!variable)
+			return sibling.getNumEmptySlots() >= getMaxEntries() - getMaxEntries() / 2;
+		// 拉下来的父节点的键，再加上右边那页第一个键重新编码后变长的部分
+		return getNumEntries() + sibling.getNumEntries() + 1 <= getMaxEntries()
+				&& getUsedBytes() + sibling.getUsedBytes() + VAR_MAX_ENTRY_SIZE + Type.STRING_LEN
+						<= getEntriesCapacity(td.getFieldType(keyField));
+	}
+
+	/**
+	 * Returns true if the key of an entry on this page can be replaced with any
+	 * other key that keeps the page in order. A variable-length entry grows by up
+	 * to a whole key, and so does the entry after it, which may share less with
+	 * the new key than with the old one.
+	 */
+	boolean hasRoomForKeyChange() {
+		return !variable
+				|| getEntriesCapacity(td.getFieldType(keyField)) - getUsedBytes() >= 2 * Type.STRING_LEN;
+	}
+
+	/**
+	 * Returns the number of entries to move to a new page on the right when this
+	 * page splits: half of them, or for a page with variable-length entries, the
+	 * entries that take the second half of the bytes
+	 */
+	int getNumEntriesToSplitOff() {
+		int n = getNumEntries();
+		if(!variable)
+			return n / 2;
+		int[] sizes = getEntrySizes();
+		int half = getUsedBytes() / 2;
+		int moved = 0;
+		int count = 0;
+		// 至少留一个条目在左边，还有一个上推到父节点
+		while(count < n - 2 && moved < half)
+			moved += sizes[n - 1 - count++];
+		return Math.max(1, count);
+	}
+
+	/**
+	 * Returns the number of entries to move over from the sibling to even out
+	 * the two pages: half of the difference in entries, or for pages with
+	 * variable-length entries, the entries that make up half of the difference
+	 * in bytes
+	 * @param sibling - the sibling to take entries from
+	 * @param fromLeft - true if the sibling is on the left, so its last entries move
+	 */
+	int getNumEntriesToSteal(BTreeInternalPage sibling, boolean fromLeft) {
+		if(!variable)
+			return (sibling.getNumEntries() - getNumEntries()) / 2;
+		int[] sizes = sibling.getEntrySizes();
+		int n = sizes.length;
+		int target = (getUsedBytes() + sibling.getUsedBytes()) / 2;
+		int size = getUsedBytes();
+		int count = 0;
+		while(count < n - 1 && size < target)
+			size += sizes[fromLeft ? n - 1 - count++ : count++];
+		return count;
 	}
 
 	/**
@@ -604,6 +975,105 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		keyIndex = null;
+		usedBytes = -1;
+	}
+
+	/**
+	 * Returns the keys on this page in sorted order, building the index if the
+	 * page changed since it was last searched
+	 */
+	private BTreeKeyIndex keyIndex() {
+		BTreeKeyIndex index = keyIndex;
+		if(index == null) {
+			int n = getNumEntries();
+			int[] slots = new int[n];
+			Field[] sorted = new Field[n];
+			int j = 0;
+			for(int i=1; i<numSlots && j<n; i++) {
+				if(isSlotUsed(i)) {
+					slots[j] = i;
+					sorted[j++] = keys[i];
+				}
+			}
+			index = new BTreeKeyIndex(slots, sorted, td.getFieldType(keyField));
+			keyIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the id of the child page which may hold the left-most key equal to f:
+	 * the left child of the first entry with a key greater than or equal to f, or
+	 * the right child of the last entry if there is none. Found by binary search.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page
+	 */
+	public BTreePageId findChildId(Field f) {
+		BTreeKeyIndex index = keyIndex();
+		int i = f == null ? 0 : index.lowerBound(f);
+		// 第i个键的左孩子在前一个键的槽位里，第0个键的左孩子在槽位0
+		return getChildId(i == 0 ? 0 : index.slot(i - 1));
+	}
+
+	/**
+	 * Returns the id of the page on the right of this one that a reader searching
+	 * for f has to move to, or null if f belongs under this page. A reader that
+	 * read the parent before this page split finds the keys above the high key
+	 * there (Lehman and Yao's B-link tree).
+	 * <p>
+	 * The high key and the right-link are only kept in memory: they are needed
+	 * by readers that are in the tree while the page splits, and no reader
+	 * outlives the cached page. A page read from disk has none, and a reader
+	 * that goes too far left only finds the leaves it wants further right.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the page to move right to, or null
+	 */
+	public BTreePageId findRightLink(Field f) {
+		if(f == null || rightLink == 0 || f.compare(Op.LESS_THAN_OR_EQ, highKey))
+			return null;
+		return new BTreePageId(pid.getTableId(), rightLink, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * @return the id of the page split off the right of this one, or null if
+	 * there is none (or it is not known)
+	 */
+	public BTreePageId getRightLinkId() {
+		if(rightLink == 0)
+			return null;
+		return new BTreePageId(pid.getTableId(), rightLink, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * @return the largest key under this page, or null if there is no right-link
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Sets the right-link of this page: keys greater than highKey are found
+	 * under the page id, and nowhere under this page.
+	 * @param highKey - the largest key under this page, ignored if id is null
+	 * @param id - the page on the right of this one, or null to drop the link
+	 * @throws DbException if the id is not an internal page of this table
+	 */
+	public void setRightLink(Field highKey, BTreePageId id) throws DbException {
+		if(id == null) {
+			this.highKey = null;
+			rightLink = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightLink");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL || highKey == null) {
+				throw new DbException("right-link must be an internal node with a high key");
+			}
+			this.highKey = highKey;
+			rightLink = id.getPageNumber();
+		}
 	}
 
 	/**
@@ -766,8 +1236,12 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					//左孩子在前面第一个用到的槽里，中间可能隔着删掉的空槽
+					int left = entry - 1;
+					while(left > 0 && !p.isSlotUsed(left))
+						left--;
+					BTreePageId childId = p.getChildId(left);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
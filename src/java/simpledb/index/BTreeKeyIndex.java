@@ -0,0 +1,106 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+/**
+ * BTreeKeyIndex is a sorted, dense view of the keys on a B+ tree page, used to
+ * binary search a page instead of walking its slots in order. It holds the used
+ * slots of the page in key order and their keys, as primitive ints for
+ * INT_TYPE keys.
+ * <p>
+ * A page builds its index the first time it is searched and drops it whenever
+ * its slots change. An index is never modified once built, so it can be shared
+ * by the transactions reading the page.
+ *
+ * @see BTreeInternalPage#findChildId(Field)
+ * @see BTreeLeafPage#iterator(Field)
+ */
+class BTreeKeyIndex {
+	private final int[] slots;
+	private final Field[] keys;
+	private final int[] intKeys; // null unless the keys are INT_TYPE
+
+	/**
+	 * @param slots - the used slots of the page, in key order
+	 * @param keys - the key of each of those slots
+	 * @param type - the type of the keys
+	 */
+	BTreeKeyIndex(int[] slots, Field[] keys, Type type) {
+		this.slots = slots;
+		this.keys = keys;
+		if(type == Type.INT_TYPE) {
+			intKeys = new int[keys.length];
+			for(int i = 0; i < keys.length; i++)
+				intKeys[i] = ((IntField) keys[i]).getValue();
+		}
+		else {
+			intKeys = null;
+		}
+	}
+
+	/**
+	 * Returns the number of keys in the index
+	 */
+	int size() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the slot of the ith smallest key
+	 */
+	int slot(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * Returns the ith smallest key
+	 */
+	Field key(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Returns the position of the first key greater than or equal to f, or size()
+	 * if there is none
+	 */
+	int lowerBound(Field f) {
+		return search(f, false);
+	}
+
+	/**
+	 * Returns the position of the first key strictly greater than f, or size()
+	 * if there is none
+	 */
+	int upperBound(Field f) {
+		return search(f, true);
+	}
+
+	private int search(Field f, boolean strict) {
+		int lo = 0;
+		int hi = slots.length;
+		if(intKeys != null && f instanceof IntField) {
+			// 整数键直接比较，不用经过Field.compare
+			int v = ((IntField) f).getValue();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(intKeys[mid] < v || (strict && intKeys[mid] == v))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+		Op op = strict ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid].compare(op, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,88 @@
+package simpledb.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BTreeLatches holds the latches of one BTreeFile. A latch is a short-lived
+ * physical lock on a page: it is held only while one operation reads or
+ * changes the page, never until the transaction ends, and it is not seen by
+ * the lock manager. Transactions are still isolated by the page locks of the
+ * BufferPool on the pages they read and write; the root pointer page and the
+ * internal pages are only latched while a transaction goes down the tree.
+ * <p>
+ * Readers hold one latch at a time, and catch up with a page that split
+ * behind them through its right-link. Writers go down the tree "crabbing":
+ * the latch on a child is taken before the latch on its parent is released.
+ * Inserts first go down with shared latches. When the leaf is full they go
+ * down again with exclusive latches, releasing the pages above a child that
+ * has an empty slot, since a split below that child stops there. Merges and redistributions after a
+ * delete work up from the leaf instead, so they take the tree latch
+ * exclusively, while everybody else holds it shared.
+ * <p>
+ * No thread waits for a page lock while holding a latch: BTreeFile only
+ * tries the locks it needs under latches, and waits after releasing them.
+ *
+ * @see BTreeFile#insertTuple
+ */
+class BTreeLatches {
+	private final ConcurrentHashMap<BTreePageId, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+	private final ReentrantReadWriteLock tree = new ReentrantReadWriteLock();
+
+	/**
+	 * Returns the latch on the whole tree
+	 * @param exclusive - whether the exclusive or the shared side is wanted
+	 */
+	Lock treeLatch(boolean exclusive) {
+		return exclusive ? tree.writeLock() : tree.readLock();
+	}
+
+	/**
+	 * Starts a new path down the tree, holding no latches yet
+	 */
+	Path path() {
+		return new Path();
+	}
+
+	/**
+	 * The page latches held by one operation on its way down the tree, from
+	 * the top down
+	 */
+	class Path {
+		private final List<Lock> held = new ArrayList<>();
+
+		/**
+		 * Latches a page, waiting for the operations holding a conflicting
+		 * latch on it
+		 */
+		void latch(BTreePageId pid, boolean exclusive) {
+			ReentrantReadWriteLock latch = latches.computeIfAbsent(pid, k -> new ReentrantReadWriteLock());
+			Lock l = exclusive ? latch.writeLock() : latch.readLock();
+			l.lock();
+			held.add(l);
+		}
+
+		/**
+		 * Releases every latch but the last one taken
+		 */
+		void releaseAncestors() {
+			int last = held.size() - 1;
+			for(int i = 0; i < last; i++)
+				held.get(i).unlock();
+			if(last > 0)
+				held.subList(0, last).clear();
+		}
+
+		/**
+		 * Releases all the latches of the path
+		 */
+		void releaseAll() {
+			for(Lock l : held)
+				l.unlock();
+			held.clear();
+		}
+	}
+}
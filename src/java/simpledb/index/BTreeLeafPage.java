@@ -27,6 +27,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// 按键排好序的索引，第一次查找时建立，槽位变化时丢弃
+	private volatile BTreeKeyIndex keyIndex = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -156,6 +159,21 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Puts this page back into the state it had when data was taken from it
+	 * with getPageData(). Used by BTreeFile to back out a structure change
+	 * it could not finish.
+	 */
+	void restorePageData(byte[] data) throws IOException {
+		BTreeLeafPage p = new BTreeLeafPage(pid, data, keyField);
+		System.arraycopy(p.header, 0, header, 0, header.length);
+		System.arraycopy(p.tuples, 0, tuples, 0, tuples.length);
+		parent = p.parent;
+		leftSibling = p.leftSibling;
+		rightSibling = p.rightSibling;
+		keyIndex = null;
+	}
+
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -315,9 +333,11 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the first empty slot 
 		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
+		for (int b=0; b<header.length; b++) {
+			if (header[b] != (byte) 0xFF) {
+				int i = b * 8 + Integer.numberOfTrailingZeros(~header[b] & 0xFF);
+				if (i < numSlots)
+					emptySlot = i;
 				break;
 			}
 		}
@@ -326,16 +346,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		BTreeKeyIndex index = keyIndex();
+		int after = index.upperBound(t.getField(keyField));
+		int lessOrEqKey = after == 0 ? -1 : index.slot(after - 1);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -448,11 +461,11 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		// 头部多出来的位从来不会被置上
+		int used = 0;
+		for (byte b : header)
+			used += Integer.bitCount(b & 0xFF);
+		return numSlots - used;
 	}
 
 	/**
@@ -476,6 +489,30 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		keyIndex = null;
+	}
+
+	/**
+	 * Returns the keys on this page in sorted order, building the index if the
+	 * page changed since it was last searched
+	 */
+	private BTreeKeyIndex keyIndex() {
+		BTreeKeyIndex index = keyIndex;
+		if(index == null) {
+			int n = getNumTuples();
+			int[] slots = new int[n];
+			Field[] keys = new Field[n];
+			int j = 0;
+			for(int i=0; i<numSlots && j<n; i++) {
+				if(isSlotUsed(i)) {
+					slots[j] = i;
+					keys[j++] = tuples[i].getField(keyField);
+				}
+			}
+			index = new BTreeKeyIndex(slots, keys, td.getFieldType(keyField));
+			keyIndex = index;
+		}
+		return index;
 	}
 
 	/**
@@ -486,6 +523,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page with a key greater than or
+	 * equal to f, in order, starting at the first of them found by binary search
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		BTreeKeyIndex index = keyIndex();
+		int i = index.lowerBound(f);
+		return new BTreeLeafPageIterator(this, i < index.size() ? index.slot(i) : numSlots);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +579,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -55,6 +55,18 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/**
+	 * Puts this page back into the state it had when data was taken from it
+	 * with getPageData(). Used by BTreeFile to back out a structure change
+	 * it could not finish.
+	 */
+	void restorePageData(byte[] data) throws IOException {
+		BTreeRootPtrPage p = new BTreeRootPtrPage(pid, data);
+		root = p.root;
+		rootCategory = p.rootCategory;
+		header = p.header;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
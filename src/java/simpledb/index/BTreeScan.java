@@ -3,8 +3,8 @@ package simpledb.index;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
 import simpledb.execution.IndexPredicate;
-import simpledb.execution.OpIterator;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -15,9 +15,10 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate. It can be rewound with another predicate to look
+ * other keys up in the same B+ tree.
  */
-public class BTreeScan implements OpIterator {
+public class BTreeScan implements IndexOpIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -28,6 +29,7 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -71,6 +73,15 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return Return the predicate the scan reads the keys satisfying, or
+	 *         null if it reads the whole table
+	 * */
+	public IndexPredicate getIndexPredicate()
+	{
+		return this.ipred;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -85,6 +96,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
@@ -155,4 +167,34 @@ public class BTreeScan implements OpIterator {
 		close();
 		open();
 	}
+
+	/**
+	 * Open the scan to read the tuples whose keys satisfy ipred, which
+	 * replaces the predicate of the scan.
+	 * 
+	 * @param ipred
+	 *            The index predicate to match, or null to read all tuples
+	 */
+	public void open(IndexPredicate ipred) throws NoSuchElementException,
+	DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		this.ipred = ipred;
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		this.it = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+		open();
+	}
+
+	/**
+	 * Begin a new scan of the tuples whose keys satisfy ipred.
+	 * 
+	 * @param ipred
+	 *            The index predicate to match, or null to read all tuples
+	 */
+	public void rewind(IndexPredicate ipred) throws DbException,
+	TransactionAbortedException {
+		close();
+		open(ipred);
+	}
 }
@@ -0,0 +1,524 @@
+package simpledb.optimizer;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The statistics of one column of a table: a {@link HyperLogLog} sketch of its
+ * distinct values, its most common values with their counts, and an
+ * equi-depth histogram of its other values, each bucket of which holds about
+ * as many values as the others.
+ * <p>
+ * Values are added one at a time; the most common values and the histogram
+ * are built by {@link #finish} from a uniform sample of at most SAMPLE_VALUES
+ * of them, while every value goes into the sketch and counts towards the
+ * smallest and largest values. Statistics of different parts of a column can
+ * be built separately and merged before finish. Integer values are compared
+ * as integers and string values as whole strings. After finish the statistics
+ * can still be updated value by value for inserted and deleted tuples.
+ */
+public class ColumnStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of values the most common values and the histogram are built from */
+    public static final int SAMPLE_VALUES = 30000;
+
+    /** The largest number of most common values kept */
+    public static final int MAX_COMMON_VALUES = 100;
+
+    /** The number of buckets of the histogram */
+    public static final int BUCKETS = 100;
+
+    private final Type type;
+
+    private final HyperLogLog sketch = new HyperLogLog();
+
+    /** The number of values added */
+    private long values = 0;
+
+    /** 建统计信息时的蓄水池样本，finish 之后就不要了 */
+    private transient Object[] sample = new Object[SAMPLE_VALUES];
+    private transient int sampleSize = 0;
+    private transient Random random = new Random(0);
+
+    /** 样本满了之后下一个进样本的值的编号，以及 Algorithm L 的权重 */
+    private transient long nextSampled = 0;
+    private transient double weight = 1;
+
+    /** 建统计信息时见过的最小和最大的值 */
+    private transient int lowInt = Integer.MAX_VALUE, highInt = Integer.MIN_VALUE;
+    private transient String lowString, highString;
+
+    /** The most common values in ascending order, and how many times each was counted */
+    private Object[] commonValues = new Object[0];
+    private double[] commonCounts = new double[0];
+
+    /**
+     * The bounds of the buckets of the histogram of the other values: bucket i
+     * holds the values from bounds[i] (exclusive, except for the first bucket)
+     * to bounds[i+1] (inclusive)
+     */
+    private Object[] bounds = new Object[0];
+    private double[] bucketCounts = new double[0];
+
+    /** The sum of commonCounts and bucketCounts */
+    private double total = 0;
+
+    /** The sample profile finish saw, to scale the distinct values up to the table */
+    private int profiledValues = 0;
+    private int profiledDistinct = 0;
+    private int profiledSingletons = 0;
+    private double tableTuples = 0;
+
+    /**
+     * Create the statistics of a column of the specified type, with no
+     * values.
+     */
+    public ColumnStats(Type type) {
+        this.type = type;
+    }
+
+    /** The value of a field the statistics compare: an Integer or a String */
+    private static Object key(Field f) {
+        if (f instanceof IntField)
+            return ((IntField) f).getValue();
+        return ((StringField) f).getValue();
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof Integer)
+            return Integer.compare((Integer) a, (Integer) b);
+        return ((String) a).compareTo((String) b);
+    }
+
+    /** Add the value of a field of the column, before {@link #finish} */
+    public void add(Field f) {
+        if (f instanceof IntField)
+            addInt(((IntField) f).getValue());
+        else
+            addString(((StringField) f).getValue());
+    }
+
+    /** Add an integer value of the column, before {@link #finish} */
+    public void addInt(int v) {
+        sketch.addInt(v);
+        if (v < lowInt)
+            lowInt = v;
+        if (v > highInt)
+            highInt = v;
+        int slot = sampleSlot();
+        if (slot >= 0) // 只有进样本的值才装箱
+            sample[slot] = v;
+    }
+
+    /** Add a string value of the column, before {@link #finish} */
+    public void addString(String s) {
+        sketch.addString(s);
+        if (lowString == null || s.compareTo(lowString) < 0)
+            lowString = s;
+        if (highString == null || s.compareTo(highString) > 0)
+            highString = s;
+        int slot = sampleSlot();
+        if (slot >= 0)
+            sample[slot] = s;
+    }
+
+    /**
+     * Count a value added and choose whether it goes into the sample, by
+     * reservoir sampling: the n-th value replaces one of the sample with
+     * probability SAMPLE_VALUES/n. Once the sample is full, Algorithm L draws
+     * how many values to skip before the next one that goes in, so the values
+     * skipped cost no random numbers.
+     *
+     * @return the slot of the sample the value goes into, or -1 if it does not
+     */
+    private int sampleSlot() {
+        long i = values++;
+        if (i < SAMPLE_VALUES) {
+            if (i == SAMPLE_VALUES - 1) {
+                weight = Math.exp(Math.log(1 - random.nextDouble()) / SAMPLE_VALUES);
+                nextSampled = i + skip();
+            }
+            return sampleSize++;
+        }
+        if (i < nextSampled)
+            return -1;
+        weight *= Math.exp(Math.log(1 - random.nextDouble()) / SAMPLE_VALUES);
+        nextSampled = i + skip();
+        return random.nextInt(SAMPLE_VALUES);
+    }
+
+    private long skip() {
+        return (long) Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - weight)) + 1;
+    }
+
+    /**
+     * Merge the values added to other into the values added to this, as if
+     * they had all been added to this, before {@link #finish}. The samples are
+     * merged by drawing from each in proportion to the number of values it
+     * stands for. No more values are added to either afterwards.
+     */
+    public void merge(ColumnStats other) {
+        sketch.merge(other.sketch);
+        lowInt = Math.min(lowInt, other.lowInt);
+        highInt = Math.max(highInt, other.highInt);
+        if (other.lowString != null && (lowString == null || other.lowString.compareTo(lowString) < 0))
+            lowString = other.lowString;
+        if (other.highString != null && (highString == null || other.highString.compareTo(highString) > 0))
+            highString = other.highString;
+
+        // 每次按两边剩下的值数的比例选一边，从它的样本里抽一个，抽过的换到末尾不再抽
+        Object[] a = Arrays.copyOf(sample, sampleSize), b = Arrays.copyOf(other.sample, other.sampleSize);
+        int leftA = a.length, leftB = b.length;
+        double restA = values, restB = other.values;
+        int m = Math.min(SAMPLE_VALUES, leftA + leftB);
+        Object[] merged = new Object[SAMPLE_VALUES];
+        for (int k = 0; k < m; k++) {
+            boolean fromA = leftB == 0 || (leftA > 0 && random.nextDouble() * (restA + restB) < restA);
+            Object[] from = fromA ? a : b;
+            int left = fromA ? leftA-- : leftB--;
+            int j = random.nextInt(left);
+            merged[k] = from[j];
+            from[j] = from[left - 1];
+            // 相当于从两边代表的所有值里不放回地抽
+            if (fromA)
+                restA = Math.max(0, restA - 1);
+            else
+                restB = Math.max(0, restB - 1);
+        }
+        this.sample = merged;
+        this.sampleSize = m;
+        this.values += other.values;
+    }
+
+    /**
+     * Build the most common values and the histogram from the sample of the
+     * values added.
+     *
+     * @param tuples
+     *            The estimated number of tuples of the table, more than the
+     *            number of values added if only some of the table was read
+     */
+    public void finish(double tuples) {
+        Object[] sorted = Arrays.copyOf(sample, sampleSize);
+        Arrays.sort(sorted, ColumnStats::compare);
+        this.sample = null;
+        this.tableTuples = tuples;
+
+        // 1. 数出每个值在样本里出现的次数
+        List<Object> distinct = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < sorted.length; ) {
+            int j = i + 1;
+            while (j < sorted.length && compare(sorted[i], sorted[j]) == 0)
+                j++;
+            distinct.add(sorted[i]);
+            counts.add(j - i);
+            i = j;
+        }
+        int singletons = 0;
+        for (int c : counts) {
+            if (c == 1)
+                singletons++;
+        }
+        this.profiledValues = sorted.length;
+        this.profiledDistinct = distinct.size();
+        this.profiledSingletons = singletons;
+
+        // 2. 最常见的值：样本里就是整列时，值不多就全都要；否则只要出现不止一次、又比平均多的
+        boolean complete = sorted.length == values && values >= tuples;
+        Set<Integer> common = new HashSet<>();
+        if (distinct.size() <= MAX_COMMON_VALUES && (complete || singletons == 0)) {
+            for (int i = 0; i < distinct.size(); i++)
+                common.add(i);
+        } else {
+            double threshold = 1.25 * sorted.length / Math.max(1, distinct.size());
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < distinct.size(); i++) {
+                if (counts.get(i) >= 2 && counts.get(i) > threshold)
+                    candidates.add(i);
+            }
+            candidates.sort((a, b) -> Integer.compare(counts.get(b), counts.get(a)));
+            common.addAll(candidates.subList(0, Math.min(MAX_COMMON_VALUES, candidates.size())));
+        }
+        this.commonValues = new Object[common.size()];
+        this.commonCounts = new double[common.size()];
+        List<Object> rest = new ArrayList<>(sorted.length);
+        int k = 0;
+        for (int i = 0, pos = 0; i < distinct.size(); pos += counts.get(i), i++) {
+            if (common.contains(i)) {
+                this.commonValues[k] = distinct.get(i);
+                this.commonCounts[k++] = counts.get(i);
+            } else {
+                rest.addAll(Arrays.asList(sorted).subList(pos, pos + counts.get(i)));
+            }
+        }
+
+        // 3. 其余的值建等深直方图：每个桶里的值一样多
+        int m = rest.size();
+        int buckets = Math.min(BUCKETS, m);
+        this.bounds = new Object[buckets == 0 ? 0 : buckets + 1];
+        this.bucketCounts = new double[buckets];
+        if (buckets > 0) {
+            this.bounds[0] = rest.get(0);
+            long start = 0;
+            for (int b = 1; b <= buckets; b++) {
+                long end = (long) b * m / buckets;
+                this.bounds[b] = rest.get((int) end - 1);
+                this.bucketCounts[b - 1] = end - start;
+                start = end;
+            }
+        }
+        // 样本不一定抽到最小和最大的值，把直方图两边撑到它们
+        if (this.bounds.length > 0 && values > 0) {
+            Object low = type == Type.INT_TYPE ? (Object) lowInt : lowString;
+            Object high = type == Type.INT_TYPE ? (Object) highInt : highString;
+            if (compare(low, this.bounds[0]) < 0
+                    && Arrays.binarySearch(this.commonValues, low, ColumnStats::compare) < 0)
+                this.bounds[0] = low;
+            if (compare(high, this.bounds[this.bounds.length - 1]) > 0
+                    && Arrays.binarySearch(this.commonValues, high, ColumnStats::compare) < 0)
+                this.bounds[this.bounds.length - 1] = high;
+        }
+        this.total = sorted.length;
+    }
+
+    /**
+     * Count a value of an inserted tuple. The sketch always sees it; the most
+     * common values and the histogram count it only if counted is true, so
+     * statistics built from a sample can count inserted values at the rate
+     * of the sample.
+     */
+    public void recordInsert(Field f, boolean counted) {
+        Object key = key(f);
+        values++;
+        if (key instanceof Integer)
+            sketch.addInt((Integer) key);
+        else
+            sketch.addString((String) key);
+        if (counted)
+            adjust(key, 1);
+    }
+
+    /** Stop counting a value of a deleted tuple */
+    public void recordDelete(Field f) {
+        adjust(key(f), -1);
+    }
+
+    private void adjust(Object key, double delta) {
+        int i = Arrays.binarySearch(commonValues, key, ColumnStats::compare);
+        if (i >= 0) {
+            if (commonCounts[i] + delta < 0)
+                return;
+            commonCounts[i] += delta;
+        } else if (bounds.length == 0) {
+            if (delta < 0)
+                return;
+            bounds = new Object[] {key, key};
+            bucketCounts = new double[] {delta};
+        } else {
+            // 超出直方图范围的值把最边上的桶撑大
+            if (compare(key, bounds[0]) < 0)
+                bounds[0] = key;
+            if (compare(key, bounds[bounds.length - 1]) > 0)
+                bounds[bounds.length - 1] = key;
+            int b = bucketOf(key);
+            if (bucketCounts[b] + delta < 0)
+                return;
+            bucketCounts[b] += delta;
+        }
+        total += delta;
+    }
+
+    /** The bucket a value within the bounds of the histogram falls into */
+    private int bucketOf(Object key) {
+        int lo = 0, hi = bucketCounts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) / 2;
+            if (compare(key, bounds[mid + 1]) <= 0)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the estimated number of distinct values of the column. If only
+     *         some of the tuples of the table were added, the distinct values
+     *         of the sample are scaled up to the table by the GEE estimator,
+     *         which multiplies the values seen once by the square root of the
+     *         ratio of the tuples of the table to the sample; the sketch of
+     *         the values added is a lower bound either way.
+     */
+    public double distinctValues() {
+        double d = sketch.estimate();
+        if (profiledValues > 0 && tableTuples > values) {
+            double gee = Math.sqrt(tableTuples / profiledValues) * profiledSingletons
+                    + (profiledDistinct - profiledSingletons);
+            d = Math.max(d, gee);
+        }
+        double limit = Math.max(values, tableTuples);
+        return Math.max(values == 0 ? 0 : 1, Math.min(d, limit));
+    }
+
+    /** The fraction of the values of the column that are not most common values */
+    private double restFraction() {
+        double rest = 0;
+        for (double c : bucketCounts)
+            rest += c;
+        return total <= 0 ? 0 : rest / total;
+    }
+
+    /** The estimated fraction of the values equal to a value that is not a most common value */
+    private double otherValueFraction(Object key) {
+        if (bounds.length == 0 || compare(key, bounds[0]) < 0 || compare(key, bounds[bounds.length - 1]) > 0)
+            return 0;
+        return restFraction() / Math.max(1, distinctValues() - commonValues.length);
+    }
+
+    private double equalFraction(Object key) {
+        if (total <= 0)
+            return 0;
+        int i = Arrays.binarySearch(commonValues, key, ColumnStats::compare);
+        if (i >= 0)
+            return commonCounts[i] / total;
+        return otherValueFraction(key);
+    }
+
+    /** The estimated fraction of the values less than key, or equal to it if inclusive */
+    private double belowFraction(Object key, boolean inclusive) {
+        if (total <= 0)
+            return 0;
+        double below = 0;
+        for (int i = 0; i < commonValues.length; i++) {
+            int c = compare(commonValues[i], key);
+            if (c < 0 || (inclusive && c == 0))
+                below += commonCounts[i];
+        }
+        for (int b = 0; b < bucketCounts.length; b++) {
+            Object lo = bounds[b], hi = bounds[b + 1];
+            if (compare(hi, key) < 0 || (inclusive && compare(hi, key) == 0)) {
+                below += bucketCounts[b];
+            } else if (compare(lo, key) < 0 || (b == 0 && compare(lo, key) == 0 && inclusive)) {
+                below += bucketCounts[b] * partOfBucket(b, key, inclusive);
+            } else {
+                break;
+            }
+        }
+        return Math.min(1, below / total);
+    }
+
+    /**
+     * The fraction of the values of bucket b, which key falls in, that are
+     * below key: integer values are assumed to be spread evenly over the
+     * bucket, and half of a bucket of strings is taken to be below.
+     */
+    private double partOfBucket(int b, Object key, boolean inclusive) {
+        if (!(key instanceof Integer))
+            return 0.5;
+        long lo = (Integer) bounds[b], hi = (Integer) bounds[b + 1], v = (Integer) key;
+        if (b > 0)
+            lo = Math.min(lo + 1, hi);
+        double part = (v - lo + (inclusive ? 1 : 0)) / (double) (hi - lo + 1);
+        return Math.max(0, Math.min(1, part));
+    }
+
+    private double selectivity(Predicate.Op op, Object key) {
+        switch (op) {
+            case EQUALS:
+                return equalFraction(key);
+            case NOT_EQUALS:
+                return total <= 0 ? 0 : 1 - equalFraction(key);
+            case LESS_THAN:
+                return belowFraction(key, false);
+            case LESS_THAN_OR_EQ:
+                return belowFraction(key, true);
+            case GREATER_THAN:
+                return total <= 0 ? 0 : 1 - belowFraction(key, true);
+            case GREATER_THAN_OR_EQ:
+                return total <= 0 ? 0 : 1 - belowFraction(key, false);
+            default:
+                // LIKE：直方图说不出子串的事
+                return 1.0;
+        }
+    }
+
+    /**
+     * Estimate the fraction of the values of the column that satisfy
+     * <tt>value op constant</tt>.
+     */
+    public double estimateSelectivity(Predicate.Op op, Field constant) {
+        return selectivity(op, key(constant));
+    }
+
+    /** The operator a value of the other side satisfies if this side satisfies op with it */
+    private static Predicate.Op mirror(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    /**
+     * Estimate the fraction of the pairs of a value of this column and a value
+     * of other that satisfy <tt>this op other</tt>. Equality pairs up the most
+     * common values of both columns, each with the frequency of the other
+     * column's value, and assumes every other value of the column with fewer
+     * distinct values matches one of the other column; the other operators
+     * compare the values of other with each most common value of this column
+     * and the middle of each bucket of its histogram.
+     *
+     * @return the estimated selectivity, or -1 if op is LIKE or the columns
+     *         have different types
+     */
+    public double estimateJoinSelectivity(Predicate.Op op, ColumnStats other) {
+        if (op == Predicate.Op.LIKE || this.type != other.type)
+            return -1;
+        if (this.total <= 0 || other.total <= 0)
+            return 0;
+        if (op == Predicate.Op.EQUALS || op == Predicate.Op.NOT_EQUALS) {
+            double matched = 0;
+            for (int i = 0; i < commonValues.length; i++) {
+                int j = Arrays.binarySearch(other.commonValues, commonValues[i], ColumnStats::compare);
+                double p2 = j >= 0 ? other.commonCounts[j] / other.total : other.otherValueFraction(commonValues[i]);
+                matched += commonCounts[i] / total * p2;
+            }
+            for (int j = 0; j < other.commonValues.length; j++) {
+                if (Arrays.binarySearch(commonValues, other.commonValues[j], ColumnStats::compare) < 0)
+                    matched += other.commonCounts[j] / other.total * otherValueFraction(other.commonValues[j]);
+            }
+            double others = Math.max(distinctValues() - commonValues.length,
+                    other.distinctValues() - other.commonValues.length);
+            matched += restFraction() * other.restFraction() / Math.max(1, others);
+            matched = Math.min(1, matched);
+            return op == Predicate.Op.EQUALS ? matched : 1 - matched;
+        }
+        Predicate.Op mirrored = mirror(op);
+        double sel = 0;
+        for (int i = 0; i < commonValues.length; i++)
+            sel += commonCounts[i] / total * other.selectivity(mirrored, commonValues[i]);
+        for (int b = 0; b < bucketCounts.length; b++) {
+            Object middle = bounds[b + 1];
+            if (middle instanceof Integer)
+                middle = (int) (((long) (Integer) bounds[b] + (Integer) bounds[b + 1]) / 2);
+            sel += bucketCounts[b] / total * other.selectivity(mirrored, middle);
+        }
+        return Math.min(1, sel);
+    }
+}
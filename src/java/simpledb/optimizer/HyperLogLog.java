@@ -0,0 +1,89 @@
+package simpledb.optimizer;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added to
+ * it in constant space. Each value is hashed to 64 bits; the first PRECISION
+ * bits choose one of the registers, which keeps the largest number of leading
+ * zeros plus one seen in the rest of the bits of the values it was chosen for.
+ * With 2^12 registers the standard error of the estimate is about 1.6%.
+ * <p>
+ * Sketches of the same precision can be merged, so the values of a table may
+ * be added to several sketches and the sketches merged afterwards.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of bits of the hash that choose the register */
+    public static final int PRECISION = 12;
+
+    private static final int REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    /** Add an integer value to the sketch */
+    public void addInt(int v) {
+        addHash(mix(v * 0x9E3779B97F4A7C15L));
+    }
+
+    /** Add a string value to the sketch; every character of it is hashed */
+    public void addString(String s) {
+        // 64 位的 FNV-1a，再打散一次
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    private void addHash(long hash) {
+        int register = (int) (hash >>> (64 - PRECISION));
+        // 剩下的位里前导 0 的个数加 1；全是 0 时就是剩下的位数加 1
+        int rank = Long.numberOfLeadingZeros(hash << PRECISION | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[register])
+            registers[register] = (byte) rank;
+    }
+
+    /** The finalizer of MurmurHash3, which spreads every input bit over the output bits */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Merge another sketch into this one: this sketch then estimates the
+     * number of distinct values added to either of them.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch,
+     *         counted exactly by linear counting while few registers are set
+     */
+    public double estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0)
+            return REGISTERS * Math.log((double) REGISTERS / zeros);
+        return estimate;
+    }
+}
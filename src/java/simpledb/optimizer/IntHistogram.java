@@ -2,9 +2,13 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.Serializable;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
-public class IntHistogram {
+public class IntHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final int buckets;
 
@@ -51,11 +55,24 @@ public class IntHistogram {
      */
     public void addValue(int v) {
     	// some code goes here
-        int bucketsId = (int) ((v - min) / (this.bucketsWidth * 1.0));
-        this.intHistogramList[bucketsId]++;
+        // 建好直方图之后插入的值可能超出 [min, max]，计入最边上的桶
+        this.intHistogramList[clampedBucketIndex(v)]++;
         this.nTups++;
     }
 
+    /**
+     * Remove a value added to the histogram before, such as the value of a
+     * deleted tuple.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        int bucketsId = clampedBucketIndex(v);
+        if (this.intHistogramList[bucketsId] > 0) {
+            this.intHistogramList[bucketsId]--;
+            this.nTups--;
+        }
+    }
+
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
      *
@@ -176,6 +193,10 @@ public class IntHistogram {
         }
     }
 
+    private int clampedBucketIndex(int v) {
+        return Math.max(0, Math.min(bucketIndex(this.max), bucketIndex(v)));
+    }
+
     private int bucketMinValue(int index) {
         return (int) (this.min + index * this.bucketsWidth);
     }
@@ -3,8 +3,11 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
@@ -17,6 +20,24 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Default for {@link #setExhaustiveJoinLimit} */
+    public static final int DEFAULT_EXHAUSTIVE_JOIN_LIMIT = 16;
+    /** Default for {@link #setPlanningBudget} */
+    public static final long DEFAULT_PLANNING_BUDGET_MILLIS = 100;
+
+    // 模拟退火的温度：接受一个贵出 temperature 比例的计划的概率为 1/e
+    private static final double INITIAL_TEMPERATURE = 0.05;
+    private static final double FINAL_TEMPERATURE = 0.0001;
+
+    // 范围连接的选择率
+    private static final double RANGE_SELECTIVITY = 0.3;
+
+    // 连接集合的 long 位掩码最多能表示的连接数，更多的连接只能用启发式排序
+    static final int MAX_MASK_JOINS = 63;
+
+    private static volatile int exhaustiveJoinLimit = DEFAULT_EXHAUSTIVE_JOIN_LIMIT;
+    private static volatile long planningBudgetMillis = DEFAULT_PLANNING_BUDGET_MILLIS;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -33,6 +54,33 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Set the largest number of joins {@link #orderJoins} orders by dynamic
+     * programming over all of their connected subsets. The work that takes can
+     * grow exponentially with the number of joins, so more joins are ordered
+     * greedily and the order is then improved by simulated annealing. Orders
+     * of more than 63 joins are always found that way, whatever the limit.
+     */
+    public static void setExhaustiveJoinLimit(int joins) {
+        exhaustiveJoinLimit = joins;
+    }
+
+    public static int getExhaustiveJoinLimit() {
+        return exhaustiveJoinLimit;
+    }
+
+    /**
+     * Set how long {@link #orderJoins} may spend improving a greedy join order
+     * by simulated annealing. 0 keeps the greedy order.
+     */
+    public static void setPlanningBudget(long millis) {
+        planningBudgetMillis = millis;
+    }
+
+    public static long getPlanningBudget() {
+        return planningBudgetMillis;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -94,6 +142,51 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Create a physical index nested-loop join for the specified logical join,
+     * which rewinds a {@link BTreeScan} of its t2 with the join value of each
+     * tuple of plan1.
+     * 
+     * @param t
+     *            The transaction the index lookups run as a part of
+     * @param lj
+     *            The join, with probeIndex set
+     * @param plan1
+     *            The plan for the outer side of the join
+     * @param t2TableId
+     *            The table of t2
+     * @param t2Filters
+     *            The filters over t2, which the join applies to the tuples it
+     *            finds in the index
+     * @throws ParsingException
+     *             if t2 is not a base table indexed on f2
+     */
+    public static OpIterator instantiateIndexJoin(TransactionId t, LogicalJoinNode lj,
+            OpIterator plan1, int t2TableId, List<Predicate> t2Filters) throws ParsingException {
+        int t1id, t2id;
+        try {
+            t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        try {
+            t2id = Database.getCatalog().getTupleDesc(t2TableId).fieldNameToIndex(lj.f2PureName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f2QuantifiedName);
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(t2TableId);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != t2id)
+            throw new ParsingException("No index on " + lj.f2QuantifiedName);
+
+        try {
+            // 连接对每个外层元组用新的 IndexPredicate 重新打开这个扫描
+            return new IndexNestedLoopJoin(new JoinPredicate(t1id, lj.p, t2id), plan1,
+                    new BTreeScan(t, t2TableId, lj.t2Alias, null), t2Filters);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(e);
+        }
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -131,15 +224,59 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            int leftFileId = Database.getCatalog().getTableId(j.t1Alias);
-            int rightFileId = Database.getCatalog().getTableId(j.t2Alias);
-            DbFile leftFile = Database.getCatalog().getDatabaseFile(leftFileId);
-            DbFile rightFile = Database.getCatalog().getDatabaseFile(rightFileId);
-
             return cost1 + card1 * cost2 + card1 * card2;
         }
     }
 
+    /**
+     * Estimate the cost of an index nested-loop join, which looks the tuples
+     * of the right-hand table that match each tuple of the left-hand side up
+     * in the index of the right-hand table, instead of scanning it.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed, with probeIndex set
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand table
+     * @param cost1
+     *            Estimated cost of one full scan of the table on the left-hand
+     *            side of the query
+     * @param probeCost
+     *            Estimated cost of looking one value up in the index of the
+     *            right-hand table, see {@link #estimateProbeCost}
+     * @return An estimate of the cost of this query, in terms of cost1 and
+     *         probeCost
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double probeCost) {
+        // 每次探查读出的元组数：等值连接约一个，范围连接按 0.3 的选择率
+        double matches = j.p == Predicate.Op.EQUALS ? 1 : RANGE_SELECTIVITY * card2;
+        return cost1 + card1 * probeCost + card1 * matches;
+    }
+
+    /**
+     * Estimate the cost of looking up the tuples of a table that satisfy a
+     * join predicate with one outer tuple, through the B+ tree index of the
+     * table.
+     * 
+     * @param s
+     *            The statistics of the table
+     * @param field
+     *            The index of the join field in the table
+     * @param op
+     *            The join predicate
+     * @return The estimated cost of one lookup, or -1 if the lookup cannot use
+     *         the index of the table
+     */
+    public static double estimateProbeCost(TableStats s, int field, Predicate.Op op) {
+        if (s.getIndexField() < 0 || s.getIndexField() != field
+                || op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS)
+            return -1;
+        return s.estimateIndexScanCost(op == Predicate.Op.EQUALS ? 0 : RANGE_SELECTIVITY);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -173,7 +310,11 @@ public class JoinOptimizer {
     }
 
     /**
-     * Estimate the join cardinality of two tables.
+     * Estimate the join cardinality of two tables. An equality join on a
+     * primary key matches each tuple of the other side at most once; other
+     * joins are estimated from the distinct values, most common values and
+     * histograms of the join fields in the statistics of the two tables,
+     * when there are statistics for both.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
                                                    String table1Alias, String table2Alias, String field1PureName,
@@ -182,10 +323,13 @@ public class JoinOptimizer {
                                                    Map<String, Integer> tableAliasToId) {
         int card = 1;
         // some code goes here
+        double sel = joinSelectivity(joinOp, table1Alias, table2Alias, field1PureName,
+                field2PureName, stats, tableAliasToId);
         //如果是等价连接
         if(joinOp.equals(Predicate.Op.EQUALS)){
             if(!t1pkey && !t2pkey){
-                card = Math.max(card1,card2);
+                card = sel >= 0 ? (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2 * sel)
+                        : Math.max(card1,card2);
             }else{
                 if(t1pkey){
                     if(t2pkey){
@@ -198,14 +342,39 @@ public class JoinOptimizer {
                 }
             }
         }else{
-            //不是等值查询直接返回文档中所说的
-            card = (int) (card1 * card2 * 0.3);
+            //统计信息说不出来时就用文档中所说的
+            card = (int) Math.min(Integer.MAX_VALUE,
+                    (double) card1 * card2 * (sel >= 0 ? sel : RANGE_SELECTIVITY));
         }
 
 
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * The selectivity of a join predicate estimated from the statistics of
+     * the base tables of its two sides, or -1 if either has none
+     */
+    private static double joinSelectivity(Predicate.Op joinOp, String table1Alias, String table2Alias,
+                                          String field1PureName, String field2PureName,
+                                          Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer id1 = tableAliasToId.get(table1Alias);
+        Integer id2 = tableAliasToId.get(table2Alias);
+        if (id1 == null || id2 == null)
+            return -1;
+        try {
+            TableStats s1 = stats.get(Database.getCatalog().getTableName(id1));
+            TableStats s2 = stats.get(Database.getCatalog().getTableName(id2));
+            if (s1 == null || s2 == null)
+                return -1;
+            int f1 = Database.getCatalog().getTupleDesc(id1).fieldNameToIndex(field1PureName);
+            int f2 = Database.getCatalog().getTupleDesc(id2).fieldNameToIndex(field2PureName);
+            return s1.estimateJoinSelectivity(f1, joinOp, s2, f2);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -241,6 +410,17 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Sets of joins are bitmasks over the indexes of the joins in the list,
+     * and only sets whose joins are connected through their tables get a plan:
+     * the plans of one size are built by joining each plan of the size before to
+     * the joins that share a table with it, so cross products are never looked
+     * at. More joins than the {@link #setExhaustiveJoinLimit exhaustive join
+     * limit}, and always more than 63 joins since a set of joins has to fit
+     * in a long, are ordered greedily instead, and the greedy order is
+     * improved by simulated annealing for up to the {@link #setPlanningBudget
+     * planning budget}. The greedy and annealing search track the tables
+     * joined so far rather than sets of joins, so they have no such limit.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -263,181 +443,557 @@ public class JoinOptimizer {
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
-        // some code goes here
-        //Replace the following
-
-        PlanCache planCache = new PlanCache();
-
         /**
+         * Exhaustively, for at most exhaustiveJoinLimit joins:
          * 1. j = set of join nodes
          * 2. for (i in 1...|j|):
-         * 3.     for s in {all length i subsets of j}
-         * 4.       bestPlan = {}
-         * 5.       for s' in {all length d-1 subsets of s}
-         * 6.            subplan = optjoin(s')
-         * 7.            plan = best way to join (s-s') to subplan
-         * 8.            if (cost(plan) < cost(bestPlan))
-         * 9.               bestPlan = plan
-         * 10.      optjoin(s) = bestPlan
-         * 11. return optjoin(j)
+         * 3.     for s in {all length i connected subsets of j}
+         * 4.       for each join t adjacent to s
+         * 5.            plan = best way to join t to optjoin(s)
+         * 6.            if (cost(plan) < cost(optjoin(s + t)))
+         * 7.               optjoin(s + t) = plan
+         * 8. return optjoin(j)
+         * Otherwise see orderJoinsHeuristically.
          */
-
-        for (int i = 1; i <= this.joins.size(); i++) {
-            for (Set<LogicalJoinNode> subSet : enumerateSubsets(this.joins,i)){
-                CostCard bestPlan = new CostCard();
-                bestPlan.cost = Double.MAX_VALUE;
-                for (LogicalJoinNode l : subSet){
-                    CostCard tempCostCard = this.computeCostAndCardOfSubplan(
-                            stats,
-                            filterSelectivities,
-                            l,
-                            subSet,
-                            bestPlan.cost,
-                            planCache);
-
-                    if(tempCostCard != null) bestPlan = tempCostCard;
-
+        int n = this.joins.size();
+        if (n == 0)
+            return new ArrayList<>();
+
+        SubplanInputs in = new SubplanInputs(stats, filterSelectivities);
+        // 每个前缀的代价和基数，explain 时显示
+        double[] costs = new double[n];
+        int[] cards = new int[n];
+        List<LogicalJoinNode> optOrder = null;
+        if (n <= Math.min(exhaustiveJoinLimit, MAX_MASK_JOINS)) {
+            PlanCache planCache = new PlanCache(n);
+            this.orderJoinsExhaustively(stats, in, planCache);
+            long all = n == 63 ? -1L >>> 1 : (1L << n) - 1;
+            // 连接图不连通时没有不含笛卡尔积的计划
+            optOrder = planCache.getOrder(all);
+            // 从整个集合沿着计划往回走，得到每个前缀
+            long s = all;
+            for (int k = n - 1; optOrder != null && k >= 0; k--) {
+                costs[k] = planCache.getCost(s);
+                cards[k] = planCache.getCard(s);
+                s = planCache.getPrevious(s);
+            }
+        } else {
+            int[] order = this.orderJoinsHeuristically(stats, in);
+            if (order != null) {
+                // 沿着选出的顺序重新算一遍，得到每一步定好内外表的连接
+                optOrder = new ArrayList<>();
+                JoinStep step = new JoinStep();
+                boolean[] joined = new boolean[in.numTables];
+                boolean pkey = false;
+                for (int k = 0; k < n; k++) {
+                    int i = order[k];
+                    this.joinStep(stats, in, i, joined, k == 0, pkey,
+                            k == 0 ? 0 : costs[k - 1], k == 0 ? 0 : cards[k - 1],
+                            Double.MAX_VALUE, step);
+                    optOrder.add(step.join);
+                    costs[k] = step.cost;
+                    cards[k] = step.card;
+                    pkey = in.join(i, joined, pkey);
                 }
-                planCache.addPlan(subSet,bestPlan.cost,bestPlan.card,bestPlan.plan);
             }
         }
-        List<LogicalJoinNode> optOrder = planCache.getOrder(new HashSet<>(joins));
 
-        if(explain){
-            printJoins(optOrder,planCache,stats,filterSelectivities);
+        if(explain && optOrder != null){
+            printJoins(optOrder,costs,cards,stats,filterSelectivities);
         }
         return optOrder;
     }
 
+    /**
+     * Estimate the cost of performing the joins being ordered in the specified
+     * left-deep order, such as one returned by {@link #orderJoins}, the way
+     * orderJoins costs the plans it compares.
+     * 
+     * @param order
+     *            the joins, in the order they are performed
+     * @param stats
+     *            Statistics for each table involved in the join, referenced by
+     *            base table names, not alias
+     * @param filterSelectivities
+     *            Selectivities of the filter predicates on each table in the
+     *            join, referenced by table alias (if no alias, the base table
+     *            name)
+     * @return the estimated cost, or Double.MAX_VALUE if the order has a cross
+     *         product
+     * @throws ParsingException
+     *             when order is not an order of the joins being ordered, or
+     *             when stats or filter selectivities is missing a table
+     */
+    public double estimatePlanCost(List<LogicalJoinNode> order,
+            Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) throws ParsingException {
+        int n = this.joins.size();
+        if (order.size() != n)
+            throw new ParsingException("Not an order of the joins " + this.joins + ": " + order);
+        SubplanInputs in = new SubplanInputs(stats, filterSelectivities);
+        int[] indexes = new int[n];
+        boolean[] used = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            LogicalJoinNode j = order.get(k);
+            int i = 0;
+            while (i < n && (used[i]
+                    || !(sameJoin(j, this.joins.get(i)) || sameJoin(j, in.swapped[i]))))
+                i++;
+            if (i == n)
+                throw new ParsingException("Not one of the joins being ordered: " + j);
+            indexes[k] = i;
+            used[i] = true;
+        }
+        return this.planCost(stats, in, indexes, new JoinStep());
+    }
+
+    private static boolean sameJoin(LogicalJoinNode a, LogicalJoinNode b) {
+        return Objects.equals(a.t1Alias, b.t1Alias) && Objects.equals(a.t2Alias, b.t2Alias)
+                && Objects.equals(a.f1PureName, b.f1PureName)
+                && Objects.equals(a.f2PureName, b.f2PureName) && a.p == b.p;
+    }
+
     // ===================== Private Methods =================================
 
+    /**
+     * Fill pc with the best plan for every connected set of joins, building
+     * the plans of each size from those of the size before
+     */
+    private void orderJoinsExhaustively(Map<String, TableStats> stats,
+            SubplanInputs in, PlanCache pc) {
+        int n = this.joins.size();
+
+        // 单个连接：两边都是基表
+        List<Long> level = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            this.computeCostAndCardOfSubplan(stats, in, i, 0, pc);
+            level.add(1L << i);
+        }
+
+        // 每一轮把上一轮的连通集合各接上一个相邻的连接
+        for (int size = 2; size <= n; size++) {
+            List<Long> next = new ArrayList<>();
+            for (long s : level) {
+                long adjacent = 0;
+                for (long rest = s; rest != 0; rest &= rest - 1)
+                    adjacent |= in.adjacent[Long.numberOfTrailingZeros(rest)];
+                for (adjacent &= ~s; adjacent != 0; adjacent &= adjacent - 1) {
+                    long t = s | Long.lowestOneBit(adjacent);
+                    boolean seen = pc.contains(t);
+                    this.computeCostAndCardOfSubplan(stats, in,
+                            Long.numberOfTrailingZeros(adjacent), s, pc);
+                    if (!seen)
+                        next.add(t);
+                }
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * Order the joins greedily: starting from each join in turn, keep adding
+     * the adjacent join that makes the cheapest plan, or the one with the
+     * fewest result tuples, and take the cheapest of the orders found. Then improve that order by simulated annealing, moving
+     * or swapping random pairs of joins, until the planning budget or a number
+     * of moves quadratic in the number of joins runs out.
+     * <p>
+     * Plans here are extended one join at a time, so instead of a set of joins
+     * they keep which tables they have joined, and any number of joins can be
+     * ordered.
+     * 
+     * @return the indexes of the joins in the order found, or null if every
+     *         order has a cross product
+     */
+    private int[] orderJoinsHeuristically(Map<String, TableStats> stats,
+            SubplanInputs in) {
+        long start = System.nanoTime();
+        long budget = planningBudgetMillis * 1000000L;
+        int n = this.joins.size();
+        JoinStep step = new JoinStep();
+
+        int[] best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int greedy = 0; greedy < 2 * n; greedy++) {
+            // 前 n 轮每步接上代价最小的连接，后 n 轮接上结果最少的连接
+            int seed = greedy % n;
+            boolean byCard = greedy >= n;
+            int[] order = new int[n];
+            order[0] = seed;
+            boolean[] used = new boolean[n];
+            boolean[] joined = new boolean[in.numTables];
+            this.joinStep(stats, in, seed, joined, true, false, 0, 0, Double.MAX_VALUE, step);
+            double cost = step.cost;
+            int card = step.card;
+            used[seed] = true;
+            boolean pkey = in.join(seed, joined, false);
+            for (int k = 1; k < n; k++) {
+                int next = -1;
+                double nextCost = Double.MAX_VALUE;
+                int nextCard = Integer.MAX_VALUE;
+                // 和已连接的表不相邻的连接是笛卡尔积，joinStep 不接受
+                for (int i = 0; i < n; i++) {
+                    if (used[i])
+                        continue;
+                    if (byCard ? this.joinStep(stats, in, i, joined, false, pkey, cost, card, Double.MAX_VALUE, step)
+                            && (next < 0 || step.card < nextCard
+                                    || step.card == nextCard && step.cost < nextCost)
+                            : this.joinStep(stats, in, i, joined, false, pkey, cost, card, nextCost, step)) {
+                        next = i;
+                        nextCost = step.cost;
+                        nextCard = step.card;
+                    }
+                }
+                if (next < 0) // 连接图不连通，从哪个连接出发都一样
+                    return null;
+                order[k] = next;
+                used[next] = true;
+                pkey = in.join(next, joined, pkey);
+                cost = nextCost;
+                card = nextCard;
+            }
+            if (cost < bestCost) {
+                best = order;
+                bestCost = cost;
+            }
+        }
+
+        Random random = new Random(0);
+        int[] current = best;
+        double currentCost = bestCost;
+        long maxMoves = 100L * n * n;
+        double progress = 0;
+        for (long move = 0; move < maxMoves && n > 2; move++) {
+            if ((move & 63) == 0) {
+                long elapsed = System.nanoTime() - start;
+                if (elapsed >= budget)
+                    break;
+                progress = Math.max((double) move / maxMoves, (double) elapsed / budget);
+            }
+            double temperature = INITIAL_TEMPERATURE
+                    * Math.pow(FINAL_TEMPERATURE / INITIAL_TEMPERATURE, progress);
+
+            int[] candidate = current.clone();
+            int a = random.nextInt(n);
+            int b = random.nextInt(n - 1);
+            if (b >= a)
+                b++;
+            if (random.nextBoolean()) {
+                candidate[a] = current[b];
+                candidate[b] = current[a];
+            } else if (a < b) { // 把 a 处的连接挪到 b
+                System.arraycopy(current, a + 1, candidate, a, b - a);
+                candidate[b] = current[a];
+            } else {
+                System.arraycopy(current, b, candidate, b + 1, a - b);
+                candidate[b] = current[a];
+            }
+
+            double cost = this.planCost(stats, in, candidate, step);
+            if (cost == Double.MAX_VALUE)
+                continue; // 有笛卡尔积
+            if (cost < currentCost || random.nextDouble()
+                    < Math.exp((currentCost - cost) / (temperature * currentCost))) {
+                current = candidate;
+                currentCost = cost;
+                if (cost < bestCost) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of performing the joins in the specified left-deep
+     * order, given by their indexes
+     * 
+     * @return the estimated cost, or Double.MAX_VALUE if the order has a cross
+     *         product
+     */
+    private double planCost(Map<String, TableStats> stats, SubplanInputs in,
+            int[] order, JoinStep step) {
+        boolean[] joined = new boolean[in.numTables];
+        boolean pkey = false;
+        double cost = 0;
+        int card = 0;
+        for (int k = 0; k < order.length; k++) {
+            if (!this.joinStep(stats, in, order[k], joined, k == 0, pkey, cost, card, Double.MAX_VALUE, step))
+                return Double.MAX_VALUE;
+            pkey = in.join(order[k], joined, pkey);
+            cost = step.cost;
+            card = step.card;
+        }
+        return cost;
+    }
+
+    /**
+     * What the plans for the joins being ordered are built from, worked out
+     * once for each join rather than for each plan it is considered in
+     */
+    private class SubplanInputs {
+        /** Scan cost and filtered cardinality of the tables of each join */
+        final double[] t1cost, t2cost;
+        final int[] t1card, t2card;
+        /** Whether each join is on the primary key of its tables */
+        final boolean[] leftPkey, rightPkey;
+        /** Each join with its inner and outer swapped */
+        final LogicalJoinNode[] swapped;
+        /** The index of the first and the second table of each join, among
+         * the numTables tables joined; -1 for a subplan */
+        final int[] table1, table2;
+        final int numTables;
+        /** The joins that touch the first and the second table of each join;
+         * null when there are more joins than fit in a mask */
+        final long[] touches1, touches2;
+        /** The joins that share a table with each join; null when there are
+         * more joins than fit in a mask */
+        final long[] adjacent;
+        /** The joins on a primary key of either of their tables */
+        long pkeyJoins = 0;
+        /** Each join, and each join swapped, probing the index of its inner
+         * table; null if that table has no index on the join field */
+        final LogicalJoinNode[] probe, swappedProbe;
+        /** The cost of one lookup in the index of the second and the first
+         * table of each join */
+        final double[] t2probeCost, t1probeCost;
+
+        SubplanInputs(Map<String, TableStats> stats,
+                Map<String, Double> filterSelectivities) throws ParsingException {
+            int n = joins.size();
+            t1cost = new double[n];
+            t2cost = new double[n];
+            t1card = new int[n];
+            t2card = new int[n];
+            leftPkey = new boolean[n];
+            rightPkey = new boolean[n];
+            swapped = new LogicalJoinNode[n];
+            table1 = new int[n];
+            table2 = new int[n];
+            boolean masks = n <= MAX_MASK_JOINS;
+            touches1 = masks ? new long[n] : null;
+            touches2 = masks ? new long[n] : null;
+            adjacent = masks ? new long[n] : null;
+            probe = new LogicalJoinNode[n];
+            swappedProbe = new LogicalJoinNode[n];
+            t2probeCost = new double[n];
+            t1probeCost = new double[n];
+
+            Map<String, Integer> tables = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                LogicalJoinNode j = joins.get(i);
+                table1[i] = tables.computeIfAbsent(j.t1Alias, a -> tables.size());
+                table2[i] = j.t2Alias == null ? -1 : tables.computeIfAbsent(j.t2Alias, a -> tables.size());
+            }
+            numTables = tables.size();
+            long[] joinsOfTable = new long[masks ? numTables : 0];
+            for (int i = 0; masks && i < n; i++) {
+                joinsOfTable[table1[i]] |= 1L << i;
+                if (table2[i] >= 0)
+                    joinsOfTable[table2[i]] |= 1L << i;
+            }
+
+            for (int i = 0; i < n; i++) {
+                LogicalJoinNode j = joins.get(i);
+                if (p.getTableId(j.t1Alias) == null)
+                    throw new ParsingException("Unknown table " + j.t1Alias);
+                if (j.t2Alias != null && p.getTableId(j.t2Alias) == null)
+                    throw new ParsingException("Unknown table " + j.t2Alias);
+
+                TableStats s1 = stats.get(Database.getCatalog().getTableName(
+                        p.getTableId(j.t1Alias)));
+                t1cost[i] = s1.estimateScanCost();
+                t1card[i] = s1.estimateTableCardinality(
+                        filterSelectivities.get(j.t1Alias));
+                leftPkey[i] = isPkey(j.t1Alias, j.f1PureName);
+                if (masks)
+                    touches1[i] = joinsOfTable[table1[i]];
+
+                if (j.t2Alias != null) {
+                    TableStats s2 = stats.get(Database.getCatalog().getTableName(
+                            p.getTableId(j.t2Alias)));
+                    t2cost[i] = s2.estimateScanCost();
+                    t2card[i] = s2.estimateTableCardinality(
+                            filterSelectivities.get(j.t2Alias));
+                    rightPkey[i] = isPkey(j.t2Alias, j.f2PureName);
+                    if (masks)
+                        touches2[i] = joinsOfTable[table2[i]];
+                }
+
+                swapped[i] = j.swapInnerOuter();
+                if (masks) {
+                    adjacent[i] = touches1[i] | touches2[i];
+                    if (leftPkey[i] || rightPkey[i])
+                        pkeyJoins |= 1L << i;
+                }
+
+                // 内表是 B+ tree 且按连接字段建索引时，可以对每个外层元组查索引
+                if (j.t2Alias != null && !(j instanceof LogicalSubplanJoinNode)) {
+                    t2probeCost[i] = estimateProbeCost(stats.get(Database.getCatalog().getTableName(
+                            p.getTableId(j.t2Alias))), fieldIndex(j.t2Alias, j.f2PureName), j.p);
+                    if (t2probeCost[i] >= 0)
+                        probe[i] = j.probingIndex();
+                    t1probeCost[i] = estimateProbeCost(s1, fieldIndex(j.t1Alias, j.f1PureName),
+                            swapped[i].p);
+                    if (t1probeCost[i] >= 0)
+                        swappedProbe[i] = swapped[i].probingIndex();
+                }
+            }
+        }
+
+        /**
+         * Mark the tables of join i as joined by a plan
+         * 
+         * @param pkey
+         *            whether the plan already has a join on a primary key
+         * @return whether the plan has a join on a primary key with join i
+         */
+        boolean join(int i, boolean[] joined, boolean pkey) {
+            joined[table1[i]] = true;
+            if (table2[i] >= 0)
+                joined[table2[i]] = true;
+            return pkey || leftPkey[i] || rightPkey[i];
+        }
+    }
+
     /**
      * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * the join with index joinToAdd to the best plan for the joins in prevSet,
+     * and stores the plan in PlanCache pc if it is cheaper than the plan
+     * already there for the joins in both.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
      *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
+     * @param in
+     *            the per-join costs, cardinalities and adjacency
+     * @param joinToAdd
+     *            the index of the join to add
+     * @param prevSet
+     *            the set of joins to add it to, with a plan in pc; 0 when
+     *            joinToAdd joins two base relations
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *            the PlanCache for this join
+     * @return true if the plan was stored in pc
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            Map<String, TableStats> stats,
-            Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private boolean computeCostAndCardOfSubplan(
+            Map<String, TableStats> stats, SubplanInputs in,
+            int joinToAdd, long prevSet, PlanCache pc) {
+
+        long s = prevSet | (1L << joinToAdd);
+        double bestCostSoFar = pc.contains(s) ? pc.getCost(s) : Double.MAX_VALUE;
+        double prevCost = prevSet == 0 ? 0 : pc.getCost(prevSet);
+        int prevCard = prevSet == 0 ? 0 : pc.getCard(prevSet);
+        JoinStep step = new JoinStep();
+        if (!this.joinStep(stats, in, joinToAdd, prevSet, prevCost, prevCard,
+                bestCostSoFar, step))
+            return false;
+
+        pc.addPlan(s, prevSet, step.join, step.cost, step.card); // prevbest is left -- add new join to end
+        return true;
+    }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
+    /** The join, cost and cardinality of a plan that ends with a given join */
+    private static class JoinStep {
+        LogicalJoinNode join;
+        double cost;
+        int card;
+    }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+    /**
+     * Compute the cost and cardinality of joining the join with index i to a
+     * plan for the joins in prevSet, picking which side of the join is the
+     * outer.
+     * 
+     * @param prevSet
+     *            the joins the plan performs; 0 when join i joins two base
+     *            relations
+     * @param prevCost
+     *            the cost of the plan
+     * @param prevCard
+     *            the cardinality of the plan
+     * @param bestCostSoFar
+     *            the cost the new plan has to beat
+     * @param step
+     *            set to the join, oriented, the cost and the cardinality of
+     *            the new plan if this returns true
+     * @return false if join i makes a cross product with the plan, or costs
+     *         at least bestCostSoFar
+     */
+    private boolean joinStep(Map<String, TableStats> stats, SubplanInputs in,
+            int i, long prevSet, double prevCost, int prevCard,
+            double bestCostSoFar, JoinStep step) {
+        return this.joinStep(stats, in, i, prevSet == 0, (in.touches1[i] & prevSet) != 0,
+                (in.touches2[i] & prevSet) != 0, (in.pkeyJoins & prevSet) != 0,
+                prevCost, prevCard, bestCostSoFar, step);
+    }
+
+    /**
+     * Like {@link #joinStep(Map, SubplanInputs, int, long, double, int, double,
+     * JoinStep)}, for a plan given by the tables it has joined, marked in
+     * joined, rather than by its set of joins
+     * 
+     * @param first
+     *            true if the plan is empty and join i joins two base relations
+     * @param prevPkey
+     *            whether the plan has a join on a primary key
+     */
+    private boolean joinStep(Map<String, TableStats> stats, SubplanInputs in,
+            int i, boolean[] joined, boolean first, boolean prevPkey,
+            double prevCost, int prevCard, double bestCostSoFar, JoinStep step) {
+        return this.joinStep(stats, in, i, first, joined[in.table1[i]],
+                in.table2[i] >= 0 && joined[in.table2[i]], prevPkey,
+                prevCost, prevCard, bestCostSoFar, step);
+    }
 
+    private boolean joinStep(Map<String, TableStats> stats, SubplanInputs in,
+            int i, boolean first, boolean t1Joined, boolean t2Joined, boolean prevPkey,
+            double prevCost, int prevCard, double bestCostSoFar, JoinStep step) {
+
+        LogicalJoinNode j = this.joins.get(i);
+        // 只有还没连接过的基表才能通过索引探查
+        boolean t1Base = !t1Joined;
+        boolean t2Base = !t2Joined;
+
+        double t1cost = in.t1cost[i], t2cost = in.t2cost[i];
+        int t1card = in.t1card[i], t2card = in.t2card[i];
+        boolean leftPkey = in.leftPkey[i], rightPkey = in.rightPkey[i];
+
+        if (!first) {
+            // figure best way to join j to prevSet
+            if (t1Joined) { // j.t1 is in prevSet
+                t1cost = prevCost;
+                t1card = prevCard;
+                leftPkey = prevPkey;
+            } else if (t2Joined) { // j.t2 is in prevSet
+                t2cost = prevCost;
+                t2card = prevCard;
+                rightPkey = prevPkey;
             } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+                // cross product
+                return false;
             }
         }
 
         // case where prevbest is left
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        if (t2Base && in.probe[i] != null) {
+            double probeCost = estimateIndexJoinCost(in.probe[i], t1card, t2card, t1cost, in.t2probeCost[i]);
+            if (probeCost < cost1) {
+                j = in.probe[i];
+                cost1 = probeCost;
+            }
+        }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
+        LogicalJoinNode j2 = in.swapped[i];
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        if (t1Base && in.swappedProbe[i] != null) {
+            double probeCost = estimateIndexJoinCost(in.swappedProbe[i], t2card, t1card, t2cost, in.t1probeCost[i]);
+            if (probeCost < cost2) {
+                j2 = in.swappedProbe[i];
+                cost2 = probeCost;
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -447,29 +1003,25 @@ public class JoinOptimizer {
             leftPkey = tmp;
         }
         if (cost1 >= bestCostSoFar)
-            return null;
-
-        CostCard cc = new CostCard();
+            return false;
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
+        step.join = j;
+        step.cost = cost1;
+        step.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
+        return true;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Return the index of a field in the specified table, or -1 if the table
+     * has no field with that name
      */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private int fieldIndex(String tableAlias, String field) {
+        try {
+            return Database.getCatalog().getTupleDesc(p.getTableId(tableAlias)).fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            return -1;
         }
-        return false;
     }
 
     /**
@@ -488,20 +1040,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(List<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -509,8 +1047,10 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
+     * @param costs
+     *            the cost of each prefix of the plan
+     * @param cards
+     *            the cardinality of each prefix of the plan
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -518,8 +1058,8 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
-            Map<String, TableStats> stats,
+    private void printJoins(List<LogicalJoinNode> js, double[] costs,
+            int[] cards, Map<String, TableStats> stats,
             Map<String, Double> selectivities) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
@@ -538,13 +1078,12 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<>();
         boolean neither;
 
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+        for (int i = 0; i < js.size(); i++) {
+            LogicalJoinNode j = js.get(i);
+            System.out.println("PATH SO FAR = " + js.subList(0, i + 1));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -555,8 +1094,8 @@ public class JoinOptimizer {
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + costs[i] + ", card = "
+                    + cards[i] + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
@@ -25,6 +25,11 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the join looks up the tuples of t2 that match each tuple of t1
+     * in the B+ tree index of t2 on f2, rather than reading all of t2; set by
+     * {@link JoinOptimizer#orderJoins} when t2 is a base table indexed on f2 */
+    public boolean probeIndex = false;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +68,14 @@ public class LogicalJoinNode {
 
         return new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
     }
+
+    /** Return a copy of this LogicalJoinNode that probes the index of t2 on f2
+     * for each tuple of t1. */
+    public LogicalJoinNode probingIndex() {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j.probeIndex = true;
+        return j;
+    }
     
     @Override public boolean equals(Object o) {
         if (!(o instanceof LogicalJoinNode)) return false;
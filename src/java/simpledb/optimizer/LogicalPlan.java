@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -23,12 +24,16 @@ import java.io.File;
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
  * best implementations for joins.
+ * <p>
+ * A LogicalPlan is optimized only the first time it is converted; the
+ * access paths and join order chosen then are kept, and {@link #instantiate}
+ * builds further physical plans from them, for other transactions and with
+ * other constants in the filters, without optimizing again.
  */
 public class LogicalPlan {
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
-    private final Map<String, OpIterator> subplanMap;
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
@@ -41,12 +46,18 @@ public class LogicalPlan {
     private String query;
 //    private Query owner;
 
+    /** 优化的结果：每个别名上用作索引谓词的过滤条件在它的过滤条件里的下标（-1 是顺序扫描），
+     *  以及优化时用的每个基表的统计信息；还没优化时为 null */
+    private Map<String,Integer> indexFilters = null;
+    private Map<String,TableStats> plannedStats = null;
+    /** 优化时目录的版本 */
+    private long catalogVersion;
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
         filters = new ArrayList<>();
         tables = new ArrayList<>();
-        subplanMap = new HashMap<>();
         tableMap = new HashMap<>();
 
         selectList = new ArrayList<>();
@@ -84,6 +95,48 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** Return the constants the filters of the plan compare with, in the order the filters were added.
+     */
+    public List<String> getFilterConstants() {
+        List<String> constants = new ArrayList<>();
+        for (LogicalFilterNode lf : filters)
+            constants.add(lf.c);
+        return constants;
+    }
+
+    /** Return true if the plan joins with a subquery, whose physical plan is built once, for one
+        transaction, when the plan is parsed.
+     */
+    public boolean hasSubqueries() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return true;
+        }
+        return false;
+    }
+
+    /** Return true if the plan has been optimized by {@link #physicalPlan} and {@link #instantiate} can
+        build it again: it has no subquery.
+     */
+    public boolean isReusable() {
+        return this.indexFilters != null && !hasSubqueries();
+    }
+
+    /** Return true if the plan has been optimized and is not out of date: no table has been added to
+        the catalog since, and each of its tables still has the {@link TableStats} it was optimized
+        with, which are replaced once enough of the table has changed.
+     */
+    public boolean isCurrent() {
+        if (this.indexFilters == null || this.catalogVersion != Database.getCatalog().getVersion())
+            return false;
+        Map<String,TableStats> current = TableStats.getStatsMap();
+        for (Map.Entry<String,TableStats> s : this.plannedStats.entrySet()) {
+            if (current.get(s.getKey()) != s.getValue())
+                return false;
+        }
+        return true;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -274,8 +327,101 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Choose how to read the tuples of a table that satisfy the filters on it: through its B+ tree
+     *   index, with the cheapest of the filters on the key field of the table as the {@link IndexPredicate},
+     *   when the table is stored in a B+ tree and reading the matching range of it costs less than a
+     *   sequential scan, or by a sequential scan.
+     *  @param s the statistics of the table
+     *  @param filters the filters on the table, over the fields of its scan
+     *  @param selectivities the estimated selectivity of each filter
+     *  @return the index in filters of the filter to read the index with, or -1 for a sequential scan
+     */
+    private int chooseIndexFilter(TableStats s, List<Predicate> filters, List<Double> selectivities) {
+        int index = -1;
+        double bestCost = s.estimateScanCost();
+        for (int i = 0; i < filters.size(); i++) {
+            Predicate p = filters.get(i);
+            Predicate.Op op = p.getOp();
+            if (p.getField() != s.getIndexField() || op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS)
+                continue;
+            double cost = s.estimateIndexScanCost(selectivities.get(i));
+            if (cost < bestCost) {
+                index = i;
+                bestCost = cost;
+            }
+        }
+        return index;
+    }
+
+    /** Build the plan reading the tuples of a table that satisfy the filters on it: a {@link BTreeScan}
+     *   with the filter chosen by {@link #chooseIndexFilter} as its {@link IndexPredicate}, or the
+     *   sequential scan; followed by a {@link Filter} for each other filter.
+     *  @param t the transaction the scan runs as a part of
+     *  @param table the scan of the table
+     *  @param scan the sequential scan of the table
+     *  @param index the index of the filter to read the index with, or -1
+     *  @param filters the filters on the table, over the fields of its scan
+     *  @return the plan reading the table
+     */
+    private OpIterator accessPath(TransactionId t, LogicalScanNode table, OpIterator scan,
+            int index, List<Predicate> filters) {
+        OpIterator plan;
+        if (index >= 0)
+            plan = new BTreeScan(t, table.t, table.alias,
+                    new IndexPredicate(filters.get(index).getOp(), filters.get(index).getOperand()));
+        else
+            plan = scan;
+        for (int i = 0; i < filters.size(); i++) {
+            if (i != index)
+                plan = new Filter(filters.get(i), plan);
+        }
+        return plan;
+    }
+
+    /** Build the predicate of a filter over the fields of the scan of its table.
+     *  @param lf the filter
+     *  @param constant the constant to compare with, as it appears in the query
+     *  @param td the tuple descriptor of the scan of the table of the filter
+     *  @throws ParsingException if the table has no such field
+     */
+    private Predicate filterPredicate(LogicalFilterNode lf, String constant, TupleDesc td) throws ParsingException {
+        int field;
+        try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
+            field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        Field f;
+        if (td.getFieldType(field) == Type.INT_TYPE) {
+            try {
+                f = new IntField(new Integer(constant));
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Expected an integer to compare " + lf.fieldQuantifiedName + " with, got " + constant);
+            }
+        } else
+            f = new StringField(constant, Type.STRING_LEN);
+        return new Predicate(field, lf.p, f);
+    }
+
+    /** Return the sequential scan of each table of the plan, by alias.
+     *  @throws ParsingException if a table is not in the catalog
+     */
+    private Map<String, OpIterator> scans(TransactionId t) throws ParsingException {
+        Map<String, OpIterator> scans = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            try {
+                scans.put(table.alias, new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias));
+            } catch (NoSuchElementException e) {
+                throw new ParsingException("Unknown table " + table.t);
+            }
+        }
+        return scans;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   Only the first call optimizes the plan; later calls build the same plan again for t, like
+     *   {@link #instantiate}.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -288,66 +434,119 @@ public class LogicalPlan {
      *  @return A OpIterator representing this plan.
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
-        Iterator<LogicalScanNode> tableIt = tables.iterator();
-        Map<String,String> equivMap = new HashMap<>();
+        return physicalPlan(t, baseTableStats, explain, null);
+    }
+
+    /** Convert this LogicalPlan into a physicalPlan like {@link #physicalPlan(TransactionId, Map, boolean)},
+     *   with other constants in the filters; the first call optimizes the plan for these constants.
+     *  @param constants the constants to compare the filters of the plan with, in the order the
+     *    filters were added, replacing those the filters were added with; null to keep those
+     *  @throws ParsingException if the logical plan is not valid
+     */
+    public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            List<String> constants) throws ParsingException {
+        checkConstants(constants);
+        if (this.indexFilters == null)
+            optimize(t, baseTableStats, explain, constants);
+        return instantiate(t, constants);
+    }
+
+    private void checkConstants(List<String> constants) throws ParsingException {
+        if (constants != null && constants.size() != filters.size())
+            throw new ParsingException("Expected " + filters.size() + " constants, got " + constants.size());
+    }
+
+    /** Estimate the selectivity of the filters, choose the access path of each table and order the joins.
+     *  @see #physicalPlan
+     */
+    private void optimize(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            List<String> constants) throws ParsingException {
+        long version = Database.getCatalog().getVersion();
+        Map<String, OpIterator> scans = scans(t);
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        // 每个别名上的过滤条件及其选择率，用来选访问路径
+        Map<String,List<Predicate>> aliasFilters = new HashMap<>();
+        Map<String,List<Double>> aliasSelectivities = new HashMap<>();
 
-        while (tableIt.hasNext()) {
-            LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
-            try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown table " + table.t);
-            }
-            
-            subplanMap.put(table.alias,ss);
+        for (LogicalScanNode table : tables) {
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats baseStats = baseTableStats.get(baseTableName);
+            if (baseStats == null)
+                baseStats = TableStats.getTableStats(baseTableName); // 第一次用到时才加载
+            statsMap.put(baseTableName, baseStats);
             filterSelectivities.put(table.alias, 1.0);
-
+            aliasFilters.put(table.alias, new ArrayList<>());
+            aliasSelectivities.put(table.alias, new ArrayList<>());
         }
 
-        for (LogicalFilterNode lf : filters) {
-            OpIterator subplan = subplanMap.get(lf.tableAlias);
+        for (int i = 0; i < filters.size(); i++) {
+            LogicalFilterNode lf = filters.get(i);
+            OpIterator subplan = scans.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
-
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
-
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
-            }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            Predicate p = filterPredicate(lf, constants == null ? lf.c : constants.get(i), subplan.getTupleDesc());
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel = s.estimateSelectivity(p.getField(), lf.p, p.getOperand());
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            aliasFilters.get(lf.tableAlias).add(p);
+            aliasSelectivities.get(lf.tableAlias).add(sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        Map<String,Integer> indexFilters = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            indexFilters.put(table.alias, chooseIndexFilter(s,
+                    aliasFilters.get(table.alias), aliasSelectivities.get(table.alias)));
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        this.plannedStats = statsMap;
+        this.catalogVersion = version;
+        this.indexFilters = indexFilters;
+    }
+
+    /** Build a physical plan for this LogicalPlan, which has been converted by {@link #physicalPlan}
+     *   before, with the access paths and join order chosen then, without optimizing it again.
+     *  @param t The transaction that the returned OpIterator will run as a part of
+     *  @param constants the constants to compare the filters of the plan with, in the order the
+     *    filters were added, replacing those the filters were added with; null to keep those
+     *  @throws ParsingException if the logical plan is not valid
+     *  @throws IllegalStateException if the plan has not been optimized by {@link #physicalPlan}
+     *  @return A OpIterator representing this plan.
+     */
+    public OpIterator instantiate(TransactionId t, List<String> constants) throws ParsingException {
+        if (this.indexFilters == null)
+            throw new IllegalStateException("the plan has not been optimized");
+        checkConstants(constants);
+        Map<String, OpIterator> subplanMap = scans(t);
+        Map<String,String> equivMap = new HashMap<>();
+        // 每个别名上的过滤条件，等套上访问路径后再套上 Filter
+        Map<String,List<Predicate>> aliasFilters = new HashMap<>();
+        for (LogicalScanNode table : tables)
+            aliasFilters.put(table.alias, new ArrayList<>());
+
+        for (int i = 0; i < filters.size(); i++) {
+            LogicalFilterNode lf = filters.get(i);
+            OpIterator subplan = subplanMap.get(lf.tableAlias);
+            if (subplan == null) {
+                throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
+            }
+            aliasFilters.get(lf.tableAlias).add(filterPredicate(lf,
+                    constants == null ? lf.c : constants.get(i), subplan.getTupleDesc()));
+        }
+
+        for (LogicalScanNode table : tables) {
+            subplanMap.put(table.alias, accessPath(t, table, subplanMap.get(table.alias),
+                    indexFilters.get(table.alias), aliasFilters.get(table.alias)));
+        }
 
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
@@ -381,7 +580,12 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            if (lj.probeIndex && !isSubqueryJoin && t2name.equals(lj.t2Alias))
+                // t2 还是基表：对 plan1 的每个元组查 t2 的索引，t2 上的过滤条件由连接来做
+                j = JoinOptimizer.instantiateIndexJoin(t, lj, plan1, this.getTableId(lj.t2Alias),
+                        aliasFilters.get(lj.t2Alias));
+            else
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -0,0 +1,225 @@
+package simpledb.optimizer;
+
+import java.util.*;
+
+/**
+ * A cache of optimized query plans, keyed by the text of the query with its
+ * literals replaced by parameters, so that queries that differ only in the
+ * constants they compare with share a plan. A cached plan is a
+ * {@link LogicalPlan} that has been optimized once; it is built again for
+ * each query by {@link LogicalPlan#instantiate} with the literals of that
+ * query, without parsing or optimizing it again.
+ * <p>
+ * A plan keeps the access paths and join order chosen for the literals of
+ * the query it was optimized for. It is dropped the next time it is looked
+ * up after a table is added to the catalog, or after the statistics of one
+ * of its tables are replaced, which {@link TableStats} does once enough
+ * tuples of the table have changed. The least recently used plans are
+ * dropped once there are more than the capacity of the cache.
+ *
+ * @Threadsafe
+ */
+public class QueryPlanCache {
+
+    /** The default number of plans kept */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * The text of a statement with each literal replaced by a ?, and its
+     * whitespace collapsed, along with the literals in the order they appear.
+     * Quoted string literals are kept without their quotes, as the parser
+     * gives them.
+     */
+    public static class NormalizedQuery {
+        private final String key;
+        private final List<String> literals;
+
+        NormalizedQuery(String key, List<String> literals) {
+            this.key = key;
+            this.literals = literals;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public List<String> getLiterals() {
+            return literals;
+        }
+
+        /** Return true if the statement is a SELECT, the only statements whose plans are cached */
+        public boolean isQuery() {
+            return key.regionMatches(true, 0, "SELECT", 0, 6);
+        }
+    }
+
+    /**
+     * Replace the literals of a statement by ?: numbers that are not part of
+     * a name, and strings in single quotes. Runs of whitespace outside of
+     * strings become one space, so statements that differ only in their
+     * layout share a key.
+     */
+    public static NormalizedQuery normalize(String sql) {
+        return normalize(sql, false);
+    }
+
+    /**
+     * Normalize a statement like {@link #normalize(String)}; if parameters,
+     * a ? outside of strings is a parameter, listed among the literals as
+     * null.
+     */
+    public static NormalizedQuery normalize(String sql, boolean parameters) {
+        StringBuilder key = new StringBuilder(sql.length());
+        List<String> literals = new ArrayList<>();
+        boolean space = false;
+        int n = sql.length();
+        for (int i = 0; i < n; ) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (space && key.length() > 0)
+                key.append(' ');
+            space = false;
+            int j = i + 1;
+            if (c == '\'') {
+                // 字符串里的 '' 是一个引号，和解析器一样原样保留
+                while (j < n && (sql.charAt(j) != '\'' || (j + 1 < n && sql.charAt(j + 1) == '\'')))
+                    j += sql.charAt(j) == '\'' ? 2 : 1;
+                literals.add(sql.substring(i + 1, Math.min(j, n)));
+                key.append('?');
+                i = Math.min(j + 1, n);
+            } else if (Character.isDigit(c)) {
+                while (j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.'))
+                    j++;
+                literals.add(sql.substring(i, j));
+                key.append('?');
+                i = j;
+            } else if (Character.isLetter(c) || c == '_') {
+                // 名字里的数字不是字面量
+                while (j < n && (Character.isLetterOrDigit(sql.charAt(j)) || sql.charAt(j) == '_'))
+                    j++;
+                key.append(sql, i, j);
+                i = j;
+            } else {
+                if (c == '?' && parameters)
+                    literals.add(null);
+                key.append(c);
+                i = j;
+            }
+        }
+        return new NormalizedQuery(key.toString(), literals);
+    }
+
+    private final int capacity;
+
+    private final LinkedHashMap<String, LogicalPlan> plans;
+
+    private long hits = 0, misses = 0, invalidations = 0, evictions = 0, rejections = 0;
+
+    /** Create a plan cache keeping up to DEFAULT_CAPACITY plans */
+    public QueryPlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Create a plan cache keeping up to capacity plans */
+    public QueryPlanCache(int capacity) {
+        this.capacity = capacity;
+        // 按访问顺序排，最久没用的在最前面
+        this.plans = new LinkedHashMap<String, LogicalPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LogicalPlan> eldest) {
+                if (size() <= QueryPlanCache.this.capacity)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Return the plan cached for a normalized query, or null if there is
+     * none or it is out of date ({@link LogicalPlan#isCurrent}), in which
+     * case it is dropped.
+     *
+     * @param key the key of the query, from {@link #normalize}
+     */
+    public synchronized LogicalPlan get(String key) {
+        LogicalPlan plan = plans.get(key);
+        if (plan != null && !plan.isCurrent()) {
+            plans.remove(key);
+            invalidations++;
+            plan = null;
+        }
+        if (plan == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return plan;
+    }
+
+    /**
+     * Cache the plan of a query, optimized by {@link LogicalPlan#physicalPlan}.
+     * The plan is only cached if it can be built again and the constants of
+     * its filters are the literals of the query, in the same order, so that
+     * the literals of another query with the same key can take their places.
+     *
+     * @param query the query, normalized by {@link #normalize}
+     * @param plan the plan of the query
+     * @return true if the plan was cached
+     */
+    public synchronized boolean put(NormalizedQuery query, LogicalPlan plan) {
+        if (!plan.isReusable() || !plan.getFilterConstants().equals(query.getLiterals())) {
+            rejections++;
+            return false;
+        }
+        plans.put(query.getKey(), plan);
+        return true;
+    }
+
+    /** Drop every cached plan */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /** @return the number of plans cached */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of lookups that found a current plan */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no plan, or one out of date */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of plans dropped because they were out of date */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /** @return the number of plans dropped to keep to the capacity of the cache */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** @return the number of plans not cached because they could not be built again for other literals */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d plans cached, %d hits, %d misses, %d invalidated, %d evicted, %d not cacheable",
+                plans.size(), hits, misses, invalidations, evictions, rejections);
+    }
+}
@@ -3,32 +3,109 @@ package simpledb.optimizer;
 import net.sf.antcontrib.logic.Throw;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * The statistics of a table stored in a file of its own are saved next to it,
+ * in a file with the suffix {@link #STATS_FILE_SUFFIX}, and loaded from there
+ * the first time {@link #getTableStats} is asked for them. Insert and Delete
+ * keep them up to date tuple by tuple, and once enough tuples have changed the
+ * table is sampled again in the background.
+ * <p>
+ * The pages of a heap file read to build the statistics are split into
+ * ranges read by several threads at once, each building the statistics of
+ * its pages, which are merged in the end; {@link #computeStatistics} builds
+ * the statistics of several tables at once too.
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 3L;
 
     private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /** Default for {@link #setSamplePages} */
+    public static final int DEFAULT_SAMPLE_PAGES = 1000;
+
+    private static volatile int samplePages = DEFAULT_SAMPLE_PAGES;
+
+    /** The suffix of the file the statistics of a table are saved in, after the name of its data file */
+    public static final String STATS_FILE_SUFFIX = ".stats";
+
+    /** Defaults for {@link #setRefreshThreshold} */
+    public static final int DEFAULT_REFRESH_MODIFICATIONS = 1000;
+    public static final double DEFAULT_REFRESH_FRACTION = 0.2;
+
+    private static volatile int refreshModifications = DEFAULT_REFRESH_MODIFICATIONS;
+    private static volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+
+    /** 后台重新抽样的线程，以及正在重新抽样的表 */
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TableStats refresher");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /** 统计信息没加载时有过插入或删除的表，加载时不能用保存的统计信息 */
+    private static final Set<String> modifiedUnloaded = ConcurrentHashMap.newKeySet();
+
+    /** The fewest pages a thread building statistics is given to read */
+    static final int MIN_WORKER_PAGES = 32;
+
+    private static volatile int statsThreads = Runtime.getRuntime().availableProcessors();
+
+    /** 读页面范围的线程，用多少开多少 */
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "TableStats worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Returns the statistics of a table. The first time they are asked for,
+     * they are loaded from the file they were saved in, or built from the
+     * table and saved if that file does not exist or the table has changed
+     * since.
+     * 
+     * @return the statistics, or null if there is no table with that name
+     */
     public static TableStats getTableStats(String tablename) {
-        return statsMap.get(tablename);
+        TableStats s = statsMap.get(tablename);
+        if (s != null)
+            return s;
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tablename);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return statsMap.computeIfAbsent(tablename, name -> load(tableid, IOCOSTPERPAGE));
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
@@ -47,43 +124,251 @@ public class TableStats {
 
     }
 
+    /**
+     * Set the number of pages of each table {@link #computeStatistics} and the
+     * two-argument constructor read to build its statistics; tables with more
+     * pages are sampled. 0 reads every page.
+     */
+    public static void setSamplePages(int pages) {
+        samplePages = pages;
+    }
+
+    public static int getSamplePages() {
+        return samplePages;
+    }
+
+    /**
+     * Set the number of threads building the statistics of a table, each
+     * reading a range of its pages, and the number of tables
+     * {@link #computeStatistics} builds the statistics of at once. Defaults
+     * to the number of processors.
+     */
+    public static void setStatsThreads(int threads) {
+        statsThreads = Math.max(1, threads);
+    }
+
+    public static int getStatsThreads() {
+        return statsThreads;
+    }
+
+    /**
+     * Set when the statistics of a table are rebuilt: once the number of
+     * tuples inserted into and deleted from the table since they were built
+     * reaches the larger of modifications and fraction times the number of
+     * tuples of the table, the table is sampled again in the background.
+     */
+    public static void setRefreshThreshold(int modifications, double fraction) {
+        refreshModifications = modifications;
+        refreshFraction = fraction;
+    }
+
     public static Map<String, TableStats> getStatsMap() {
         return statsMap;
     }
 
+    /**
+     * Load the statistics of every table of the catalog, building those that
+     * were not saved or are out of date, up to {@link #getStatsThreads}
+     * tables at once. {@link #getTableStats} does the same for one table the
+     * first time it is used.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
+        ExecutorService tables = Executors.newFixedThreadPool(statsThreads, r -> {
+            Thread t = new Thread(r, "TableStats loader");
+            t.setDaemon(true);
+            return t;
+        });
+        Map<Integer, Future<TableStats>> loading = new LinkedHashMap<>();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            loading.put(tableid, tables.submit(() -> load(tableid, IOCOSTPERPAGE)));
+        }
+        // 统计信息表可能被换成了不是线程安全的 Map，在这个线程里放进去
+        try {
+            for (Map.Entry<Integer, Future<TableStats>> e : loading.entrySet()) {
+                String name = Database.getCatalog().getTableName(e.getKey());
+                try {
+                    setTableStats(name, e.getValue().get());
+                } catch (ExecutionException ex) {
+                    // 读不出来的表没有统计信息，用的时候再试
+                    System.err.println("Could not compute the statistics of " + name + ": " + ex.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            tables.shutdown();
         }
         System.out.println("Done.");
     }
 
     /**
-     * Number of bins for the histogram. Feel free to increase this value over
-     * 100, though our tests assume that you have at least 100 bins in your
-     * histograms.
+     * Save the statistics of every table loaded so far, with the changes
+     * Insert and Delete have made to them.
      */
-    static final int NUM_HIST_BINS = 100;
+    public static void saveStatistics() {
+        for (TableStats s : statsMap.values())
+            s.save();
+    }
 
-    private final DbFile trackedFile;
+    /**
+     * Update the statistics of a table, if they are loaded, for a tuple
+     * inserted into it.
+     */
+    public static void recordInsert(int tableid, Tuple t) {
+        recordModification(tableid, t, true);
+    }
+
+    /**
+     * Update the statistics of a table, if they are loaded, for a tuple
+     * deleted from it.
+     */
+    public static void recordDelete(int tableid, Tuple t) {
+        recordModification(tableid, t, false);
+    }
+
+    private static void recordModification(int tableid, Tuple t, boolean insert) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        // 没加载的统计信息不用维护，只记下表改过，加载时重新统计
+        TableStats s = statsMap.get(name);
+        if (s == null)
+            modifiedUnloaded.add(name);
+        else if (s.update(t, insert))
+            refresh(tableid, name, s);
+    }
+
+    /** Rebuild the statistics of a table in the background and replace stale with them */
+    private static void refresh(int tableid, String name, TableStats stale) {
+        if (!refreshing.add(name))
+            return;
+        refresher.execute(() -> {
+            try {
+                TableStats fresh = new TableStats(tableid, stale.ioCostPerpage);
+                fresh.save();
+                statsMap.replace(name, stale, fresh);
+            } catch (RuntimeException e) {
+                // 重新统计失败，继续用旧的
+                e.printStackTrace();
+            } finally {
+                refreshing.remove(name);
+            }
+        });
+    }
+
+    /**
+     * The file the statistics of a table are saved in, next to its data file;
+     * null if the table is not stored in a file of its own.
+     */
+    static File statsFile(DbFile f) {
+        File data = dataFile(f);
+        return data == null ? null : new File(data.getPath() + STATS_FILE_SUFFIX);
+    }
+
+    /** The file a table is stored in; null if it is not stored in a file of its own */
+    private static File dataFile(DbFile f) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getFile();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).getFile();
+        return null;
+    }
+
+    private static int numPages(DbFile f) {
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).numPages();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).numPages();
+        return -1;
+    }
+
+    /**
+     * Read the statistics of a table from the file they were saved in. If
+     * there is no such file or it cannot be read, if the data file of the
+     * table has been written or has a different number of pages since they
+     * were saved, or if tuples were inserted into or deleted from the table
+     * while its statistics were not loaded, build them from the table and
+     * save them instead.
+     *
+     * @throws RuntimeException if the table cannot be read; nothing is saved
+     */
+    static TableStats load(int tableid, int ioCostPerPage) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        boolean modified = modifiedUnloaded.remove(Database.getCatalog().getTableName(tableid));
+        File f = statsFile(file);
+        if (f != null && f.exists() && !modified) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                TableStats s = (TableStats) in.readObject();
+                File data = dataFile(file);
+                if (s.pages == numPages(file) && s.tupleDesc.equals(file.getTupleDesc())
+                        && s.dataModified == data.lastModified() && s.dataLength == data.length()) {
+                    s.trackedFile = file;
+                    s.ioCostPerpage = ioCostPerPage;
+                    return s;
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // 读不出来就重新统计
+            }
+        }
+        TableStats s = new TableStats(tableid, ioCostPerPage);
+        s.save();
+        return s;
+    }
+
+    private transient DbFile trackedFile;
 
     private int ioCostPerpage = IOCOSTPERPAGE;
 
     private int tupleNum;
 
-    private DbFileIterator tupleIterator;
-
-    private IntHistogram[] intHistograms;
+    private transient DbFileIterator tupleIterator;
 
-    private StringHistogram[] stringHistograms;
+    /** The distinct values, most common values and histogram of each field */
+    private ColumnStats[] columnStats;
 
     private TupleDesc tupleDesc;
 
+    /** The number of pages of the table read to build the statistics, and of pages of the table */
+    private int sampledPages = 0;
+    private int totalPages = 0;
+
+    /** The number of tuples on the sampled pages, and the sample variance of the tuples per page */
+    private int sampledTuples = 0;
+    private double pageTupleVariance = 0;
+
+    /** The field the B+ tree index of the table is ordered by, -1 if the table is not a B+ tree */
+    private int indexField = -1;
+
+    /** The number of levels of the B+ tree, leaves included */
+    private int indexHeight = 0;
+
+    /** The number of tuples inserted and deleted since the statistics were built */
+    private int modifications = 0;
+
+    /**
+     * The number of pages of the table the statistics account for: when they
+     * started to be built, or when Insert or Delete last updated them
+     */
+    private int pages = -1;
+
+    /**
+     * The last modification time and length of the data file of the table
+     * when the statistics were saved; a data file written since, even if it
+     * kept its number of pages, may hold other tuples
+     */
+    private long dataModified = -1;
+    private long dataLength = -1;
+
+    /** 抽样建的统计信息只以抽样的比例把插入和删除的元组计入直方图 */
+    private transient Random maintenanceRandom;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -95,6 +380,25 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, samplePages);
+    }
+
+    /**
+     * Create a new TableStats object from a random sample of the pages of a
+     * table. If the table has no more pages than samplePages, every page is
+     * read and the statistics are exact.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO. This doesn't differentiate between
+     *            sequential-scan IO and disk seeks.
+     * @param samplePages
+     *            The number of pages to read; 0 to scan the whole table. Only
+     *            heap files are sampled, other files are always scanned
+     * @throws RuntimeException if a page of the table cannot be read
+     */
+    public TableStats(int tableid, int ioCostPerPage, int samplePages) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -107,66 +411,328 @@ public class TableStats {
         this.ioCostPerpage = ioCostPerPage;
         this.tupleNum = 0;
 
-        // 1. generate histograms
+        // 1. generate column statistics
         tupleDesc = Database.getCatalog().getTupleDesc(tableid);
-        this.intHistograms = new IntHistogram[tupleDesc.numFields()];
-        this.stringHistograms = new StringHistogram[tupleDesc.numFields()];
-        this.tupleIterator =  this.trackedFile.iterator(new TransactionId());
+        this.pages = numPages(this.trackedFile);
+        this.columnStats = new ColumnStats[tupleDesc.numFields()];
+        for (int i = 0; i < tupleDesc.numFields(); i++)
+            this.columnStats[i] = new ColumnStats(tupleDesc.getFieldType(i));
+        TransactionId tid = new TransactionId();
+        try {
+            if (this.trackedFile instanceof HeapFile)
+                sampleTable(tid, (HeapFile) this.trackedFile, samplePages);
+            else
+                scanTable(tid);
+        } catch (DbException | TransactionAbortedException e) {
+            // 只读了一部分的表算出来的统计信息是错的，不能用也不能保存
+            Database.getBufferPool().transactionComplete(tid);
+            throw new RuntimeException("could not read table " + tableid + " to build its statistics", e);
+        }
+        for (ColumnStats c : this.columnStats)
+            c.finish(this.tupleNum);
+
+        // 2. B+ tree 的层数：沿最左边的孩子从根走到叶子
+        if (this.trackedFile instanceof BTreeFile) {
+            this.indexField = ((BTreeFile) this.trackedFile).keyField();
+            this.indexHeight = 1;
+            try {
+                BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                        BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+                Database.getBufferPool().unsafeReleasePage(tid, rootPtr.getId());
+                BTreePageId pid = rootPtr.getRootId();
+                while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+                    BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+                            pid, Permissions.READ_ONLY);
+                    Database.getBufferPool().unsafeReleasePage(tid, pid);
+                    pid = page.iterator().next().getLeftChild();
+                    this.indexHeight++;
+                }
+            } catch (DbException e) {
+                e.printStackTrace();
+            } catch (TransactionAbortedException e) {
+                e.printStackTrace();
+            }
+        }
+        // 放掉读表时加的锁，后台重新统计时不会一直挡住写事务
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Read every tuple of the table once, adding its fields to the column
+     * statistics.
+     */
+    private void scanTable(TransactionId tid) throws DbException, TransactionAbortedException {
+        this.tupleIterator =  this.trackedFile.iterator(tid);
+        this.tupleIterator.open();
+        while (tupleIterator.hasNext()){
+            addToColumns(tupleIterator.next());
+            this.tupleNum++;
+        }
+    }
 
-        // 1.1 find min max of each field
-        int[] min = new int[this.tupleDesc.numFields()];
-        int[] max = new int[this.tupleDesc.numFields()];
-        Arrays.fill(min,Integer.MAX_VALUE);
-        Arrays.fill(max,Integer.MIN_VALUE);
+    /** The column statistics and tuple counts of the pages one thread read */
+    private static final class PageRange {
+        final ColumnStats[] columns;
+        int tuples = 0;
+        /** The tuples on the last page of the file, and the sum and sum of squares of those on the others */
+        int lastPageTuples = 0;
+        double sum = 0, sumOfSquares = 0;
+
+        PageRange(TupleDesc td) {
+            columns = new ColumnStats[td.numFields()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = new ColumnStats(td.getFieldType(i));
+        }
 
-        try {
-            this.tupleIterator.open();
-            while (tupleIterator.hasNext()){
-                Tuple next = tupleIterator.next();
-                for (int i = 0; i < this.tupleDesc.numFields(); i++) {
-                    if(tupleDesc.getFieldType(i).equals(Type.STRING_TYPE)) continue;
-                    IntField field = (IntField) next.getField(i);
-
-                    min[i] = Math.min(min[i],field.getValue());
-                    max[i] = Math.max(max[i],field.getValue());
+        void merge(PageRange other) {
+            for (int i = 0; i < columns.length; i++)
+                columns[i].merge(other.columns[i]);
+            tuples += other.tuples;
+            lastPageTuples += other.lastPageTuples;
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+        }
+    }
+
+    /**
+     * Read every page of a heap file, or a random sample of samplePages pages
+     * if it has more, and build the column statistics from their tuples. The
+     * last page, the one a heap file is filled up to, is always read; the
+     * others are a uniform sample of the rest, chosen by reservoir sampling
+     * over their page numbers. The number of tuples of the table is estimated
+     * from the tuples on the last page and the average number of tuples on
+     * the other pages read.
+     * <p>
+     * The pages are split into up to {@link #getStatsThreads} ranges of at
+     * least MIN_WORKER_PAGES pages, each read by a thread of its own into
+     * column statistics of its own, which are merged once every range is
+     * read. If any range cannot be read, its error is thrown once every
+     * thread is done.
+     */
+    private void sampleTable(TransactionId tid, HeapFile file, int samplePages)
+            throws DbException, TransactionAbortedException {
+        int n = file.numPages();
+        int k = samplePages > 0 ? Math.min(n, samplePages) : n;
+        final int[] pages = new int[k];
+        if (k == n) {
+            for (int i = 0; i < n; i++)
+                pages[i] = i;
+        } else {
+            // 蓄水池抽样：前 k-1 页先放进蓄水池，之后第 i 页以 (k-1)/(i+1) 的概率换掉其中一页
+            Random random = new Random(file.getId());
+            for (int i = 0; i < n - 1; i++) {
+                if (i < k - 1) {
+                    pages[i] = i;
+                } else {
+                    int j = random.nextInt(i + 1);
+                    if (j < k - 1)
+                        pages[j] = i;
                 }
-                this.tupleNum++;
             }
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
+            if (k > 0)
+                pages[k - 1] = n - 1;
+            Arrays.sort(pages); // 按文件里的顺序读
+        }
+
+        // 每个线程读一段连续的页，第一段在当前线程里读
+        int threads = Math.max(1, Math.min(statsThreads, k / MIN_WORKER_PAGES));
+        List<Future<PageRange>> ranges = new ArrayList<>();
+        for (int w = 1; w < threads; w++) {
+            int from = (int) ((long) k * w / threads), to = (int) ((long) k * (w + 1) / threads);
+            ranges.add(workers.submit(() -> readPages(tid, file, pages, from, to, n)));
+        }
+        PageRange read = null;
+        Exception error = null;
+        try {
+            read = readPages(tid, file, pages, 0, k / threads, n);
+        } catch (DbException | TransactionAbortedException e) {
+            error = e;
         }
+        // 等所有线程读完再返回，之后才能放掉它们持有的锁
+        for (Future<PageRange> range : ranges) {
+            try {
+                PageRange r = range.get();
+                if (error == null)
+                    read.merge(r);
+            } catch (ExecutionException e) {
+                if (error == null)
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (error == null)
+                    error = new DbException("interrupted while reading the pages of table " + file.getId());
+            }
+        }
+        if (error instanceof DbException)
+            throw (DbException) error;
+        if (error instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) error;
+        if (error != null)
+            throw new RuntimeException(error);
+
+        this.columnStats = read.columns;
+        this.sampledPages = k;
+        this.totalPages = n;
+        this.sampledTuples = read.tuples;
+        if (k > 1) {
+            double mean = read.sum / (k - 1);
+            this.pageTupleVariance = k > 2 ? (read.sumOfSquares - (k - 1) * mean * mean) / (k - 2) : 0;
+            this.tupleNum = (int) Math.round(read.lastPageTuples + mean * (n - 1));
+        } else {
+            this.tupleNum = read.lastPageTuples * n;
+        }
+    }
 
-        // 1.2 construct histograms
-        for (int i = 0; i < tupleDesc.numFields(); ++i) {
-            if (tupleDesc.getFieldType(i) == Type.INT_TYPE) {
-                this.intHistograms[i] = new IntHistogram(NUM_HIST_BINS, min[i], max[i]);
+    /**
+     * Read pages[from] to pages[to - 1] of a heap file of n pages. Each page
+     * is locked through the buffer pool; one that is cached there is read
+     * tuple by tuple, the others straight from the bytes of the file.
+     */
+    private PageRange readPages(TransactionId tid, HeapFile file, int[] pages, int from, int to, int n)
+            throws DbException, TransactionAbortedException {
+        PageRange range = new PageRange(this.tupleDesc);
+        byte[] data = new byte[BufferPool.getPageSize()];
+        for (int p = from; p < to; p++) {
+            PageId pid = new HeapPageId(file.getId(), pages[p]);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPageIfCached(tid, pid);
+            int count = 0;
+            if (page != null) {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    for (int i = 0; i < range.columns.length; i++)
+                        range.columns[i].add(t.getField(i));
+                    count++;
+                }
+            } else {
+                // 页不在缓冲池里，持有读锁时文件里的字节就是最新的
+                try {
+                    file.readPageData(pages[p], data);
+                } catch (IOException e) {
+                    throw new DbException("could not read page " + pages[p] + " of table " + file.getId() + ": " + e);
+                }
+                count = addPageData(range, data);
+            }
+            Database.getBufferPool().unsafeReleasePage(tid, pid);
+            range.tuples += count;
+            if (pages[p] == n - 1) {
+                range.lastPageTuples = count;
             } else {
-                this.stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+                range.sum += count;
+                range.sumOfSquares += (double) count * count;
             }
         }
+        return range;
+    }
+
+    /**
+     * Add the tuples of a heap page to the column statistics, decoding the
+     * fields from the bytes of the page in the layout HeapPage writes,
+     * without making Tuple or Field objects of them.
+     *
+     * @return the number of tuples on the page
+     */
+    private int addPageData(PageRange range, byte[] data) {
+        int slots = HeapPage.numSlots(this.tupleDesc);
+        int header = HeapPage.headerSize(slots);
+        int tupleSize = this.tupleDesc.getSize();
+        int fields = range.columns.length;
+        boolean[] isInt = new boolean[fields];
+        int[] offsets = new int[fields];
+        for (int i = 0, off = 0; i < fields; i++) {
+            isInt[i] = this.tupleDesc.getFieldType(i) == Type.INT_TYPE;
+            offsets[i] = off;
+            off += this.tupleDesc.getFieldType(i).getLen();
+        }
+        int count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (data[slot >> 3] == 0 && (slot & 7) == 0) {
+                slot += 7; // 一整个头字节都是空槽
+                continue;
+            }
+            if ((data[slot >> 3] & (1 << (slot & 7))) == 0)
+                continue;
+            int base = header + slot * tupleSize;
+            for (int i = 0; i < fields; i++) {
+                int off = base + offsets[i];
+                int v = readInt(data, off);
+                if (isInt[i])
+                    range.columns[i].addInt(v);
+                else // 字符串：长度后面跟着字节，和 Type.STRING_TYPE.parse 一样
+                    range.columns[i].addString(new String(data, off + 4, v));
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /** The big-endian int at data[off], as DataInputStream reads it */
+    private static int readInt(byte[] data, int off) {
+        return (data[off] << 24) | (data[off + 1] & 0xff) << 16 | (data[off + 2] & 0xff) << 8 | (data[off + 3] & 0xff);
+    }
+
+    private void addToColumns(Tuple t) {
+        for (int i = 0; i < this.columnStats.length; i++)
+            this.columnStats[i].add(t.getField(i));
+    }
+
+    /**
+     * Count a tuple inserted into or deleted from the table: the number of
+     * tuples changes by one, and the column statistics by the tuple too,
+     * though only in the proportion of the tuples they were built from if
+     * the table was sampled.
+     * 
+     * @return true if the table has changed enough since the statistics were
+     *         built that they should be rebuilt
+     */
+    synchronized boolean update(Tuple t, boolean insert) {
+        this.tupleNum = Math.max(0, this.tupleNum + (insert ? 1 : -1));
+        double rate = this.sampledPages < this.totalPages && this.tupleNum > 0
+                ? (double) this.sampledTuples / this.tupleNum : 1;
+        if (this.maintenanceRandom == null)
+            this.maintenanceRandom = new Random();
+        boolean counted = rate >= 1 || this.maintenanceRandom.nextDouble() < rate;
+        for (int i = 0; i < this.columnStats.length; i++) {
+            if (insert)
+                this.columnStats[i].recordInsert(t.getField(i), counted);
+            else if (counted)
+                this.columnStats[i].recordDelete(t.getField(i));
+        }
+        this.modifications++;
+        this.pages = numPages(this.trackedFile);
+        return this.modifications >= Math.max(refreshModifications, refreshFraction * this.tupleNum);
+    }
 
-        // 1.3 build histograms
+    /**
+     * Save the statistics in the file next to the data file of the table,
+     * replacing the statistics saved there before. Statistics of tables not
+     * stored in a file of their own are not saved.
+     */
+    public synchronized void save() {
+        File f = statsFile(this.trackedFile);
+        if (f == null)
+            return;
+        // 先写到临时文件再换过去，中途出错不会留下写了一半的统计信息
+        File tmp = new File(f.getPath() + ".tmp");
+        File data = dataFile(this.trackedFile);
+        this.dataModified = data.lastModified();
+        this.dataLength = data.length();
         try {
-            this.tupleIterator.rewind();
-            while (this.tupleIterator.hasNext()){
-                Tuple next = this.tupleIterator.next();
-                for (int i = 0; i < this.tupleDesc.numFields() ;i++){
-                    if(tupleDesc.getFieldType(i).equals(Type.INT_TYPE)){
-                        this.intHistograms[i].addValue(((IntField)next.getField(i)).getValue());
-                    }else{
-                        this.stringHistograms[i].addValue(((StringField)next.getField(i)).getValue());
-                    }
-                }
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeObject(this);
             }
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-
+    /**
+     * @return the number of tuples inserted into and deleted from the table
+     *         since the statistics were built
+     */
+    public synchronized int getModifications() {
+        return this.modifications;
     }
 
     /**
@@ -188,6 +754,35 @@ public class TableStats {
         return pageNum * this.ioCostPerpage;
     }
 
+    /**
+     * Returns the field the table is indexed on, if it is stored in a B+ tree.
+     * 
+     * @return the index of the key field of the B+ tree, or -1 if the table
+     *         has no index
+     */
+    public int getIndexField() {
+        return this.indexField;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy predicates with
+     * selectivity selectivityFactor on the indexed field through the B+ tree
+     * index, at the same cost per page as {@link #estimateScanCost}: the
+     * internal pages on the path from the root down to the first matching
+     * leaf, then the leaves holding the matching tuples, at least one.
+     * 
+     * @param selectivityFactor
+     *            The selectivity of the predicates on the indexed field
+     * @return The estimated cost of the index scan, or of a sequential scan if
+     *         the table has no index
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        if (this.indexField < 0)
+            return estimateScanCost();
+        double leafPages = Math.max(1, Math.ceil(selectivityFactor * estimateScanCost() / this.ioCostPerpage));
+        return (this.indexHeight - 1 + leafPages) * this.ioCostPerpage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -202,6 +797,40 @@ public class TableStats {
         return (int) (this.tupleNum * 1.0 * selectivityFactor);
     }
 
+    /**
+     * Bounds the error of {@link #estimateTableCardinality} due to sampling.
+     * The estimate is the estimated number of tuples N times the selectivity
+     * s; its error is approximated as N times the standard error of s, taken
+     * as the proportion of s among the sampled tuples, plus s times the
+     * standard error of N from the variance of the tuples per sampled page
+     * other than the last, both with the finite population correction.
+     * 
+     * @param selectivityFactor
+     *            The selectivity of any predicates over the table
+     * @return The half-width of a 95% confidence interval of the estimated
+     *         cardinality; 0 if every page of the table was read
+     */
+    public double estimateCardinalityError(double selectivityFactor) {
+        if (this.sampledPages == 0 || this.sampledPages >= this.totalPages || this.sampledTuples == 0)
+            return 0;
+        double fpc = 1 - (double) this.sampledPages / this.totalPages;
+        // 最后一页总是读的，只有其余的页是抽样
+        int others = Math.max(1, this.sampledPages - 1);
+        double tuplesError = (this.totalPages - 1) * Math.sqrt(
+                (1 - (double) (this.sampledPages - 1) / (this.totalPages - 1)) * this.pageTupleVariance / others);
+        double s = Math.min(1, Math.max(0, selectivityFactor));
+        double selectivityError = Math.sqrt(fpc * s * (1 - s) / this.sampledTuples);
+        return 1.96 * (this.tupleNum * selectivityError + s * tuplesError);
+    }
+
+    /**
+     * @return the number of pages read to build the statistics, which is all
+     *         of the pages of the table unless it was sampled
+     */
+    public int getSampledPages() {
+        return this.sampledPages;
+    }
+
     /**
      * The average selectivity of the field under op.
      * @param field
@@ -214,6 +843,12 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
+        // 不知道值的时候，等值条件平均选中一个不同值的那些元组
+        double distinct = columnStats[field].distinctValues();
+        if (op == Predicate.Op.EQUALS && distinct > 0)
+            return 1.0 / distinct;
+        if (op == Predicate.Op.NOT_EQUALS && distinct > 0)
+            return 1 - 1.0 / distinct;
         return 1.0;
     }
 
@@ -284,11 +919,27 @@ public class TableStats {
 //        }
 
 
-        //60w的方法
-        if(tupleDesc.getFieldType(field).equals(Type.INT_TYPE)){
-            return intHistograms[field].estimateSelectivity(op,((IntField)constant).getValue());
-        }
-        return stringHistograms[field].estimateSelectivity(op,((StringField)constant).getValue());
+        //60w的方法，后来换成了最常见的值加等深直方图
+        return columnStats[field].estimateSelectivity(op, constant);
+    }
+
+    /**
+     * @return the estimated number of distinct values of a field
+     */
+    public double estimateDistinctValues(int field) {
+        return columnStats[field].distinctValues();
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate <tt>field op
+     * otherField</tt> between this table and another, as a fraction of the
+     * pairs of their tuples.
+     * 
+     * @return the estimated selectivity, or -1 if the statistics cannot tell
+     *         (LIKE, or fields of different types)
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op, TableStats other, int otherField) {
+        return columnStats[field].estimateJoinSelectivity(op, other.columnStats[otherField]);
     }
 
     /**
@@ -1,6 +1,5 @@
 package simpledb.storage;
 
-import lombok.val;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
@@ -44,6 +43,12 @@ public class BufferPool {
         Page value;
         pageIdNode pre;
         pageIdNode next;
+        //该页最后一条更新日志结尾的LSN，写回该页之前日志必须刷到这里
+        long pageLSN;
+        //该页写回磁盘之后第一条更新日志的LSN(不晚于这条记录的开头)，页面是干净的时候为0
+        long recLSN;
+        //该页最后一次写日志时的内容，下一条增量日志以它为基准；为空说明还没写过日志
+        byte[] loggedImage;
 
         public pageIdNode(){
             this.pre = null;
@@ -78,6 +83,24 @@ public class BufferPool {
 
     private TransactionLockManager transactionLockManager = null;
 
+    private final VersionStore versionStore;
+
+    //提交时是否把页面写回磁盘(FORCE)；不写回时由后台的页面清理线程来写
+    private volatile boolean forcePagesAtCommit = true;
+
+    //驱逐时能否把没提交的事务弄脏的页面写回磁盘(STEAL)
+    private volatile boolean stealPages = false;
+
+    static final long CLEANER_INTERVAL_MILLIS = 100;
+
+    //STEAL时页面清理线程每次检查lru链表尾部的多少分之一
+    static final int COLD_FRACTION = 4;
+
+    private Thread pageCleaner = null; // protected by this
+
+    private long numEvictions = 0; // protected by this
+    private long numEvictionWrites = 0; // protected by this
+
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -98,6 +121,7 @@ public class BufferPool {
         this.pageIdToPageIdNode = new ConcurrentHashMap<>();
         this.transactionIdToPageIdSet = new ConcurrentHashMap<>();
         this.transactionLockManager = new TransactionLockManager();
+        this.versionStore = new VersionStore();
         this.lock = new ReentrantLock();
     }
 
@@ -154,14 +178,98 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        if(versionStore.isSnapshot(tid)){
+            /**
+             * 快照读：不加锁，读取快照时间点之前已提交的版本
+             */
+            if(perm == Permissions.READ_WRITE){
+                throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+            }
+            VersionStore.PageImage image;
+            synchronized (versionStore){
+                image = versionStore.readVersion(tid, fetchPage(pid));
+            }
+            //在锁外解析页面，不阻塞写事务
+            return image.getPage();
+        }
         this.transactionLockManager.lock(tid, pid, perm);
-        if(!transactionIdToPageIdSet.containsKey(tid)){
-            transactionIdToPageIdSet.put(tid,new HashSet<PageId>());
+        return lockedPage(tid, pid, perm);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but never
+     * blocks: returns null if the lock cannot be granted right away.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if(versionStore.isSnapshot(tid)){
+            return getPage(tid, pid, perm);
         }
-        Set<PageId> pids = transactionIdToPageIdSet.get(tid);
-        pids.add(pid);
-        transactionIdToPageIdSet.put(tid,pids);
+        if(!this.transactionLockManager.tryLock(tid, pid, perm)){
+            return null;
+        }
+        return lockedPage(tid, pid, perm);
+    }
 
+    /**
+     * Retrieve a page for a reader that protects it with a latch of its own
+     * (B+ tree internal pages) instead of a page lock. No lock is taken, so
+     * nothing is held once the latch is released. Returns null if another
+     * transaction holds the write lock on the page: it may have changed the
+     * page without committing yet, so the caller has to wait for it with
+     * getPage.
+     */
+    public Page getPageLatched(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if(versionStore.isSnapshot(tid)){
+            return getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        if(this.transactionLockManager.isExclusiveLockedByOther(tid, pid)){
+            return null;
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * Lock a page for reading like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but only return it if it is in the buffer pool, without reading it in
+     * otherwise. Returns null if the page is not cached: the caller may then
+     * read its bytes from the file itself while it holds the lock (see
+     * HeapFile#readPageData), without parsing the page or evicting another.
+     * The lock is released by unsafeReleasePage either way.
+     */
+    public Page getPageIfCached(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if(versionStore.isSnapshot(tid)){
+            return getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        this.transactionLockManager.lock(tid, pid, Permissions.READ_ONLY);
+        transactionIdToPageIdSet.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        synchronized (this){
+            pageIdNode node = pageIdToPageIdNode.get(pid);
+            return node == null ? null : node.value;
+        }
+    }
+
+    /** Records that tid locked pid and returns the cached page */
+    private Page lockedPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        transactionIdToPageIdSet.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+
+        Page page = fetchPage(pid);
+        if(perm == Permissions.READ_WRITE){
+            //修改之前先保存已提交的镜像，供快照读使用
+            versionStore.captureBeforeImage(tid, page);
+        }
+        return page;
+    }
+
+    /**
+     * Returns the cached copy of a page, reading it from disk (and evicting
+     * another page if the pool is full) when it is not cached yet. Does not
+     * take any page lock; synchronized because concurrent readers share the
+     * lru list.
+     */
+    private synchronized Page fetchPage(PageId pid) throws DbException {
         /**
          * 如果线程池中有该page
          */
@@ -191,7 +299,6 @@ public class BufferPool {
         try{
             //添加新页面，直接add
             addToStart(newNode);
-            this.realNumPage++;
         }catch (Exception e){
             System.out.println(e);
         }finally {
@@ -200,6 +307,24 @@ public class BufferPool {
         return newPage;
     }
 
+    /**
+     * Starts a read-only transaction that reads a consistent snapshot of the
+     * database: it sees every change committed before this call, never sees
+     * later changes and does not take any page locks. Pages must be requested
+     * with READ_ONLY permissions. The snapshot ends when
+     * {@link #transactionComplete(TransactionId, boolean)} is called for tid.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versionStore.beginSnapshot(tid);
+    }
+
+    /** Return the version store that serves snapshot reads */
+    public VersionStore getVersionStore() {
+        return versionStore;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -214,6 +339,15 @@ public class BufferPool {
         // not necessary for lab1|lab2
 
         this.transactionLockManager.unlock(tid, pid);
+        //没有被tid改过的页不再属于tid：提交时不能把之后别的事务写进去的修改刷下去
+        Set<PageId> pids = transactionIdToPageIdSet.get(tid);
+        if(pids == null) return;
+        synchronized (this){
+            pageIdNode node = pageIdToPageIdNode.get(pid);
+            if(node == null || node.value == null || !tid.equals(node.value.isDirty())){
+                pids.remove(pid);
+            }
+        }
     }
 
     /**
@@ -244,28 +378,57 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        if(versionStore.isSnapshot(tid)){
+            //快照事务没有加锁，也没有写过页面
+            versionStore.endSnapshot(tid);
+            return;
+        }
         Set<PageId> pids = null;
         try {
             pids = this.transactionIdToPageIdSet.get(tid);
             if(commit){
+                /**
+                 * 在释放锁之前发布新版本，快照读从此看到旧镜像
+                 */
+                versionStore.commit(tid);
                 /**
                  * 对tid涉及的页进行flushPage操作
-                 *
+                 * 先写日志，在缓冲池的锁之外等待日志落盘(和其他提交的事务一起刷盘)，再写页面
                  */
-                flushPages(tid,true);
+                if(pids != null && forcePagesAtCommit){
+                    long lsn = logDirtyPages(pids);
+                    Database.getLogFile().forceUpTo(lsn);
+                    writeLoggedPages(pids,true);
+                }else if(pids != null){
+                    //NO-FORCE：只写日志，提交记录落盘时这些更新记录也已经落盘，页面以后再写
+                    logDirtyPages(pids);
+                    markCommitted(pids, tid);
+                }
             }else{
                 /**
                  * 对页码进行回滚操作
+                 * 持有versionStore的锁，快照读不会读到还原之前的页面
                  */
-                for(PageId pid : pids){
-                    if(pageIdToPageIdNode.get(pid) != null && tid.equals(pageIdToPageIdNode.get(pid).value.isDirty())){
-                        //说明是该事务造成了该页成为脏页
-                        Page restorePage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                        //this.pageIdToPageIdNode.put(pid, new pageIdNode(pid, restorePage)); /// ============>断链了，应该修改对应pageIdNode里面的内容
-                        pageIdNode needModifyNode = this.pageIdToPageIdNode.get(pid);
-                        needModifyNode.key = pid;
-                        needModifyNode.value = restorePage;
+                synchronized (versionStore){
+                    if(pids != null){
+                        for(PageId pid : pids){
+                            if(pageIdToPageIdNode.get(pid) != null && tid.equals(pageIdToPageIdNode.get(pid).value.isDirty())){
+                                //说明是该事务造成了该页成为脏页
+                                //磁盘上的页面可能还没有之前已提交的修改(NO-FORCE)，这时从前镜像还原
+                                boolean unwritten = this.pageIdToPageIdNode.get(pid).recLSN != 0;
+                                Page restorePage = unwritten ? this.pageIdToPageIdNode.get(pid).value.getBeforeImage()
+                                        : Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                                //this.pageIdToPageIdNode.put(pid, new pageIdNode(pid, restorePage)); /// ============>断链了，应该修改对应pageIdNode里面的内容
+                                pageIdNode needModifyNode = this.pageIdToPageIdNode.get(pid);
+                                needModifyNode.key = pid;
+                                needModifyNode.value = restorePage;
+                                needModifyNode.loggedImage = null;
+                                //从磁盘读回来的页面是干净的；从前镜像还原的页面仍然要写回
+                                if(!unwritten) needModifyNode.recLSN = 0;
+                            }
+                        }
                     }
+                    versionStore.abort(tid);
                 }
             }
         } catch (IOException e) {
@@ -344,9 +507,9 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pageId : this.pageIdToPageIdNode.keySet()){
-            flushPage(pageId);
-        }
+        Set<PageId> pids = this.pageIdToPageIdNode.keySet();
+        logDirtyPages(pids);
+        writeLoggedPages(pids,false);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -377,26 +540,269 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid,boolean needSetBeforeImage) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = this.pageIdToPageIdNode.get(pid).value;
-        // append an update record to the log, with
-        // a before-image and after-image.
-        if(page == null) return;
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
-            //如果该页不为空并且该页是脏的
-            //应当调用对应文件的write方法来写进去新的page
-            DbFile heapFile =  Database.getCatalog().getDatabaseFile(pid.getTableId());
-            heapFile.writePage(page);
-            page.markDirty(false,null);
-
-            //刷页之后setBeforeImage
-            if(needSetBeforeImage)
+        Set<PageId> pids = Collections.singleton(pid);
+        logDirtyPages(pids);
+        writeLoggedPages(pids,needSetBeforeImage);
+    }
+
+    /**
+     * Appends an update record for every dirty page among pids, and stamps
+     * each page with the LSN of the end of its record. A page that has been
+     * logged since it was read in is logged as a delta against the image
+     * logged last, if its class is delta logged; otherwise the record holds
+     * the before-image and the after-image.
+     * @return the largest of those LSNs, to force before writing the pages
+     */
+    private synchronized long logDirtyPages(Collection<PageId> pids) throws IOException {
+        long lsn = 0;
+        for(PageId pid : pids){
+            pageIdNode node = this.pageIdToPageIdNode.get(pid);
+            if(node == null || node.value == null) continue;
+            Page page = node.value;
+            TransactionId dirtier = page.isDirty();
+            if(dirtier != null){
+                LogFile log = Database.getLogFile();
+                if(node.recLSN == 0){
+                    node.recLSN = log.getEndLSN();
+                }
+                boolean deltas = PageRegistry.logsDeltas(page);
+                byte[] after = deltas ? page.getPageData() : null;
+                if(deltas && node.loggedImage != null && log.isDeltaLogging()){
+                    node.pageLSN = log.logDelta(dirtier, page, node.loggedImage, after);
+                }else{
+                    //第一次写日志时记完整的页面，之后的增量才有确定的基准
+                    node.pageLSN = log.logWrite(dirtier, page.getBeforeImage(), page);
+                }
+                node.loggedImage = after;
+                lsn = Math.max(lsn, node.pageLSN);
+            }
+        }
+        return lsn;
+    }
+
+    /** A page in the dirty page table */
+    static class DirtyPage {
+        final int tag;
+        final long recLSN;
+
+        DirtyPage(int tag, long recLSN) {
+            this.tag = tag;
+            this.recLSN = recLSN;
+        }
+    }
+
+    /**
+     * Returns the dirty page table: every cached page that has update
+     * records in the log not yet written to disk, with the recLSN of the
+     * page, no later than the first of those records.
+     */
+    synchronized Map<PageId, DirtyPage> getDirtyPageTable() {
+        Map<PageId, DirtyPage> table = new HashMap<>();
+        for(pageIdNode node : pageIdToPageIdNode.values()){
+            if(node.recLSN != 0 && node.value != null){
+                table.put(node.key, new DirtyPage(PageRegistry.tagOf(node.value), node.recLSN));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Writes the dirty pages among pids to disk. Before writing a page, the
+     * log is forced up to the page's LSN (write-ahead logging); it returns
+     * right away if the caller already forced the log that far.
+     */
+    private synchronized void writeLoggedPages(Collection<PageId> pids,boolean needSetBeforeImage) throws IOException {
+        for(PageId pid : pids){
+            pageIdNode node = this.pageIdToPageIdNode.get(pid);
+            if(node == null || node.value == null) continue;
+            Page page = node.value;
+            if (page.isDirty() != null || node.recLSN != 0){
+                //如果该页不为空并且该页是脏的(或者有已提交但还没写回的修改)
+                //应当调用对应文件的write方法来写进去新的page
+                writeFrame(node);
+                page.markDirty(false,null);
+            }
+            //刷页之后setBeforeImage(之前被flushAllPages刷过的页也要更新)
+            if(needSetBeforeImage && page.isDirty() == null)
                 page.setBeforeImage();
         }
     }
 
+    /**
+     * Writes a cached page to disk, after forcing the log up to the page's
+     * LSN (write-ahead logging).
+     */
+    private synchronized void writeFrame(pageIdNode node) throws IOException {
+        Database.getLogFile().forceUpTo(node.pageLSN);
+        DbFile file =  Database.getCatalog().getDatabaseFile(node.key.getTableId());
+        file.writePage(node.value);
+        node.recLSN = 0;
+    }
+
+    /**
+     * NO-FORCE commit: the updates of tid among pids are in the log, so the
+     * pages stop being dirty for the transaction, and stay in the dirty page
+     * table until the page cleaner or an eviction writes them.
+     */
+    private synchronized void markCommitted(Collection<PageId> pids, TransactionId tid){
+        for(PageId pid : pids){
+            pageIdNode node = this.pageIdToPageIdNode.get(pid);
+            if(node == null || node.value == null) continue;
+            if(tid.equals(node.value.isDirty())){
+                node.value.markDirty(false,null);
+            }
+            if(node.value.isDirty() == null){
+                node.value.setBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * Choose whether a committing transaction writes its pages to disk
+     * (FORCE, the default) or only logs them (NO-FORCE). With NO-FORCE, a
+     * background page cleaner writes committed pages back, so that their
+     * recLSNs move forward and checkpoints can truncate the log.
+     */
+    public synchronized void setForcePagesAtCommit(boolean force){
+        forcePagesAtCommit = force;
+        startPageCleaner();
+    }
+
+    /**
+     * Choose whether eviction may write pages dirtied by running
+     * transactions (STEAL) or only clean and committed pages (NO-STEAL, the
+     * default). With NO-STEAL a transaction cannot dirty more pages than the
+     * pool holds. With STEAL, a dirty page is logged, with its before-image
+     * the first time, before it is written, and the page cleaner writes the
+     * dirty pages at the cold end of the lru list ahead of eviction.
+     */
+    public synchronized void setStealPages(boolean steal){
+        stealPages = steal;
+        startPageCleaner();
+    }
+
+    private synchronized void startPageCleaner(){
+        if((!forcePagesAtCommit || stealPages) && pageCleaner == null){
+            pageCleaner = new Thread(this::runPageCleaner, "page-cleaner");
+            pageCleaner.setDaemon(true);
+            pageCleaner.start();
+        }
+    }
+
+    /** Body of the page cleaner thread */
+    private void runPageCleaner(){
+        while(true){
+            try {
+                synchronized (this){
+                    //驱逐时不得不自己写页面的话会提前叫醒清理线程
+                    wait(CLEANER_INTERVAL_MILLIS);
+                    //换了缓冲池(Database.reset)或者又改回FORCE、NO-STEAL之后退出
+                    if((forcePagesAtCommit && !stealPages) || Database.getBufferPool() != this){
+                        pageCleaner = null;
+                        return;
+                    }
+                }
+                if(!forcePagesAtCommit) cleanPages();
+                if(stealPages) writeColdPages();
+            } catch (InterruptedException e) {
+                synchronized (this){
+                    pageCleaner = null;
+                }
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes back every cached page that has updates in the log but not on
+     * disk and is not dirtied by a running transaction.
+     */
+    public void cleanPages() throws IOException {
+        List<pageIdNode> todo = new ArrayList<>();
+        long lsn = 0;
+        synchronized (this){
+            for(pageIdNode node : pageIdToPageIdNode.values()){
+                if(node.recLSN != 0 && node.value != null && node.value.isDirty() == null){
+                    todo.add(node);
+                    lsn = Math.max(lsn, node.pageLSN);
+                }
+            }
+        }
+        //在缓冲池的锁之外等日志落盘，再一页一页地写
+        Database.getLogFile().forceUpTo(lsn);
+        for(pageIdNode node : todo){
+            synchronized (this){
+                if(pageIdToPageIdNode.get(node.key) == node && node.recLSN != 0 && node.value.isDirty() == null){
+                    writeFrame(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes back the pages at the cold end of the lru list that are dirty
+     * or have updates not yet on disk, so that eviction finds clean pages
+     * there and does not wait on I/O. Pages dirtied by running transactions
+     * are logged first and are clean afterwards, as after flushPages().
+     * A page that changed after it was logged here has been used again and
+     * is left for the next round.
+     */
+    public void writeColdPages() throws IOException {
+        List<pageIdNode> todo = new ArrayList<>();
+        List<PageId> pids = new ArrayList<>();
+        List<byte[]> images = new ArrayList<>();
+        long lsn;
+        synchronized (this){
+            int window = Math.max(1, realNumPage / COLD_FRACTION);
+            pageIdNode node = end.pre;
+            for(int i = 0; i < window && node != start; i++, node = node.pre){
+                if(node.value != null && (node.value.isDirty() != null || node.recLSN != 0)){
+                    todo.add(node);
+                    pids.add(node.key);
+                }
+            }
+            if(todo.isEmpty()) return;
+            lsn = logDirtyPages(pids);
+            for(pageIdNode n : todo){
+                images.add(n.value.getPageData());
+                lsn = Math.max(lsn, n.pageLSN);
+            }
+        }
+        //在缓冲池的锁之外等日志落盘，再一页一页地写
+        Database.getLogFile().forceUpTo(lsn);
+        for(int i = 0; i < todo.size(); i++){
+            pageIdNode node = todo.get(i);
+            synchronized (this){
+                if(pageIdToPageIdNode.get(node.key) != node) continue;
+                //写日志之后又被改过的页面这次不写，否则磁盘上会有没写日志的修改
+                if(!Arrays.equals(images.get(i), node.value.getPageData())) continue;
+                writeFrame(node);
+                node.value.markDirty(false,null);
+            }
+        }
+    }
+
+    /** Return the number of pages evicted */
+    public synchronized long getNumEvictions(){
+        return numEvictions;
+    }
+
+    /** Return the number of evictions that had to write the page first */
+    public synchronized long getNumEvictionWrites(){
+        return numEvictionWrites;
+    }
+
+    /**
+     * Returns a copy of the image a cached page had when it was last
+     * logged, or null if it has not been logged since it was read in.
+     */
+    synchronized byte[] getLoggedImage(PageId pid){
+        pageIdNode node = pageIdToPageIdNode.get(pid);
+        return node == null || node.loggedImage == null ? null : node.loggedImage.clone();
+    }
+
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         flushPages(tid,false);
     }
@@ -412,9 +818,8 @@ public class BufferPool {
             //说明该事务在缓冲池中没有放页码
             return;
         }
-        for(PageId pageId : pageIds){
-            flushPage(pageId,needSetBeforeImage);
-        }
+        logDirtyPages(pageIds);
+        writeLoggedPages(pageIds,needSetBeforeImage);
     }
 
     /**
@@ -426,16 +831,29 @@ public class BufferPool {
         // not necessary for lab1
         //移除掉最后一页
         /**
-         * 不驱逐脏页===》 如果全是脏页，则抛出异常
+         * NO-STEAL时不驱逐脏页===》 如果全是脏页，则抛出异常
          */
         pageIdNode pageIdNode = end;
         while(pageIdNode.pre != start){
             pageIdNode = pageIdNode.pre;
             Page page = pageIdNode.value;
-            if(page.isDirty() != null) continue;
-            //否则说明是干净页，可以驱逐出去
+            if(page.isDirty() != null && !stealPages) continue;
+            //否则可以驱逐出去；脏页先写日志(第一次带前镜像)，已提交但还没写回的修改先写回
+            try {
+                if(page.isDirty() != null){
+                    logDirtyPages(Collections.singleton(pageIdNode.key));
+                }
+                if(page.isDirty() != null || pageIdNode.recLSN != 0){
+                    writeFrame(pageIdNode);
+                    numEvictionWrites++;
+                    //冷端的页面没有提前写好，叫醒页面清理线程
+                    if(pageCleaner != null) notifyAll();
+                }
+            } catch (IOException e) {
+                throw new DbException("could not write page " + page.getId() + ": " + e.getMessage());
+            }
             this.discardPage(page.getId());
-            this.realNumPage--;
+            numEvictions++;
             return;
         }
         throw new DbException("all page is dirty, so evictPage fail");
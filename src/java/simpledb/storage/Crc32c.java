@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-32C (Castagnoli) checksum of the log records, the same as
+ * java.util.zip.CRC32C, which is not there before Java 9. It reads eight
+ * bytes at a time with eight lookup tables ("slicing by 8").
+ * {@link #create} returns java.util.zip.CRC32C instead where there is one,
+ * since the JIT compiles it to the CRC instructions of the processor.
+ */
+public class Crc32c implements Checksum {
+
+    /** The constructor of java.util.zip.CRC32C, null before Java 9 */
+    private static final MethodHandle JDK_CRC32C = jdkConstructor();
+
+    private static MethodHandle jdkConstructor() {
+        try {
+            Class<?> c = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup().findConstructor(c, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /** Return a new CRC-32C checksum: java.util.zip.CRC32C if there is one, otherwise a Crc32c */
+    public static Checksum create() {
+        if (JDK_CRC32C != null) {
+            try {
+                return (Checksum) JDK_CRC32C.invoke();
+            } catch (Throwable e) {
+                // 用下面自己的实现
+            }
+        }
+        return new Crc32c();
+    }
+
+    /** The reflected Castagnoli polynomial */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    /** TABLES[k][b] is the CRC of byte b followed by k zero bytes */
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int i = 0; i < 8; i++)
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            TABLES[0][b] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int b = 0; b < 256; b++)
+                TABLES[k][b] = (TABLES[k - 1][b] >>> 8) ^ TABLES[0][TABLES[k - 1][b] & 0xff];
+        }
+    }
+
+    // 按惯例初值和结果都取反
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        int end = off + len;
+        for (; off + 8 <= end; off += 8) {
+            c ^= (b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+            c = t7[c & 0xff] ^ t6[(c >>> 8) & 0xff] ^ t5[(c >>> 16) & 0xff] ^ t4[c >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+                    ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+        }
+        for (; off < end; off++)
+            c = (c >>> 8) ^ t0[(c ^ b[off]) & 0xff];
+        crc = c;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
@@ -159,7 +159,8 @@ public class HeapFile implements DbFile {
     public int getId() {
         // some code goes here
         //throw new UnsupportedOperationException("implement this");
-        return this.f.hashCode() + this.td.hashCode();
+        //用绝对路径，这样重启之后(日志恢复时)表的id不变
+        return this.f.getAbsoluteFile().hashCode() + this.td.hashCode();
     }
 
     /**
@@ -174,7 +175,8 @@ public class HeapFile implements DbFile {
     }
 
     // see DbFile.java for javadocs
-    public Page readPage(PageId pid) {
+    // 所有页面共用一个文件指针，读写要互斥(恢复时有多个线程同时重做)
+    public synchronized Page readPage(PageId pid) {
         // some code goes here
         /**
          * 这个地方应当将f字节流存储起来，如果过大 应当分页存取，再返回对应字符页面
@@ -205,8 +207,18 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * Read the bytes of a page of the file into data, without parsing them
+     * into a HeapPage. They are only up to date if the page is not in the
+     * buffer pool, and stay so while the caller holds a lock on it.
+     */
+    public synchronized void readPageData(int pageNo, byte[] data) throws IOException {
+        randomAccessFile.seek((long) pageNo * BufferPool.getPageSize());
+        randomAccessFile.readFully(data, 0, BufferPool.getPageSize());
+    }
+
     // see DbFile.java for javadocs
-    public void writePage(Page page) throws IOException {
+    public synchronized void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         //定位指针
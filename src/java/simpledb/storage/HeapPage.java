@@ -94,10 +94,20 @@ public class HeapPage implements Page {
     private int getNumTuples() {        
         // some code goes here
         // td.getSize() 没有× 8 导致我停留了好久
-        return (BufferPool.getPageSize() * 8) / (this.td.getSize() * 8 + 1);
+        return numSlots(this.td);
 
     }
 
+    /** The number of tuple slots on a heap page of tuples of td */
+    public static int numSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /** The number of header bytes before the tuples of a heap page with numSlots slots */
+    public static int headerSize(int numSlots) {
+        return (numSlots + 7) / 8;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
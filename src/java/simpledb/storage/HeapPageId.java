@@ -51,8 +51,8 @@ public class HeapPageId implements PageId {
      */
     public int hashCode() {
         // some code goes here
-        //随便编的
-        return ((this.getPageNumber() << 10 + this.getTableId()) % 1024) * this.getPageNumber();
+        // 原来随便编的哈希对大多数页面都是0，HashMap里全挤在一个桶里
+        return 31 * this.getTableId() + this.getPageNumber();
         //throw new UnsupportedOperationException("implement this");
     }
 
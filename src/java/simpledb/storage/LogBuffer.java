@@ -0,0 +1,226 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogBuffer is the in-memory tail of the log: a ring of bytes in a direct
+ * ByteBuffer that log records are appended to before they reach the log
+ * file (see {@link LogSegments}).
+ * <p>
+ * Every byte of the log has a log sequence number (LSN) that only grows,
+ * even when the file is truncated. Appending a record first reserves the
+ * next range of LSNs (a short critical section), then copies the record into
+ * the ring without holding any lock, so many threads can append at once.
+ * Writing out copies the contiguous filled prefix of the ring to the file
+ * with one positional write, instead of one small write per field.
+ * <p>
+ * Three LSNs describe the state of the buffer:
+ * <pre>
+ *   writtenLSN  &lt;=  filledLSN  &lt;=  reservedLSN
+ *   (in file)       (copied in)      (handed out)
+ * </pre>
+ * Bytes between writtenLSN and reservedLSN occupy the ring, so appenders
+ * wait (after writing out themselves) when it is full.
+ *
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * Completes a serialized record once its LSN is known, e.g. stores the
+     * LSN in it and checksums it. Called before the record is copied in.
+     */
+    interface Sealer {
+        void seal(byte[] rec, long lsn);
+    }
+
+    private final Sealer sealer;
+
+    private ByteBuffer buf; // protected by this
+    private int capacity; // protected by this
+
+    private final LogSegments segments;
+
+    private long reservedLSN; // protected by this
+    private long filledLSN; // protected by this
+    private long writtenLSN; // protected by this
+    // ranges copied in out of order: start LSN -> end LSN, protected by this
+    private final TreeMap<Long, Long> filledRanges = new TreeMap<>();
+
+    private final ReentrantLock writer = new ReentrantLock();
+
+    private long numWrites = 0; // protected by writer
+
+    /**
+     * @param segments the log files
+     * @param lsn the LSN of the next record
+     * @param capacity the size of the ring in bytes
+     * @param sealer completes every record appended
+     */
+    LogBuffer(LogSegments segments, long lsn, int capacity, Sealer sealer) {
+        this.sealer = sealer;
+        this.segments = segments;
+        this.reservedLSN = this.filledLSN = this.writtenLSN = lsn;
+        this.capacity = capacity;
+        this.buf = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Appends a record. The record is sealed once its LSN is known.
+     *
+     * @param rec the serialized record
+     * @return the LSN of the first byte of the record
+     */
+    long append(byte[] rec) throws IOException {
+        int len = rec.length;
+        long start;
+        ByteBuffer ring;
+        int cap;
+        while (true) {
+            long target;
+            synchronized (this) {
+                if (reservedLSN + len - writtenLSN <= capacity) {
+                    start = reservedLSN;
+                    reservedLSN += len;
+                    ring = buf;
+                    cap = capacity;
+                    break;
+                }
+                if (len > capacity && reservedLSN == writtenLSN) {
+                    // 记录比整个缓冲区还大，缓冲区为空时扩容
+                    capacity = Math.max(2 * capacity, len);
+                    buf = ByteBuffer.allocateDirect(capacity);
+                    continue;
+                }
+                target = reservedLSN;
+            }
+            // 缓冲区满了，把已经填好的部分写到文件里腾出空间
+            writeOut(target);
+        }
+
+        sealer.seal(rec, start);
+        int pos = (int) (start % cap);
+        int first = Math.min(len, cap - pos);
+        ByteBuffer dst = ring.duplicate();
+        dst.position(pos);
+        dst.put(rec, 0, first);
+        if (first < len) {
+            dst.position(0);
+            dst.put(rec, first, len - first);
+        }
+
+        synchronized (this) {
+            long end = start + len;
+            if (start == filledLSN) {
+                filledLSN = end;
+                Map.Entry<Long, Long> next;
+                while ((next = filledRanges.firstEntry()) != null && next.getKey() == filledLSN) {
+                    filledLSN = next.getValue();
+                    filledRanges.pollFirstEntry();
+                }
+                notifyAll();
+            } else {
+                filledRanges.put(start, end);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Makes sure every byte before lsn is in the log file (not necessarily
+     * forced to disk). Waits for concurrent appenders that reserved space
+     * before lsn to finish copying their records in.
+     *
+     * @return the LSN up to which the log file is now written, at least lsn
+     */
+    long writeOut(long lsn) throws IOException {
+        writer.lock();
+        try {
+            long from, to;
+            ByteBuffer ring;
+            int cap;
+            synchronized (this) {
+                if (lsn > reservedLSN) lsn = reservedLSN;
+                if (writtenLSN >= lsn) return writtenLSN;
+                try {
+                    while (filledLSN < lsn) wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted writing out the log buffer");
+                }
+                from = writtenLSN;
+                to = filledLSN;
+                ring = buf;
+                cap = capacity;
+            }
+            long fromPos = from % cap;
+            long len = to - from;
+            ByteBuffer src = ring.duplicate();
+            if (fromPos + len <= cap) {
+                src.limit((int) (fromPos + len)).position((int) fromPos);
+                writeFully(src, from);
+            } else {
+                src.limit(cap).position((int) fromPos);
+                writeFully(src, from);
+                ByteBuffer rest = ring.duplicate();
+                rest.limit((int) (len - (cap - fromPos))).position(0);
+                writeFully(rest, from + (cap - fromPos));
+            }
+            synchronized (this) {
+                writtenLSN = to;
+                notifyAll();
+            }
+            return to;
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long lsn) throws IOException {
+        segments.write(src, lsn);
+        numWrites++;
+    }
+
+    /** Write out and force every byte before lsn to disk. */
+    void force(long lsn) throws IOException {
+        writer.lock();
+        try {
+            writeOut(lsn);
+            segments.force();
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /** Restarts the buffer at a new position; nothing may be buffered. */
+    synchronized void reset(long lsn) {
+        reservedLSN = filledLSN = writtenLSN = lsn;
+        filledRanges.clear();
+    }
+
+    /** Return the LSN that the next appended record will get */
+    synchronized long getEndLSN() {
+        return reservedLSN;
+    }
+
+    /** Return the LSN up to which records are completely copied in */
+    synchronized long getFilledLSN() {
+        return filledLSN;
+    }
+
+    /** Return the number of write calls made to the log file */
+    long getNumWrites() {
+        writer.lock();
+        try {
+            return numWrites;
+        } finally {
+            writer.unlock();
+        }
+    }
+}
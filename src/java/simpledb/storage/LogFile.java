@@ -5,10 +5,15 @@ import simpledb.common.Database;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
-import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Checksum;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -44,57 +49,203 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Every byte of the log has a log sequence number (LSN). LSNs only
+grow: truncating the log drops a prefix of it but never renumbers the
+records that are kept.
+
+<li> The log is stored in segment files of a fixed size (see {@link
+LogSegments}).  The segment being written is the log file itself; full
+segments are renamed after the LSN of their first byte.  Truncation
+archives or recycles the segments no longer needed, so a small log is a
+single file.
+
+<li> Each segment starts with a header: an integer magic number, an
+integer format version, the long LSN of the last written checkpoint (or
+-1 if there are no checkpoints), and the long LSN of the first byte
+after the header.  A log with another magic number or version is
+rejected by recover().
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer length of the whole record,
+an integer CRC32C checksum of everything after the checksum, an integer
+type and a long integer transaction id.
+
+<li> Each log record ends with a long integer holding the LSN where the
+record began.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Reading stops at the first record that runs past the end of the
+file or fails its checksum: that is where the log ends, e.g. the torn
+tail of a write interrupted by a crash.  See {@link LogReader}.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, DELTA and COMPENSATION
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
+<li> UPDATE and DELTA records start with the long LSN of the previous
+UPDATE or DELTA record of the same transaction, or -1 for its first
+one, so that undo can walk a transaction's updates newest first.
+
+<li>UPDATE RECORDS then consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  A serialized page starts with the byte tag of its class in
+the {@link PageRegistry}, which also rebuilds it.  See LogFile.print()
+for an example.
+
+<li> DELTA records log an update as the byte ranges of the page that
+changed, each with its old and new bytes (see {@link PageDelta}).  They
+start like a serialized page (tag, id fields and page length) but
+carry the delta instead of the page bytes.  A DELTA record is computed
+against the image of the page logged just before it, so the buffer
+pool logs a full UPDATE record the first time a page is logged after
+it is read in, and DELTA records after that, for the page classes the
+{@link PageRegistry} marks as delta logged.
+
+<li> COMPENSATION records are written by rollback and recovery when
+they undo an update.  They hold the serialized page as it was after
+the undo, and are only ever redone.
+
+<li> CHECKPOINT records consist of the active transaction table and
+the dirty page table at the time the checkpoint was taken.  The format
+of the record is an integer count of the number of transactions, then a
+long integer transaction id, a long integer first record LSN and a long
+integer last update LSN (or -1) for each active transaction; then an
+integer count of dirty pages, then for each page its tag and id fields
+(as in a serialized page) and a long integer recLSN, an LSN no later
+than the first record whose update may be missing from the page on
+disk.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+</ul>
 
+<p> <u> Rollback and recovery: </u>
+<p>
+Rollback follows the chain of a transaction's updates newest first,
+undoing them starting from the pages on disk, then logs a COMPENSATION
+record for every page it restored before writing the page back.
+<p>
+Recovery starts from the last checkpoint and makes three passes, each
+streaming records from the log:
+<ul>
+<li> Analysis reads from the checkpoint to the end of the log, starting
+with its active transaction and dirty page tables and updating them
+with every record after it.  Transactions still active at the end are
+the losers.
+<li> Redo repeats history from the smallest recLSN in the dirty page
+table: every update and compensation, committed or not, is redone
+unless its page is not in the dirty page table or the record is older
+than the page's recLSN, i.e. the page on disk already has it.
+<li> Undo rolls the losers back like rollback does, newest update of
+any loser first, and logs an ABORT record for each of them.
 </ul>
+So the time to restart depends on the work done since the last
+checkpoint and on the size of the losers, not on the length of the log.
+
+<p> <u> Log buffer: </u>
+<p>
+Records are serialized in memory and appended to a {@link LogBuffer},
+which hands out LSNs and lets many threads append at the same time.
+The buffer is written to the file in large chunks, when it fills up or
+when somebody needs the log on disk.  Methods that read records back
+from the file write the buffer out first.
+
+<p> <u> Group commit: </u>
+<p>
+Appending a record returns the LSN just past its end; a caller that
+needs its records on disk (a committing transaction, or the buffer pool
+before writing a page whose last update record ends at that LSN) calls
+forceUpTo() with that LSN and blocks.  A single flusher thread writes
+out and forces the log once for all the records appended so far and
+wakes up every waiter covered by that force, so concurrent committers
+share one fsync instead of paying one each.  The flusher can wait up to
+a configurable delay for more committers to join a batch, and exits
+when the log has been idle for a while.  If a force fails, the waiters
+whose records that batch covered get the error; later committers wait
+for the next attempt, which the flusher makes after a growing delay
+while the failures go on.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    // null until the log has been either truncated or recovered, like buffer
+    private volatile LogSegments segments;
+    private volatile long segmentSize = LogSegments.DEFAULT_SEGMENT_SIZE;
+    private volatile File archiveDir = null;
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
-//    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    static final int LOG_MAGIC = 0x53444c47; // "SDLG"
+    static final int LOG_VERSION = 2;
+    // header: magic, version, checkpoint LSN, first LSN
+    final static int CHECKPOINT_PTR_OFFSET = 2 * INT_SIZE;
+    final static int FIRST_LSN_OFFSET = CHECKPOINT_PTR_OFFSET + LONG_SIZE;
+    final static int HEADER_SIZE = FIRST_LSN_OFFSET + LONG_SIZE;
+    // length, checksum, type, tid and start LSN of a record
+    final static int RECORD_OVERHEAD = 3 * INT_SIZE + 2 * LONG_SIZE;
+    // the previous update LSN is the first thing in the payload of an update
+    final static int PREV_LSN_OFFSET = 3 * INT_SIZE + LONG_SIZE;
 
-    final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // null until the log has been either truncated or recovered
+    private volatile LogBuffer buffer;
+
+//    int pageSize;
+    private final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    final Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<>();
+    // 每个活跃事务最后一条更新记录的LSN，回滚从这里倒着走
+    final Map<Long,Long> tidToLastLogRecord = new ConcurrentHashMap<>();
+    // 追加记录并修改上面两个表时持有读锁，检查点复制活跃事务表时持有写锁
+    private final ReentrantReadWriteLock attLock = new ReentrantReadWriteLock();
+
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+    // 刷盘失败后重试前等待的时间，连续失败时加倍，直到上限
+    static final long FLUSH_RETRY_MILLIS = 10;
+    static final long MAX_FLUSH_RETRY_MILLIS = 1000;
+
+    private final Object flushLock = new Object();
+    private long flushedLSN = 0; // protected by flushLock
+    private long requestedLSN = 0; // protected by flushLock
+    private IOException flushError = null; // the last failed force, until one succeeds; protected by flushLock
+    private long failedLSN = 0; // the end of the batch that force covered; protected by flushLock
+    private long numFailedForces = 0; // protected by flushLock
+    private Thread flusher = null; // protected by flushLock
+    private long numForces = 0; // protected by flushLock
+
+    private volatile long maxBatchDelayMicros = 0;
+    private volatile boolean groupCommit = true;
+    private volatile boolean deltaLogging = true;
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    // one checkpoint at a time
+    private final Object checkpointLock = new Object();
+    private long numCheckpoints = 0; // protected by checkpointLock
+    private long lastCheckpointNanos = 0; // protected by checkpointLock
+    private long lastCheckpointPauseNanos = 0; // protected by checkpointLock
+    private long maxCheckpointPauseNanos = 0; // protected by checkpointLock
+
+    // pages recovery keeps in memory while redoing the log
+    static final int REDO_CACHE_PAGES = 1024;
+    // records handed to a redo worker at a time, and batches waiting for it
+    static final int REDO_BATCH_RECORDS = 256;
+    static final int REDO_QUEUE_BATCHES = 16;
+    // undo reads single records scattered over the log
+    static final int UNDO_CHUNK_SIZE = 8192;
+
+    static final long MIN_SEGMENT_SIZE = 4096;
 
 
     /** Constructor.
@@ -110,7 +261,6 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -128,19 +278,107 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if(!recoveryUndecided) return;
+                segments = LogSegments.create(logFile, segmentSize, archiveDir);
+                buffer = new LogBuffer(segments, HEADER_SIZE, LogBuffer.DEFAULT_CAPACITY, LogFile::sealRecord);
+                recoveryUndecided = false;
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    /**
+     * A log record being serialized in memory. The checksum and the
+     * trailing start LSN are left as placeholders and filled in by
+     * {@link #sealRecord} once the log buffer has assigned the LSN.
+     */
+    private static class RecordBuilder extends DataOutputStream {
+        RecordBuilder(int type, long tid) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeInt(0); // length
+            writeInt(0); // checksum
+            writeInt(type);
+            writeLong(tid);
+        }
+
+        byte[] finish() throws IOException {
+            writeLong(0);
+            flush();
+            byte[] rec = ((ByteArrayOutputStream) out).toByteArray();
+            ByteBuffer.wrap(rec).putInt(0, rec.length);
+            return rec;
+        }
+    }
+
+    /** Store the start LSN in a record, then checksum it */
+    private static void sealRecord(byte[] rec, long lsn) {
+        ByteBuffer b = ByteBuffer.wrap(rec);
+        b.putLong(rec.length - LONG_SIZE, lsn);
+        Checksum crc = Crc32c.create();
+        crc.update(rec, 2 * INT_SIZE, rec.length - 2 * INT_SIZE);
+        b.putInt(INT_SIZE, (int) crc.getValue());
+    }
+
+    /**
+     * Append a record to the log buffer.
+     * @return the LSN just past the end of the record
+     */
+    private long append(RecordBuilder record) throws IOException {
+        byte[] rec = record.finish();
+        return buffer.append(rec) + rec.length;
+    }
+
+    /**
+     * Append the COMMIT or ABORT record of a transaction and remove it from
+     * the active transaction table, atomically with respect to checkpoints.
+     * @return the LSN just past the end of the record
+     */
+    private long appendEnd(long tid, int type) throws IOException {
+        attLock.readLock().lock();
+        try {
+            long end = append(new RecordBuilder(type, tid));
+            tidToFirstLogRecord.remove(tid);
+            tidToLastLogRecord.remove(tid);
+            return end;
+        } finally {
+            attLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append an UPDATE or DELTA record of a transaction, chaining it to the
+     * transaction's previous one.
+     * @param record the record, with a placeholder for the previous LSN
+     * @return the LSN just past the end of the record
+     */
+    private long appendUpdate(long tid, RecordBuilder record) throws IOException {
+        final byte[] rec = record.finish();
+        final long[] end = new long[1];
+        attLock.readLock().lock();
+        try {
+            // 同一个事务的更新记录按追加顺序串成链
+            tidToLastLogRecord.compute(tid, (k, prev) -> {
+                ByteBuffer.wrap(rec).putLong(PREV_LSN_OFFSET, prev == null ? NO_LSN : prev);
+                try {
+                    long start = buffer.append(rec);
+                    end[0] = start + rec.length;
+                    return start;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            attLock.readLock().unlock();
+        }
+        return end[0];
     }
 
     /** Write an abort record to the log for the specified tid, force
@@ -162,32 +400,26 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
+                long end = appendEnd(tid.getId(), ABORT_RECORD);
+                forceUpTo(end);
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the other
+        transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        long end = appendEnd(tid.getId(), COMMIT_RECORD);
+        // 不持有任何锁等待刷盘，其他事务可以继续追加记录并加入同一批
+        forceUpTo(end);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -195,105 +427,128 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN just past the end of the record, to pass to
+        forceUpTo() before the page is written to disk
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           previous update LSN
            before page data (see writePageData)
            after page data
-           start offset
+           start LSN
+        */
+        RecordBuilder record = new RecordBuilder(UPDATE_RECORD, tid.getId());
+        record.writeLong(NO_LSN);
+        writePageData(record,before);
+        writePageData(record,after);
+        long end = appendUpdate(tid.getId(), record);
+
+        Debug.log("WRITE END LSN = " + end);
+        return end;
+    }
+
+    /** Write a DELTA record to disk for the specified tid and page.
+        @param tid The transaction performing the write
+        @param page The page that was updated
+        @param before The bytes of the page as last logged
+        @param after The bytes of the page now
+        @return the LSN just past the end of the record, to pass to
+        forceUpTo() before the page is written to disk
+
+        @see PageRegistry#logsDeltas
+    */
+    public long logDelta(TransactionId tid, Page page, byte[] before, byte[] after)
+        throws IOException {
+        preAppend();
+        /* delta record consists of
+
+           record type
+           transaction id
+           previous update LSN
+           page class tag and id (see writePageId)
+           page length
+           changed byte ranges (see PageDelta)
+           start LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        RecordBuilder record = new RecordBuilder(DELTA_RECORD, tid.getId());
+        record.writeLong(NO_LSN);
+        writePageId(record, PageRegistry.tagOf(page), page.getId());
+        record.writeInt(after.length);
+        PageDelta.write(record, before, after);
+        return appendUpdate(tid.getId(), record);
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write a COMPENSATION record holding the bytes of a page after an undo */
+    private long logCompensation(long tid, int tag, PageId pid, byte[] data) throws IOException {
+        preAppend();
+        RecordBuilder record = new RecordBuilder(CLR_RECORD, tid);
+        writePageData(record, tag, pid, data);
+        return append(record);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        writePageData(raf, PageRegistry.tagOf(p), p.getId(), p.getPageData());
+    }
 
+    private static void writePageData(DataOutput raf, int tag, PageId pid, byte[] pageData) throws IOException {
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page class tag
+        // number of id fields
+        // id fields
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageId(raf, tag, pid);
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+    }
 
-        raf.writeInt(pageInfo.length);
+    private static void writePageId(DataOutput raf, int tag, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        raf.writeByte(tag);
+        raf.writeByte(pageInfo.length);
         for (int j : pageInfo) {
             raf.writeInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private static PageId readPageId(DataInput raf, int tag) throws IOException {
+        int[] pageInfo = new int[raf.readUnsignedByte()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = raf.readInt();
+        }
+        return PageRegistry.createId(tag, pageInfo);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    Page readPageData(DataInput raf) throws IOException {
+        int tag = raf.readUnsignedByte();
+        PageId pid = readPageId(raf, tag);
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+        byte[] pageData = new byte[raf.readInt()];
+        raf.readFully(pageData);
+        return PageRegistry.createPage(tag, pid, pageData);
+    }
 
+    /** Skip over a page written by writePageData, without rebuilding it */
+    void skipPageData(DataInput raf) throws IOException {
+        raf.readUnsignedByte();
+        raf.skipBytes(raf.readUnsignedByte() * INT_SIZE);
+        raf.skipBytes(raf.readInt());
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -301,148 +556,119 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        byte[] rec = new RecordBuilder(BEGIN_RECORD, tid.getId()).finish();
+        long lsn;
+        attLock.readLock().lock();
+        try {
+            lsn = buffer.append(rec);
+            tidToFirstLogRecord.put(tid.getId(), lsn);
+        } finally {
+            attLock.readLock().unlock();
+        }
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Checkpoint the log and write a checkpoint record. The checkpoint is
+     * fuzzy: it records the active transaction table and the dirty page
+     * table without writing any page, and only blocks other transactions
+     * while it copies the two tables and appends the record.
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+        synchronized (checkpointLock) {
+            final long start = System.nanoTime();
+            final long pause;
+            preAppend();
+            long cpLSN;
+            byte[] rec;
+            final BufferPool bufferPool = Database.getBufferPool();
+            // 持有缓冲池的锁时不会有新的更新记录，复制的脏页表和检查点记录是一致的
+            synchronized (bufferPool) {
+                final long pauseStart = System.nanoTime();
+                Map<PageId, BufferPool.DirtyPage> dirtyPages = bufferPool.getDirtyPageTable();
+                // 复制活跃事务表和追加检查点记录之间，不能有事务开始或者结束
+                attLock.writeLock().lock();
+                try {
+                    RecordBuilder record = new RecordBuilder(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+                    //write list of outstanding transactions
+                    record.writeInt(tidToFirstLogRecord.size());
+                    for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                        Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                        record.writeLong(e.getKey());
+                        record.writeLong(e.getValue());
+                        record.writeLong(tidToLastLogRecord.getOrDefault(e.getKey(), NO_LSN));
+                    }
+                    //write the dirty page table
+                    record.writeInt(dirtyPages.size());
+                    for (Map.Entry<PageId, BufferPool.DirtyPage> e : dirtyPages.entrySet()) {
+                        writePageId(record, e.getValue().tag, e.getKey());
+                        record.writeLong(e.getValue().recLSN);
+                    }
+                    rec = record.finish();
+                    cpLSN = buffer.append(rec);
+                } finally {
+                    attLock.writeLock().unlock();
                 }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                pause = System.nanoTime() - pauseStart;
             }
+            forceUpTo(cpLSN + rec.length);
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            segments.setCheckpointLSN(cpLSN);
+            segments.force();
+            //Debug.log("CP LSN = " + cpLSN);
+            logTruncate();
+
+            numCheckpoints++;
+            lastCheckpointNanos = System.nanoTime() - start;
+            lastCheckpointPauseNanos = pause;
+            maxCheckpointPauseNanos = Math.max(maxCheckpointPauseNanos, pause);
         }
-        logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: the segments that end before the first record
+        recovery or rollback may still need are archived or recycled
+        (see {@link LogSegments}). No record is copied and appends carry
+        on while the segments are removed. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        // 检查点记录要能从文件里读到
+        long end = buffer.writeOut(buffer.getEndLSN());
+
+        long cpLoc = segments.getCheckpointLSN();
 
-        long minLogRecord = cpLoc;
+        long minLogRecord = cpLoc != NO_CHECKPOINT_ID ? cpLoc : end;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            LogReader.Record cp = new LogReader(segments, cpLoc, end).next();
 
-            if (cpType != CHECKPOINT_RECORD) {
+            if (cp == null || cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+            Checkpoint checkpoint = readCheckPoint(cp.payload());
+            for (long firstLogRecord : checkpoint.firstLSNs.values()) {
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            // 检查点时还没写回磁盘的页面，恢复时要从它们的recLSN开始重做
+            for (long recLSN : checkpoint.dirtyPages.values()) {
+                minLogRecord = Math.min(minLogRecord, recLSN);
             }
         }
+        for (long firstLogRecord : tidToFirstLogRecord.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        // we can truncate everything before minLogRecord. LSNs stay the
+        // same, so whole segments before it are simply dropped
+        int removed = segments.removeBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; NEEDED FROM " + minLogRecord + ", REMOVED " + removed + " SEGMENTS, "
+                + segments.getNumSegments() + " LEFT");
         //print();
     }
 
@@ -460,78 +686,326 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-                /**
-                 * 开启写日志
-                 */
-                final Long firstRecordPos = this.tidToFirstLogRecord.get(tid.getId());
-                this.raf.seek(firstRecordPos);
-                while (true) {
+                final Long lastRecordPos = this.tidToLastLogRecord.get(tid.getId());
+                if (lastRecordPos == null) return; // 这个事务没有写过更新记录
+                // 缓冲区中的记录先写到文件里
+                final long end = buffer.writeOut(buffer.getEndLSN());
+                undo(tid.getId(), Collections.singleton(lastRecordPos), end);
+            }
+        }
+    }
+
+    /**
+     * Undo the UPDATE and DELTA records reached by following the given
+     * chains of previous update LSNs, newest first, starting from the pages
+     * on disk. Then log a COMPENSATION record for every page that was
+     * restored, force the log and write the pages back.
+     *
+     * @param tid the transaction the COMPENSATION records are logged for
+     * @param lastLSNs the last update of every transaction to undo
+     * @param end the end of the log on disk
+     */
+    private void undo(long tid, Collection<Long> lastLSNs, long end) throws IOException {
+        final PageWorkspace pages = new PageWorkspace(Integer.MAX_VALUE, true);
+        // 几个事务的更新链合在一起，每次撤销LSN最大的那一条
+        final PriorityQueue<Long> todo = new PriorityQueue<>(Collections.reverseOrder());
+        for (long lsn : lastLSNs) {
+            if (lsn != NO_LSN) todo.add(lsn);
+        }
+        while (!todo.isEmpty()) {
+            long lsn = todo.poll();
+            LogReader.Record record = new LogReader(segments, lsn, end, UNDO_CHUNK_SIZE).next();
+            if (record == null || record.lsn != lsn)
+                throw new IOException("cannot read log record at LSN " + lsn);
+            long prev = apply(record, pages, true, null);
+            if (prev != NO_LSN) todo.add(prev);
+        }
+        long last = 0;
+        for (PageWorkspace.Image img : pages.images()) {
+            last = logCompensation(tid, img.tag, img.pid, img.data);
+        }
+        forceUpTo(last);
+        pages.writeAll();
+    }
+
+    /**
+     * The redo pass of recovery. Records are read in log order and handed
+     * to redo workers by the hash of their page id, so all the records of a
+     * page are redone in log order by the same worker while different pages
+     * are redone in parallel. With one thread, records are redone by the
+     * calling thread.
+     *
+     * @param dirtyPages the dirty page table built by the analysis pass
+     */
+    private void redo(LogReader reader, Map<PageId, Long> dirtyPages) throws IOException {
+        // 缓冲池里这些页面的内容作废，重做不经过缓冲池
+        for (PageId pid : dirtyPages.keySet()) {
+            Database.getBufferPool().discardPage(pid);
+        }
+        final int threads = Math.max(1, recoveryThreads);
+        final RedoWorker[] workers = new RedoWorker[threads > 1 ? threads : 0];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(i, Math.max(1, REDO_CACHE_PAGES / threads));
+            workers[i].start();
+        }
+        final PageWorkspace pages = threads > 1 ? null : new PageWorkspace(REDO_CACHE_PAGES, false);
+        try {
+            LogReader.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.type != UPDATE_RECORD && record.type != DELTA_RECORD && record.type != CLR_RECORD)
+                    continue;
+                final DataInputStream in = record.payload();
+                if (record.type != CLR_RECORD) in.readLong();
+                final PageId pid = readPageId(in, in.readUnsignedByte());
+                // 磁盘上的页面已经包含了这条记录的修改
+                final Long recLSN = dirtyPages.get(pid);
+                if (recLSN == null || record.lsn < recLSN) continue;
+                if (pages != null) {
+                    apply(record, pages, false, null);
+                } else {
+                    final int hash = pid.hashCode();
+                    workers[Math.floorMod(hash ^ (hash >>> 16), threads)].add(record);
+                }
+            }
+            if (pages != null) pages.writeAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        } finally {
+            for (RedoWorker w : workers) {
+                w.finish();
+            }
+        }
+        for (RedoWorker w : workers) {
+            if (w.error != null) throw new IOException("redo failed in " + w.getName(), w.error);
+        }
+    }
+
+    /** Marks the end of the records handed to a redo worker */
+    private static final List<LogReader.Record> END_OF_REDO = new ArrayList<>(0);
+
+    /**
+     * A thread redoing the records of its share of the pages, in the order
+     * they are handed to it, on a workspace of its own. Records are handed
+     * over in batches, so that the thread reading the log and the workers
+     * do not wake each other for every record.
+     */
+    private class RedoWorker extends Thread {
+        final BlockingQueue<List<LogReader.Record>> queue = new ArrayBlockingQueue<>(REDO_QUEUE_BATCHES);
+        final PageWorkspace pages;
+        List<LogReader.Record> batch = new ArrayList<>(REDO_BATCH_RECORDS); // 只由读日志的线程访问
+        volatile Throwable error = null;
+
+        RedoWorker(int i, int capacity) {
+            super("redo-" + i);
+            setDaemon(true);
+            pages = new PageWorkspace(capacity, false);
+        }
+
+        public void run() {
+            try {
+                List<LogReader.Record> records;
+                while ((records = queue.take()) != END_OF_REDO) {
+                    // 出错之后只把队列取空，让读日志的线程不会卡住
+                    if (error != null) continue;
                     try {
-                        final int type = raf.readInt();
-                        final long transactionId = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD: {
-                                final Page beginPage = readPageData(this.raf);
-                                readPageData(this.raf);
-                                final PageId pageId = beginPage.getId();
-                                if (transactionId == tid.getId()) {
-                                    // resetBeforePage will reset page if page in BufferPool
-                                    Database.getBufferPool().discardPage(pageId);
-                                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beginPage);
-                                }
-                                break;
-                            }
-                            case CHECKPOINT_RECORD: {
-                                skipCheckPointRecord();
-                                break;
-                            }
+                        for (LogReader.Record record : records) {
+                            apply(record, pages, false, null);
                         }
-                        if(type == ABORT_RECORD && transactionId == tid.getId()) break;
-                        raf.readLong();
-                    } catch (final EOFException e) {
-                        break;
+                    } catch (Throwable e) {
+                        error = e;
                     }
                 }
+                if (error == null) pages.writeAll();
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        /** Hand a record to the worker */
+        void add(LogReader.Record record) throws InterruptedException {
+            batch.add(record);
+            if (batch.size() == REDO_BATCH_RECORDS) {
+                queue.put(batch);
+                batch = new ArrayList<>(REDO_BATCH_RECORDS);
+            }
+        }
+
+        /** Wait for the worker to redo every record handed to it */
+        void finish() throws IOException {
+            try {
+                if (!batch.isEmpty()) queue.put(batch);
+                queue.put(END_OF_REDO);
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + getName());
             }
         }
     }
 
+    /**
+     * Redo or undo an UPDATE, DELTA or COMPENSATION record on the pages of
+     * the workspace. A COMPENSATION record is never undone.
+     *
+     * @param dirtyPages if not null, only redo the record if its page is in
+     *                   this dirty page table with a recLSN no later than
+     *                   the record
+     * @return the LSN of the previous update of the same transaction, or
+     * NO_LSN
+     */
+    private long apply(LogReader.Record record, PageWorkspace pages, boolean undo,
+                       Map<PageId, Long> dirtyPages) throws IOException {
+        final DataInputStream in = record.payload();
+        final long prev = record.type == CLR_RECORD ? NO_LSN : in.readLong();
+        final int tag = in.readUnsignedByte();
+        final PageId pid = readPageId(in, tag);
+        if (dirtyPages != null) {
+            // 磁盘上的页面已经包含了这条记录的修改
+            Long recLSN = dirtyPages.get(pid);
+            if (recLSN == null || record.lsn < recLSN) return prev;
+        }
+        int length = in.readInt();
+        if (record.type == UPDATE_RECORD && !undo) {
+            // 更新记录先是前镜像再是后镜像，重做时跳过前镜像
+            in.skipBytes(length);
+            readPageId(in, in.readUnsignedByte());
+            length = in.readInt();
+        }
+        if (record.type == DELTA_RECORD) {
+            final byte[] data = pages.get(tag, pid);
+            if (data.length != length)
+                throw new IOException("delta for " + length + " byte page applied to " + data.length + " bytes");
+            if (undo) {
+                PageDelta.undo(in, data);
+            } else {
+                PageDelta.redo(in, data);
+            }
+        } else {
+            final byte[] data = new byte[length];
+            in.readFully(data);
+            pages.put(tag, pid, data);
+        }
+        return prev;
+    }
 
     /**
-     * 在日志中遇到checkPoint的时候进行跳过.
-     * @throws IOException
+     * The bytes of the pages being redone or undone, keyed by page id. A
+     * page is taken from the image the buffer pool logged last, or read
+     * from disk, the first time a DELTA record needs it. When
+     * there are more pages than the capacity, the least recently used one
+     * is written back to disk.
      */
-    private void skipCheckPointRecord() throws  IOException{
-        int count = raf.readInt();
-        Map<Long,Long> rtn = new HashMap<>();
-        while(count-- != 0){
-            long tid = raf.readLong();
-            long firstRecordOffset = raf.readLong();
-            rtn.put(tid, firstRecordOffset);
+    private static class PageWorkspace {
+        static class Image {
+            final int tag;
+            final PageId pid;
+            final byte[] data;
+
+            Image(int tag, PageId pid, byte[] data) {
+                this.tag = tag;
+                this.pid = pid;
+                this.data = data;
+            }
+        }
+
+        private final int capacity;
+        private final boolean bufferPool;
+        private final LinkedHashMap<PageId, Image> images = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * @param bufferPool false to leave the buffer pool alone: recovery
+         *                   discards the pages it redoes from the pool up
+         *                   front, and redoes them from other threads
+         */
+        PageWorkspace(int capacity, boolean bufferPool) {
+            this.capacity = capacity;
+            this.bufferPool = bufferPool;
+        }
+
+        /** Return the bytes of a page, reading them from disk if needed */
+        byte[] get(int tag, PageId pid) throws IOException {
+            Image img = images.get(pid);
+            if (img == null) {
+                // 没写回磁盘的页面(NO-FORCE)以缓冲池里最后写日志时的内容为准
+                byte[] data = bufferPool ? Database.getBufferPool().getLoggedImage(pid) : null;
+                if (data == null)
+                    data = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+                img = new Image(tag, pid, data);
+                images.put(pid, img);
+                evict();
+            }
+            return img.data;
+        }
+
+        /** Replace the bytes of a page */
+        void put(int tag, PageId pid, byte[] data) throws IOException {
+            images.put(pid, new Image(tag, pid, data));
+            evict();
         }
+
+        Collection<Image> images() {
+            return images.values();
+        }
+
+        /** Write every page back to disk */
+        void writeAll() throws IOException {
+            for (Image img : images.values()) {
+                writeBack(img);
+            }
+            images.clear();
+        }
+
+        private void evict() throws IOException {
+            Iterator<Image> it = images.values().iterator();
+            while (images.size() > capacity) {
+                Image img = it.next();
+                it.remove();
+                writeBack(img);
+            }
+        }
+
+        private void writeBack(Image img) throws IOException {
+            // 缓冲池里的旧页面丢掉，下次从磁盘重新读
+            if (bufferPool) Database.getBufferPool().discardPage(img.pid);
+            Database.getCatalog().getDatabaseFile(img.pid.getTableId())
+                    .writePage(PageRegistry.createPage(img.tag, img.pid, img.data));
+        }
+    }
+
+    /** The tables saved in a CHECKPOINT record */
+    private static class Checkpoint {
+        final Map<Long, Long> firstLSNs = new HashMap<>();
+        final Map<Long, Long> lastLSNs = new HashMap<>();
+        final Map<PageId, Long> dirtyPages = new HashMap<>();
     }
 
-    private Map<Long, Long> readCheckPoint(RandomAccessFile raf) throws IOException {
-        int count = raf.readInt();
-        Map<Long, Long> rtn = new HashMap<>();
+    private Checkpoint readCheckPoint(DataInput in) throws IOException {
+        Checkpoint rtn = new Checkpoint();
+        int count = in.readInt();
+        while(count-- != 0) {
+            long tid = in.readLong();
+            rtn.firstLSNs.put(tid, in.readLong());
+            rtn.lastLSNs.put(tid, in.readLong());
+        }
+        count = in.readInt();
         while(count-- != 0) {
-            long tid = raf.readLong();
-            long firstRecordOffset = raf.readLong();
-            rtn.put(tid, firstRecordOffset);
+            PageId pid = readPageId(in, in.readUnsignedByte());
+            rtn.dirtyPages.put(pid, in.readLong());
         }
         return rtn;
     }
 
-
-
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                if (segments != null) segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -547,142 +1021,396 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                this.raf.seek(0);
-                final HashSet<Long> commitIds = new HashSet<>();
-                final HashMap<Long, List<Page>> beforePages = new HashMap<>();
-                final HashMap<Long, List<Page>> afterPages = new HashMap<>();
-                while (true) {
-                    try {
-                        final int type = this.raf.readInt();
-                        final long tid = this.raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD: {
-                                final Page beforePage = readPageData(raf);
-                                final Page afterPage = readPageData(raf);
-
-                                final List<Page> beforeList = beforePages.getOrDefault(tid, new ArrayList<>());
-                                beforeList.add(beforePage);
-
-                                final List<Page> afterList = afterPages.getOrDefault(tid, new ArrayList<>());
-                                afterList.add(afterPage);
-                                break;
-                            }
-                            case COMMIT_RECORD: {
-                                commitIds.add(tid);
-                                break;
-                            }
-                            case CHECKPOINT_RECORD: {
-                                skipCheckPointRecord();
-                                break;
-                            }
-                        }
-                    } catch (final EOFException e) {
-                        break;
+                if (segments != null) segments.close();
+                // 没有日志时相当于一个新的数据库
+                segments = LogSegments.open(logFile, segmentSize, archiveDir);
+                final long cpLSN = segments.getCheckpointLSN();
+                final long baseLSN = segments.getFirstLSN();
+
+                // 第一遍(分析)：从最后一个检查点开始，得到活跃事务表和脏页表，同时确定日志的结尾
+                Checkpoint tables = null;
+                LogReader reader = null;
+                if (cpLSN != NO_CHECKPOINT_ID && cpLSN >= baseLSN) {
+                    reader = new LogReader(segments, cpLSN, Long.MAX_VALUE);
+                    LogReader.Record cp = reader.next();
+                    if (cp != null && cp.type == CHECKPOINT_RECORD) {
+                        tables = readCheckPoint(cp.payload());
                     }
                 }
-                // Roll back unCommitted txn
-                beforePages.forEach((tid, pages) -> {
-                    if (!commitIds.contains(tid)) {
-                        for (final Page page : pages) {
-                            try {
-                                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+                if (tables == null) {
+                    // 没有检查点，从日志开头分析
+                    tables = new Checkpoint();
+                    reader = new LogReader(segments, baseLSN, Long.MAX_VALUE);
+                }
+                final Map<Long, Long> active = tables.lastLSNs;
+                final Map<PageId, Long> dirtyPages = tables.dirtyPages;
+                LogReader.Record record;
+                while ((record = reader.next()) != null) {
+                    switch (record.type) {
+                    case BEGIN_RECORD:
+                        active.put(record.tid, NO_LSN);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        active.remove(record.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                    case CLR_RECORD: {
+                        final DataInputStream in = record.payload();
+                        if (record.type != CLR_RECORD) {
+                            in.readLong();
+                            active.put(record.tid, record.lsn);
                         }
+                        dirtyPages.putIfAbsent(readPageId(in, in.readUnsignedByte()), record.lsn);
+                        break;
                     }
-                });
-                // Write commit pages
-                for (final Long commitId : commitIds) {
-                    if (afterPages.containsKey(commitId)) {
-                        final List<Page> pages = afterPages.get(commitId);
-                        for (final Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
+                    default:
                     }
                 }
+                final long end = reader.position();
+
+                // 新的记录接在最后一条完整的记录之后，丢掉崩溃时没写完的部分
+                segments.truncate(end);
+                buffer = new LogBuffer(segments, end, LogBuffer.DEFAULT_CAPACITY, LogFile::sealRecord);
+
+                // 第二遍(重做)：从脏页表里最小的recLSN开始重做，包括没有结束的事务，
+                // 跳过磁盘上的页面已经包含的记录
+                if (!dirtyPages.isEmpty()) {
+                    final long redoLSN = Collections.min(dirtyPages.values());
+                    redo(new LogReader(segments, redoLSN, end), dirtyPages);
+                }
+
+                // 第三遍(撤销)：沿着更新链倒序撤销没有结束的事务，再为它们写ABORT记录；
+                // 没有写过更新记录的事务不用管
+                active.values().removeIf(lsn -> lsn == NO_LSN);
+                if (!active.isEmpty()) {
+                    // 补偿记录不属于某一个事务
+                    undo(-1, active.values(), end);
+                    long last = 0;
+                    for (long tid : active.keySet()) {
+                        last = append(new RecordBuilder(ABORT_RECORD, tid));
+                    }
+                    forceUpTo(last);
+                }
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+        if (segments == null) return; // nothing appended or recovered yet
+        long end = buffer.writeOut(buffer.getEndLSN());
+        System.out.println(segments.getNumSegments() + " segments, checkpoint record at LSN " + segments.getCheckpointLSN());
+        long baseLSN = segments.getFirstLSN();
+        System.out.println("first record at LSN " + baseLSN);
+
+        // 打印出来的是每条记录的LSN
+        LogReader reader = new LogReader(segments, baseLSN, end);
+        LogReader.Record record;
+        while ((record = reader.next()) != null) {
+            System.out.print(record.lsn + ": TID " + record.tid + ", " + (record.end() - record.lsn) + " BYTES");
+            DataInputStream in = record.payload();
+            switch (record.type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                Checkpoint cp = readCheckPoint(in);
+                for (Map.Entry<Long, Long> e : cp.firstLSNs.entrySet()) {
+                    System.out.println("    TID: " + e.getKey() + ", FIRST LOG RECORD: " + e.getValue()
+                            + ", LAST UPDATE: " + cp.lastLSNs.get(e.getKey()));
+                }
+                for (Map.Entry<PageId, Long> e : cp.dirtyPages.entrySet()) {
+                    System.out.println("    DIRTY PAGE: table id " + e.getKey().getTableId() + ", page number "
+                            + e.getKey().getPageNumber() + ", RECLSN: " + e.getValue());
+                }
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
+                System.out.println("    previous update " + in.readLong());
+                Page before = readPageData(in);
+                Page after = readPageData(in);
+                System.out.println("    before image table id " + before.getId().getTableId() + ", page number " + before.getId().getPageNumber());
+                System.out.println("    after image table id " + after.getId().getTableId() + ", page number " + after.getId().getPageNumber());
+                break;
+            case DELTA_RECORD:
+            case CLR_RECORD: {
+                System.out.println(record.type == DELTA_RECORD ? " (DELTA)" : " (COMPENSATION)");
+                if (record.type == DELTA_RECORD) System.out.println("    previous update " + in.readLong());
+                PageId pid = readPageId(in, in.readUnsignedByte());
+                System.out.println("    table id " + pid.getTableId() + ", page number " + pid.getPageNumber());
+                break;
+            }
+            default:
+                System.out.println(" (UNKNOWN TYPE " + record.type + ")");
+            }
+        }
+        System.out.println(reader.position() + ": END OF LOG");
+    }
+
+    /** Force every record appended so far to disk, right now. */
+    public void force() throws IOException {
+        LogBuffer b = buffer;
+        if (b == null) return; // nothing appended yet
+        long lsn = b.getEndLSN();
+        b.force(lsn);
+        markFlushed(lsn);
+    }
+
+    /**
+     * Block until every byte of the log before the given LSN is on disk.
+     * The actual force is done by the flusher thread on behalf of every
+     * transaction waiting at the same time.
+     *
+     * @param lsn an LSN returned when appending a record
+     */
+    public void forceUpTo(long lsn) throws IOException {
+        if (!groupCommit) {
+            synchronized (flushLock) {
+                if (flushedLSN >= lsn) return;
+            }
+            force();
+            return;
+        }
+        synchronized (flushLock) {
+            if (flushedLSN >= lsn) return;
+            if (lsn > requestedLSN) requestedLSN = lsn;
+            if (flusher == null) {
+                flusher = new Thread(this::runFlusher, "log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushLock.notifyAll();
+            // 只有开始等待之后失败的、覆盖了这条记录的那次刷盘才算这个等待者失败
+            long failures = numFailedForces;
+            try {
+                while (flushedLSN < lsn) {
+                    if (numFailedForces != failures && failedLSN >= lsn)
+                        throw new IOException("log force failed", flushError);
+                    flushLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log to be forced");
+            }
+        }
+    }
 
-        raf.seek(0);
+    private void markFlushed(long lsn) {
+        synchronized (flushLock) {
+            numForces++;
+            if (lsn > flushedLSN) {
+                flushedLSN = lsn;
+                flushLock.notifyAll();
+            }
+            if (flushedLSN >= failedLSN)
+                flushError = null;
+        }
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    /**
+     * Write out and force the log up to lsn on behalf of a batch of
+     * committers; called by the flusher thread.
+     */
+    protected void forceLog(long lsn) throws IOException {
+        buffer.force(lsn);
+    }
 
+    /** Body of the flusher thread: one force per batch of waiting committers. */
+    private void runFlusher() {
+        int failures = 0; // consecutive failed forces
         while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+            synchronized (flushLock) {
+                try {
+                    if (failures > 0) {
+                        long retry = Math.min(MAX_FLUSH_RETRY_MILLIS, FLUSH_RETRY_MILLIS << Math.min(failures - 1, 20));
+                        long until = System.currentTimeMillis() + retry;
+                        long left;
+                        while ((left = until - System.currentTimeMillis()) > 0) {
+                            flushLock.wait(left);
+                        }
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    long idleSince = System.currentTimeMillis();
+                    while (requestedLSN <= flushedLSN) {
+                        long left = FLUSHER_IDLE_MILLIS - (System.currentTimeMillis() - idleSince);
+                        if (left <= 0) {
+                            flusher = null;
+                            return;
+                        }
+                        flushLock.wait(left);
+                    }
+                    // 等待一小段时间，让更多的提交者加入这一批
+                    long deadline = System.nanoTime() + maxBatchDelayMicros * 1000;
+                    long remaining;
+                    while ((remaining = deadline - System.nanoTime()) > 0) {
+                        flushLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    flusher = null;
+                    return;
+                }
+            }
+            // 所有已经拷贝进缓冲区的记录一起写出并刷盘
+            long lsn = buffer.getFilledLSN();
+            try {
+                forceLog(lsn);
+                markFlushed(lsn);
+                failures = 0;
+            } catch (IOException e) {
+                if (failures++ == 0)
+                    e.printStackTrace();
+                synchronized (flushLock) {
+                    // 这一批的等待者都得到错误；没有人在等更后面的记录时不再重试
+                    flushError = e;
+                    failedLSN = Math.max(failedLSN, lsn);
+                    numFailedForces++;
+                    if (requestedLSN <= lsn)
+                        requestedLSN = flushedLSN;
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
 
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+    /**
+     * Set how long the flusher waits for more committers to join a batch
+     * before forcing the log. 0 (the default) forces as soon as there is a
+     * waiter; transactions that commit while a force is in progress still
+     * share the next one.
+     */
+    public void setMaxBatchDelay(long micros) {
+        maxBatchDelayMicros = micros;
+    }
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+    /**
+     * Enable or disable group commit. When disabled, every forceUpTo()
+     * forces the log itself, serialized on this object.
+     */
+    public void setGroupCommit(boolean enabled) {
+        groupCommit = enabled;
+    }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+    /**
+     * Enable or disable delta logging. When disabled, every update is
+     * logged with full before and after images.
+     */
+    public void setDeltaLogging(boolean enabled) {
+        deltaLogging = enabled;
+    }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    /** Return true if the buffer pool may log updates as DELTA records */
+    public boolean isDeltaLogging() {
+        return deltaLogging;
+    }
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    /**
+     * Set how many threads the redo pass of recover() uses. Defaults to the
+     * number of processors.
+     */
+    public void setRecoveryThreads(int threads) {
+        recoveryThreads = threads;
+    }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    /**
+     * Set the size of the log segment files, header included. Applies to
+     * the segments started from now on.
+     */
+    public void setSegmentSize(long bytes) {
+        if (bytes < MIN_SEGMENT_SIZE)
+            throw new IllegalArgumentException("log segments must be at least " + MIN_SEGMENT_SIZE + " bytes");
+        segmentSize = bytes;
+        LogSegments s = segments;
+        if (s != null) s.setSegmentSize(bytes);
+    }
 
-                    break;
-                }
+    /**
+     * Set the directory log segments are moved to once truncation no longer
+     * needs them, or null (the default) to recycle them as new segments.
+     */
+    public void setArchiveDirectory(File dir) {
+        archiveDir = dir;
+        LogSegments s = segments;
+        if (s != null) s.setArchiveDirectory(dir);
+    }
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
-            }
+    /** Return the number of segment files the log occupies */
+    public int getNumSegments() {
+        LogSegments s = segments;
+        return s == null ? 0 : s.getNumSegments();
+    }
+
+    /** Return the number of segments started by recycling a removed one */
+    public long getNumRecycledSegments() {
+        LogSegments s = segments;
+        return s == null ? 0 : s.getNumRecycled();
+    }
+
+    /** Return the number of segments started in a new file */
+    public long getNumCreatedSegments() {
+        LogSegments s = segments;
+        return s == null ? 0 : s.getNumCreated();
+    }
+
+    /** Return the number of checkpoints taken */
+    public long getNumCheckpoints() {
+        synchronized (checkpointLock) {
+            return numCheckpoints;
         }
+    }
+
+    /**
+     * Return how long the last checkpoint took, in nanoseconds, from start
+     * to the end of the log truncation that follows it
+     */
+    public long getLastCheckpointNanos() {
+        synchronized (checkpointLock) {
+            return lastCheckpointNanos;
+        }
+    }
+
+    /**
+     * Return how long the last checkpoint blocked transactions, in
+     * nanoseconds: the time it held the buffer pool to copy the dirty page
+     * and active transaction tables
+     */
+    public long getLastCheckpointPauseNanos() {
+        synchronized (checkpointLock) {
+            return lastCheckpointPauseNanos;
+        }
+    }
+
+    /** Return the longest pause of any checkpoint, in nanoseconds */
+    public long getMaxCheckpointPauseNanos() {
+        synchronized (checkpointLock) {
+            return maxCheckpointPauseNanos;
+        }
+    }
+
+    /** Return the number of times the log has been forced to disk */
+    public long getNumForces() {
+        synchronized (flushLock) {
+            return numForces;
+        }
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /** Return the number of writes made to the log file by the log buffer */
+    public long getNumWrites() {
+        LogBuffer b = buffer;
+        return b == null ? 0 : b.getNumWrites();
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Return the LSN the next appended record will get */
+    public long getEndLSN() {
+        LogBuffer b = buffer;
+        return b == null ? HEADER_SIZE : b.getEndLSN();
     }
 
 }
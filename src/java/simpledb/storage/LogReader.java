@@ -0,0 +1,133 @@
+package simpledb.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * LogReader reads log records one after another, in LSN order, from the log
+ * segments. It reads the log in large chunks and checks the length and CRC32C
+ * checksum of every record: the first record that runs past the end of the
+ * file or does not match its checksum is where the log ends (a torn tail
+ * left by a crash), and {@link #next()} returns null there.
+ * <p>
+ * The layout of a record is described in {@link LogFile}.
+ */
+class LogReader {
+
+    static final int CHUNK_SIZE = 1 << 20;
+
+    /** A log record read back from the file */
+    static class Record {
+        final long lsn;
+        final int type;
+        final long tid;
+        private final byte[] body;
+
+        Record(long lsn, int type, long tid, byte[] body) {
+            this.lsn = lsn;
+            this.type = type;
+            this.tid = tid;
+            this.body = body;
+        }
+
+        /** Return the LSN just past the end of this record */
+        long end() {
+            return lsn + body.length + LogFile.RECORD_OVERHEAD;
+        }
+
+        /** Return a stream over the type-specific part of the record */
+        DataInputStream payload() {
+            return new DataInputStream(new ByteArrayInputStream(body));
+        }
+    }
+
+    private final LogSegments segments;
+    private final long endLSN;
+
+    private ByteBuffer window;
+    private long windowLSN; // LSN of the first byte in window
+    private long lsn; // LSN of the next record
+    private final Checksum crc = Crc32c.create();
+
+    /**
+     * @param segments the log files
+     * @param lsn the LSN of the first record to read
+     * @param endLSN stop before this LSN; records after it may still be
+     *               being written
+     */
+    LogReader(LogSegments segments, long lsn, long endLSN) {
+        this(segments, lsn, endLSN, CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize how many bytes to read from the file at a time; a
+     *                  small chunk suits reading a single record
+     */
+    LogReader(LogSegments segments, long lsn, long endLSN, int chunkSize) {
+        this.segments = segments;
+        this.endLSN = endLSN;
+        this.lsn = lsn;
+        this.windowLSN = lsn;
+        this.window = ByteBuffer.allocate(chunkSize);
+        window.limit(0);
+    }
+
+    /**
+     * Return the next record, or null at the end of the log: at endLSN, at
+     * the end of the file, or at a torn or corrupt record.
+     */
+    Record next() throws IOException {
+        if (lsn >= endLSN || !fill(LogFile.INT_SIZE)) return null;
+        int pos = (int) (lsn - windowLSN);
+        int len = window.getInt(pos);
+        if (len < LogFile.RECORD_OVERHEAD || lsn + len > endLSN || !fill(len)) return null;
+        pos = (int) (lsn - windowLSN);
+
+        crc.reset();
+        crc.update(window.array(), pos + 2 * LogFile.INT_SIZE, len - 2 * LogFile.INT_SIZE);
+        if ((int) crc.getValue() != window.getInt(pos + LogFile.INT_SIZE)) return null;
+        if (window.getLong(pos + len - LogFile.LONG_SIZE) != lsn) return null;
+
+        int type = window.getInt(pos + 2 * LogFile.INT_SIZE);
+        long tid = window.getLong(pos + 3 * LogFile.INT_SIZE);
+        byte[] body = new byte[len - LogFile.RECORD_OVERHEAD];
+        ByteBuffer src = window.duplicate();
+        src.position(pos + 3 * LogFile.INT_SIZE + LogFile.LONG_SIZE);
+        src.get(body);
+        Record r = new Record(lsn, type, tid, body);
+        lsn += len;
+        return r;
+    }
+
+    /** Return the LSN just past the last record returned */
+    long position() {
+        return lsn;
+    }
+
+    /**
+     * Makes sure the window holds n bytes starting at lsn.
+     * @return false if the file ends before that
+     */
+    private boolean fill(int n) throws IOException {
+        long have = windowLSN + window.limit() - lsn;
+        if (have >= n) return true;
+        // 把剩下的字节挪到窗口开头，然后接着读满整个窗口
+        window.position((int) (lsn - windowLSN));
+        if (n > window.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(n, 2 * window.capacity()));
+            bigger.put(window);
+            window = bigger;
+        } else {
+            window.compact();
+        }
+        windowLSN = lsn;
+        while (window.hasRemaining()) {
+            if (segments.read(window, windowLSN + window.position()) < 0) break;
+        }
+        window.flip();
+        return window.limit() >= n;
+    }
+}
@@ -0,0 +1,395 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log as a series of segment files of about the same
+ * size. Every segment starts with the log header described in
+ * {@link LogFile} (magic number, version, checkpoint LSN, and the LSN of the
+ * first byte after the header), followed by the bytes of the log from that
+ * LSN on. A record may continue from one segment into the next.
+ * <p>
+ * The segment being written is the log file itself (e.g. "log"), and holds
+ * the current checkpoint LSN. When it is full it is renamed after its first
+ * LSN ("log.000000000001a2b4") and a new one takes its place, so a small log
+ * is a single file in exactly the format of an unsegmented log.
+ * <p>
+ * Truncating the log removes whole segments that end before the oldest LSN
+ * still needed, without copying any record. A removed segment is moved to
+ * the archive directory if there is one; otherwise it is kept as a free
+ * segment ("log.free.*") and recycled as a later segment, overwriting its
+ * stale bytes in place instead of growing a new file. The stale bytes never
+ * read as records: each record carries its own LSN, which cannot match at
+ * its new position.
+ * <p>
+ * Bytes are only ever written at the end of the log, by the log buffer.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+    static final int MAX_FREE_SEGMENTS = 2;
+
+    private static final String NEXT_SUFFIX = ".next";
+    private static final String FREE_INFIX = ".free.";
+
+    private static class Segment {
+        File file; // renamed when the segment stops being the active one
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final long firstLSN;
+
+        Segment(File file, RandomAccessFile raf, long firstLSN) {
+            this.file = file;
+            this.raf = raf;
+            this.channel = raf.getChannel();
+            this.firstLSN = firstLSN;
+        }
+    }
+
+    private final File base;
+    private final File dir;
+
+    // first LSN -> segment; the last one is the active segment, protected by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Deque<File> free = new ArrayDeque<>(); // protected by this
+    private long segmentSize; // protected by this
+    private File archiveDir; // protected by this
+    private long checkpointLSN = LogFile.NO_CHECKPOINT_ID; // protected by this
+
+    private long numCreated = 0; // protected by this
+    private long numRecycled = 0; // protected by this
+    private long numArchived = 0; // protected by this
+
+    private LogSegments(File base, long segmentSize, File archiveDir) {
+        this.base = base.getAbsoluteFile();
+        this.dir = this.base.getParentFile();
+        this.segmentSize = segmentSize;
+        this.archiveDir = archiveDir;
+    }
+
+    /**
+     * Starts an empty log, discarding any log already at base. The segments
+     * of the discarded log are kept as free segments, up to the limit.
+     */
+    static LogSegments create(File base, long segmentSize, File archiveDir) throws IOException {
+        LogSegments log = new LogSegments(base, segmentSize, archiveDir);
+        log.findFree();
+        for (File f : log.listNumbered().values()) {
+            log.release(f);
+        }
+        new File(log.base.getPath() + NEXT_SUFFIX).delete();
+        RandomAccessFile raf = new RandomAccessFile(log.base, "rw");
+        raf.setLength(0);
+        writeHeader(raf, LogFile.NO_CHECKPOINT_ID, LogFile.HEADER_SIZE);
+        log.segments.put((long) LogFile.HEADER_SIZE, new Segment(log.base, raf, LogFile.HEADER_SIZE));
+        return log;
+    }
+
+    /**
+     * Opens the log at base for recovery, with every segment still on disk.
+     * Starts an empty log if there is none.
+     *
+     * @throws IOException if a segment is not a log in this format
+     */
+    static LogSegments open(File base, long segmentSize, File archiveDir) throws IOException {
+        LogSegments log = new LogSegments(base, segmentSize, archiveDir);
+        // 换段时崩溃：新段已经准备好，但还没换上名字
+        File next = new File(log.base.getPath() + NEXT_SUFFIX);
+        if (next.exists()) {
+            if (log.base.length() < LogFile.HEADER_SIZE) {
+                log.base.delete();
+                if (!next.renameTo(log.base)) throw new IOException("cannot rename " + next);
+            } else {
+                next.delete();
+            }
+        }
+        if (log.base.length() < LogFile.HEADER_SIZE) {
+            // 没有日志，相当于一个新的数据库
+            return create(base, segmentSize, archiveDir);
+        }
+        log.findFree();
+        RandomAccessFile active = new RandomAccessFile(log.base, "rw");
+        long[] header = readHeader(active, log.base);
+        log.checkpointLSN = header[0];
+        for (Map.Entry<Long, File> e : log.listNumbered().entrySet()) {
+            if (e.getKey() >= header[1]) continue;
+            RandomAccessFile raf = new RandomAccessFile(e.getValue(), "rw");
+            if (readHeader(raf, e.getValue())[1] != e.getKey()) {
+                raf.close();
+                throw new IOException("log segment " + e.getValue() + " does not start at its LSN");
+            }
+            log.segments.put(e.getKey(), new Segment(e.getValue(), raf, e.getKey()));
+        }
+        log.segments.put(header[1], new Segment(log.base, active, header[1]));
+        return log;
+    }
+
+    /** @return the checkpoint LSN and the first LSN in the header of f */
+    private static long[] readHeader(RandomAccessFile raf, File f) throws IOException {
+        raf.seek(0);
+        if (raf.length() < LogFile.HEADER_SIZE || raf.readInt() != LogFile.LOG_MAGIC) {
+            raf.close();
+            throw new IOException("not a SimpleDb log: " + f);
+        }
+        int version = raf.readInt();
+        if (version != LogFile.LOG_VERSION) {
+            raf.close();
+            throw new IOException("unsupported log format version " + version);
+        }
+        return new long[] {raf.readLong(), raf.readLong()};
+    }
+
+    private static void writeHeader(RandomAccessFile f, long checkpointLSN, long firstLSN) throws IOException {
+        f.seek(0);
+        f.writeInt(LogFile.LOG_MAGIC);
+        f.writeInt(LogFile.LOG_VERSION);
+        f.writeLong(checkpointLSN);
+        f.writeLong(firstLSN);
+    }
+
+    /** Return the file a full segment starting at lsn is renamed to */
+    private File numbered(long lsn) {
+        return new File(dir, base.getName() + "." + String.format("%016x", lsn));
+    }
+
+    /** Return the full segments in the directory, by first LSN */
+    private TreeMap<Long, File> listNumbered() {
+        TreeMap<Long, File> rtn = new TreeMap<>();
+        String prefix = base.getName() + ".";
+        File[] files = dir.listFiles();
+        if (files == null) return rtn;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || name.length() != prefix.length() + 16) continue;
+            try {
+                rtn.put(Long.parseUnsignedLong(name.substring(prefix.length()), 16), f);
+            } catch (NumberFormatException e) {
+                // 不是日志段
+            }
+        }
+        return rtn;
+    }
+
+    private void findFree() {
+        String prefix = base.getName() + FREE_INFIX;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.getName().startsWith(prefix)) free.add(f);
+        }
+    }
+
+    /** Archive, keep for recycling or delete a segment file no longer needed */
+    private void release(File f) throws IOException {
+        if (archiveDir != null) {
+            archiveDir.mkdirs();
+            Files.move(f.toPath(), new File(archiveDir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            numArchived++;
+        } else if (free.size() < MAX_FREE_SEGMENTS) {
+            File to = new File(dir, base.getName() + FREE_INFIX + f.getName().substring(base.getName().length() + 1));
+            if (!f.renameTo(to)) throw new IOException("cannot rename " + f);
+            free.add(to);
+        } else {
+            f.delete();
+        }
+    }
+
+    /**
+     * Reads bytes of the log starting at lsn into dst, without crossing into
+     * the next segment.
+     *
+     * @return the number of bytes read, or -1 past the end of the log
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        Segment seg;
+        long limit;
+        synchronized (this) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(lsn);
+            if (e == null) return -1;
+            seg = e.getValue();
+            Long next = segments.higherKey(e.getKey());
+            limit = next == null ? Long.MAX_VALUE : next;
+        }
+        ByteBuffer part = dst;
+        if (limit - lsn < dst.remaining()) {
+            part = dst.duplicate();
+            part.limit(part.position() + (int) (limit - lsn));
+        }
+        int n = seg.channel.read(part, LogFile.HEADER_SIZE + (lsn - seg.firstLSN));
+        if (part != dst) dst.position(part.position());
+        return n;
+    }
+
+    /**
+     * Writes the bytes of src at lsn, the end of the log, starting a new
+     * segment whenever the active one is full.
+     */
+    void write(ByteBuffer src, long lsn) throws IOException {
+        while (src.hasRemaining()) {
+            Segment seg;
+            long room;
+            synchronized (this) {
+                seg = segments.lastEntry().getValue();
+                long boundary = seg.firstLSN + segmentSize - LogFile.HEADER_SIZE;
+                if (lsn >= boundary) {
+                    seg = roll(lsn);
+                    boundary = lsn + segmentSize - LogFile.HEADER_SIZE;
+                }
+                room = boundary - lsn;
+            }
+            ByteBuffer part = src;
+            if (room < src.remaining()) {
+                part = src.duplicate();
+                part.limit(part.position() + (int) room);
+            }
+            int n = seg.channel.write(part, LogFile.HEADER_SIZE + (lsn - seg.firstLSN));
+            if (part != src) src.position(part.position());
+            lsn += n;
+        }
+    }
+
+    /**
+     * Replaces the full active segment by a new one starting at lsn. The new
+     * segment is prepared under a temporary name, with its header forced,
+     * before the active one is renamed, so that a crash in between leaves a
+     * log that open() can put back together.
+     */
+    private Segment roll(long lsn) throws IOException {
+        Segment old = segments.lastEntry().getValue();
+        File next = new File(base.getPath() + NEXT_SUFFIX);
+        next.delete();
+        File recycled = free.pollFirst();
+        if (recycled != null && recycled.renameTo(next)) {
+            numRecycled++;
+        } else {
+            numCreated++;
+        }
+        RandomAccessFile raf = new RandomAccessFile(next, "rw");
+        writeHeader(raf, checkpointLSN, lsn);
+        raf.getChannel().force(true);
+        // 旧段先刷盘，之后刷盘只需要刷新的段
+        old.channel.force(true);
+        File full = numbered(old.firstLSN);
+        if (!base.renameTo(full)) throw new IOException("cannot rename " + base);
+        old.file = full;
+        if (!next.renameTo(base)) throw new IOException("cannot rename " + next);
+        Segment seg = new Segment(base, raf, lsn);
+        segments.put(lsn, seg);
+        return seg;
+    }
+
+    /** Force every byte written so far to disk */
+    void force() throws IOException {
+        Segment seg;
+        synchronized (this) {
+            seg = segments.lastEntry().getValue();
+        }
+        seg.channel.force(true);
+    }
+
+    /**
+     * Removes the segments that end at or before lsn. The active segment is
+     * never removed.
+     *
+     * @return the number of segments removed
+     */
+    synchronized int removeBefore(long lsn) throws IOException {
+        int removed = 0;
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> first = segments.firstEntry();
+            if (segments.higherKey(first.getKey()) > lsn) break;
+            segments.pollFirstEntry();
+            first.getValue().raf.close();
+            release(first.getValue().file);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Cuts the log at lsn, e.g. to drop the torn tail left by a crash. The
+     * segment holding lsn becomes the active one.
+     */
+    synchronized void truncate(long lsn) throws IOException {
+        while (segments.size() > 1 && segments.lastKey() > lsn) {
+            Segment seg = segments.pollLastEntry().getValue();
+            seg.raf.close();
+            seg.file.delete();
+        }
+        Segment active = segments.lastEntry().getValue();
+        if (!active.file.equals(base)) {
+            // 只有在刚换段时崩溃才会走到这里
+            base.delete();
+            if (!active.file.renameTo(base)) throw new IOException("cannot rename " + active.file);
+            active.file = base;
+            active.raf.seek(LogFile.CHECKPOINT_PTR_OFFSET);
+            active.raf.writeLong(checkpointLSN);
+        }
+        active.raf.setLength(LogFile.HEADER_SIZE + (lsn - active.firstLSN));
+    }
+
+    /** Store the LSN of the last checkpoint record in the active segment */
+    synchronized void setCheckpointLSN(long lsn) throws IOException {
+        checkpointLSN = lsn;
+        ByteBuffer b = ByteBuffer.allocate(LogFile.LONG_SIZE);
+        b.putLong(0, lsn);
+        segments.lastEntry().getValue().channel.write(b, LogFile.CHECKPOINT_PTR_OFFSET);
+    }
+
+    synchronized long getCheckpointLSN() {
+        return checkpointLSN;
+    }
+
+    /** Return the LSN of the first byte kept in the log */
+    synchronized long getFirstLSN() {
+        return segments.firstKey();
+    }
+
+    /** Set the size of the segments started from now on */
+    synchronized void setSegmentSize(long bytes) {
+        segmentSize = bytes;
+    }
+
+    /** Set where removed segments are moved to, or null to recycle them */
+    synchronized void setArchiveDirectory(File dir) {
+        archiveDir = dir;
+    }
+
+    /** Return the number of segments in the log, including the active one */
+    synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    /** Return the number of segments started in a new file */
+    synchronized long getNumCreated() {
+        return numCreated;
+    }
+
+    /** Return the number of segments started in a recycled file */
+    synchronized long getNumRecycled() {
+        return numRecycled;
+    }
+
+    /** Return the number of segments moved to the archive directory */
+    synchronized long getNumArchived() {
+        return numArchived;
+    }
+
+    synchronized void close() throws IOException {
+        for (Segment seg : segments.values()) {
+            seg.raf.close();
+        }
+    }
+}
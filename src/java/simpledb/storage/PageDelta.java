@@ -0,0 +1,95 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * PageDelta encodes the difference between two images of a page as a list
+ * of changed byte ranges, each with its old and new bytes, so that a log
+ * record can be redone (write the new bytes) or undone (write the old bytes)
+ * without storing either image in full.
+ * <p>
+ * Encoding: an integer number of ranges, then for every range an integer
+ * offset, an integer length, the old bytes and the new bytes.
+ * <p>
+ * Redo and undo only touch the bytes inside the ranges, so they are only
+ * correct when applied to the image the delta was computed against (or its
+ * result); the buffer pool always logs a page's delta against the image it
+ * logged last.
+ */
+class PageDelta {
+
+    /**
+     * Ranges separated by fewer unchanged bytes than this are merged, since
+     * a range header costs two ints.
+     */
+    static final int MERGE_GAP = 2 * LogFile.INT_SIZE;
+
+    /** Write the delta that turns before into after */
+    static void write(DataOutput out, byte[] before, byte[] after) throws IOException {
+        if (before.length != after.length)
+            throw new IllegalArgumentException("page images differ in size");
+        // 先统计出修改过的区间，合并相隔很近的区间
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int n = 0;
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            int j = end;
+            while (j < after.length && j - end < MERGE_GAP) {
+                if (before[j] != after[j]) end = j + 1;
+                j++;
+            }
+            if (n == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * n);
+                ends = Arrays.copyOf(ends, 2 * n);
+            }
+            starts[n] = start;
+            ends[n] = end;
+            n++;
+            i = end;
+        }
+        out.writeInt(n);
+        for (int r = 0; r < n; r++) {
+            out.writeInt(starts[r]);
+            out.writeInt(ends[r] - starts[r]);
+            out.write(before, starts[r], ends[r] - starts[r]);
+            out.write(after, starts[r], ends[r] - starts[r]);
+        }
+    }
+
+    /** Apply the new bytes of a delta to a page image */
+    static void redo(DataInput in, byte[] page) throws IOException {
+        apply(in, page, false);
+    }
+
+    /** Apply the old bytes of a delta to a page image */
+    static void undo(DataInput in, byte[] page) throws IOException {
+        apply(in, page, true);
+    }
+
+    private static void apply(DataInput in, byte[] page, boolean old) throws IOException {
+        int n = in.readInt();
+        for (int r = 0; r < n; r++) {
+            int offset = in.readInt();
+            int length = in.readInt();
+            if (offset < 0 || length < 0 || offset + length > page.length)
+                throw new IOException("delta range out of page bounds");
+            if (old) {
+                in.readFully(page, offset, length);
+                in.skipBytes(length);
+            } else {
+                in.skipBytes(length);
+                in.readFully(page, offset, length);
+            }
+        }
+    }
+}
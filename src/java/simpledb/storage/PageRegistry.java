@@ -0,0 +1,138 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageRegistry assigns a small integer tag to every page class, and knows
+ * how to rebuild a page of each class from its id fields
+ * ({@link PageId#serialize()}) and its bytes ({@link Page#getPageData()}).
+ * The log writes the tag instead of class names, and recovery rebuilds
+ * pages through the registered factories instead of reflection.
+ * <p>
+ * Tags are part of the log format: never reuse or renumber one. A new page
+ * class registers itself with a new tag.
+ * <p>
+ * A class can also be registered as delta logged: updates to its pages are
+ * logged as the byte ranges that changed instead of two full images. This
+ * pays off for pages that mostly see small in-place changes, like heap and
+ * B+ tree leaf pages taking single tuple inserts and deletes.
+ *
+ * @Threadsafe
+ */
+public class PageRegistry {
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_ROOT_PTR_PAGE = 2;
+    public static final int BTREE_INTERNAL_PAGE = 3;
+    public static final int BTREE_LEAF_PAGE = 4;
+    public static final int BTREE_HEADER_PAGE = 5;
+
+    /** Rebuilds a page id from the fields returned by {@link PageId#serialize()} */
+    public interface IdFactory {
+        PageId create(int[] fields);
+    }
+
+    /** Rebuilds a page from its id and the bytes returned by {@link Page#getPageData()} */
+    public interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static class Entry {
+        final IdFactory ids;
+        final PageFactory pages;
+        final boolean deltas;
+
+        Entry(IdFactory ids, PageFactory pages, boolean deltas) {
+            this.ids = ids;
+            this.pages = pages;
+            this.deltas = deltas;
+        }
+    }
+
+    private static final Map<Integer, Entry> entries = new HashMap<>();
+    private static final Map<Class<?>, Integer> tags = new HashMap<>();
+
+    static {
+        IdFactory heapIds = f -> new HeapPageId(f[0], f[1]);
+        IdFactory btreeIds = f -> new BTreePageId(f[0], f[1], f[2]);
+        register(HEAP_PAGE, HeapPage.class, heapIds,
+                (pid, data) -> new HeapPage((HeapPageId) pid, data), true);
+        register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class, btreeIds,
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class, btreeIds,
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        register(BTREE_LEAF_PAGE, BTreeLeafPage.class, btreeIds,
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)), true);
+        register(BTREE_HEADER_PAGE, BTreeHeaderPage.class, btreeIds,
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+    }
+
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /**
+     * Registers a page class whose updates are logged as full images.
+     *
+     * @param tag the tag written to the log for pages of this class
+     * @throws IllegalArgumentException if the tag or the class is already registered
+     */
+    public static void register(int tag, Class<? extends Page> pageClass,
+                                IdFactory ids, PageFactory pages) {
+        register(tag, pageClass, ids, pages, false);
+    }
+
+    /**
+     * Registers a page class.
+     *
+     * @param tag the tag written to the log for pages of this class
+     * @param deltas true to log updates to these pages as changed byte ranges
+     * @throws IllegalArgumentException if the tag or the class is already registered
+     */
+    public static synchronized void register(int tag, Class<? extends Page> pageClass,
+                                             IdFactory ids, PageFactory pages, boolean deltas) {
+        if (entries.containsKey(tag) || tags.containsKey(pageClass))
+            throw new IllegalArgumentException("page tag " + tag + " or " + pageClass.getName() + " already registered");
+        entries.put(tag, new Entry(ids, pages, deltas));
+        tags.put(pageClass, tag);
+    }
+
+    /**
+     * Return the tag of the given page's class
+     *
+     * @throws IllegalArgumentException if the class was never registered
+     */
+    public static synchronized int tagOf(Page p) {
+        Integer tag = tags.get(p.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("no page tag registered for " + p.getClass().getName());
+        return tag;
+    }
+
+    /** Return true if updates to the given page are logged as deltas */
+    public static boolean logsDeltas(Page p) throws IOException {
+        return entry(tagOf(p)).deltas;
+    }
+
+    /** Rebuild a page id of the class registered under tag */
+    public static PageId createId(int tag, int[] fields) throws IOException {
+        return entry(tag).ids.create(fields);
+    }
+
+    /** Rebuild a page of the class registered under tag */
+    public static Page createPage(int tag, PageId pid, byte[] data) throws IOException {
+        return entry(tag).pages.create(pid, data);
+    }
+
+    private static synchronized Entry entry(int tag) throws IOException {
+        Entry e = entries.get(tag);
+        if (e == null)
+            throw new IOException("unknown page tag " + tag);
+        return e;
+    }
+}
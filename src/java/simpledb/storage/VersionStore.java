@@ -0,0 +1,256 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * VersionStore keeps the committed images of pages that are being (or have
+ * been) overwritten, so that read-only transactions can read a consistent
+ * snapshot of the database without taking any page locks.
+ * <p>
+ * Every committing writer is assigned a commit timestamp from a logical
+ * clock. A snapshot transaction remembers the clock value at the time it
+ * started and, for every page it reads, sees the newest image committed at or
+ * before that timestamp:
+ * <ul>
+ * <li>the first time a writer gets a page READ_WRITE, the committed bytes of
+ * the page are captured as a <em>pending</em> image;</li>
+ * <li>when the writer commits with timestamp T, each pending image is moved
+ * into the page's version chain tagged with end timestamp T (the image was
+ * current for every snapshot older than T);</li>
+ * <li>when the writer aborts, its pending images are simply dropped.</li>
+ * </ul>
+ * Versions whose end timestamp is not newer than the oldest active snapshot
+ * can never be read again and are garbage collected.
+ * <p>
+ * Writers still use strict two-phase locking among themselves, so read-only
+ * transactions get snapshot isolation and update transactions stay
+ * serializable.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /**
+     * An immutable committed image of a page. The page object is built lazily
+     * and shared by every snapshot that reads this image, so snapshot readers
+     * must never modify the pages they get.
+     */
+    static class PageImage {
+        private final PageId pid;
+        private final int tag;
+        private final byte[] data;
+        private volatile Page page;
+
+        PageImage(Page current) {
+            this.pid = current.getId();
+            this.tag = PageRegistry.tagOf(current);
+            this.data = current.getPageData();
+        }
+
+        Page getPage() throws DbException {
+            Page p = page;
+            if (p == null) {
+                // 多个读者并发解析也没关系，结果是一样的
+                try {
+                    p = PageRegistry.createPage(tag, pid, data);
+                } catch (IOException e) {
+                    throw new DbException("unable to rebuild page " + pid + " from its version: " + e.getMessage());
+                }
+                page = p;
+            }
+            return p;
+        }
+    }
+
+    /** An image that was current for every snapshot older than endTs */
+    private static class Version {
+        final long endTs;
+        final PageImage image;
+
+        Version(long endTs, PageImage image) {
+            this.endTs = endTs;
+            this.image = image;
+        }
+    }
+
+    /** The committed image of a page that an uncommitted writer is modifying */
+    private static class PendingImage {
+        final TransactionId writer;
+        final PageImage image;
+
+        PendingImage(TransactionId writer, PageImage image) {
+            this.writer = writer;
+            this.image = image;
+        }
+    }
+
+    /** the timestamp of the last commit */
+    private long clock = 0;
+
+    /** active snapshot transactions and their snapshot timestamps */
+    private final Map<TransactionId, Long> snapshots = new HashMap<>();
+
+    /** old page versions, ordered by increasing end timestamp */
+    private final Map<PageId, ArrayDeque<Version>> chains = new HashMap<>();
+
+    private final Map<PageId, PendingImage> pending = new HashMap<>();
+    private final Map<TransactionId, List<PageId>> pendingByWriter = new HashMap<>();
+
+    /**
+     * images of the latest committed state of pages nobody is writing, so that
+     * snapshots do not copy the same unchanged page over and over
+     */
+    private final Map<PageId, PageImage> committed = new HashMap<>();
+
+    private int numVersions = 0;
+
+    /**
+     * Starts a snapshot for the given transaction. The transaction will see
+     * all the changes committed before this call and none committed after it.
+     *
+     * @param tid the read-only transaction
+     * @return the snapshot timestamp
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+        return clock;
+    }
+
+    /**
+     * Ends the snapshot of the given transaction and garbage collects the
+     * versions that are no longer visible to any active snapshot.
+     */
+    public synchronized void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            collectGarbage();
+    }
+
+    /** Return true if the given transaction is reading from a snapshot */
+    public synchronized boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * Remembers the committed image of a page before the given writer
+     * modifies it. Must be called with the exclusive lock on the page held
+     * and before the page is returned to the writer.
+     */
+    public synchronized void captureBeforeImage(TransactionId writer, Page page) {
+        PageId pid = page.getId();
+        PendingImage old = pending.get(pid);
+        if (old != null) {
+            // 同一个事务多次以写权限获取该页，只需要保存第一次的镜像
+            if (old.writer.equals(writer)) return;
+            // 之前的写事务没有经过transactionComplete就释放了锁
+            pendingByWriter.getOrDefault(old.writer, Collections.emptyList()).remove(pid);
+        }
+        PageImage image = committed.remove(pid);
+        if (image == null)
+            image = new PageImage(page);
+        pending.put(pid, new PendingImage(writer, image));
+        pendingByWriter.computeIfAbsent(writer, k -> new ArrayList<>()).add(pid);
+    }
+
+    /**
+     * Publishes the changes of a committing writer: the images captured for
+     * it become old versions tagged with a fresh commit timestamp. Must be
+     * called before the writer releases its locks.
+     *
+     * @return the commit timestamp
+     */
+    public synchronized long commit(TransactionId writer) {
+        long commitTs = ++clock;
+        List<PageId> pids = pendingByWriter.remove(writer);
+        if (pids == null) return commitTs;
+        for (PageId pid : pids) {
+            PendingImage old = pending.remove(pid);
+            // 没有活跃的快照时，旧版本不会被任何人读到，直接丢弃
+            if (old == null || snapshots.isEmpty()) continue;
+            chains.computeIfAbsent(pid, k -> new ArrayDeque<>()).addLast(new Version(commitTs, old.image));
+            numVersions++;
+        }
+        return commitTs;
+    }
+
+    /**
+     * Drops the images captured for an aborting writer. Must be called after
+     * the pages it dirtied have been restored in the buffer pool.
+     */
+    public synchronized void abort(TransactionId writer) {
+        List<PageId> pids = pendingByWriter.remove(writer);
+        if (pids == null) return;
+        for (PageId pid : pids) {
+            pending.remove(pid);
+        }
+    }
+
+    /**
+     * Returns the image of the given page as seen by the snapshot of reader.
+     * The caller must hold this object's monitor across fetching current from
+     * the buffer pool and calling this method, so that a concurrent abort
+     * cannot swap the page in between.
+     *
+     * @param reader the snapshot transaction
+     * @param current the page currently cached in the buffer pool
+     */
+    synchronized PageImage readVersion(TransactionId reader, Page current) throws DbException {
+        Long snapshotTs = snapshots.get(reader);
+        if (snapshotTs == null)
+            throw new DbException("transaction " + reader.getId() + " has no active snapshot");
+        PageId pid = current.getId();
+        ArrayDeque<Version> chain = chains.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.endTs > snapshotTs) {
+                    return v.image;
+                }
+            }
+        }
+        PendingImage old = pending.get(pid);
+        if (old != null) return old.image;
+        // 没有人在写这一页，当前页面就是最新的已提交版本
+        PageImage image = committed.get(pid);
+        if (image == null) {
+            image = new PageImage(current);
+            committed.put(pid, image);
+        }
+        return image;
+    }
+
+    /**
+     * Discards every version whose end timestamp is not newer than the oldest
+     * active snapshot.
+     */
+    public synchronized void collectGarbage() {
+        if (snapshots.isEmpty()) {
+            chains.clear();
+            committed.clear();
+            numVersions = 0;
+            return;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<ArrayDeque<Version>> it = chains.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.peekFirst().endTs <= oldest) {
+                chain.pollFirst();
+                numVersions--;
+            }
+            if (chain.isEmpty()) it.remove();
+        }
+    }
+
+    /** Return the number of old page versions currently retained */
+    public synchronized int numVersions() {
+        return numVersions;
+    }
+
+    /** Return the number of active snapshots */
+    public synchronized int numSnapshots() {
+        return snapshots.size();
+    }
+}
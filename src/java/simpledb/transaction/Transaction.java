@@ -11,15 +11,31 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a consistent snapshot of
+     *            the database taken when it starts, without taking any locks,
+     *            and may not modify any page
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // snapshot transactions never write, so they need no log records
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,6 +47,11 @@ public class Transaction {
         return tid;
     }
 
+    /** Return true if this is a read-only snapshot transaction */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -44,6 +65,12 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort); // end the snapshot
+            started = false;
+            return;
+        }
+
         if (started) {
             //write abort log record and rollback transaction
             if (abort) {
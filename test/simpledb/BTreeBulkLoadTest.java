@@ -0,0 +1,164 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private static List<Tuple> sortedTuples(int rows, int seed) {
+		Random random = new Random(seed);
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {random.nextInt(BTreeUtility.MAX_RAND_VALUE), i}));
+		}
+		tuples.sort(new BTreeFileEncoder.TupleComparator(0));
+		return tuples;
+	}
+
+	private static List<Integer> keys(BTreeFile f, TransactionId tid) throws Exception {
+		List<Integer> keys = new ArrayList<>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+	}
+
+	/**
+	 * Loading into an empty file builds a well formed tree, with every page but
+	 * the last ones of each level filled up to the fill factor
+	 */
+	@Test public void loadEmptyTree() throws Exception {
+		BTreeFile f = emptyFile();
+		List<Tuple> tuples = sortedTuples(100000, 0);
+		f.bulkLoad(tid, new TupleIterator(tuples.get(0).getTupleDesc(), tuples), 0.75);
+
+		List<Integer> expected = new ArrayList<>();
+		for(Tuple t : tuples) {
+			expected.add(((IntField) t.getField(0)).getValue());
+		}
+		assertEquals(expected, keys(f, tid));
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		DbFileIterator scan = f.iterator(tid);
+		scan.open();
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				scan.next().getRecordId().getPageId(), Permissions.READ_ONLY);
+		scan.close();
+		assertEquals((int) (0.75 * first.getMaxTuples()), first.getNumTuples());
+
+		// the tree takes lookups and inserts like any other
+		int key = expected.get(expected.size() / 2);
+		DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+		Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		assertEquals(tuples.size() + 1, keys(f, tid).size());
+	}
+
+	/**
+	 * Loading into a tree that has tuples keeps them, merged with the new ones,
+	 * and frees the pages of the old tree
+	 */
+	@Test public void mergeIntoExistingTree() throws Exception {
+		List<List<Integer>> existing = new ArrayList<>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, existing, 0);
+		List<Tuple> tuples = sortedTuples(30000, 1);
+		f.bulkLoad(tid, new TupleIterator(tuples.get(0).getTupleDesc(), tuples), 1.0);
+
+		List<Integer> expected = new ArrayList<>();
+		for(List<Integer> t : existing) {
+			expected.add(t.get(0));
+		}
+		for(Tuple t : tuples) {
+			expected.add(((IntField) t.getField(0)).getValue());
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys(f, tid));
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+
+		// the pages of the old tree are handed out again
+		tid = new TransactionId();
+		int pages = f.numPages();
+		for(int i = 0; i < 2000; i++) {
+			Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		assertEquals(pages, f.numPages());
+		assertEquals(expected.size() + 2000, keys(f, tid).size());
+	}
+
+	/**
+	 * Input out of order is rejected, and an aborted load leaves the old tree
+	 */
+	@Test public void unsortedAndAborted() throws Exception {
+		List<List<Integer>> existing = new ArrayList<>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, existing, 0);
+		List<Tuple> tuples = sortedTuples(5000, 2);
+		List<Tuple> unsorted = new ArrayList<>(tuples);
+		Collections.swap(unsorted, 10, 4000);
+		try {
+			f.bulkLoad(tid, new TupleIterator(tuples.get(0).getTupleDesc(), unsorted), 1.0);
+			fail("unsorted input should be rejected");
+		} catch(DbException e) {
+			// expected
+		}
+		assertEquals(existing.size(), keys(f, tid).size());
+
+		f.bulkLoad(tid, new TupleIterator(tuples.get(0).getTupleDesc(), tuples), 1.0);
+		assertEquals(existing.size() + tuples.size(), keys(f, tid).size());
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertEquals(existing.size(), keys(f, tid).size());
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
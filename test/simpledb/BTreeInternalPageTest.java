@@ -174,6 +174,35 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty
+	 * slots between its entries
+	 */
+	@Test public void testReverseIteratorWithEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		List<BTreeEntry> delete = new ArrayList<>();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 1) delete.add(e);
+		}
+		for (BTreeEntry e : delete) page.deleteKeyAndRightChild(e);
+
+		List<BTreeEntry> forward = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext()) forward.add(it.next());
+		List<BTreeEntry> backward = new ArrayList<>();
+		it = page.reverseIterator();
+		while (it.hasNext()) backward.add(0, it.next());
+
+		assertEquals(forward.size(), backward.size());
+		for (int i = 0; i < forward.size(); i++) {
+			assertEquals(forward.get(i).getKey(), backward.get(i).getKey());
+			assertEquals(forward.get(i).getLeftChild(), backward.get(i).getLeftChild());
+			assertEquals(forward.get(i).getRightChild(), backward.get(i).getRightChild());
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,170 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeySearchTest extends SimpleDbTestBase {
+	private static final int MIN = 0;
+	private static final int MAX = 60; // few distinct keys, so many duplicates
+
+	private final Random random = new Random(17);
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void addTable() {
+		Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+	}
+
+	/**
+	 * The child the linear scan of findLeafPage used to pick: the left child of
+	 * the first entry whose key is >= f, or the right child of the last entry.
+	 */
+	private static BTreePageId linearChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	private static List<Tuple> toList(Iterator<Tuple> it) {
+		List<Tuple> tuples = new ArrayList<>();
+		while (it.hasNext()) tuples.add(it.next());
+		return tuples;
+	}
+
+	/**
+	 * Binary search on an internal page picks the same child as a linear scan,
+	 * with duplicate keys and with empty slots between the entries.
+	 */
+	@Test public void internalPageFindChild() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = BTreeUtility.createRandomInternalPage(pid, 0, BTreePageId.LEAF, MIN, MAX, 2);
+		for (int round = 0; round < 3; round++) {
+			for (int v = MIN - 1; v <= MAX + 1; v++) {
+				IntField f = new IntField(v);
+				assertEquals(linearChild(page, f), page.findChildId(f));
+			}
+			assertEquals(linearChild(page, null), page.findChildId(null));
+
+			// leave holes in the page; the cached keys have to be rebuilt
+			Iterator<BTreeEntry> it = page.iterator();
+			List<BTreeEntry> delete = new ArrayList<>();
+			while (it.hasNext()) {
+				BTreeEntry e = it.next();
+				if (random.nextInt(3) == 0) delete.add(e);
+			}
+			for (BTreeEntry e : delete) page.deleteKeyAndRightChild(e);
+		}
+	}
+
+	/**
+	 * iterator(f) on a leaf page returns exactly the tuples with a key >= f,
+	 * and sees tuples inserted and deleted after an earlier search.
+	 */
+	@Test public void leafPageIteratorFrom() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.LEAF);
+		BTreeLeafPage page = BTreeUtility.createRandomLeafPage(pid, 2, 0, 200, MIN, MAX);
+		for (int round = 0; round < 3; round++) {
+			for (int v = MIN - 1; v <= MAX + 1; v++) {
+				IntField f = new IntField(v);
+				List<Tuple> expected = new ArrayList<>();
+				for (Tuple t : toList(page.iterator())) {
+					if (t.getField(0).compare(Op.GREATER_THAN_OR_EQ, f)) expected.add(t);
+				}
+				assertEquals(expected, toList(page.iterator(f)));
+			}
+
+			for (Tuple t : toList(page.iterator())) {
+				if (random.nextInt(4) == 0) page.deleteTuple(t);
+			}
+			for (int i = 0; i < 20 && page.getNumEmptySlots() > 0; i++) {
+				page.insertTuple(BTreeUtility.getBTreeTuple(
+						new int[] {MIN + random.nextInt(MAX - MIN + 1), random.nextInt()}));
+			}
+			page.checkRep(0, null, null, false, 0);
+		}
+	}
+
+	/**
+	 * String keys are searched through Field.compare.
+	 */
+	@Test public void stringKeys() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+		Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+		BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(-2, 1, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), 0);
+		String[] keys = {"pear", "apple", "fig", "apple", "kiwi", "banana", "fig"};
+		for (int i = 0; i < keys.length; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(keys[i], Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			page.insertTuple(t);
+		}
+		page.checkRep(0, null, null, false, 0);
+		List<Tuple> from = toList(page.iterator(new StringField("banana", Type.STRING_LEN)));
+		assertEquals(5, from.size());
+		assertEquals("banana", ((StringField) from.get(0).getField(0)).getValue());
+		assertEquals(0, toList(page.iterator(new StringField("zebra", Type.STRING_LEN))).size());
+	}
+
+	/**
+	 * Index scans through a tree several levels deep return every matching
+	 * tuple, duplicates included.
+	 */
+	@Test public void indexScans() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, 2000, null, tuples, 0);
+		TransactionId tid = new TransactionId();
+		try {
+			for (int v : new int[] {-1, 0, 7, 999, 1000, 1999, 2000}) {
+				for (Op op : new Op[] {Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN}) {
+					int expected = 0;
+					for (List<Integer> t : tuples) {
+						if (new IntField(t.get(0)).compare(op, new IntField(v))) expected++;
+					}
+					DbFileIterator it = f.indexIterator(tid, new IndexPredicate(op, new IntField(v)));
+					it.open();
+					int actual = 0;
+					while (it.hasNext()) {
+						assertTrue(it.next().getField(0).compare(op, new IntField(v)));
+						actual++;
+					}
+					it.close();
+					assertEquals(op + " " + v, expected, actual);
+				}
+			}
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeySearchTest.class);
+	}
+}
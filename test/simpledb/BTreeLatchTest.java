@@ -0,0 +1,165 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.index.BTreeUtility.BTreeWriter;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final long TIMEOUT = 20000;
+
+	private static int count(BTreeFile f, TransactionId tid) throws Exception {
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * A transaction that has read a leaf through the root and not committed yet
+	 * does not hold a lock on the root, so a writer splitting leaves (and adding
+	 * entries to the root) elsewhere in the tree goes ahead.
+	 */
+	@Test public void splitWhileReaderOpen() throws Exception {
+		// This should create a B+ tree with 100 leaf pages under one root page
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+
+		TransactionId reader = new TransactionId();
+		DbFileIterator fit = bigFile.indexIterator(reader, new IndexPredicate(Op.LESS_THAN, new IntField(100)));
+		fit.open();
+		assertTrue(fit.hasNext());
+		fit.next();
+
+		// enough tuples with the same key to split the right-most leaf more than once
+		TransactionId writer = new TransactionId();
+		BTreeWriter bw = new BTreeWriter(writer, bigFile, BTreeUtility.MAX_RAND_VALUE - 1, 1200);
+		bw.start();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(!bw.succeeded() && bw.getError() == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		assertNull(bw.getError());
+		assertTrue(bw.succeeded());
+		Database.getBufferPool().transactionComplete(writer);
+
+		fit.close();
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * Concurrent single-tuple insert transactions, splitting leaves under the
+	 * same root, lose no tuple and leave a well formed tree.
+	 */
+	@Test public void concurrentInserts() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		final int threads = 4;
+		final int inserts = 300;
+		AtomicReference<Exception> error = new AtomicReference<>();
+
+		List<Thread> workers = new ArrayList<>();
+		for(int i = 0; i < threads; i++) {
+			final Random random = new Random(i);
+			Thread w = new Thread(() -> {
+				try {
+					for(int j = 0; j < inserts; j++) {
+						TransactionId tid = new TransactionId();
+						Tuple t = BTreeUtility.getBTreeTuple(random.nextInt(BTreeUtility.MAX_RAND_VALUE), 2);
+						Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+						Database.getBufferPool().transactionComplete(tid);
+					}
+				} catch(Exception e) {
+					error.compareAndSet(null, e);
+				}
+			});
+			w.start();
+			workers.add(w);
+		}
+		for(Thread w : workers) {
+			w.join(TIMEOUT);
+			assertFalse(w.isAlive());
+		}
+		assertNull(error.get());
+
+		TransactionId tid = new TransactionId();
+		assertEquals(50200 + threads * inserts, count(bigFile, tid));
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), false);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A reader that read the root pointer before the root split, and gets to the
+	 * old root afterwards, finds every key through its right-link: it ends at the
+	 * same child as a reader going down from the new root.
+	 */
+	@Test public void staleReaderMovesRight() throws Exception {
+		// This should create a B+ tree with 100 leaf pages under one root page
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		// the split changes the parent pointer of half the leaves; keep them all cached
+		Database.resetBufferPool(500);
+		TransactionId tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage oldRoot = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_WRITE);
+		assertNull(oldRoot.getRightLinkId());
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		dirtypages.put(oldRoot.getId(), oldRoot);
+		bigFile.splitInternalPage(tid, dirtypages, oldRoot, new IntField(0));
+		BTreeInternalPage newRoot = (BTreeInternalPage) dirtypages.get(
+				((BTreeRootPtrPage) dirtypages.get(rootPtr.getId())).getRootId());
+		assertNotNull(oldRoot.getRightLinkId());
+		assertEquals(newRoot.iterator().next().getKey(), oldRoot.getHighKey());
+
+		for(int v = 0; v <= BTreeUtility.MAX_RAND_VALUE; v += BTreeUtility.MAX_RAND_VALUE / 500) {
+			IntField f = new IntField(v);
+			BTreeInternalPage page = oldRoot;
+			for(BTreePageId right = page.findRightLink(f); right != null; right = page.findRightLink(f)) {
+				page = (BTreeInternalPage) dirtypages.get(right);
+			}
+			BTreeInternalPage fresh = (BTreeInternalPage) dirtypages.get(newRoot.findChildId(f));
+			assertEquals(fresh.getId(), page.getId());
+			assertEquals(fresh.findChildId(f), page.findChildId(f));
+		}
+		assertNull(oldRoot.findRightLink(null));
+
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), false);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
@@ -0,0 +1,282 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static String key(int i) {
+		return String.format("user%07d@example.com", i);
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	private static List<String> keys(BTreeFile f, TransactionId tid) throws Exception {
+		List<String> keys = new ArrayList<>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((StringField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	private BTreeInternalPage root(BTreeFile f) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * An internal page of a string index takes as many entries as their keys fit,
+	 * far more than if each key took the room of the longest string, and reads
+	 * back the same from its bytes
+	 */
+	@Test public void variableLengthEntries() throws Exception {
+		BTreeFile f = emptyFile();
+		BTreePageId pid = new BTreePageId(f.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		int fixedEntries = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(new StringField(key(n * 10), Type.STRING_LEN),
+					new BTreePageId(f.getId(), n + 2, BTreePageId.LEAF),
+					new BTreePageId(f.getId(), n + 3, BTreePageId.LEAF)));
+			n++;
+		}
+		assertEquals(n, page.getNumEntries());
+		assertTrue(n + " entries", n > 5 * fixedEntries);
+
+		// free some slots in the middle
+		Iterator<BTreeEntry> it = page.iterator();
+		for(int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if(i % 3 == 1) {
+				page.deleteKeyAndRightChild(e);
+			}
+		}
+
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(page.getNumEntries(), copy.getNumEntries());
+		Iterator<BTreeEntry> expected = page.iterator();
+		Iterator<BTreeEntry> actual = copy.iterator();
+		while(expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getLeftChild(), a.getLeftChild());
+			assertEquals(e.getRightChild(), a.getRightChild());
+			assertEquals(e.getRecordId(), a.getRecordId());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	/**
+	 * Random inserts and deletes keep a well formed tree, whose internal pages
+	 * hold keys cut down to what separates the leaves
+	 */
+	@Test public void insertAndDelete() throws Exception {
+		BTreeFile f = emptyFile();
+		int rows = 15000;
+		List<Integer> order = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(0));
+		for(int i = 0; i < rows; i++) {
+			Database.getBufferPool().insertTuple(tid, f.getId(), tuple(key(order.get(i)), i));
+			if(i % 10000 == 9999) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+
+		List<String> expected = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			expected.add(key(i));
+		}
+		assertEquals(expected, keys(f, tid));
+
+		BTreeInternalPage root = root(f);
+		BTreeEntry first = root.iterator().next();
+		assertTrue(first.getKey() + " is not shorter than the keys",
+				((StringField) first.getKey()).getValue().length() < key(0).length());
+		BTreePage child = (BTreePage) Database.getBufferPool().getPage(tid, first.getLeftChild(), Permissions.READ_ONLY);
+		assertEquals("two levels of internal pages", BTreePageId.INTERNAL, child.getId().pgcateg());
+
+		// delete all but every tenth key, so that pages on both levels merge and redistribute
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		List<Tuple> doomed = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 10 != 0) {
+				doomed.add(t);
+			}
+		}
+		it.close();
+		Set<Field> deleted = new HashSet<>();
+		for(Tuple t : doomed) {
+			deleted.add(t.getField(0));
+		}
+		Collections.shuffle(doomed, new Random(1));
+		for(int i = 0; i < doomed.size(); i++) {
+			Database.getBufferPool().deleteTuple(tid, doomed.get(i));
+			if(i % 10000 == 9999) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+		assertEquals(rows - doomed.size(), keys(f, tid).size());
+
+		for(int i = 0; i < rows; i += 997) {
+			StringField k = new StringField(key(i), Type.STRING_LEN);
+			it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, k));
+			it.open();
+			assertEquals(key(i), !deleted.contains(k), it.hasNext());
+			it.close();
+		}
+	}
+
+	/**
+	 * A bulk loaded string index fills its internal pages by the bytes of their
+	 * entries
+	 */
+	@Test public void bulkLoad() throws Exception {
+		BTreeFile f = emptyFile();
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < 10000; i++) {
+			tuples.add(tuple(key(i), i));
+		}
+		f.bulkLoad(tid, new TupleIterator(TD, tuples), 1.0);
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+		assertEquals(tuples.size(), keys(f, tid).size());
+
+		// every leaf fits under the one root
+		BTreeInternalPage root = root(f);
+		BTreePageId child = root.iterator().next().getLeftChild();
+		assertEquals(BTreePageId.LEAF, child.pgcateg());
+		int fixedEntries = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		assertTrue(root.getNumEntries() + " entries", root.getNumEntries() > 10 * fixedEntries);
+
+		DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS,
+				new StringField(key(1234), Type.STRING_LEN)));
+		it.open();
+		assertEquals(1234, ((IntField) it.next().getField(1)).getValue());
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * Deletes from a bulk loaded tree, whose parents of the leaves are about full
+	 */
+	private void deleteFromBulkLoadedTree(double fillFactor) throws Exception {
+		BTreeFile f = emptyFile();
+		int rows = 30000;
+		List<Tuple> tuples = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			tuples.add(tuple(key(i), i));
+		}
+		f.bulkLoad(tid, new TupleIterator(TD, tuples), fillFactor);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// delete most of the first two fifths, so that leaves merge and their parent
+		// takes entries from its full sibling, and runs of keys further on, so that
+		// leaves take tuples from their full siblings
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		List<Tuple> doomed = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int i = ((IntField) t.getField(1)).getValue();
+			if(i < rows * 2 / 5 ? i % 10 != 0 : i % 97 < 20) {
+				doomed.add(t);
+			}
+		}
+		it.close();
+		Collections.shuffle(doomed, new Random(2));
+		for(int i = 0; i < doomed.size(); i++) {
+			Database.getBufferPool().deleteTuple(tid, doomed.get(i));
+			if(i % 10000 == 9999) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+		assertEquals(rows - doomed.size(), keys(f, tid).size());
+	}
+
+	/**
+	 * Moving tuples between leaves changes a key in their parent, which may not
+	 * fit in a full page any more, so the parent splits first
+	 */
+	@Test public void deleteFromFullPages() throws Exception {
+		deleteFromBulkLoadedTree(1.0);
+	}
+
+	/**
+	 * An internal page that lost most of its entries takes entries from a sibling
+	 * too full to merge with, evened out by their bytes
+	 */
+	@Test public void redistributeInternalPages() throws Exception {
+		deleteFromBulkLoadedTree(0.9);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
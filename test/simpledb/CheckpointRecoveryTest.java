@@ -0,0 +1,89 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.systemtest.LogTestBase;
+import simpledb.transaction.Transaction;
+
+public class CheckpointRecoveryTest extends LogTestBase {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        createTables("cp1.db", "cp2.db");
+    }
+
+    /**
+     * A transaction active at the checkpoint, with updates on both sides of
+     * it, is undone by following its chain of updates back past the
+     * checkpoint.
+     */
+    @Test public void loserSpanningCheckpoint() throws Exception {
+        Transaction loser = begin();
+        insertRow(hf1, loser, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        commitRow(hf2, 2);
+        insertRow(hf1, loser, 3);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(0, count(hf1, 1, 2));
+        assertEquals(0, count(hf1, 3, 4));
+        assertEquals(1, count(hf2, 2, 3));
+    }
+
+    /**
+     * A transaction active at the checkpoint that commits after it is kept.
+     */
+    @Test public void committedAcrossCheckpoint() throws Exception {
+        Transaction t = begin();
+        insertRow(hf1, t, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf1, t, 2);
+        t.commit();
+        crash();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(1, count(hf1, 2, 3));
+    }
+
+    /**
+     * A transaction rolled back before the checkpoint stays rolled back.
+     */
+    @Test public void abortedBeforeCheckpoint() throws Exception {
+        Transaction t = begin();
+        insertRow(hf1, t, 1);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        Database.getLogFile().logCheckpoint();
+        commitRow(hf1, 2);
+        crash();
+        assertEquals(0, count(hf1, 1, 2));
+        assertEquals(1, count(hf1, 2, 3));
+    }
+
+    /**
+     * Recovering twice gives the same result: the first recovery logs the
+     * undo of the losers.
+     */
+    @Test public void recoverTwice() throws Exception {
+        commitRow(hf1, 1);
+        Database.getLogFile().logCheckpoint();
+        Transaction loser = begin();
+        insertRow(hf1, loser, 2);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        crash();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(0, count(hf1, 2, 3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointRecoveryTest.class);
+    }
+}
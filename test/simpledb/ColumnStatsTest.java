@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.ColumnStats;
+import simpledb.optimizer.HyperLogLog;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+public class ColumnStatsTest {
+
+    /** Whether estimate is within the factor of actual */
+    private static void assertWithin(double actual, double estimate, double factor) {
+        Assert.assertTrue("estimated " + estimate + ", actual " + actual,
+                estimate <= actual * factor && estimate * factor >= actual);
+    }
+
+    /**
+     * The sketch counts distinct integers and strings, also strings that only
+     * differ after a long common prefix, and merged sketches count the values
+     * of both
+     */
+    @Test public void hyperLogLogTest() {
+        HyperLogLog ints = new HyperLogLog();
+        HyperLogLog strings = new HyperLogLog();
+        HyperLogLog half = new HyperLogLog();
+        for (int i = 0; i < 100000; i++) {
+            ints.addInt(i);
+            ints.addInt(i); // 重复的值不多算
+            strings.addString("customer-" + i);
+            if (i < 50000)
+                half.addInt(i);
+        }
+        assertWithin(100000, ints.estimate(), 1.05);
+        assertWithin(100000, strings.estimate(), 1.05);
+
+        HyperLogLog rest = new HyperLogLog();
+        for (int i = 50000; i < 100000; i++)
+            rest.addInt(i);
+        half.merge(rest);
+        assertWithin(100000, half.estimate(), 1.05);
+
+        HyperLogLog few = new HyperLogLog();
+        for (int i = 0; i < 100; i++)
+            few.addInt(i * 7);
+        Assert.assertEquals(100, few.estimate(), 2);
+    }
+
+    /**
+     * A value half of the column holds is a most common value, and the other
+     * values are estimated from the histogram without it
+     */
+    @Test public void skewedSelectivityTest() {
+        ColumnStats s = new ColumnStats(Type.INT_TYPE);
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++)
+            s.addInt(i % 2 == 0 ? 7 : random.nextInt(10000));
+        s.finish(100000);
+
+        assertWithin(0.5, s.estimateSelectivity(Predicate.Op.EQUALS, new IntField(7)), 1.05);
+        assertWithin(0.5 / 10000, s.estimateSelectivity(Predicate.Op.EQUALS, new IntField(500)), 1.5);
+        assertWithin(0.5 + 0.25, s.estimateSelectivity(Predicate.Op.LESS_THAN, new IntField(5000)), 1.05);
+        assertWithin(0.5 * 0.1, s.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(9000)), 1.1);
+        Assert.assertEquals(0.0, s.estimateSelectivity(Predicate.Op.EQUALS, new IntField(20000)), 0.0);
+        Assert.assertEquals(1.0, s.estimateSelectivity(Predicate.Op.LESS_THAN, new IntField(20000)), 0.0);
+        assertWithin(10000, s.distinctValues(), 1.1);
+    }
+
+    /** Strings are compared as whole strings, not by their first characters */
+    @Test public void stringPrefixTest() {
+        ColumnStats s = new ColumnStats(Type.STRING_TYPE);
+        int below = 0;
+        for (int i = 0; i < 10000; i++) {
+            String v = "order-" + i;
+            s.addString(v);
+            if (v.compareTo("order-5") < 0)
+                below++;
+        }
+        s.finish(10000);
+
+        double actual = below / 10000.0;
+        Assert.assertEquals(actual, s.estimateSelectivity(Predicate.Op.LESS_THAN,
+                new StringField("order-5", Type.STRING_LEN)), 0.02);
+        assertWithin(1.0 / 10000, s.estimateSelectivity(Predicate.Op.EQUALS,
+                new StringField("order-1234", Type.STRING_LEN)), 1.1);
+        assertWithin(10000, s.distinctValues(), 1.05);
+    }
+
+    /**
+     * The equality join of two skewed columns counts the pairs of their common
+     * values, which a uniform estimate misses by far
+     */
+    @Test public void joinSelectivityTest() {
+        ColumnStats a = new ColumnStats(Type.INT_TYPE);
+        ColumnStats b = new ColumnStats(Type.INT_TYPE);
+        Map<Integer, Integer> countsA = new HashMap<>(), countsB = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            int v = i % 4 == 0 ? 1 : random.nextInt(1000);
+            a.addInt(v);
+            countsA.merge(v, 1, Integer::sum);
+        }
+        for (int i = 0; i < 20000; i++) {
+            int v = i % 2 == 0 ? 1 : random.nextInt(2000);
+            b.addInt(v);
+            countsB.merge(v, 1, Integer::sum);
+        }
+        a.finish(10000);
+        b.finish(20000);
+
+        double pairs = 0;
+        for (Map.Entry<Integer, Integer> e : countsA.entrySet())
+            pairs += (double) e.getValue() * countsB.getOrDefault(e.getKey(), 0);
+        double actual = pairs / (10000.0 * 20000.0);
+        assertWithin(actual, a.estimateJoinSelectivity(Predicate.Op.EQUALS, b), 1.1);
+        assertWithin(actual, b.estimateJoinSelectivity(Predicate.Op.EQUALS, a), 1.1);
+        assertWithin(1 - actual, a.estimateJoinSelectivity(Predicate.Op.NOT_EQUALS, b), 1.1);
+
+        double lessPairs = 0;
+        for (Map.Entry<Integer, Integer> e : countsA.entrySet()) {
+            for (Map.Entry<Integer, Integer> f : countsB.entrySet()) {
+                if (e.getKey() < f.getKey())
+                    lessPairs += (double) e.getValue() * f.getValue();
+            }
+        }
+        assertWithin(lessPairs / (10000.0 * 20000.0),
+                a.estimateJoinSelectivity(Predicate.Op.LESS_THAN, b), 1.1);
+
+        Assert.assertEquals(-1.0, a.estimateJoinSelectivity(Predicate.Op.EQUALS,
+                new ColumnStats(Type.STRING_TYPE)), 0.0);
+    }
+
+    /**
+     * Statistics built from two parts of a column and merged estimate like
+     * statistics built from the whole column, and know its smallest and
+     * largest values even if the sample missed them
+     */
+    @Test public void mergeTest() {
+        ColumnStats whole = new ColumnStats(Type.INT_TYPE);
+        ColumnStats low = new ColumnStats(Type.INT_TYPE);
+        ColumnStats high = new ColumnStats(Type.INT_TYPE);
+        Random random = new Random(0);
+        for (int i = 0; i < 200000; i++) {
+            // 前一部分的值都在 [0, 1000)，后一部分的在 [1000, 4000)
+            int v = i < 50000 ? random.nextInt(1000) : 1000 + random.nextInt(3000);
+            whole.addInt(v);
+            (i < 50000 ? low : high).addInt(v);
+        }
+        whole.addInt(-1000000);
+        low.addInt(-1000000);
+        low.merge(high);
+        whole.finish(200001);
+        low.finish(200001);
+
+        for (int v : new int[] {500, 1000, 2500, 3999}) {
+            IntField f = new IntField(v);
+            Assert.assertEquals(whole.estimateSelectivity(Predicate.Op.LESS_THAN, f),
+                    low.estimateSelectivity(Predicate.Op.LESS_THAN, f), 0.01);
+        }
+        Assert.assertEquals(0.25, low.estimateSelectivity(Predicate.Op.LESS_THAN, new IntField(1000)), 0.01);
+        assertWithin(4001, low.distinctValues(), 1.05);
+        Assert.assertTrue(low.estimateSelectivity(Predicate.Op.GREATER_THAN, new IntField(-1000001)) == 1.0);
+        Assert.assertTrue(low.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, new IntField(-1000000)) > 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnStatsTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.LogTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.RandomAccessFile;
+
+public class DeltaLogTest extends LogTestBase {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        createTables("delta.db", null);
+    }
+
+    /**
+     * Once a page has been logged, further updates to it are logged as the
+     * bytes that changed rather than two full images.
+     */
+    @Test public void deltaRecordsAreSmaller() throws Exception {
+        LogFile log = Database.getLogFile();
+        commitRow(hf1, 1);
+        long start = log.getEndLSN();
+        commitRow(hf1, 2);
+        long deltaBytes = log.getEndLSN() - start;
+
+        log.setDeltaLogging(false);
+        start = log.getEndLSN();
+        commitRow(hf1, 3);
+        long fullBytes = log.getEndLSN() - start;
+
+        assertTrue(fullBytes > 2 * BufferPool.getPageSize());
+        assertTrue("delta " + deltaBytes + " bytes, full " + fullBytes + " bytes",
+                deltaBytes * 20 < fullBytes);
+    }
+
+    /**
+     * Recovery rebuilds a page from its first full image and the deltas
+     * logged after it.
+     */
+    @Test public void redoDeltas() throws Exception {
+        for (int v = 1; v <= 5; v++)
+            commitRow(hf1, v);
+        try (RandomAccessFile f = new RandomAccessFile(file1, "rw")) {
+            f.write(new byte[BufferPool.getPageSize()]);
+        }
+        crash();
+        for (int v = 1; v <= 5; v++)
+            assertEquals(1, count(hf1, v, v + 1));
+    }
+
+    /**
+     * Deltas of a transaction that never finished are undone by recovery.
+     */
+    @Test public void undoDeltasOfLoser() throws Exception {
+        commitRow(hf1, 1);
+        commitRow(hf1, 2);
+        Transaction t = begin();
+        insertRow(hf1, t, 3);
+        Database.getBufferPool().flushAllPages(); // steal the uncommitted page
+        crash();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(1, count(hf1, 2, 3));
+        assertEquals(0, count(hf1, 3, 4));
+
+        // recovery logged an abort for the loser, so a second crash changes nothing
+        commitRow(hf1, 4);
+        crash();
+        assertEquals(0, count(hf1, 3, 4));
+        assertEquals(1, count(hf1, 4, 5));
+    }
+
+    /**
+     * A rollback is logged, so the deltas logged after it for the same page
+     * are redone on top of the rolled back image.
+     */
+    @Test public void abortThenCommit() throws Exception {
+        commitRow(hf1, 1);
+        Transaction t = begin();
+        insertRow(hf1, t, 2);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        commitRow(hf1, 3);
+        commitRow(hf1, 4);
+        crash();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(0, count(hf1, 2, 3));
+        assertEquals(1, count(hf1, 3, 4));
+        assertEquals(1, count(hf1, 4, 5));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeltaLogTest.class);
+    }
+}
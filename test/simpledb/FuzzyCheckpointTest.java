@@ -0,0 +1,89 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.LogTestBase;
+import simpledb.transaction.Transaction;
+
+public class FuzzyCheckpointTest extends LogTestBase {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        createTables("fuzzy.db", null);
+    }
+
+    /**
+     * A checkpoint does not write the pages of running transactions, and
+     * reports how long it took and how long it blocked other transactions.
+     */
+    @Test public void checkpointWritesNoPages() throws Exception {
+        commitRow(hf1, 1);
+        Transaction t = begin();
+        insertRow(hf1, t, 2);
+        LogFile log = Database.getLogFile();
+        log.logCheckpoint();
+        assertEquals(1, tuplesOnDisk(hf1));
+        t.commit();
+        assertEquals(2, tuplesOnDisk(hf1));
+
+        assertEquals(1, log.getNumCheckpoints());
+        assertTrue(log.getLastCheckpointPauseNanos() > 0);
+        assertTrue(log.getLastCheckpointPauseNanos() <= log.getLastCheckpointNanos());
+        assertTrue(log.getLastCheckpointPauseNanos() <= log.getMaxCheckpointPauseNanos());
+    }
+
+    /**
+     * With NO-FORCE, committed pages stay in the dirty page table until the
+     * page cleaner writes them; recovery redoes them from their recLSN.
+     */
+    @Test public void noForceCommitsAreRedone() throws Exception {
+        Database.getBufferPool().setForcePagesAtCommit(false);
+        commitRow(hf1, 1);
+        Database.getLogFile().logCheckpoint();
+        commitRow(hf1, 2);
+        crash();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(1, count(hf1, 2, 3));
+    }
+
+    /**
+     * The page cleaner writes back committed pages.
+     */
+    @Test public void cleanerWritesCommittedPages() throws Exception {
+        Database.getBufferPool().setForcePagesAtCommit(false);
+        commitRow(hf1, 1);
+        commitRow(hf1, 2);
+        Database.getBufferPool().cleanPages();
+        assertEquals(2, tuplesOnDisk(hf1));
+    }
+
+    /**
+     * Aborting a transaction keeps the committed updates that were never
+     * written to disk.
+     */
+    @Test public void abortKeepsUnwrittenCommits() throws Exception {
+        Database.getBufferPool().setForcePagesAtCommit(false);
+        commitRow(hf1, 1);
+        Transaction t = begin();
+        insertRow(hf1, t, 2);
+        Database.getBufferPool().flushPages(t.getId());
+        t.abort();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(0, count(hf1, 2, 3));
+        crash();
+        assertEquals(1, count(hf1, 1, 2));
+        assertEquals(0, count(hf1, 2, 3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
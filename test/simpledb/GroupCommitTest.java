@@ -0,0 +1,149 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private LogFile log;
+
+    /** A log whose forces by the flusher fail while failing is set */
+    private static class FailingLogFile extends LogFile {
+        volatile boolean failing = false;
+        volatile int attempts = 0;
+
+        FailingLogFile(File f) throws IOException {
+            super(f);
+        }
+
+        @Override protected void forceLog(long lsn) throws IOException {
+            attempts++;
+            if (failing)
+                throw new IOException("injected force failure");
+            super.forceLog(lsn);
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+    }
+
+    /**
+     * A commit does not return before the log has been forced past its record.
+     */
+    @Test public void commitForcesLog() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long before = log.getNumForces();
+        log.logCommit(tid);
+        assertEquals(before + 1, log.getNumForces());
+
+        // nothing new to force
+        log.forceUpTo(1);
+        assertEquals(before + 1, log.getNumForces());
+    }
+
+    /**
+     * Transactions committing together share forces.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int committers = 8;
+        log.setMaxBatchDelay(20000);
+        List<TransactionId> tids = new ArrayList<>();
+        for (int i = 0; i < committers; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            tids.add(tid);
+        }
+        long before = log.getNumForces();
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (TransactionId tid : tids) {
+            threads.add(new Thread(() -> {
+                try {
+                    log.logCommit(tid);
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        assertTrue(errors.isEmpty());
+        long forces = log.getNumForces() - before;
+        assertTrue("expected fewer forces than commits, got " + forces, forces < committers);
+        assertEquals(2 * committers, log.getTotalRecords());
+    }
+
+    /**
+     * With group commit off, every commit forces the log itself.
+     */
+    @Test public void groupCommitOff() throws Exception {
+        log.setGroupCommit(false);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logXactionBegin(t2);
+        long before = log.getNumForces();
+        log.logCommit(t1);
+        log.logCommit(t2);
+        assertEquals(before + 2, log.getNumForces());
+    }
+
+    /**
+     * A failed force fails the commits of its batch only: the flusher does
+     * not retry while nobody waits, and a later commit succeeds once the
+     * log can be forced again.
+     */
+    @Test public void failedForceFailsOnlyItsBatch() throws Exception {
+        File f = File.createTempFile("grouplog", null);
+        f.deleteOnExit();
+        FailingLogFile failing = new FailingLogFile(f);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        failing.logXactionBegin(t1);
+        failing.logXactionBegin(t2);
+
+        failing.failing = true;
+        try {
+            failing.logCommit(t1);
+            fail("expected the commit to fail with the force");
+        } catch (IOException expected) {
+        }
+        // 没有人在等，不应该一直重试
+        int attempts = failing.attempts;
+        Thread.sleep(200);
+        assertEquals(attempts, failing.attempts);
+
+        failing.failing = false;
+        long before = failing.getNumForces();
+        failing.logCommit(t2);
+        assertEquals(before + 1, failing.getNumForces());
+        // 之前失败的记录也在这次刷盘里写下去了
+        failing.forceUpTo(failing.getEndLSN());
+        assertEquals(before + 1, failing.getNumForces());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
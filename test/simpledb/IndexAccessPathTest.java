@@ -0,0 +1,248 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.OperatorCardinality;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class IndexAccessPathTest extends SimpleDbTestBase {
+
+    private static final int IO_COST = 100;
+    private static final int BIG_ROWS = 20000;
+
+    private TransactionId tid;
+    private final Map<String, TableStats> stats = new HashMap<>();
+
+    /**
+     * Create the B+ tree table big(c0, c1), keyed on c0 = 0 ... BIG_ROWS-1 with
+     * c1 = c0 % 100, and the heap table small(c0, c1) with the specified rows
+     */
+    @Before
+    public void setUp() throws Exception {
+        tid = new TransactionId();
+
+        List<List<Integer>> bigTuples = new ArrayList<>();
+        for (int i = 0; i < BIG_ROWS; i++)
+            bigTuples.add(Arrays.asList(i, i % 100));
+        File hFile = File.createTempFile("table", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        BTreeFile encoded = BTreeFileEncoder.convert(bigTuples, hFile, bFile,
+                BufferPool.getPageSize(), 2, types, ',', 0);
+        // 查询按名字引用字段，重新用有字段名的 TupleDesc 打开
+        BTreeFile big = new BTreeFile(encoded.getFile(), 0,
+                new TupleDesc(types, new String[] {"c0", "c1"}));
+        addTable(big, "big");
+
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            smallTuples.add(Arrays.asList(i * 1000 + 7, i));
+        smallTuples.add(Arrays.asList(BIG_ROWS + 5, 10)); // 在 big 里没有匹配
+        File sFile = File.createTempFile("table", ".dat");
+        sFile.deleteOnExit();
+        HeapFileEncoder.convert(smallTuples, sFile, BufferPool.getPageSize(), 2);
+        HeapFile small = Utility.openHeapFile(2, "c", sFile);
+        addTable(small, "small");
+    }
+
+    private void addTable(simpledb.storage.DbFile f, String name) {
+        Database.getCatalog().addTable(f, name);
+        stats.put(name, new TableStats(f.getId(), IO_COST));
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private OpIterator plan(String query) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static List<List<Integer>> run(OpIterator plan) throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            List<Integer> row = new ArrayList<>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        plan.close();
+        return rows;
+    }
+
+    /** Return the operators of the specified class in the plan */
+    private static <T> List<T> find(OpIterator plan, Class<T> c) {
+        List<T> found = new ArrayList<>();
+        if (c.isInstance(plan))
+            found.add(c.cast(plan));
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null)
+                    found.addAll(find(child, c));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A selective filter on the key field of a B+ tree table reads the table
+     * through its index, a filter on another field or matching most of the
+     * table with a sequential scan
+     */
+    @Test
+    public void filterAccessPathTest() throws Exception {
+        TableStats s = stats.get("big");
+        Assert.assertEquals(0, s.getIndexField());
+        Assert.assertTrue(s.estimateIndexScanCost(0.001) < s.estimateScanCost() / 10);
+        Assert.assertEquals(-1, stats.get("small").getIndexField());
+        Assert.assertEquals(stats.get("small").estimateScanCost(),
+                stats.get("small").estimateIndexScanCost(0.001), 0.0);
+
+        OpIterator plan = plan("SELECT * FROM big b WHERE b.c0 = 1234;");
+        Assert.assertEquals(1, find(plan, BTreeScan.class).size());
+        Assert.assertEquals(0, find(plan, SeqScan.class).size());
+        Assert.assertEquals(Collections.singletonList(Arrays.asList(1234, 34)), run(plan));
+
+        // 键上的范围条件用索引，另一个条件仍由 Filter 来做
+        plan = plan("SELECT * FROM big b WHERE b.c0 < 300 AND b.c1 = 5;");
+        Assert.assertEquals(1, find(plan, BTreeScan.class).size());
+        Assert.assertEquals(1, find(plan, Filter.class).size());
+        Assert.assertEquals(Arrays.asList(Arrays.asList(5, 5), Arrays.asList(105, 5),
+                Arrays.asList(205, 5)), run(plan));
+
+        plan = plan("SELECT * FROM big b WHERE b.c0 > 10;");
+        Assert.assertEquals(0, find(plan, BTreeScan.class).size());
+        Assert.assertEquals(BIG_ROWS - 11, run(plan).size());
+
+        plan = plan("SELECT * FROM big b WHERE b.c1 = 5;");
+        Assert.assertEquals(0, find(plan, BTreeScan.class).size());
+        Assert.assertEquals(BIG_ROWS / 100, run(plan).size());
+    }
+
+    /**
+     * A join whose inner table is indexed on the join field probes the index
+     * for each outer tuple, with the filters on the inner table applied to the
+     * tuples it finds
+     */
+    @Test
+    public void indexJoinTest() throws Exception {
+        OpIterator plan = plan("SELECT * FROM small s, big b WHERE s.c0 = b.c0;");
+        Assert.assertEquals(1, find(plan, IndexNestedLoopJoin.class).size());
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            expected.add(Arrays.asList(i * 1000 + 7, i, i * 1000 + 7, 7));
+        Assert.assertEquals(expected, run(plan));
+
+        // 在 big 上的过滤条件由连接来做
+        plan = plan("SELECT * FROM small s, big b WHERE s.c0 = b.c0 AND b.c0 > 5000;");
+        Assert.assertEquals(1, find(plan, IndexNestedLoopJoin.class).size());
+        Assert.assertEquals(expected.subList(5, 10), run(plan));
+
+        // 范围连接：s.c0 < b.c0 在索引里查 b.c0 > s.c0
+        plan = plan("SELECT * FROM small s, big b WHERE s.c0 < b.c0 AND s.c1 > 7;");
+        Assert.assertEquals(1, find(plan, IndexNestedLoopJoin.class).size());
+        Assert.assertEquals((BIG_ROWS - 8007 - 1) + (BIG_ROWS - 9007 - 1), run(plan).size());
+
+        // 解释执行计划时也能处理索引扫描和索引连接
+        plan = plan("SELECT * FROM small s, big b WHERE s.c0 = b.c0 AND s.c1 < 3 AND b.c1 = 7;");
+        Map<String, Integer> aliases = new HashMap<>();
+        aliases.put("s", Database.getCatalog().getTableId("small"));
+        aliases.put("b", Database.getCatalog().getTableId("big"));
+        OperatorCardinality.updateOperatorCardinality((Operator) plan, aliases, stats);
+        Assert.assertTrue(new QueryPlanVisualizer().getQueryPlanTree(plan).contains("⨝(index)"));
+    }
+
+    /**
+     * The index join rewinds the scan of the inner B+ tree for each outer join
+     * value, and looks a value it has few matches for up only once
+     */
+    @Test
+    public void indexJoinProbeCacheTest() throws Exception {
+        int bigId = Database.getCatalog().getTableId("big");
+        List<List<Integer>> outer = Arrays.asList(Arrays.asList(7), Arrays.asList(1007),
+                Arrays.asList(7), Arrays.asList(BIG_ROWS + 1), Arrays.asList(7),
+                Arrays.asList(1007), Arrays.asList(BIG_ROWS + 1));
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                outerScan(outer), new BTreeScan(tid, bigId, "b", null), new ArrayList<>());
+        List<List<Integer>> expected = Arrays.asList(Arrays.asList(7, 7, 7), Arrays.asList(1007, 1007, 7),
+                Arrays.asList(7, 7, 7), Arrays.asList(7, 7, 7), Arrays.asList(1007, 1007, 7));
+        Assert.assertEquals(expected, run(join));
+
+        join.open();
+        join.rewind();
+        int rows = 0;
+        while (join.hasNext()) {
+            join.next();
+            rows++;
+        }
+        Assert.assertEquals(expected.size(), rows);
+        Assert.assertEquals(3, join.getIndexProbes());
+        join.close();
+
+        // 匹配多于 PROBE_CACHE_TUPLES 的值每次都查索引
+        outer = Arrays.asList(Arrays.asList(BIG_ROWS - 10), Arrays.asList(BIG_ROWS - 10),
+                Arrays.asList(100), Arrays.asList(100));
+        join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+                outerScan(outer), new BTreeScan(tid, bigId, "b", null),
+                Collections.singletonList(new Predicate(1, Predicate.Op.EQUALS, new IntField(99))));
+        join.open();
+        rows = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            Assert.assertTrue(((IntField) t.getField(0)).getValue() < ((IntField) t.getField(1)).getValue());
+            rows++;
+        }
+        Assert.assertEquals(2 * 1 + 2 * (BIG_ROWS / 100 - 1), rows);
+        Assert.assertEquals(3, join.getIndexProbes());
+        join.close();
+    }
+
+    private static OpIterator outerScan(List<List<Integer>> rows) {
+        TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE}, new String[] {"o.c0"});
+        List<Tuple> tuples = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(row.get(0)));
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexAccessPathTest.class);
+    }
+}
@@ -14,6 +14,7 @@ import simpledb.common.Utility;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
@@ -629,4 +630,202 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Check that every join of an order shares a table with the joins before
+     * it, so that the plan has no cross products
+     */
+    private static void assertNoCrossProducts(List<LogicalJoinNode> order) {
+        Set<String> tables = new HashSet<>();
+        for (LogicalJoinNode j : order) {
+            Assert.assertTrue(j + " is a cross product", tables.isEmpty()
+                    || tables.contains(j.t1Alias) || tables.contains(j.t2Alias));
+            tables.add(j.t1Alias);
+            tables.add(j.t2Alias);
+        }
+    }
+
+    /**
+     * Order a star join of 18 tables, whose every set of joins is connected,
+     * and exhaustively a chain of 40 joins, too many joins to index their sets
+     * in an array, in a reasonable amount of time
+     */
+    @Test(timeout = 60000)
+    public void manyJoinsOrderJoinsTest() throws IOException,
+            ParsingException {
+        final int IO_COST = 103;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        LogicalPlan plan = new LogicalPlan();
+
+        // t0 ... t39 are small, t40 is big
+        List<List<Integer>> smallHeapFileTuples = new ArrayList<>();
+        HeapFile smallHeapFile = SystemTestUtil.createRandomHeapFile(2, 100,
+                Integer.MAX_VALUE, null, smallHeapFileTuples, "c");
+        List<List<Integer>> bigHeapFileTuples = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            bigHeapFileTuples.add(smallHeapFileTuples.get(i % 100));
+        }
+        for (int i = 0; i <= 40; i++) {
+            HeapFile f = i == 0 ? smallHeapFile : createDuplicateHeapFile(
+                    i == 40 ? bigHeapFileTuples : smallHeapFileTuples, 2, "c");
+            String name = "t" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), IO_COST));
+            filterSelectivities.put(name, 1.0);
+            plan.addScan(f.getId(), name);
+        }
+
+        List<LogicalJoinNode> star = new ArrayList<>();
+        for (int i = 1; i <= 18; i++) {
+            star.add(new LogicalJoinNode("t0", "t" + i, "c0", "c0",
+                    Predicate.Op.EQUALS));
+        }
+        Collections.shuffle(star);
+        List<LogicalJoinNode> result = new JoinOptimizer(plan, star)
+                .orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(star.size(), result.size());
+        assertNoCrossProducts(result);
+
+        List<LogicalJoinNode> chain = new ArrayList<>();
+        for (int i = 1; i <= 40; i++) {
+            chain.add(new LogicalJoinNode("t" + (i - 1), "t" + i,
+                    "c" + (i % 2), "c" + (i % 2), Predicate.Op.EQUALS));
+        }
+        Collections.shuffle(chain);
+        JoinOptimizer.setExhaustiveJoinLimit(chain.size());
+        try {
+            result = new JoinOptimizer(plan, chain).orderJoins(stats,
+                    filterSelectivities, false);
+        } finally {
+            JoinOptimizer.setExhaustiveJoinLimit(
+                    JoinOptimizer.DEFAULT_EXHAUSTIVE_JOIN_LIMIT);
+        }
+        Assert.assertEquals(chain.size(), result.size());
+        assertNoCrossProducts(result);
+
+        // Make sure that the big table is the outermost table in the join
+        Assert.assertEquals("t40", result.get(result.size() - 1).t2Alias);
+    }
+
+    /**
+     * Above the exhaustive join limit, orderJoins orders joins greedily and by
+     * simulated annealing: the plans have no cross products and cost at most
+     * a little more than the exhaustive ones
+     */
+    @Test(timeout = 60000)
+    public void heuristicOrderJoinsTest() throws IOException,
+            ParsingException {
+        final int IO_COST = 103;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        LogicalPlan plan = new LogicalPlan();
+        Random random = new Random(0);
+        Random data = new Random(1);
+        for (int i = 0; i <= 24; i++) {
+            // 数据用带种子的 data 生成，每次运行的统计信息都一样
+            int rows = 100 + random.nextInt(3000);
+            int maxValue = 10 + random.nextInt(1000);
+            List<List<Integer>> tuples = new ArrayList<>(rows);
+            for (int r = 0; r < rows; r++)
+                tuples.add(Arrays.asList(data.nextInt(maxValue),
+                        data.nextInt(maxValue)));
+            HeapFile f = createDuplicateHeapFile(tuples, 2, "c");
+            String name = "t" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), IO_COST));
+            filterSelectivities.put(name, 0.05 + random.nextDouble() * 0.95);
+            plan.addScan(f.getId(), name);
+        }
+
+        // a random tree of 12 joins
+        List<LogicalJoinNode> tree = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) {
+            tree.add(new LogicalJoinNode("t" + random.nextInt(i), "t" + i,
+                    "c" + random.nextInt(2), "c" + random.nextInt(2),
+                    Predicate.Op.EQUALS));
+        }
+        JoinOptimizer j = new JoinOptimizer(plan, tree);
+        double exhaustiveCost = j.estimatePlanCost(
+                j.orderJoins(stats, filterSelectivities, false), stats,
+                filterSelectivities);
+        List<LogicalJoinNode> result;
+        JoinOptimizer.setExhaustiveJoinLimit(0);
+        try {
+            result = j.orderJoins(stats, filterSelectivities, false);
+        } finally {
+            JoinOptimizer.setExhaustiveJoinLimit(
+                    JoinOptimizer.DEFAULT_EXHAUSTIVE_JOIN_LIMIT);
+        }
+        Assert.assertEquals(tree.size(), result.size());
+        assertNoCrossProducts(result);
+        double heuristicCost = j.estimatePlanCost(result, stats,
+                filterSelectivities);
+        // 连接的基数估计和连接顺序有关，动态规划的结果不一定最便宜，
+        // 启发式的计划可能比它还便宜，所以只检查上界
+        Assert.assertTrue(heuristicCost + " vs " + exhaustiveCost,
+                heuristicCost <= exhaustiveCost * 1.1);
+
+        // a star of 24 joins, too many to order exhaustively
+        Assert.assertTrue(JoinOptimizer.getExhaustiveJoinLimit() < 24);
+        List<LogicalJoinNode> star = new ArrayList<>();
+        for (int i = 1; i <= 24; i++) {
+            star.add(new LogicalJoinNode("t0", "t" + i, "c0", "c1",
+                    Predicate.Op.EQUALS));
+        }
+        Collections.shuffle(star, random);
+        result = new JoinOptimizer(plan, star).orderJoins(stats,
+                filterSelectivities, false);
+        Assert.assertEquals(star.size(), result.size());
+        assertNoCrossProducts(result);
+    }
+
+    /**
+     * More than 63 joins, too many for a set of them to fit in a long, are
+     * ordered heuristically whatever the exhaustive join limit
+     */
+    @Test(timeout = 60000)
+    public void moreJoinsThanMaskBitsTest() throws IOException,
+            ParsingException {
+        final int IO_COST = 103;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        LogicalPlan plan = new LogicalPlan();
+        Random random = new Random(0);
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile first = SystemTestUtil.createRandomHeapFile(2, 100,
+                Integer.MAX_VALUE, null, tuples, "c");
+        for (int i = 0; i <= 70; i++) {
+            HeapFile f = i == 0 ? first : createDuplicateHeapFile(tuples, 2, "c");
+            String name = "t" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), IO_COST));
+            filterSelectivities.put(name, 0.1 + random.nextDouble() * 0.9);
+            plan.addScan(f.getId(), name);
+        }
+
+        // a chain of 70 joins
+        List<LogicalJoinNode> chain = new ArrayList<>();
+        for (int i = 1; i <= 70; i++) {
+            chain.add(new LogicalJoinNode("t" + (i - 1), "t" + i,
+                    "c" + (i % 2), "c" + (i % 2), Predicate.Op.EQUALS));
+        }
+        Collections.shuffle(chain, random);
+        JoinOptimizer j = new JoinOptimizer(plan, chain);
+        List<LogicalJoinNode> result;
+        JoinOptimizer.setExhaustiveJoinLimit(chain.size());
+        try {
+            result = j.orderJoins(stats, filterSelectivities, false);
+        } finally {
+            JoinOptimizer.setExhaustiveJoinLimit(
+                    JoinOptimizer.DEFAULT_EXHAUSTIVE_JOIN_LIMIT);
+        }
+        Assert.assertEquals(chain.size(), result.size());
+        assertNoCrossProducts(result);
+        Assert.assertTrue(j.estimatePlanCost(result, stats,
+                filterSelectivities) < Double.MAX_VALUE);
+    }
 }
@@ -0,0 +1,92 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+    }
+
+    /**
+     * LSNs grow with every record, and records stay in memory until somebody
+     * needs them on disk.
+     */
+    @Test public void appendsAreBuffered() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t1);
+        long lsn1 = log.getEndLSN();
+        log.logXactionBegin(t2);
+        long lsn2 = log.getEndLSN();
+        assertTrue(lsn2 > lsn1);
+        assertEquals(0, log.getNumWrites());
+
+        log.logCommit(t1);
+        assertTrue(log.getEndLSN() > lsn2);
+        // the commit wrote both BEGIN records and itself at once
+        assertEquals(1, log.getNumWrites());
+    }
+
+    /**
+     * Records appended concurrently end up in the file back to back, without
+     * gaps or overlaps, and in far fewer writes than records.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        final int threads = 8;
+        final int perThread = 200;
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < perThread; j++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        assertTrue(errors.isEmpty());
+        assertEquals(2 * threads * perThread, log.getTotalRecords());
+        assertTrue(log.getNumWrites() < 2 * threads * perThread);
+
+        // nothing was truncated, so the log is as long as its last LSN
+        log.force();
+        long end = log.getEndLSN();
+        assertEquals(end, new File("log").length());
+
+        // a recovering log reads every record back and continues after the last
+        LogFile reopened = new LogFile(new File("log"));
+        reopened.recover();
+        assertEquals(end, reopened.getEndLSN());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
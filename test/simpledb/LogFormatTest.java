@@ -0,0 +1,152 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+public class LogFormatTest extends SimpleDbTestBase {
+    private LogFile log;
+    private File logFile;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+        logFile = new File("log");
+    }
+
+    /**
+     * Logs two committed transactions and returns the LSN where the COMMIT
+     * record of the second one starts.
+     */
+    private long logTwoTransactions() throws IOException {
+        TransactionId t1 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logCommit(t1);
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t2);
+        long lastCommit = log.getEndLSN();
+        log.logCommit(t2);
+        return lastCommit;
+    }
+
+    private long recoverEnd() throws IOException {
+        LogFile reopened = new LogFile(logFile);
+        reopened.recover();
+        return reopened.getEndLSN();
+    }
+
+    /**
+     * A record cut short by a crash is dropped, and the log continues after
+     * the last complete record.
+     */
+    @Test public void tornTail() throws Exception {
+        long lastCommit = logTwoTransactions();
+        try (RandomAccessFile f = new RandomAccessFile(logFile, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        assertEquals(lastCommit, recoverEnd());
+    }
+
+    /**
+     * A record whose bytes do not match its checksum ends the log.
+     */
+    @Test public void corruptTail() throws Exception {
+        long lastCommit = logTwoTransactions();
+        try (RandomAccessFile f = new RandomAccessFile(logFile, "rw")) {
+            long pos = f.length() - 10;
+            f.seek(pos);
+            int b = f.read();
+            f.seek(pos);
+            f.write(b ^ 0xff);
+        }
+        assertEquals(lastCommit, recoverEnd());
+    }
+
+    /**
+     * A file that is not a log in this format is refused.
+     */
+    @Test public void wrongMagic() throws Exception {
+        logTwoTransactions();
+        try (RandomAccessFile f = new RandomAccessFile(logFile, "rw")) {
+            f.seek(0);
+            f.writeInt(0);
+        }
+        try {
+            recoverEnd();
+            fail("recovered a log without the magic number");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * B+ tree pages are logged and rebuilt by recovery through the page
+     * registry.
+     */
+    @Test public void btreePagesRecover() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(rootPtr.getRootId());
+        byte[] committed = leaf.getPageData();
+        assertEquals(PageRegistry.BTREE_LEAF_PAGE, PageRegistry.tagOf(leaf));
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, leaf, leaf);
+        log.logCommit(tid);
+
+        // clobber the page on disk; recovery writes the logged image back
+        bf.writePage(new BTreeLeafPage(leaf.getId(), BTreeLeafPage.createEmptyPageData(), 0));
+        new LogFile(logFile).recover();
+        assertArrayEquals(committed, bf.readPage(leaf.getId()).getPageData());
+    }
+
+    /**
+     * The log checksum is CRC-32C: it has the standard check value, reading
+     * eight bytes at a time gives the same checksum as reading them one by one,
+     * and the checksum of the JDK, where there is one, gives the same too.
+     */
+    @Test public void crc32c() {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0xE3069283L, crc.getValue());
+
+        Random random = new Random(0);
+        byte[] b = new byte[200];
+        random.nextBytes(b);
+        for (int len = 0; len <= 100; len++) {
+            int off = random.nextInt(100);
+            crc.reset();
+            crc.update(b, off, len);
+            Crc32c bytes = new Crc32c();
+            for (int i = off; i < off + len; i++)
+                bytes.update(b[i]);
+            assertEquals(bytes.getValue(), crc.getValue());
+            Checksum created = Crc32c.create();
+            created.update(b, off, len);
+            assertEquals(crc.getValue(), created.getValue());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFormatTest.class);
+    }
+}
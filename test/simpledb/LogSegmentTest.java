@@ -0,0 +1,168 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.LogTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+
+public class LogSegmentTest extends LogTestBase {
+    private static final long SEGMENT_SIZE = 64 << 10;
+
+    private File archive;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        deleteSegments();
+        archive = new File("segments.archive");
+        deleteArchive();
+        createTables("segments.db", "segments2.db");
+        configure();
+    }
+
+    @After public void tearDown() {
+        deleteArchive();
+    }
+
+    /** Full page images make every insert log a few kilobytes */
+    private void configure() {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(SEGMENT_SIZE);
+        log.setDeltaLogging(false);
+    }
+
+    private static File[] segmentFiles() {
+        File[] files = new File(".").getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.startsWith("log."));
+        return files == null ? new File[0] : files;
+    }
+
+    private static void deleteSegments() {
+        for (File f : segmentFiles())
+            f.delete();
+    }
+
+    private void deleteArchive() {
+        File[] files = archive.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        archive.delete();
+    }
+
+    /** Insert the rows [from, to) into hf1, each in a transaction of its own */
+    private void commitRows(int from, int to) throws Exception {
+        for (int v = from; v < to; v++)
+            commitRow(hf1, v);
+    }
+
+    @Override protected void crash() throws IOException {
+        restart();
+        configure();
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A log longer than a segment is split into several segment files, and
+     * recovery reads records across them.
+     */
+    @Test public void recoverAcrossSegments() throws Exception {
+        Database.getBufferPool().setForcePagesAtCommit(false);
+        commitRows(0, 40);
+        LogFile log = Database.getLogFile();
+        assertTrue(log.getNumSegments() > 2);
+        assertEquals(log.getNumSegments() - 1, segmentFiles().length);
+        assertTrue(new File("log").length() <= SEGMENT_SIZE);
+        crash();
+        assertEquals(40, count(hf1, 0, 40));
+    }
+
+    /**
+     * A checkpoint drops the segments before it, without copying records,
+     * and keeps a few of them to be recycled as later segments.
+     */
+    @Test public void checkpointRecyclesSegments() throws Exception {
+        commitRows(0, 40);
+        LogFile log = Database.getLogFile();
+        long end = log.getEndLSN();
+        log.logCheckpoint();
+        assertEquals(1, log.getNumSegments());
+        assertTrue(log.getEndLSN() > end);
+
+        commitRows(40, 60);
+        assertTrue(log.getNumRecycledSegments() > 0);
+        assertTrue(log.getNumRecycledSegments() <= 2);
+        crash();
+        assertEquals(60, count(hf1, 0, 60));
+    }
+
+    /**
+     * With an archive directory, the dropped segments are moved there.
+     */
+    @Test public void checkpointArchivesSegments() throws Exception {
+        Database.getLogFile().setArchiveDirectory(archive);
+        commitRows(0, 40);
+        LogFile log = Database.getLogFile();
+        int segments = log.getNumSegments();
+        log.logCheckpoint();
+        File[] archived = archive.listFiles();
+        assertEquals(segments - 1, archived == null ? 0 : archived.length);
+        commitRows(40, 50);
+        assertEquals(0, log.getNumRecycledSegments());
+    }
+
+    /**
+     * The segments holding a running transaction's updates are kept by a
+     * checkpoint, so that the transaction can still be undone after a crash.
+     */
+    @Test public void runningTransactionKeepsSegments() throws Exception {
+        Transaction loser = begin();
+        insertRow(hf2, loser, 1000);
+        Database.getBufferPool().flushAllPages();
+        commitRows(0, 40);
+        LogFile log = Database.getLogFile();
+        int segments = log.getNumSegments();
+        log.logCheckpoint();
+        assertEquals(segments, log.getNumSegments());
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(40, count(hf1, 0, 40));
+        assertEquals(0, count(hf2, 1000, 1001));
+    }
+
+    /**
+     * A crash while a new segment is being put in place loses nothing.
+     */
+    @Test public void crashWhileRolling() throws Exception {
+        Database.getBufferPool().setForcePagesAtCommit(false);
+        commitRows(0, 40);
+        Database.getBufferPool().flushAllPages();
+        restart();
+        // 新段已经准备好，旧段已改名，但新段还没换上日志文件的名字
+        File log = new File("log");
+        assertTrue(log.renameTo(new File("log.next")));
+        configure();
+        Database.getLogFile().recover();
+        assertEquals(40, count(hf1, 0, 40));
+        assertTrue(log.exists());
+        commitRows(40, 45);
+        crash();
+        assertEquals(45, count(hf1, 0, 45));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
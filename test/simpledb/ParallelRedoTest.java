@@ -0,0 +1,70 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.systemtest.LogTestBase;
+import simpledb.transaction.Transaction;
+
+public class ParallelRedoTest extends LogTestBase {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        createTables("redo1.db", "redo2.db");
+        Database.getBufferPool().setForcePagesAtCommit(false);
+    }
+
+    private void crash(int threads) throws Exception {
+        restart();
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Committed updates spread over many pages of two tables, none of them
+     * written before the crash, are redone by several threads; a loser's
+     * updates are undone afterwards.
+     */
+    @Test public void redoManyPages() throws Exception {
+        // 每页能放504条，每个事务都会跨页
+        for (int i = 0; i < 8; i++) {
+            Transaction t = begin();
+            insertRows(hf1, t, i * 300, (i + 1) * 300);
+            insertRows(hf2, t, i * 300, (i + 1) * 300);
+            t.commit();
+        }
+        Transaction loser = begin();
+        insertRows(hf1, loser, 10000, 10400);
+        crash(4);
+        assertEquals(2400, count(hf1, 0, 2400));
+        assertEquals(2400, count(hf2, 0, 2400));
+        assertEquals(0, count(hf1, 10000, 10400));
+    }
+
+    /**
+     * Recovering with one thread and with several gives the same result.
+     */
+    @Test public void sameResultForAnyThreadCount() throws Exception {
+        Transaction t = begin();
+        insertRows(hf1, t, 0, 1500);
+        t.commit();
+        Transaction loser = begin();
+        insertRows(hf2, loser, 0, 700);
+        Database.getBufferPool().flushAllPages();
+        crash(1);
+        assertEquals(1500, count(hf1, 0, 1500));
+        assertEquals(0, count(hf2, 0, 700));
+        crash(8);
+        assertEquals(1500, count(hf1, 0, 1500));
+        assertEquals(0, count(hf2, 0, 700));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.index.BTreeScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+    private static final int IO_COST = 100;
+    private static final int ROWS = 5000;
+
+    private TransactionId tid;
+    private Parser parser;
+    private int tableId;
+
+    /** Create the B+ tree table big(c0, c1), keyed on c0 = 0 ... ROWS-1 with c1 = c0 % 100 */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        parser = new Parser();
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(Arrays.asList(i, i % 100));
+        File hFile = File.createTempFile("table", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        BTreeFile encoded = BTreeFileEncoder.convert(tuples, hFile, bFile,
+                BufferPool.getPageSize(), 2, types, ',', 0);
+        BTreeFile big = new BTreeFile(encoded.getFile(), 0,
+                new TupleDesc(types, new String[] {"c0", "c1"}));
+        Database.getCatalog().addTable(big, "big");
+        tableId = big.getId();
+        TableStats.setTableStats("big", new TableStats(tableId, IO_COST));
+    }
+
+    @After
+    public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        TableStats.getStatsMap().remove("big");
+    }
+
+    private static List<List<Integer>> run(Query query) throws Exception {
+        OpIterator plan = query.getPhysicalPlan();
+        List<List<Integer>> rows = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            List<Integer> row = new ArrayList<>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        plan.close();
+        return rows;
+    }
+
+    private static int indexScans(Query query) {
+        return countScans(query.getPhysicalPlan());
+    }
+
+    private static int countScans(OpIterator plan) {
+        int n = plan instanceof BTreeScan ? 1 : 0;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null)
+                    n += countScans(child);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A prepared point lookup is optimized once and reads the index with
+     * the value bound each time it runs
+     */
+    @Test
+    public void bindTest() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM big b WHERE b.c0 = ? AND b.c1 < 50;");
+        Assert.assertEquals(1, ps.getParameterCount());
+        for (int key : new int[] {7, 1234, 4949}) {
+            Query q = parser.execute(ps, tid, key);
+            Assert.assertEquals(1, indexScans(q));
+            Assert.assertEquals(Collections.singletonList(Arrays.asList(key, key % 100)), run(q));
+        }
+        Assert.assertEquals(Collections.emptyList(), run(parser.execute(ps, tid, 1250)));
+        Assert.assertEquals(Collections.emptyList(), run(parser.execute(ps, tid, -3)));
+        Assert.assertEquals(Collections.emptyList(), run(parser.execute(ps, tid, ROWS + 1)));
+        Assert.assertEquals(6, ps.getExecutions());
+        Assert.assertEquals(1, ps.getOptimizations());
+    }
+
+    /**
+     * The plan is optimized for the values of the first run and kept for
+     * later runs, until the statistics of its table are replaced
+     */
+    @Test
+    public void optimizeTest() throws Exception {
+        PreparedStatement wide = parser.prepare("SELECT * FROM big b WHERE b.c0 > ?;");
+        Query q = parser.execute(wide, tid, 10);
+        Assert.assertEquals(0, indexScans(q));
+        Assert.assertEquals(ROWS - 11, run(q).size());
+        q = parser.execute(wide, tid, ROWS - 3);
+        Assert.assertEquals(0, indexScans(q));
+        Assert.assertEquals(2, run(q).size());
+
+        PreparedStatement narrow = parser.prepare("SELECT * FROM big b WHERE b.c0 > ?;");
+        q = parser.execute(narrow, tid, ROWS - 3);
+        Assert.assertEquals(1, indexScans(q));
+        Assert.assertEquals(2, run(q).size());
+        q = parser.execute(narrow, tid, 10);
+        Assert.assertEquals(1, indexScans(q));
+        Assert.assertEquals(ROWS - 11, run(q).size());
+        Assert.assertEquals(1, narrow.getOptimizations());
+
+        // 统计信息换了，下次运行时重新优化
+        TableStats.setTableStats("big", new TableStats(tableId, IO_COST));
+        q = parser.execute(wide, tid, ROWS - 3);
+        Assert.assertEquals(1, indexScans(q));
+        Assert.assertEquals(2, run(q).size());
+        Assert.assertEquals(2, wide.getOptimizations());
+    }
+
+    /** Statements with subqueries or with bad values are refused */
+    @Test
+    public void errorTest() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT b.c1 FROM big b WHERE b.c0 >= ? AND b.c0 < ?;");
+        Assert.assertEquals(2, ps.getParameterCount());
+        Assert.assertEquals(Arrays.asList(Arrays.asList(10), Arrays.asList(11)), run(parser.execute(ps, tid, 10, 12)));
+        try {
+            parser.execute(ps, tid, 10);
+            Assert.fail("expected a ParsingException for a missing value");
+        } catch (ParsingException expected) {
+        }
+        try {
+            parser.execute(ps, tid, 10, "abc");
+            Assert.fail("expected a ParsingException for a string compared with an integer");
+        } catch (ParsingException expected) {
+        }
+        try {
+            parser.prepare("SELECT * FROM big b WHERE b.c0 = (SELECT s.c0 FROM big s WHERE s.c1 = ?);");
+            Assert.fail("expected a ParsingException for a subquery");
+        } catch (ParsingException expected) {
+        }
+    }
+
+    /** The parser prepares, runs and drops statements by name */
+    @Test
+    public void parserTest() throws Exception {
+        Assert.assertEquals(Arrays.asList("5", "-3", "a, b", "it''s"),
+                Parser.parseValues("5, -3, 'a, b', 'it''s'"));
+        Assert.assertEquals(Collections.emptyList(), Parser.parseValues(" "));
+        try {
+            Parser.parseValues("5, abc");
+            Assert.fail("expected a ParsingException for a value that is not a literal");
+        } catch (ParsingException expected) {
+        }
+
+        parser.processNextStatement("PREPARE lookup AS SELECT * FROM big b WHERE b.c0 = ?;");
+        PreparedStatement ps = parser.getPreparedStatement("LOOKUP");
+        Assert.assertNotNull(ps);
+        Assert.assertEquals(1, ps.getParameterCount());
+        parser.processNextStatement("EXECUTE lookup (5);");
+        parser.processNextStatement("execute Lookup(6);");
+        parser.processNextStatement("EXECUTE lookup;");
+        Assert.assertEquals(2, ps.getExecutions());
+        parser.processNextStatement("DEALLOCATE lookup;");
+        Assert.assertNull(parser.getPreparedStatement("lookup"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanCache;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class QueryPlanCacheTest extends SimpleDbTestBase {
+
+    private static final int IO_COST = 71;
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        TableStats.setTableStats("t", new TableStats(hf.getId(), IO_COST));
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        TableStats.getStatsMap().remove("t");
+    }
+
+    private LogicalPlan plan(String sql) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        return lp;
+    }
+
+    private static int count(OpIterator plan) throws Exception {
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    /** Queries differing only in their literals and layout share a key */
+    @Test public void normalizeTest() {
+        QueryPlanCache.NormalizedQuery a = QueryPlanCache.normalize("SELECT * FROM t1 WHERE t1.c0 < 10 AND t1.c1 = 'it''s';");
+        QueryPlanCache.NormalizedQuery b = QueryPlanCache.normalize("SELECT *  FROM t1\n WHERE t1.c0 < 2.5 AND t1.c1 = 'x';");
+        Assert.assertEquals("SELECT * FROM t1 WHERE t1.c0 < ? AND t1.c1 = ?;", a.getKey());
+        Assert.assertEquals(a.getKey(), b.getKey());
+        Assert.assertEquals(Arrays.asList("10", "it''s"), a.getLiterals());
+        Assert.assertEquals(Arrays.asList("2.5", "x"), b.getLiterals());
+        Assert.assertTrue(a.isQuery());
+        Assert.assertFalse(QueryPlanCache.normalize("insert into t1 values (1, 2);").isQuery());
+    }
+
+    /** A cached plan runs again with the literals of another query */
+    @Test public void reuseTest() throws Exception {
+        QueryPlanCache cache = Database.getQueryPlanCache();
+        String sql = "SELECT * FROM t WHERE t.c0 < 10 AND t.c1 > 20;";
+        LogicalPlan lp = plan(sql);
+        Assert.assertTrue(cache.put(QueryPlanCache.normalize(sql), lp));
+
+        QueryPlanCache.NormalizedQuery other = QueryPlanCache.normalize("SELECT * FROM t WHERE t.c0 < 50 AND t.c1 > 70;");
+        Assert.assertSame(lp, cache.get(other.getKey()));
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 50 && t.get(1) > 70)
+                expected++;
+        }
+        Assert.assertEquals(expected, count(lp.instantiate(tid, other.getLiterals())));
+        Assert.assertNull(cache.get(QueryPlanCache.normalize("SELECT * FROM t WHERE t.c0 = 1;").getKey()));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    /** Plans are dropped once a table is added or the statistics of their tables are replaced */
+    @Test public void invalidationTest() throws Exception {
+        QueryPlanCache cache = Database.getQueryPlanCache();
+        String sql = "SELECT t.c1 FROM t WHERE t.c0 = 3;";
+        QueryPlanCache.NormalizedQuery q = QueryPlanCache.normalize(sql);
+        cache.put(q, plan(sql));
+        Assert.assertNotNull(cache.get(q.getKey()));
+
+        TableStats.setTableStats("t", new TableStats(hf.getId(), IO_COST));
+        Assert.assertNull(cache.get(q.getKey()));
+        Assert.assertEquals(1, cache.getInvalidations());
+
+        cache.put(q, plan(sql));
+        Assert.assertNotNull(cache.get(q.getKey()));
+        Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(1, 10, null, null), "u");
+        Assert.assertNull(cache.get(q.getKey()));
+        Assert.assertEquals(2, cache.getInvalidations());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    /** Plans whose filters do not take the literals of their query, or that were never optimized, are not cached */
+    @Test public void rejectTest() throws Exception {
+        QueryPlanCache cache = Database.getQueryPlanCache();
+        Assert.assertFalse(cache.put(QueryPlanCache.normalize("SELECT * FROM t WHERE t.c0 = 3;"),
+                plan("SELECT * FROM t WHERE t.c0 = 4;")));
+        String sql = "SELECT * FROM t WHERE t.c0 = 3;";
+        Assert.assertFalse(cache.put(QueryPlanCache.normalize(sql), new Parser().generateLogicalPlan(tid, sql)));
+        Assert.assertEquals(2, cache.getRejections());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    /** The parser plans a query shape once and reuses the plan */
+    @Test public void parserTest() {
+        QueryPlanCache cache = Database.getQueryPlanCache();
+        Parser p = new Parser();
+        p.processNextStatement("SELECT * FROM t WHERE t.c0 = 3;");
+        p.processNextStatement("SELECT * FROM t WHERE t.c0 = 4;");
+        p.processNextStatement("insert into t values (1, 2);");
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryPlanCacheTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+    private PageId p2;
+    private TransactionId writer, reader;
+    private BufferPool bp;
+    private int committedEmptySlots;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // three pages, the last one partially full
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        this.p2 = new HeapPageId(empty.getId(), 2);
+        bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        this.writer = new TransactionId();
+        this.reader = new TransactionId();
+        this.committedEmptySlots = ((HeapPage) Database.getCatalog().getDatabaseFile(empty.getId())
+                .readPage(p2)).getNumEmptySlots();
+    }
+
+    private void writeTuple(TransactionId tid) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, p2, Permissions.READ_WRITE);
+        p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+        p.markDirty(true, tid);
+    }
+
+    private int emptySlotsSeenBy(TransactionId tid) throws Exception {
+        return ((HeapPage) bp.getPage(tid, p2, Permissions.READ_ONLY)).getNumEmptySlots();
+    }
+
+    /**
+     * A snapshot reader must not block on, nor see, an uncommitted write.
+     */
+    @Test public void readUnderWriteLock() throws Exception {
+        writeTuple(writer);
+        bp.beginSnapshot(reader);
+        assertEquals(committedEmptySlots, emptySlotsSeenBy(reader));
+        assertFalse(bp.holdsLock(reader, p2));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * A snapshot keeps seeing the state as of its start, even after a writer
+     * commits; a later snapshot sees the commit.
+     */
+    @Test public void laterCommitInvisible() throws Exception {
+        bp.beginSnapshot(reader);
+        writeTuple(writer);
+        bp.transactionComplete(writer, true);
+        assertEquals(committedEmptySlots, emptySlotsSeenBy(reader));
+
+        TransactionId reader2 = new TransactionId();
+        bp.beginSnapshot(reader2);
+        assertEquals(committedEmptySlots - 1, emptySlotsSeenBy(reader2));
+
+        bp.transactionComplete(reader, true);
+        bp.transactionComplete(reader2, true);
+    }
+
+    /**
+     * An aborted write is never visible to a snapshot.
+     */
+    @Test public void abortedWriteInvisible() throws Exception {
+        writeTuple(writer);
+        bp.transactionComplete(writer, false);
+        bp.beginSnapshot(reader);
+        assertEquals(committedEmptySlots, emptySlotsSeenBy(reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * Old versions are kept while a snapshot that may need them is active and
+     * dropped once the oldest snapshot ends.
+     */
+    @Test public void garbageCollection() throws Exception {
+        VersionStore vs = bp.getVersionStore();
+
+        // with nobody reading a snapshot, no version is kept
+        writeTuple(writer);
+        bp.transactionComplete(writer, true);
+        assertEquals(0, vs.numVersions());
+
+        bp.beginSnapshot(reader);
+        TransactionId writer2 = new TransactionId();
+        writeTuple(writer2);
+        bp.transactionComplete(writer2, true);
+        assertEquals(1, vs.numVersions());
+
+        // a snapshot started after the commit does not need the old version
+        TransactionId reader2 = new TransactionId();
+        bp.beginSnapshot(reader2);
+        bp.transactionComplete(reader, true);
+        assertEquals(0, vs.numVersions());
+        assertEquals(committedEmptySlots - 2, emptySlotsSeenBy(reader2));
+        bp.transactionComplete(reader2, true);
+        assertEquals(0, vs.numSnapshots());
+    }
+
+    /**
+     * Snapshot transactions are read-only.
+     */
+    @Test public void snapshotCannotWrite() throws Exception {
+        bp.beginSnapshot(reader);
+        try {
+            bp.getPage(reader, p2, Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(reader, true);
+        assertTrue(bp.getVersionStore().numSnapshots() == 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.systemtest.LogTestBase;
+import simpledb.transaction.Transaction;
+
+public class StealTest extends LogTestBase {
+    private static final int POOL_PAGES = 5;
+    // 每页能放504条，一个事务弄脏的页面比缓冲池能放的多
+    private static final int ROWS = 504 * (POOL_PAGES + 3);
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        createTables("steal.db", null);
+        Database.resetBufferPool(POOL_PAGES);
+    }
+
+    /**
+     * With NO-STEAL, a transaction cannot dirty more pages than the pool holds.
+     */
+    @Test public void noStealCapsTransaction() throws Exception {
+        Transaction t = begin();
+        try {
+            insertRows(hf1, t, 0, ROWS);
+            fail("expected the buffer pool to run out of clean pages");
+        } catch (DbException e) {
+            // 缓冲池里全是脏页
+        }
+        t.abort();
+    }
+
+    /**
+     * With STEAL, dirty pages are evicted and the transaction commits.
+     */
+    @Test public void stealCommits() throws Exception {
+        Database.getBufferPool().setStealPages(true);
+        Transaction t = begin();
+        insertRows(hf1, t, 0, ROWS);
+        t.commit();
+        assertEquals(ROWS, count(hf1, 0, ROWS));
+        crash();
+        assertEquals(ROWS, count(hf1, 0, ROWS));
+    }
+
+    /**
+     * The stolen pages of an aborted transaction are restored from the log.
+     */
+    @Test public void stealAborts() throws Exception {
+        Database.getBufferPool().setStealPages(true);
+        Transaction t = begin();
+        insertRows(hf1, t, 0, 504);
+        t.commit();
+        t = begin();
+        insertRows(hf1, t, 504, ROWS);
+        t.abort();
+        assertEquals(504, count(hf1, 0, ROWS));
+    }
+
+    /**
+     * The stolen pages of a transaction running at the crash are undone by
+     * recovery.
+     */
+    @Test public void stealUndoneByRecovery() throws Exception {
+        Database.getBufferPool().setStealPages(true);
+        Transaction t = begin();
+        insertRows(hf1, t, 0, 504);
+        t.commit();
+        Transaction loser = begin();
+        insertRows(hf1, loser, 504, ROWS);
+        assertTrue(file1.length() > 504 * 8);
+        crash();
+        assertEquals(504, count(hf1, 0, ROWS));
+    }
+
+    /**
+     * The page cleaner writes the dirty pages at the cold end of the pool,
+     * so they can be evicted without writing.
+     */
+    @Test public void coldPagesWritten() throws Exception {
+        Database.resetBufferPool(4 * POOL_PAGES);
+        BufferPool pool = Database.getBufferPool();
+        pool.setStealPages(true);
+        int rows = 504 * 4 * POOL_PAGES / 2;
+        Transaction t = begin();
+        insertRows(hf1, t, 0, rows);
+        pool.writeColdPages();
+        // 第一页最早被弄脏，在lru链表的最尾部
+        assertEquals(504, tuplesOnDisk(hf1));
+        t.commit();
+        assertEquals(rows, count(hf1, 0, rows));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealTest.class);
+    }
+}
@@ -0,0 +1,295 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.Delete;
+import simpledb.execution.Insert;
+import simpledb.execution.Filter;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class TableStatsPersistenceTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    /** A heap file that counts the pages read from it */
+    private static class CountingHeapFile extends HeapFile {
+        int reads = 0;
+
+        CountingHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+
+        @Override public void readPageData(int pageNo, byte[] data) throws IOException {
+            reads++;
+            super.readPageData(pageNo, data);
+        }
+    }
+
+    /** A heap file whose pages past the first cannot be read */
+    private static class FailingHeapFile extends HeapFile {
+        FailingHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override public Page readPage(PageId pid) {
+            if (pid.getPageNumber() > 0)
+                throw new IllegalArgumentException("cannot read page " + pid.getPageNumber());
+            return super.readPage(pid);
+        }
+
+        @Override public void readPageData(int pageNo, byte[] data) throws IOException {
+            if (pageNo > 0)
+                throw new IOException("cannot read page " + pageNo);
+            super.readPageData(pageNo, data);
+        }
+    }
+
+    private HeapFile hf;
+    private String name;
+    private File statsFile;
+
+    /** Create a table of ROWS rows with c0 in [0, 32) and c1 in [0, 32) */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 32, null, new ArrayList<>());
+        name = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(hf, name);
+        statsFile = new File(hf.getFile().getPath() + TableStats.STATS_FILE_SUFFIX);
+        statsFile.deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        TableStats.setRefreshThreshold(TableStats.DEFAULT_REFRESH_MODIFICATIONS,
+                TableStats.DEFAULT_REFRESH_FRACTION);
+        TableStats.getStatsMap().remove(name);
+        statsFile.delete();
+    }
+
+    /** Reopen the table with a file counting its reads, and forget the loaded statistics */
+    private CountingHeapFile reopen() {
+        CountingHeapFile counting = new CountingHeapFile(hf);
+        Database.getCatalog().addTable(counting, name);
+        TableStats.getStatsMap().remove(name);
+        return counting;
+    }
+
+    private void insert(TransactionId tid, int rows, int c0) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(c0));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        Insert insert = new Insert(tid, new TupleIterator(hf.getTupleDesc(), tuples), hf.getId());
+        insert.open();
+        Assert.assertEquals(rows, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    /**
+     * The statistics of a table are built and saved the first time they are
+     * used, and loaded from the saved file without reading the table after
+     * that, unless the table has grown since
+     */
+    @Test public void loadSavedStatisticsTest() throws Exception {
+        TableStats.setRefreshThreshold(Integer.MAX_VALUE, 1.0);
+        Assert.assertFalse(statsFile.exists());
+        TableStats built = TableStats.getTableStats(name);
+        Assert.assertTrue(statsFile.exists());
+        Assert.assertSame(built, TableStats.getTableStats(name));
+        Assert.assertNull(TableStats.getTableStats(SystemTestUtil.getUUID()));
+
+        CountingHeapFile counting = reopen();
+        TableStats loaded = TableStats.getTableStats(name);
+        Assert.assertNotSame(built, loaded);
+        Assert.assertEquals(0, counting.reads);
+        Assert.assertEquals(ROWS, loaded.totalTuples());
+        Assert.assertEquals(built.estimateScanCost(), loaded.estimateScanCost(), 0.0);
+        for (int v : new int[] {0, 10, 31}) {
+            Assert.assertEquals(built.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(v)),
+                    loaded.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(v)), 0.0);
+        }
+
+        // 表多了页，保存的统计信息过时了，重新统计
+        TransactionId tid = new TransactionId();
+        insert(tid, ROWS, 5);
+        Database.getBufferPool().transactionComplete(tid);
+        reopen();
+        TableStats rebuilt = TableStats.getTableStats(name);
+        Assert.assertEquals(2 * ROWS, rebuilt.totalTuples());
+        Assert.assertEquals(0, rebuilt.getModifications());
+    }
+
+    /**
+     * Insert and Delete update the loaded statistics of a table, which are
+     * saved with the changes
+     */
+    @Test public void incrementalMaintenanceTest() throws Exception {
+        TableStats s = TableStats.getTableStats(name);
+        double before = s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(40));
+        Assert.assertEquals(0.0, before, 0.0);
+
+        TransactionId tid = new TransactionId();
+        insert(tid, 500, 40);
+        Assert.assertSame(s, TableStats.getTableStats(name));
+        Assert.assertEquals(ROWS + 500, s.totalTuples());
+        Assert.assertEquals(500, s.getModifications());
+        // 超出原来值域的值计入最边上的桶
+        Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(31)) > 0.2);
+
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)),
+                new SeqScan(tid, hf.getId(), "t"));
+        Filter inserted = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(40)), filter);
+        Delete delete = new Delete(tid, inserted);
+        delete.open();
+        Assert.assertEquals(100, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertEquals(ROWS + 400, s.totalTuples());
+        Assert.assertEquals(600, s.getModifications());
+
+        TableStats.saveStatistics();
+        reopen();
+        TableStats loaded = TableStats.getTableStats(name);
+        Assert.assertEquals(ROWS + 400, loaded.totalTuples());
+        Assert.assertEquals(600, loaded.getModifications());
+    }
+
+    /**
+     * Once enough tuples have changed, the statistics are rebuilt in the
+     * background and the new statistics replace them
+     */
+    @Test public void backgroundRefreshTest() throws Exception {
+        TableStats.setRefreshThreshold(100, 0.0);
+        TableStats s = TableStats.getTableStats(name);
+        long saved = statsFile.lastModified();
+
+        TransactionId tid = new TransactionId();
+        insert(tid, 99, 7);
+        Database.getBufferPool().transactionComplete(tid);
+        Thread.sleep(200);
+        Assert.assertSame(s, TableStats.getTableStats(name));
+
+        tid = new TransactionId();
+        insert(tid, 1, 7);
+        Database.getBufferPool().transactionComplete(tid);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (TableStats.getTableStats(name) == s && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        TableStats fresh = TableStats.getTableStats(name);
+        Assert.assertNotSame(s, fresh);
+        Assert.assertEquals(0, fresh.getModifications());
+        Assert.assertEquals(ROWS + 100, fresh.totalTuples());
+        Assert.assertTrue(statsFile.lastModified() >= saved);
+    }
+
+    /**
+     * Saved statistics are not used once the table has changed without them:
+     * by a Delete while they were not loaded, or by a write to the data file
+     * since they were saved, even though the table kept its number of pages
+     */
+    @Test public void modifiedTableTest() throws Exception {
+        TableStats.setRefreshThreshold(Integer.MAX_VALUE, 1.0);
+        TableStats.getTableStats(name);
+        int pages = hf.numPages();
+
+        // 统计信息没加载时删掉一部分元组，表的页数不变
+        reopen();
+        TransactionId tid = new TransactionId();
+        Delete delete = new Delete(tid, new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(16)),
+                new SeqScan(tid, hf.getId(), "t")));
+        delete.open();
+        int deleted = ((IntField) delete.next().getField(0)).getValue();
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertTrue(deleted > 0);
+        Assert.assertEquals(pages, hf.numPages());
+        Assert.assertNull(TableStats.getStatsMap().get(name));
+
+        // 清空缓冲池，重新统计时从文件读页
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        CountingHeapFile counting = reopen();
+        TableStats rebuilt = TableStats.getTableStats(name);
+        Assert.assertTrue(counting.reads > 0);
+        Assert.assertEquals(ROWS - deleted, rebuilt.totalTuples());
+
+        // 像是上次运行时保存的统计信息：数据文件之后在别处被改写了
+        Assert.assertTrue(hf.getFile().setLastModified(hf.getFile().lastModified() - 10000));
+        rebuilt.save();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        hf.writePage(page);
+        Assert.assertEquals(pages, hf.numPages());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        counting = reopen();
+        TableStats reread = TableStats.getTableStats(name);
+        Assert.assertTrue(counting.reads > 0);
+        Assert.assertEquals(ROWS - deleted - 1, reread.totalTuples());
+
+        // 没再改过的表仍然用保存的统计信息
+        counting = reopen();
+        Assert.assertEquals(ROWS - deleted - 1, TableStats.getTableStats(name).totalTuples());
+        Assert.assertEquals(0, counting.reads);
+    }
+
+    /**
+     * Statistics built from a table that could not be read in full are
+     * neither installed nor saved
+     */
+    @Test public void failedReadTest() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().addTable(new FailingHeapFile(hf), name);
+        TableStats.getStatsMap().remove(name);
+        try {
+            TableStats.getTableStats(name);
+            Assert.fail("expected the failed read to be thrown");
+        } catch (RuntimeException e) {
+            // 读不出来的页让统计失败
+        }
+        Assert.assertNull(TableStats.getStatsMap().get(name));
+        Assert.assertFalse(statsFile.exists());
+
+        // 表能读了之后重新统计
+        reopen();
+        Assert.assertEquals(ROWS, TableStats.getTableStats(name).totalTuples());
+        Assert.assertTrue(statsFile.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableStatsPersistenceTest.class);
+    }
+}
@@ -1,6 +1,8 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,14 +12,23 @@ import org.junit.Assert;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
 import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.StringField;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +171,136 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/** A HeapFile that counts the pages read from disk, parsed or not */
+	private static class CountingHeapFile extends HeapFile {
+		int reads = 0;
+
+		CountingHeapFile(HeapFile f) {
+			super(f.getFile(), f.getTupleDesc());
+		}
+
+		@Override public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+
+		@Override public void readPageData(int pageNo, byte[] data) throws IOException {
+			reads++;
+			super.readPageData(pageNo, data);
+		}
+	}
+
+	/**
+	 * Verify that statistics built from a sample of the pages of a table read
+	 * only those pages, and estimate the cardinality within their error bound
+	 */
+	@Test public void sampledStatisticsTest() throws IOException {
+		final int rows = 51000;
+		CountingHeapFile hf = new CountingHeapFile(SystemTestUtil.createRandomHeapFile(2, rows, 32, null, tuples));
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		Assert.assertTrue(hf.numPages() > 100);
+
+		TableStats s = new TableStats(hf.getId(), IO_COST, 20);
+		Assert.assertEquals(20, s.getSampledPages());
+		Assert.assertEquals(20, hf.reads);
+
+		double error = s.estimateCardinalityError(1.0);
+		Assert.assertTrue(error < rows * 0.05);
+		Assert.assertEquals(rows, s.totalTuples(), Math.max(error, 1));
+		// 估计的满足条件的元组数与实际的相差不超过误差范围（95% 的区间，放宽一倍免得偶尔失败）
+		int below = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(0) < 16)
+				below++;
+		}
+		double sel = s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16));
+		Assert.assertEquals(0.5, sel, 0.1);
+		Assert.assertTrue(s.estimateCardinalityError(sel) > 0);
+		Assert.assertEquals(below, s.estimateTableCardinality(sel), 2 * s.estimateCardinalityError(sel));
+
+		// 页数不超过样本大小的表整个读完，统计是精确的
+		TableStats all = new TableStats(hf.getId(), IO_COST, hf.numPages());
+		Assert.assertEquals(rows, all.totalTuples());
+		Assert.assertEquals(0.0, all.estimateCardinalityError(0.5), 0.0);
+	}
+
+	/**
+	 * Verify that statistics built by several threads, each reading a range of
+	 * the pages, estimate like statistics built by one thread
+	 */
+	@Test public void parallelStatisticsTest() throws IOException {
+		final int rows = 100000;
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 32, null, tuples);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		Assert.assertTrue(hf.numPages() >= 4 * 32);
+
+		int threads = TableStats.getStatsThreads();
+		try {
+			TableStats.setStatsThreads(1);
+			TableStats serial = new TableStats(hf.getId(), IO_COST, 0);
+			TableStats.setStatsThreads(4);
+			TableStats parallel = new TableStats(hf.getId(), IO_COST, 0);
+
+			Assert.assertEquals(rows, serial.totalTuples());
+			Assert.assertEquals(rows, parallel.totalTuples());
+			for (int v = 0; v < 32; v += 4) {
+				for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN}) {
+					Assert.assertEquals(serial.estimateSelectivity(1, op, new IntField(v)),
+							parallel.estimateSelectivity(1, op, new IntField(v)), 0.01);
+				}
+			}
+			Assert.assertEquals(32, parallel.estimateDistinctValues(0), 1);
+		} finally {
+			TableStats.setStatsThreads(threads);
+		}
+	}
+
+	/**
+	 * Verify that statistics built from the bytes of pages not in the buffer
+	 * pool are the same as those built from the tuples of cached pages, for
+	 * integer and string columns
+	 */
+	@Test public void pageBytesStatisticsTest() throws Exception {
+		final int rows = 3000;
+		File text = File.createTempFile("table", ".txt");
+		text.deleteOnExit();
+		try (PrintWriter out = new PrintWriter(text)) {
+			for (int i = 0; i < rows; i++)
+				out.println(i % 97 + ",v" + i % 50);
+		}
+		File data = File.createTempFile("table", ".dat");
+		data.deleteOnExit();
+		Type[] types = {Type.INT_TYPE, Type.STRING_TYPE};
+		HeapFileEncoder.convert(text, data, BufferPool.getPageSize(), 2, types);
+		HeapFile hf = new HeapFile(data, new TupleDesc(types, new String[] {"i", "s"}));
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+		// 缓冲池是空的：从文件的字节统计
+		Database.resetBufferPool(hf.numPages() + 1);
+		TableStats fromBytes = new TableStats(hf.getId(), IO_COST, 0);
+		// 先扫一遍，所有页都在缓冲池里：从元组统计
+		TransactionId tid = new TransactionId();
+		SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+		scan.open();
+		while (scan.hasNext())
+			scan.next();
+		scan.close();
+		Database.getBufferPool().transactionComplete(tid);
+		TableStats fromTuples = new TableStats(hf.getId(), IO_COST, 0);
+
+		Assert.assertEquals(rows, fromBytes.totalTuples());
+		Assert.assertEquals(rows, fromTuples.totalTuples());
+		for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN}) {
+			for (int v = 0; v < 100; v += 10)
+				Assert.assertEquals(fromTuples.estimateSelectivity(0, op, new IntField(v)),
+						fromBytes.estimateSelectivity(0, op, new IntField(v)), 1e-9);
+			for (String v : new String[] {"v0", "v17", "v3", "w"})
+				Assert.assertEquals(fromTuples.estimateSelectivity(1, op, new StringField(v, Type.STRING_LEN)),
+						fromBytes.estimateSelectivity(1, op, new StringField(v, Type.STRING_LEN)), 1e-9);
+		}
+		Assert.assertEquals(0.02, fromBytes.estimateSelectivity(1, Predicate.Op.EQUALS,
+				new StringField("v17", Type.STRING_LEN)), 0.005);
+		Assert.assertEquals(fromTuples.estimateDistinctValues(1), fromBytes.estimateDistinctValues(1), 1e-9);
+	}
 }
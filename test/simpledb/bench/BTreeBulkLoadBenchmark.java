@@ -0,0 +1,103 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.Iterator;
+
+/**
+ * B+ tree bulk load benchmark. Loads rows with consecutive int keys into an
+ * empty tree with BTreeFile.bulkLoad, then merges the same number of rows into
+ * that tree, and compares both with inserting rows one by one through the
+ * BufferPool in key-scattered order, committing every batch. Reports rows per
+ * second and the size of the resulting files.
+ * <p>
+ * Usage: BTreeBulkLoadBenchmark [rows] [insertRows] [fillFactor] [batch]
+ */
+public class BTreeBulkLoadBenchmark {
+
+    /**
+     * Rows (key, i) for i in [0, rows), with key = 2 * i + offset, generated on
+     * the fly in key order
+     */
+    private static Iterable<Tuple> rows(TupleDesc td, int rows, int offset) {
+        return () -> new Iterator<Tuple>() {
+            int i = 0;
+
+            public boolean hasNext() {
+                return i < rows;
+            }
+
+            public Tuple next() {
+                Tuple t = new Tuple(td);
+                t.setField(0, new IntField(2 * i + offset));
+                t.setField(1, new IntField(i));
+                i++;
+                return t;
+            }
+        };
+    }
+
+    private static BTreeFile emptyTree(String name) throws Exception {
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int insertRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        double fillFactor = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        int batch = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        Database.resetBufferPool(1000);
+
+        BTreeFile bulk = emptyTree("bulk");
+        TupleDesc td = bulk.getTupleDesc();
+        Transaction t = new Transaction();
+        t.start();
+        long start = System.nanoTime();
+        bulk.bulkLoad(t.getId(), new TupleIterator(td, rows(td, rows, 0)), fillFactor);
+        t.commit();
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("bulk load:   %d rows in %.2f s, %.0f rows/s, %d pages%n",
+                rows, secs, rows / secs, bulk.numPages());
+
+        t = new Transaction();
+        t.start();
+        start = System.nanoTime();
+        bulk.bulkLoad(t.getId(), new TupleIterator(td, rows(td, rows, 1)), fillFactor);
+        t.commit();
+        secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("bulk merge:  %d rows into %d in %.2f s, %.0f rows/s, %d pages%n",
+                rows, rows, secs, rows / secs, bulk.numPages());
+
+        BTreeFile single = emptyTree("single");
+        // 与质数相乘打散键的顺序，模拟随机插入
+        long prime = 1000003;
+        start = System.nanoTime();
+        for (int done = 0; done < insertRows; ) {
+            t = new Transaction();
+            t.start();
+            for (int j = 0; j < batch && done < insertRows; j++, done++) {
+                Tuple tup = new Tuple(single.getTupleDesc());
+                tup.setField(0, new IntField((int) (done * prime % insertRows) * 2));
+                tup.setField(1, new IntField(done));
+                Database.getBufferPool().insertTuple(t.getId(), single.getId(), tup);
+            }
+            t.commit();
+        }
+        secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("insertTuple: %d rows in %.2f s, %.0f rows/s, %d pages (%d rows/txn)%n",
+                insertRows, secs, insertRows / secs, single.numPages(), batch);
+
+        bulk.getFile().delete();
+        single.getFile().delete();
+    }
+}
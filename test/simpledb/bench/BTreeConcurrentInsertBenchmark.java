@@ -0,0 +1,133 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * B+ tree concurrent insert benchmark. Builds a tree of consecutive int keys,
+ * then runs writer threads for a fixed time, each inserting random keys in
+ * small transactions of a few tuples, and optionally reader threads looking
+ * up random keys with equality index scans under that write load. Reports the
+ * committed inserts and the lookups per second. If the threads stop making
+ * progress (e.g. a lock cycle) the run is cut off at twice the duration and
+ * reported as stalled.
+ * <p>
+ * Usage: BTreeConcurrentInsertBenchmark [threads] [seconds] [keys] [tuplesPerTxn] [readers]
+ */
+public class BTreeConcurrentInsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        int perTxn = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int readers = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        List<List<Integer>> tuples = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            tuples.add(Arrays.asList(i * 2, i));
+        }
+        File hFile = File.createTempFile("insert", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("insert_index", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile file = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(),
+                2, new Type[] {Type.INT_TYPE, Type.INT_TYPE}, ',', 0);
+        tuples = null;
+        Database.resetBufferPool(file.numPages() * 2 + 256);
+
+        AtomicLong committed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong lookups = new AtomicLong();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            Thread w = new Thread(() -> {
+                while (System.currentTimeMillis() < end) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        for (int j = 0; j < perTxn; j++) {
+                            Tuple tup = new Tuple(file.getTupleDesc());
+                            tup.setField(0, new IntField(random.nextInt(keys * 2)));
+                            tup.setField(1, new IntField(j));
+                            Database.getBufferPool().insertTuple(t.getId(), file.getId(), tup);
+                        }
+                        t.commit();
+                        committed.addAndGet(perTxn);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        try {
+                            t.abort();
+                        } catch (Exception ignored) {
+                        }
+                    }
+                }
+            });
+            w.setDaemon(true);
+            w.start();
+            writers.add(w);
+        }
+        for (int i = 0; i < readers; i++) {
+            final Random random = new Random(-1 - i);
+            Thread r = new Thread(() -> {
+                while (System.currentTimeMillis() < end) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            int key = random.nextInt(keys) * 2;
+                            DbFileIterator it = file.indexIterator(t.getId(),
+                                    new IndexPredicate(Op.EQUALS, new IntField(key)));
+                            it.open();
+                            if (!it.hasNext())
+                                throw new IllegalStateException("key " + key + " not found");
+                            it.close();
+                        }
+                        t.commit();
+                        lookups.addAndGet(100);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        try {
+                            t.abort();
+                        } catch (Exception ignored) {
+                        }
+                    }
+                }
+            });
+            r.setDaemon(true);
+            r.start();
+            writers.add(r);
+        }
+
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + seconds * 2000L;
+        for (Thread w : writers) {
+            w.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        boolean stalled = writers.stream().anyMatch(Thread::isAlive);
+        System.out.printf("%d threads, %d readers, %d keys, %d tuples/txn: %d inserts in %.1f s, "
+                        + "%.0f inserts/s, %.0f lookups/s, %d aborted%s%n",
+                threads, readers, keys, perTxn, committed.get(), secs, committed.get() / secs,
+                lookups.get() / secs, failed.get(), stalled ? " (stalled)" : "");
+        hFile.delete();
+        bFile.delete();
+        // 卡住的写线程还拿着锁，直接退出
+        System.exit(0);
+    }
+}
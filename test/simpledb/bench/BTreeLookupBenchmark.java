@@ -0,0 +1,73 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * B+ tree point lookup benchmark. Builds a tree of consecutive int keys, reads
+ * it into a buffer pool large enough to hold it, and looks up random keys with
+ * an equality index scan, one transaction per batch of lookups. Reports the
+ * mean lookup latency.
+ * <p>
+ * Usage: BTreeLookupBenchmark [keys] [lookups]
+ */
+public class BTreeLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        List<List<Integer>> tuples = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            tuples.add(Arrays.asList(i, i));
+        }
+        File hFile = File.createTempFile("lookup", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("lookup_index", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile file = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(),
+                2, new Type[] {Type.INT_TYPE, Type.INT_TYPE}, ',', 0);
+        tuples = null;
+        Database.resetBufferPool(file.numPages() + 64);
+
+        // 先全部读进缓冲池，之后只测CPU开销
+        run(file, keys, Math.min(lookups, 50000), new Random(1));
+        long start = System.nanoTime();
+        run(file, keys, lookups, new Random(0));
+        double nanos = System.nanoTime() - start;
+        System.out.printf("%d keys, %d pages, %d lookups: %.2f us/lookup, %.0f lookups/s%n",
+                keys, file.numPages(), lookups, nanos / 1000 / lookups, lookups / (nanos / 1e9));
+        hFile.delete();
+        bFile.delete();
+    }
+
+    private static void run(BTreeFile file, int keys, int lookups, Random random) throws Exception {
+        Transaction t = null;
+        for (int i = 0; i < lookups; i++) {
+            if (i % 1000 == 0) {
+                if (t != null) t.commit();
+                t = new Transaction();
+                t.start();
+            }
+            int key = random.nextInt(keys);
+            DbFileIterator it = file.indexIterator(t.getId(), new IndexPredicate(Op.EQUALS, new IntField(key)));
+            it.open();
+            if (!it.hasNext() || ((IntField) it.next().getField(1)).getValue() != key)
+                throw new IllegalStateException("key " + key + " not found");
+            it.close();
+        }
+        t.commit();
+    }
+}
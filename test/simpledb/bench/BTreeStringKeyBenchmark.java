@@ -0,0 +1,123 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * B+ tree string key benchmark. Bulk loads rows keyed on email-like strings,
+ * then looks up random keys with equality index scans through a small buffer
+ * pool. Reports the pages in the file, the height of the tree, the entries on
+ * the root, and the pages read from disk per lookup.
+ * <p>
+ * Usage: BTreeStringKeyBenchmark [rows] [lookups] [bufferPages] [fillFactor]
+ */
+public class BTreeStringKeyBenchmark {
+
+    /** Counts the pages read from disk */
+    private static class CountingBTreeFile extends BTreeFile {
+        long reads = 0;
+
+        CountingBTreeFile(File f, TupleDesc td) {
+            super(f, 0, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("customer-%08d@example.com", i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int bufferPages = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        double fillFactor = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        Database.resetBufferPool(1000);
+
+        TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+        File f = File.createTempFile("strings", ".dat");
+        f.deleteOnExit();
+        CountingBTreeFile bf = new CountingBTreeFile(f, td);
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+        Iterable<Tuple> sorted = () -> new Iterator<Tuple>() {
+            int i = 0;
+
+            public boolean hasNext() {
+                return i < rows;
+            }
+
+            public Tuple next() {
+                Tuple t = new Tuple(td);
+                t.setField(0, new StringField(key(i), Type.STRING_LEN));
+                t.setField(1, new IntField(i++));
+                return t;
+            }
+        };
+        Transaction t = new Transaction();
+        t.start();
+        long start = System.nanoTime();
+        bf.bulkLoad(t.getId(), new TupleIterator(td, sorted), fillFactor);
+        t.commit();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        // 从根往下数层数
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        int height = 1;
+        int rootEntries = 0;
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            if (height == 1)
+                rootEntries = page.getNumEntries();
+            pid = page.iterator().next().getLeftChild();
+            height++;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("loaded %d rows in %.2f s: %d pages, height %d, %d root entries%n",
+                rows, secs, bf.numPages(), height, rootEntries);
+
+        // 冷的小缓冲池：数每次查找要从磁盘读几页
+        Database.resetBufferPool(bufferPages);
+        Random random = new Random(0);
+        bf.reads = 0;
+        start = System.nanoTime();
+        for (int done = 0; done < lookups; ) {
+            t = new Transaction();
+            t.start();
+            for (int j = 0; j < 100 && done < lookups; j++, done++) {
+                int i = random.nextInt(rows);
+                DbFileIterator it = bf.indexIterator(t.getId(),
+                        new IndexPredicate(Op.EQUALS, new StringField(key(i), Type.STRING_LEN)));
+                it.open();
+                if (!it.hasNext())
+                    throw new IllegalStateException("key " + key(i) + " not found");
+                it.close();
+            }
+            t.commit();
+        }
+        secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d lookups with %d buffer pages: %.2f page reads/lookup, %.0f lookups/s%n",
+                lookups, bufferPages, (double) bf.reads / lookups, lookups / secs);
+        f.delete();
+    }
+}
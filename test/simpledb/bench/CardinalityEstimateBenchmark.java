@@ -0,0 +1,181 @@
+package simpledb.bench;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.ColumnStats;
+import simpledb.optimizer.IntHistogram;
+import simpledb.optimizer.StringHistogram;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.util.*;
+
+/**
+ * Cardinality estimation benchmark. Generates integer columns whose values
+ * follow Zipf distributions of increasing skew over a domain of distinct
+ * values, and estimates the number of tuples matching random filters on them
+ * (equality and ranges, on integers and on the same values as strings sharing
+ * a prefix) and of the equality joins of pairs of them, with the fixed-width
+ * histograms and with the column statistics (most common values, equi-depth
+ * histogram and distinct value sketch). Reports the median, 95th percentile
+ * and largest q-error of each, the q-error being the larger of the estimate
+ * over the actual count and the actual count over the estimate, both at
+ * least one.
+ * <p>
+ * Usage: CardinalityEstimateBenchmark [rows] [distinct] [skews] [queries], e.g. 1000000 100000 0,0.5,1,1.5 200
+ */
+public class CardinalityEstimateBenchmark {
+
+    private static final int BUCKETS = 100;
+
+    /** Draws ranks 0 ... n-1 with probability proportional to 1/(rank+1)^skew */
+    private static class Zipf {
+        final double[] cumulative;
+
+        Zipf(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, u);
+            return Math.min(cumulative.length - 1, i >= 0 ? i : -i - 1);
+        }
+    }
+
+    private static double qError(double estimate, double actual) {
+        estimate = Math.max(1, estimate);
+        actual = Math.max(1, actual);
+        return Math.max(estimate / actual, actual / estimate);
+    }
+
+    private static void report(String what, List<Double> old, List<Double> now) {
+        System.out.printf("  %-12s %-10s %s%n", what, "histogram", summary(old));
+        System.out.printf("  %-12s %-10s %s%n", "", "columns", summary(now));
+    }
+
+    private static String summary(List<Double> errors) {
+        List<Double> sorted = new ArrayList<>(errors);
+        Collections.sort(sorted);
+        return String.format("median %8.2f  p95 %10.2f  max %12.2f",
+                sorted.get(sorted.size() / 2), sorted.get((int) (sorted.size() * 0.95)),
+                sorted.get(sorted.size() - 1));
+    }
+
+    /** The value a rank of the Zipf distribution stands for, so the common values are spread over the domain */
+    private static int[] column(int rows, int distinct, double skew, Random random) {
+        int[] values = new int[distinct];
+        for (int i = 0; i < distinct; i++)
+            values[i] = i;
+        for (int i = distinct - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+        Zipf zipf = new Zipf(distinct, skew);
+        int[] column = new int[rows];
+        for (int r = 0; r < rows; r++)
+            column[r] = values[zipf.next(random)];
+        return column;
+    }
+
+    private static String string(int v) {
+        return "item-" + v;
+    }
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int distinct = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        String[] skews = (args.length > 2 ? args[2] : "0,0.5,1,1.5").split(",");
+        int queries = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+        Random random = new Random(0);
+        List<int[]> counts = new ArrayList<>();
+        List<ColumnStats> columns = new ArrayList<>();
+        for (String skew : skews) {
+            int[] column = column(rows, distinct, Double.parseDouble(skew), random);
+            int[] count = new int[distinct];
+            IntHistogram ih = new IntHistogram(BUCKETS, 0, distinct - 1);
+            StringHistogram sh = new StringHistogram(BUCKETS);
+            ColumnStats ints = new ColumnStats(Type.INT_TYPE);
+            ColumnStats strings = new ColumnStats(Type.STRING_TYPE);
+            for (int v : column) {
+                count[v]++;
+                ih.addValue(v);
+                ints.addInt(v);
+                String s = string(v);
+                sh.addValue(s);
+                strings.addString(s);
+            }
+            ints.finish(rows);
+            strings.finish(rows);
+            counts.add(count);
+            columns.add(ints);
+
+            // 字符串按字典序排好，算范围谓词的真实结果数
+            String[] sortedStrings = new String[distinct];
+            for (int v = 0; v < distinct; v++)
+                sortedStrings[v] = string(v);
+            Arrays.sort(sortedStrings);
+            long[] below = new long[distinct + 1];
+            for (int i = 0; i < distinct; i++)
+                below[i + 1] = below[i] + count[Integer.parseInt(sortedStrings[i].substring(5))];
+
+            List<Double> oldEq = new ArrayList<>(), newEq = new ArrayList<>();
+            List<Double> oldRange = new ArrayList<>(), newRange = new ArrayList<>();
+            List<Double> oldStrEq = new ArrayList<>(), newStrEq = new ArrayList<>();
+            List<Double> oldStrRange = new ArrayList<>(), newStrRange = new ArrayList<>();
+            for (int q = 0; q < queries; q++) {
+                // 一半的常量取自表里的值，偏向常见值；一半在值域里均匀取
+                int v = q % 2 == 0 ? column[random.nextInt(rows)] : random.nextInt(distinct);
+                oldEq.add(qError(rows * ih.estimateSelectivity(Predicate.Op.EQUALS, v), count[v]));
+                newEq.add(qError(rows * ints.estimateSelectivity(Predicate.Op.EQUALS, new IntField(v)), count[v]));
+
+                long less = 0;
+                for (int u = 0; u < v; u++)
+                    less += count[u];
+                oldRange.add(qError(rows * ih.estimateSelectivity(Predicate.Op.LESS_THAN, v), less));
+                newRange.add(qError(rows * ints.estimateSelectivity(Predicate.Op.LESS_THAN, new IntField(v)), less));
+
+                String s = string(v);
+                StringField f = new StringField(s, Type.STRING_LEN);
+                oldStrEq.add(qError(rows * sh.estimateSelectivity(Predicate.Op.EQUALS, s), count[v]));
+                newStrEq.add(qError(rows * strings.estimateSelectivity(Predicate.Op.EQUALS, f), count[v]));
+                long lessStrings = below[Arrays.binarySearch(sortedStrings, s)];
+                oldStrRange.add(qError(rows * sh.estimateSelectivity(Predicate.Op.LESS_THAN, s), lessStrings));
+                newStrRange.add(qError(rows * strings.estimateSelectivity(Predicate.Op.LESS_THAN, f), lessStrings));
+            }
+            System.out.printf("skew %s: %d rows, %d distinct values, %.0f estimated%n",
+                    skew, rows, Arrays.stream(count).filter(c -> c > 0).count(), ints.distinctValues());
+            report("int =", oldEq, newEq);
+            report("int <", oldRange, newRange);
+            report("string =", oldStrEq, newStrEq);
+            report("string <", oldStrRange, newStrRange);
+        }
+
+        // 原来的估计：没有主键的等值连接取两边基数的较大者
+        List<Double> oldJoin = new ArrayList<>(), newJoin = new ArrayList<>();
+        System.out.printf("equality joins of %d rows by %d rows%n", rows, rows);
+        for (int a = 0; a < skews.length; a++) {
+            for (int b = 0; b < skews.length; b++) {
+                double pairs = 0;
+                for (int v = 0; v < distinct; v++)
+                    pairs += (double) counts.get(a)[v] * counts.get(b)[v];
+                double estimate = columns.get(a).estimateJoinSelectivity(Predicate.Op.EQUALS, columns.get(b))
+                        * rows * (double) rows;
+                double o = qError(rows, pairs), n = qError(estimate, pairs);
+                oldJoin.add(o);
+                newJoin.add(n);
+                System.out.printf("  skew %-4s x %-4s actual %16.0f  q-error histogram %12.2f  columns %8.2f%n",
+                        skews[a], skews[b], pairs, o, n);
+            }
+        }
+        report("join =", oldJoin, newJoin);
+    }
+}
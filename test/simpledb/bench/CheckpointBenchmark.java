@@ -0,0 +1,107 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checkpoint latency benchmark. Worker threads run update transactions on
+ * pages of their own, each dirtying a few pages, while another thread takes
+ * a checkpoint at a fixed interval. Reports transaction latencies, which a
+ * checkpoint that blocks the buffer pool shows up in as a long tail, and
+ * how long checkpoints took and paused the workers.
+ * <p>
+ * Usage: CheckpointBenchmark [seconds] [threads] [pagesPerTransaction] [checkpointMillis]
+ */
+public class CheckpointBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int pagesPerTxn = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        long interval = args.length > 3 ? Long.parseLong(args[3]) : 100;
+
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, threads * pagesPerTxn * 504, null, null);
+        int tableId = table.getId();
+        LogFile log = Database.getLogFile();
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        List<List<Long>> latencies = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int firstPage = i * pagesPerTxn;
+            final List<Long> mine = new ArrayList<>();
+            latencies.add(mine);
+            workers.add(new Thread(() -> {
+                Random rand = new Random(firstPage);
+                while (!stop.get()) {
+                    long start = System.nanoTime();
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        for (int p = 0; p < pagesPerTxn; p++) {
+                            PageId pid = new HeapPageId(tableId, firstPage + p);
+                            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+                            Tuple victim = page.iterator().next();
+                            page.deleteTuple(victim);
+                            page.insertTuple(Utility.getHeapTuple(new int[]{rand.nextInt(), rand.nextInt()}));
+                            page.markDirty(true, t.getId());
+                        }
+                        t.commit();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    mine.add(System.nanoTime() - start);
+                }
+            }));
+        }
+
+        List<Long> checkpoints = new ArrayList<>();
+        Thread checkpointer = new Thread(() -> {
+            while (!stop.get()) {
+                try {
+                    Thread.sleep(interval);
+                    long start = System.nanoTime();
+                    log.logCheckpoint();
+                    checkpoints.add(System.nanoTime() - start);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+
+        for (Thread w : workers) w.start();
+        checkpointer.start();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread w : workers) w.join();
+        checkpointer.join();
+
+        List<Long> all = new ArrayList<>();
+        for (List<Long> l : latencies) all.addAll(l);
+        Collections.sort(all);
+        System.out.printf("%d threads, %d pages per transaction, checkpoint every %dms%n", threads, pagesPerTxn, interval);
+        System.out.printf("transactions/s %.0f, latency ms p50 %.2f p99 %.2f max %.2f%n",
+                all.size() / (double) seconds, ms(all, 0.5), ms(all, 0.99), ms(all, 1.0));
+        Collections.sort(checkpoints);
+        System.out.printf("checkpoints %d, duration ms p50 %.2f max %.2f%n",
+                checkpoints.size(), ms(checkpoints, 0.5), ms(checkpoints, 1.0));
+        System.out.printf("checkpoint pause ms last %.3f max %.3f%n",
+                log.getLastCheckpointPauseNanos() / 1e6, log.getMaxCheckpointPauseNanos() / 1e6);
+    }
+
+    private static double ms(List<Long> sorted, double q) {
+        if (sorted.isEmpty()) return 0;
+        int i = Math.min(sorted.size() - 1, (int) (q * sorted.size()));
+        return sorted.get(i) / 1e6;
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commit throughput benchmark for group commit. Every committer thread runs
+ * small update transactions on its own page, so transactions never wait on
+ * each other's locks and the log force is the only shared cost. Each
+ * committer count is run with group commit off (every transaction forces the
+ * log itself) and on.
+ * <p>
+ * Usage: GroupCommitBenchmark [seconds] [maxBatchDelayMicros] [maxThreads]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        System.out.printf("%ds per run, max batch delay %dus%n", seconds, delay);
+        System.out.printf("%-10s %8s %12s %14s%n", "committers", "group", "commits/s", "commits/force");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            for (boolean group : new boolean[]{false, true}) {
+                run(threads, group, delay, seconds);
+            }
+        }
+    }
+
+    private static void run(int threads, boolean group, long delay, int seconds) throws Exception {
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, threads * 400, null, null);
+        int tableId = table.getId();
+        int pages = table.numPages();
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(group);
+        log.setMaxBatchDelay(delay);
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong commits = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int pageNo = i % pages;
+            workers.add(new Thread(() -> {
+                Random rand = new Random(pageNo);
+                while (!stop.get()) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        PageId pid = new HeapPageId(tableId, pageNo);
+                        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+                        Iterator<Tuple> it = p.iterator();
+                        if (p.getNumEmptySlots() > 0 && (rand.nextBoolean() || !it.hasNext())) {
+                            p.insertTuple(Utility.getHeapTuple(new int[]{rand.nextInt(), rand.nextInt()}));
+                        } else {
+                            p.deleteTuple(it.next());
+                        }
+                        p.markDirty(true, t.getId());
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }));
+        }
+
+        long forcesBefore = log.getNumForces();
+        for (Thread w : workers) w.start();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread w : workers) w.join();
+        long forces = Math.max(1, log.getNumForces() - forcesBefore);
+
+        System.out.printf("%-10d %8s %12.1f %14.2f%n", threads, group ? "on" : "off",
+                commits.get() / (double) seconds, commits.get() / (double) forces);
+    }
+}
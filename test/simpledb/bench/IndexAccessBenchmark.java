@@ -0,0 +1,107 @@
+package simpledb.bench;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Access path benchmark. Stores a table of rows keys in a B+ tree keyed on c0
+ * and a heap table of outerRows rows, then plans and runs a point query and a
+ * narrow range query on the key, and joins of the heap table, and of a heap
+ * table whose rows repeat ten keys, with the B+ tree table on the key,
+ * reporting the average time of each query.
+ * <p>
+ * Usage: IndexAccessBenchmark [rows] [outerRows] [repetitions], e.g. 200000 100 20
+ */
+public class IndexAccessBenchmark {
+
+    private static final int IO_COST = 100;
+
+    private static double queryMillis(Map<String, TableStats> stats, String query,
+            int repetitions, int expectedRows) throws Exception {
+        long start = System.nanoTime();
+        for (int r = 0; r < repetitions; r++) {
+            TransactionId tid = new TransactionId();
+            OpIterator plan = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+            int rows = 0;
+            plan.open();
+            while (plan.hasNext()) {
+                plan.next();
+                rows++;
+            }
+            plan.close();
+            Database.getBufferPool().transactionComplete(tid);
+            if (rows != expectedRows)
+                throw new IllegalStateException(query + " returned " + rows + " rows, not " + expectedRows);
+        }
+        return (System.nanoTime() - start) / 1e6 / repetitions;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int outerRows = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        // big(c0, c1)：c0 = 0 ... rows-1 为键；small(c0, c1)：c0 落在 big 的键里
+        Random random = new Random(0);
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, random.nextInt(rows)));
+        File hFile = File.createTempFile("table", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        BTreeFile encoded = BTreeFileEncoder.convert(tuples, hFile, bFile,
+                BufferPool.getPageSize(), 2, types, ',', 0);
+        BTreeFile big = new BTreeFile(encoded.getFile(), 0, new TupleDesc(types, new String[] {"c0", "c1"}));
+        Database.getCatalog().addTable(big, "big");
+
+        tuples.clear();
+        for (int i = 0; i < outerRows; i++)
+            tuples.add(Arrays.asList(random.nextInt(rows), i));
+        File sFile = File.createTempFile("table", ".dat");
+        sFile.deleteOnExit();
+        HeapFileEncoder.convert(tuples, sFile, BufferPool.getPageSize(), 2);
+        HeapFile small = Utility.openHeapFile(2, "c", sFile);
+        Database.getCatalog().addTable(small, "small");
+
+        // dups(c0, c1)：outerRows 行只用到 big 的 10 个键
+        tuples.clear();
+        for (int i = 0; i < outerRows; i++)
+            tuples.add(Arrays.asList((i % 10) * (rows / 10), i));
+        File dFile = File.createTempFile("table", ".dat");
+        dFile.deleteOnExit();
+        HeapFileEncoder.convert(tuples, dFile, BufferPool.getPageSize(), 2);
+        HeapFile dups = Utility.openHeapFile(2, "c", dFile);
+        Database.getCatalog().addTable(dups, "dups");
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("big", new TableStats(big.getId(), IO_COST));
+        stats.put("small", new TableStats(small.getId(), IO_COST));
+        stats.put("dups", new TableStats(dups.getId(), IO_COST));
+
+        int key = rows / 3;
+        System.out.printf("point query  : %10.3f ms%n", queryMillis(stats,
+                "SELECT * FROM big b WHERE b.c0 = " + key + ";", repetitions, 1));
+        System.out.printf("range query  : %10.3f ms%n", queryMillis(stats,
+                "SELECT * FROM big b WHERE b.c0 < 100;", repetitions, 100));
+        System.out.printf("join query   : %10.3f ms%n", queryMillis(stats,
+                "SELECT * FROM small s, big b WHERE s.c0 = b.c0;", repetitions, outerRows));
+        System.out.printf("join, 10 keys: %10.3f ms%n", queryMillis(stats,
+                "SELECT * FROM dups d, big b WHERE d.c0 = b.c0;", repetitions, outerRows));
+    }
+}
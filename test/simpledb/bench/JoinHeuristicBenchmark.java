@@ -0,0 +1,130 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Heuristic join ordering benchmark. Generates chain, star, cycle and random
+ * tree join graphs over tables of different sizes and orders each with the
+ * exhaustive dynamic program, greedily, and greedily followed by simulated
+ * annealing. Reports the planning time of each and the cost of the greedy and
+ * annealed plans relative to the exhaustive one (geometric mean and worst over
+ * the graphs of each shape); for join counts above dpLimit only the two
+ * heuristics run, relative to the annealed plan.
+ * <p>
+ * Usage: JoinHeuristicBenchmark [joinCounts] [graphsPerShape] [budgetMillis] [dpLimit], e.g. 10,14,16,30,60 5 100 18
+ */
+public class JoinHeuristicBenchmark {
+
+    private static final int IO_COST = 100;
+    private static final String[] SHAPES = {"chain", "star", "cycle", "tree"};
+
+    private static List<LogicalJoinNode> graph(String shape, int n, Random random) {
+        List<Integer> tables = new ArrayList<>();
+        for (int i = 0; i <= n; i++)
+            tables.add(i);
+        Collections.shuffle(tables, random);
+        List<LogicalJoinNode> joins = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            int left, right = i;
+            if (shape.equals("chain")) {
+                left = i - 1;
+            } else if (shape.equals("star")) {
+                left = 0;
+            } else if (shape.equals("cycle")) { // t0 ... t(n-1) 成环
+                left = i - 1;
+                right = i % n;
+            } else {
+                left = random.nextInt(i);
+            }
+            joins.add(new LogicalJoinNode("t" + tables.get(left), "t" + tables.get(right),
+                    "c" + random.nextInt(2), "c" + random.nextInt(2), Predicate.Op.EQUALS));
+        }
+        return joins;
+    }
+
+    private static double[] plan(LogicalPlan plan, List<LogicalJoinNode> joins,
+            Map<String, TableStats> stats, Map<String, Double> selectivities,
+            int exhaustiveLimit, long budget) throws Exception {
+        JoinOptimizer.setExhaustiveJoinLimit(exhaustiveLimit);
+        JoinOptimizer.setPlanningBudget(budget);
+        JoinOptimizer jo = new JoinOptimizer(plan, joins);
+        long start = System.nanoTime();
+        List<LogicalJoinNode> order = jo.orderJoins(stats, selectivities, false);
+        double millis = (System.nanoTime() - start) / 1e6;
+        return new double[] {jo.estimatePlanCost(order, stats, selectivities), millis};
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "10,14,16,30,60").split(",");
+        int graphs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long budget = args.length > 2 ? Long.parseLong(args[2]) : JoinOptimizer.DEFAULT_PLANNING_BUDGET_MILLIS;
+        int dpLimit = args.length > 3 ? Integer.parseInt(args[3]) : 18;
+        int maxJoins = 0;
+        for (String c : counts)
+            maxJoins = Math.max(maxJoins, Integer.parseInt(c));
+
+        // maxJoins+1 张两列的表，行数、值域和过滤选择率各不相同
+        Random random = new Random(0);
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> selectivities = new HashMap<>();
+        LogicalPlan plan = new LogicalPlan();
+        for (int i = 0; i <= maxJoins; i++) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            int rows = 100 + random.nextInt(5000);
+            int values = 10 + random.nextInt(rows);
+            for (int r = 0; r < rows; r++)
+                tuples.add(Arrays.asList(random.nextInt(values), random.nextInt(rows)));
+            File f = File.createTempFile("table", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+            HeapFile hf = Utility.openHeapFile(2, "c", f);
+            String name = "t" + i;
+            Database.getCatalog().addTable(hf, name);
+            stats.put(name, new TableStats(hf.getId(), IO_COST));
+            selectivities.put(name, 0.01 + random.nextDouble() * 0.99);
+            plan.addScan(hf.getId(), name);
+        }
+
+        for (String c : counts) {
+            int n = Integer.parseInt(c);
+            boolean exhaustive = n <= dpLimit;
+            for (String shape : SHAPES) {
+                double dpMillis = 0, greedyMillis = 0, annealMillis = 0;
+                double greedyLog = 0, annealLog = 0, greedyWorst = 1, annealWorst = 1;
+                for (int g = 0; g < graphs; g++) {
+                    List<LogicalJoinNode> joins = graph(shape, n, random);
+                    double[] greedy = plan(plan, joins, stats, selectivities, 0, 0);
+                    double[] anneal = plan(plan, joins, stats, selectivities, 0, budget);
+                    double[] best = anneal;
+                    if (exhaustive) {
+                        best = plan(plan, joins, stats, selectivities, 64, budget);
+                        dpMillis += best[1];
+                    }
+                    greedyMillis += greedy[1];
+                    annealMillis += anneal[1];
+                    greedyLog += Math.log(greedy[0] / best[0]);
+                    annealLog += Math.log(anneal[0] / best[0]);
+                    greedyWorst = Math.max(greedyWorst, greedy[0] / best[0]);
+                    annealWorst = Math.max(annealWorst, anneal[0] / best[0]);
+                }
+                System.out.printf("%2d joins %-5s: %s greedy %7.2f ms cost x%.3f (worst x%.3f), "
+                                + "annealed %7.2f ms cost x%.3f (worst x%.3f)%n",
+                        n, shape, exhaustive ? String.format("dp %8.2f ms,", dpMillis / graphs) : "relative to annealed:",
+                        greedyMillis / graphs, Math.exp(greedyLog / graphs), greedyWorst,
+                        annealMillis / graphs, Math.exp(annealLog / graphs), annealWorst);
+            }
+        }
+    }
+}
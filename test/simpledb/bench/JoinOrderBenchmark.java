@@ -0,0 +1,88 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Join ordering benchmark. Orders chain queries (t0 = t1 = t2 ...), whose
+ * connected sets of joins are the runs of the chain, and star queries (t0 =
+ * t1, t0 = t2, ...), whose every set of joins is connected, over tables of
+ * different sizes, and reports the time JoinOptimizer.orderJoins takes to plan
+ * each.
+ * <p>
+ * Usage: JoinOrderBenchmark [joinCounts] [repetitions], e.g. 6,10,14,18 3
+ */
+public class JoinOrderBenchmark {
+
+    private static final int IO_COST = 100;
+
+    private static double planMillis(LogicalPlan plan, List<LogicalJoinNode> joins,
+            Map<String, TableStats> stats, Map<String, Double> selectivities,
+            int repetitions) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            List<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                    .orderJoins(stats, selectivities, false);
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+            if (order.size() != joins.size())
+                throw new IllegalStateException("ordered " + order.size() + " of " + joins.size() + " joins");
+        }
+        return best;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "6,10,14,18").split(",");
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int maxJoins = 0;
+        for (String c : counts)
+            maxJoins = Math.max(maxJoins, Integer.parseInt(c));
+
+        // maxJoins+1 张两列的表，行数各不相同，使连接的代价有高有低
+        Random random = new Random(0);
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> selectivities = new HashMap<>();
+        LogicalPlan plan = new LogicalPlan();
+        for (int i = 0; i <= maxJoins; i++) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            int rows = 100 + random.nextInt(5000);
+            for (int r = 0; r < rows; r++)
+                tuples.add(Arrays.asList(random.nextInt(1000), random.nextInt(rows)));
+            File f = File.createTempFile("table", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+            HeapFile hf = Utility.openHeapFile(2, "c", f);
+            String name = "t" + i;
+            Database.getCatalog().addTable(hf, name);
+            stats.put(name, new TableStats(hf.getId(), IO_COST));
+            selectivities.put(name, 0.1 + random.nextDouble() * 0.9);
+            plan.addScan(hf.getId(), name);
+        }
+
+        for (String c : counts) {
+            int n = Integer.parseInt(c);
+            List<LogicalJoinNode> chain = new ArrayList<>();
+            List<LogicalJoinNode> star = new ArrayList<>();
+            for (int i = 1; i <= n; i++) {
+                chain.add(new LogicalJoinNode("t" + (i - 1), "t" + i, "c1", "c0", Predicate.Op.EQUALS));
+                star.add(new LogicalJoinNode("t0", "t" + i, "c0", "c0", Predicate.Op.EQUALS));
+            }
+            Collections.shuffle(chain, random);
+            Collections.shuffle(star, random);
+            double chainMillis = planMillis(plan, chain, stats, selectivities, repetitions);
+            double starMillis = planMillis(plan, star, stats, selectivities, repetitions);
+            System.out.printf("%2d joins: chain %10.2f ms, star %10.2f ms%n", n, chainMillis, starMillis);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log append benchmark. Every thread runs transactions that log a BEGIN
+ * record, a number of UPDATE records and a COMMIT record, without touching
+ * the buffer pool, so the cost measured is that of building records and
+ * getting them to the log file. Reports records appended per second, and
+ * how many records share each write call and each force of the log file.
+ * <p>
+ * Usage: LogAppendBenchmark [seconds] [updatesPerTransaction] [maxThreads]
+ */
+public class LogAppendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        System.out.printf("%ds per run, %d updates per transaction%n", seconds, updates);
+        System.out.printf("%-8s %12s %14s %14s%n", "threads", "records/s", "records/write", "records/force");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, updates, seconds);
+        }
+    }
+
+    private static void run(int threads, int updates, int seconds) throws Exception {
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+        LogFile log = Database.getLogFile();
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong records = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> {
+                while (!stop.get()) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        log.logXactionBegin(tid);
+                        for (int u = 0; u < updates; u++) {
+                            log.logWrite(tid, page, page);
+                        }
+                        log.logCommit(tid);
+                        records.addAndGet(updates + 2);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }));
+        }
+
+        long writesBefore = log.getNumWrites();
+        long forcesBefore = log.getNumForces();
+        for (Thread w : workers) w.start();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread w : workers) w.join();
+        long writes = Math.max(1, log.getNumWrites() - writesBefore);
+        long forces = Math.max(1, log.getNumForces() - forcesBefore);
+
+        System.out.printf("%-8d %12.1f %14.2f %14.2f%n", threads, records.get() / (double) seconds,
+                records.get() / (double) writes, records.get() / (double) forces);
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Log volume benchmark. Inserts tuples into a heap file and into a B+ tree,
+ * a few per transaction, once with every update logged as full before and
+ * after images and once with delta logging, and reports the log bytes
+ * written per inserted tuple.
+ * <p>
+ * Usage: LogBytesBenchmark [tuples] [tuplesPerTransaction]
+ */
+public class LogBytesBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int perTxn = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        System.out.printf("%d tuples, %d per transaction%n", tuples, perTxn);
+        System.out.printf("%-8s %-8s %14s %12s%n", "table", "logging", "bytes/tuple", "tuples/s");
+        for (String table : new String[] {"heap", "btree"}) {
+            for (boolean deltas : new boolean[] {false, true}) {
+                run(table, deltas, tuples, perTxn);
+            }
+        }
+    }
+
+    private static void run(String table, boolean deltas, int tuples, int perTxn) throws Exception {
+        Database.reset();
+        File f = new File("logbytes.db");
+        f.delete();
+        DbFile file = table.equals("heap")
+                ? Utility.createEmptyHeapFile(f.getAbsolutePath(), 2)
+                : BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        LogFile log = Database.getLogFile();
+        log.setDeltaLogging(deltas);
+
+        Random random = new Random(0);
+        long startLSN = log.getEndLSN();
+        long start = System.nanoTime();
+        for (int done = 0; done < tuples; done += perTxn) {
+            Transaction t = new Transaction();
+            t.start();
+            List<Tuple> batch = new ArrayList<>();
+            for (int i = 0; i < perTxn; i++) {
+                Tuple tup = new Tuple(Utility.getTupleDesc(2));
+                tup.setField(0, new IntField(random.nextInt()));
+                tup.setField(1, new IntField(done + i));
+                batch.add(tup);
+            }
+            insert(t, file, batch);
+            t.commit();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-8s %-8s %14.1f %12.0f%n", table, deltas ? "delta" : "full",
+                (log.getEndLSN() - startLSN) / (double) tuples, tuples / secs);
+        f.delete();
+    }
+
+    private static void insert(Transaction t, DbFile file, List<Tuple> tuples)
+            throws DbException, TransactionAbortedException, IOException {
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), tuples), file.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+}
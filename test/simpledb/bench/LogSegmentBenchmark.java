@@ -0,0 +1,100 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Log segment benchmark. Runs single insert transactions into a B+ tree,
+ * logging full page images, with a checkpoint every few hundred
+ * transactions, for a few log segment sizes. Reports tuples/s, the mean
+ * and longest checkpoint (truncation included), the most disk the log
+ * took, and how many segments were started in new and in recycled files.
+ * <p>
+ * Usage: LogSegmentBenchmark [transactions] [checkpointEvery] [segmentKB...]
+ */
+public class LogSegmentBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int every = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int[] sizes = {1024, 4096, 16384};
+        if (args.length > 2) {
+            sizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) sizes[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%d transactions, checkpoint every %d%n", txns, every);
+        System.out.printf("%-10s %10s %12s %12s %12s %8s %9s%n", "segment", "tuples/s",
+                "cp mean ms", "cp max ms", "max log MB", "created", "recycled");
+        for (int kb : sizes) {
+            run(kb, txns, every);
+        }
+    }
+
+    private static File[] logFiles() {
+        File[] files = new File(".").getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.equals("log") || name.startsWith("log."));
+        return files == null ? new File[0] : files;
+    }
+
+    private static long logBytes() {
+        long bytes = 0;
+        for (File f : logFiles()) bytes += f.length();
+        return bytes;
+    }
+
+    private static void run(int segmentKB, int txns, int every) throws Exception {
+        Database.reset();
+        // 不复用上一轮留下的空闲段
+        for (File old : logFiles()) old.delete();
+        File f = new File("segments.db");
+        f.delete();
+        BTreeFile file = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(segmentKB * 1024L);
+        log.setDeltaLogging(false);
+
+        Random random = new Random(0);
+        long cpNanos = 0;
+        long cpMax = 0;
+        int checkpoints = 0;
+        long maxBytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < txns; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Tuple tup = new Tuple(Utility.getTupleDesc(2));
+            tup.setField(0, new IntField(random.nextInt()));
+            tup.setField(1, new IntField(i));
+            Insert insert = new Insert(t.getId(),
+                    new TupleIterator(Utility.getTupleDesc(2), Collections.singletonList(tup)), file.getId());
+            insert.open();
+            insert.next();
+            insert.close();
+            t.commit();
+            if ((i + 1) % every == 0) {
+                maxBytes = Math.max(maxBytes, logBytes());
+                long cpStart = System.nanoTime();
+                log.logCheckpoint();
+                long nanos = System.nanoTime() - cpStart;
+                cpNanos += nanos;
+                cpMax = Math.max(cpMax, nanos);
+                checkpoints++;
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-10s %10.0f %12.2f %12.2f %12.1f %8d %9d%n", segmentKB + "KB", txns / secs,
+                checkpoints == 0 ? 0 : cpNanos / 1e6 / checkpoints, cpMax / 1e6, maxBytes / 1048576.0,
+                log.getNumCreatedSegments(), log.getNumRecycledSegments());
+        f.delete();
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mixed workload benchmark for snapshot reads: reader threads repeatedly scan
+ * a whole table while writer threads run short single-page update
+ * transactions on it. The same workload is run once with readers taking
+ * shared page locks and once with readers using snapshot transactions.
+ * Each reader keeps its transaction open for holdMs after the scan, to model
+ * a reporting query that does more work than just reading the table.
+ * <p>
+ * Usage: MvccBenchmark [pages] [readers] [writers] [seconds] [holdMs]
+ */
+public class MvccBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int holdMs = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        System.out.printf("%d pages, %d readers, %d writers, %ds per run, readers hold %dms%n",
+                pages, readers, writers, seconds, holdMs);
+        System.out.printf("%-10s %12s %14s %14s%n", "mode", "scans/s", "commits/s", "max versions");
+        for (boolean snapshot : new boolean[]{false, true}) {
+            run(snapshot, pages, readers, writers, seconds, holdMs);
+        }
+    }
+
+    private static void run(boolean snapshot, int pages, int readers, int writers, int seconds, int holdMs)
+            throws Exception {
+        Database.reset();
+        // leave free slots on every page so writers can insert as well as delete
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, pages * 400, null, null);
+        int tableId = table.getId();
+        int realPages = table.numPages();
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong scans = new AtomicLong();
+        AtomicLong commits = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(() -> {
+                while (!stop.get()) {
+                    Transaction t = new Transaction(snapshot);
+                    t.start();
+                    try {
+                        SeqScan scan = new SeqScan(t.getId(), tableId, "t");
+                        scan.open();
+                        while (scan.hasNext()) scan.next();
+                        scan.close();
+                        Thread.sleep(holdMs);
+                        t.commit();
+                        scans.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < writers; i++) {
+            final long seed = i;
+            threads.add(new Thread(() -> {
+                Random rand = new Random(seed);
+                while (!stop.get()) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        PageId pid = new HeapPageId(tableId, rand.nextInt(realPages));
+                        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+                        Iterator<Tuple> it = p.iterator();
+                        if (p.getNumEmptySlots() > 0 && (rand.nextBoolean() || !it.hasNext())) {
+                            p.insertTuple(Utility.getHeapTuple(new int[]{rand.nextInt(), rand.nextInt()}));
+                        } else {
+                            p.deleteTuple(it.next());
+                        }
+                        p.markDirty(true, t.getId());
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }));
+        }
+
+        VersionStore vs = Database.getBufferPool().getVersionStore();
+        int maxVersions = 0;
+        for (Thread th : threads) th.start();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            maxVersions = Math.max(maxVersions, vs.numVersions());
+            Thread.sleep(10);
+        }
+        stop.set(true);
+        for (Thread th : threads) th.join();
+
+        System.out.printf("%-10s %12.1f %14.1f %14d%n", snapshot ? "snapshot" : "locking",
+                scans.get() / (double) seconds, commits.get() / (double) seconds, maxVersions);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Parallel redo benchmark. Logs a full image of every page of a heap file
+ * and then committed transactions that each change a few bytes of a few
+ * random pages, until the log reaches the requested size; the last
+ * transaction is left running, as if the database crashed in the middle of
+ * the workload. None of the pages are written, so recovery redoes the
+ * whole log. The crash is then recovered with 1, 4 and 8 redo threads,
+ * from the same log and data file, and the pages are checked against the
+ * committed images.
+ * <p>
+ * Usage: ParallelRedoBenchmark [logMB] [pages] [updatesPerTransaction]
+ */
+public class ParallelRedoBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long logMB = args.length > 0 ? Long.parseLong(args[0]) : 64;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int updates = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, pages * 504, null, null);
+        File file = table.getFile();
+        int realPages = table.numPages();
+        HeapPage[] images = new HeapPage[realPages];
+        byte[][] committed = new byte[realPages][];
+        for (int i = 0; i < realPages; i++) {
+            images[i] = (HeapPage) table.readPage(new HeapPageId(table.getId(), i));
+            committed[i] = images[i].getPageData();
+        }
+
+        LogFile log = Database.getLogFile();
+        File logFile = new File("log");
+        Random random = new Random(0);
+        long txns = 0;
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (HeapPage p : images) {
+            log.logWrite(tid, p, p);
+        }
+        log.logCommit(tid);
+        long target = logMB << 20;
+        byte[][] current = new byte[realPages][];
+        for (int i = 0; i < realPages; i++) current[i] = committed[i].clone();
+        while (true) {
+            boolean crash = log.getEndLSN() >= target;
+            tid = new TransactionId();
+            log.logXactionBegin(tid);
+            int[] touched = new int[updates];
+            for (int u = 0; u < updates; u++) {
+                int i = touched[u] = random.nextInt(realPages);
+                byte[] after = current[i].clone();
+                // 只改元组区域的字节，页头和末尾的填充字节在重建页面时会被重新生成
+                int at = 63 + random.nextInt(after.length - 64 - 8);
+                for (int b = 0; b < 8; b++) after[at + b] = (byte) random.nextInt();
+                log.logDelta(tid, images[i], current[i], after);
+                current[i] = after;
+            }
+            if (crash) break;
+            log.logCommit(tid);
+            for (int i : touched) committed[i] = current[i];
+            txns++;
+        }
+        log.force();
+        System.out.printf("logged %d transactions, %.1f MB of log, %d pages%n",
+                txns, logFile.length() / 1048576.0, realPages);
+
+        File logCopy = new File("log.crash");
+        File fileCopy = new File(file.getPath() + ".crash");
+        Files.copy(logFile.toPath(), logCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(file.toPath(), fileCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.printf("%-8s %12s %12s%n", "threads", "recover s", "MB/s");
+        for (int threads : new int[] {1, 4, 8}) {
+            Database.reset();
+            Files.copy(logCopy.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(fileCopy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            table = Utility.openHeapFile(2, file);
+            Database.getLogFile().setRecoveryThreads(threads);
+            long start = System.nanoTime();
+            Database.getLogFile().recover();
+            double secs = (System.nanoTime() - start) / 1e9;
+            for (int i = 0; i < realPages; i++) {
+                byte[] data = table.readPage(new HeapPageId(table.getId(), i)).getPageData();
+                if (!Arrays.equals(committed[i], data))
+                    throw new IllegalStateException("page " + i + " differs after recovery with " + threads + " threads");
+            }
+            System.out.printf("%-8d %12.2f %12.1f%n", threads, secs, logCopy.length() / 1048576.0 / secs);
+        }
+        logCopy.delete();
+        fileCopy.delete();
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb.bench;
+
+import simpledb.Parser;
+import simpledb.PreparedStatement;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Query;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Prepared statement benchmark. Writes a B+ tree table keyed on its first
+ * column and runs point lookups of random keys through the index, first
+ * parsing and optimizing each query with its key as a literal, then as one
+ * statement prepared once with the key as a parameter. Reports the mean,
+ * median and 99th percentile latency of a lookup, from its text or bound
+ * value to its last tuple, after untimed lookups to warm up.
+ * <p>
+ * Usage: PreparedStatementBenchmark [rows] [lookups], e.g. 100000 5000
+ */
+public class PreparedStatementBenchmark {
+
+    private static final int IO_COST = 100;
+
+    private static int drain(OpIterator plan) throws Exception {
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    private static void report(String what, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (long n : sorted)
+            sum += n;
+        System.out.printf("%-10s mean %8.1f us  p50 %8.1f us  p99 %8.1f us%n", what,
+                sum / sorted.length / 1e3, sorted[sorted.length / 2] / 1e3,
+                sorted[(int) (sorted.length * 0.99)] / 1e3);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, i % 1000));
+        File hFile = File.createTempFile("table", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        BTreeFile encoded = BTreeFileEncoder.convert(tuples, hFile, bFile,
+                BufferPool.getPageSize(), 2, types, ',', 0);
+        BTreeFile big = new BTreeFile(encoded.getFile(), 0, new TupleDesc(types, new String[] {"c0", "c1"}));
+        Database.getCatalog().addTable(big, "big");
+        TableStats.setTableStats("big", new TableStats(big.getId(), IO_COST));
+
+        Random random = new Random(0);
+        int[] keys = new int[lookups];
+        for (int i = 0; i < lookups; i++)
+            keys[i] = random.nextInt(rows);
+        System.out.printf("%d rows, %d point lookups%n", rows, lookups);
+
+        Parser parser = new Parser();
+        PreparedStatement ps = parser.prepare("SELECT * FROM big b WHERE b.c0 = ?;");
+        // 第一轮不计时，预热
+        for (int run = -1; run < 2; run++) {
+            boolean prepared = run == 1;
+            long[] nanos = new long[lookups];
+            int results = 0;
+            for (int i = 0; i < lookups; i++) {
+                TransactionId tid = new TransactionId();
+                long start = System.nanoTime();
+                OpIterator plan;
+                if (prepared) {
+                    Query q = parser.execute(ps, tid, keys[i]);
+                    plan = q.getPhysicalPlan();
+                } else {
+                    LogicalPlan lp = parser.generateLogicalPlan(tid,
+                            "SELECT * FROM big b WHERE b.c0 = " + keys[i] + ";");
+                    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+                }
+                results += drain(plan);
+                nanos[i] = System.nanoTime() - start;
+                Database.getBufferPool().transactionComplete(tid);
+            }
+            if (run < 0)
+                continue;
+            report(prepared ? "prepared:" : "parsed:", nanos);
+            if (results != lookups)
+                System.out.printf("  expected %d results, got %d%n", lookups, results);
+        }
+        System.out.println(ps);
+    }
+}
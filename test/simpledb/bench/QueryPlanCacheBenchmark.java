@@ -0,0 +1,114 @@
+package simpledb.bench;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanCache;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Query plan cache benchmark. Writes a chain of heap tables with two integer
+ * columns, each joined to the next on its first column, and runs queries
+ * joining tables of them in a chain with a filter on the second column of
+ * each table, with random literals, first parsing and optimizing every query
+ * and then through the plan cache, where only the first query of the shape is
+ * planned. Reports the mean time to get the physical plan of a query and to
+ * run it to the end, and the counters of the cache.
+ * <p>
+ * Usage: QueryPlanCacheBenchmark [tables] [rowsPerTable] [queries], e.g. 6 1000 500
+ */
+public class QueryPlanCacheBenchmark {
+
+    private static final int IO_COST = 100;
+    private static final int VALUES = 100;
+
+    private static String query(int tables, Random random) {
+        StringBuilder from = new StringBuilder(), where = new StringBuilder();
+        for (int t = 0; t < tables; t++) {
+            from.append(t == 0 ? "" : ", ").append("t").append(t);
+            if (t > 0)
+                where.append("t").append(t - 1).append(".c0 = t").append(t).append(".c0 AND ");
+            where.append("t").append(t).append(".c1 < ").append(1 + random.nextInt(VALUES)).append(" AND ");
+        }
+        return "SELECT * FROM " + from + " WHERE " + where.substring(0, where.length() - 5) + ";";
+    }
+
+    private static int drain(OpIterator plan) throws Exception {
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tables = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        Random random = new Random(0);
+        for (int t = 0; t < tables; t++) {
+            List<List<Integer>> tuples = new ArrayList<>(rows);
+            for (int r = 0; r < rows; r++)
+                tuples.add(Arrays.asList(random.nextInt(rows), random.nextInt(VALUES)));
+            File f = File.createTempFile("table", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+            HeapFile hf = Utility.openHeapFile(2, "c", f);
+            Database.getCatalog().addTable(hf, "t" + t);
+            TableStats.setTableStats("t" + t, new TableStats(hf.getId(), IO_COST));
+        }
+        List<String> sqls = new ArrayList<>();
+        for (int q = 0; q < queries; q++)
+            sqls.add(query(tables, random));
+        System.out.printf("%d tables of %d rows, %d queries joining all of them%n", tables, rows, queries);
+
+        Parser parser = new Parser();
+        QueryPlanCache cache = Database.getQueryPlanCache();
+        // 第一轮不计时，预热
+        for (int run = -1; run < 2; run++) {
+            boolean cached = run == 1;
+            cache.clear();
+            long planNanos = 0, totalNanos = 0, results = 0;
+            for (String sql : sqls) {
+                TransactionId tid = new TransactionId();
+                long start = System.nanoTime();
+                OpIterator plan;
+                QueryPlanCache.NormalizedQuery nq = QueryPlanCache.normalize(sql);
+                LogicalPlan lp = cached ? cache.get(nq.getKey()) : null;
+                if (lp != null) {
+                    plan = lp.instantiate(tid, nq.getLiterals());
+                } else {
+                    lp = parser.generateLogicalPlan(tid, sql);
+                    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+                    if (cached)
+                        cache.put(nq, lp);
+                }
+                long planned = System.nanoTime();
+                results += drain(plan);
+                long end = System.nanoTime();
+                Database.getBufferPool().transactionComplete(tid);
+                planNanos += planned - start;
+                totalNanos += end - start;
+            }
+            if (run < 0)
+                continue;
+            System.out.printf("%-9s plan %9.1f us/query, total %9.1f us/query, %d results%n",
+                    cached ? "cached:" : "uncached:", planNanos / 1e3 / queries,
+                    totalNanos / 1e3 / queries, results);
+        }
+        System.out.println(cache);
+    }
+}
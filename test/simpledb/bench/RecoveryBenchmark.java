@@ -0,0 +1,78 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+/**
+ * Recovery time benchmark. Fills the log with committed transactions that
+ * each log a number of page updates, until the log reaches the requested
+ * size, then restarts the database and times LogFile.recover().
+ * <p>
+ * With tailMB, a transaction that never finishes logs an update first, so
+ * that the log cannot be truncated, and a checkpoint is taken when tailMB
+ * of log are left to write.
+ * <p>
+ * Usage: RecoveryBenchmark [logMB] [pages] [updatesPerTransaction] [tailMB]
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long logMB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int updates = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long tailMB = args.length > 3 ? Long.parseLong(args[3]) : -1;
+
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, pages * 504, null, null);
+        File file = table.getFile();
+        int realPages = table.numPages();
+        HeapPage[] images = new HeapPage[realPages];
+        for (int i = 0; i < realPages; i++) {
+            images[i] = (HeapPage) table.readPage(new HeapPageId(table.getId(), i));
+        }
+
+        LogFile log = Database.getLogFile();
+        File logFile = new File("log");
+        long target = logMB << 20;
+        long checkpointAt = tailMB >= 0 ? (logMB - tailMB) << 20 : Long.MAX_VALUE;
+        if (tailMB >= 0) {
+            TransactionId open = new TransactionId();
+            log.logXactionBegin(open);
+            log.logWrite(open, images[0], images[0]);
+        }
+        long txns = 0;
+        int next = 0;
+        long start = System.nanoTime();
+        while (log.getEndLSN() < target) {
+            if (log.getEndLSN() >= checkpointAt) {
+                log.logCheckpoint();
+                checkpointAt = Long.MAX_VALUE;
+            }
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int u = 0; u < updates; u++) {
+                HeapPage p = images[next++ % realPages];
+                log.logWrite(tid, p, p);
+            }
+            log.logCommit(tid);
+            txns++;
+        }
+        double writeSecs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("wrote %d transactions, %.1f MB of log in %.2fs%n",
+                txns, logFile.length() / 1048576.0, writeSecs);
+
+        // crash and restart
+        Database.reset();
+        Utility.openHeapFile(2, file);
+        start = System.nanoTime();
+        Database.getLogFile().recover();
+        double recoverSecs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("recovered in %.2fs (%.1f MB/s)%n",
+                recoverSecs, logFile.length() / 1048576.0 / recoverSecs);
+    }
+}
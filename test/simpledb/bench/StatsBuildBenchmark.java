@@ -0,0 +1,83 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Statistics building benchmark. Writes a catalog of heap tables with four
+ * integer columns and builds the statistics of all of them with
+ * TableStats.computeStatistics, with no statistics saved before, for each
+ * number of threads: threads tables at once, each read by up to threads
+ * page-range workers. Reports the wall-clock time of each and the speedup
+ * over the first thread count, after one untimed build to warm up. samplePages
+ * 0 reads every page of every table.
+ * <p>
+ * Usage: StatsBuildBenchmark [tables] [rowsPerTable] [threadCounts] [samplePages], e.g. 20 200000 1,2,4,8 0
+ */
+public class StatsBuildBenchmark {
+
+    private static final int COLUMNS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int tables = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        String[] threadCounts = (args.length > 2 ? args[2] : "1,2,4,8").split(",");
+        int samplePages = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        Random random = new Random(0);
+        List<File> statsFiles = new ArrayList<>();
+        int pages = 0;
+        for (int t = 0; t < tables; t++) {
+            List<List<Integer>> tuples = new ArrayList<>(rows);
+            for (int r = 0; r < rows; r++) {
+                List<Integer> tuple = new ArrayList<>(COLUMNS);
+                for (int i = 0; i < COLUMNS; i++)
+                    tuple.add(random.nextInt(100000));
+                tuples.add(tuple);
+            }
+            File f = File.createTempFile("table", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), COLUMNS);
+            HeapFile hf = Utility.openHeapFile(COLUMNS, "c", f);
+            Database.getCatalog().addTable(hf, "t" + t);
+            pages += hf.numPages();
+            File stats = new File(f.getPath() + TableStats.STATS_FILE_SUFFIX);
+            stats.deleteOnExit();
+            statsFiles.add(stats);
+        }
+        System.out.printf("%d tables of %d rows, %d pages in all, %d processors%n",
+                tables, rows, pages, Runtime.getRuntime().availableProcessors());
+
+        TableStats.setSamplePages(samplePages);
+        double serialMillis = 0;
+        for (int run = -1; run < threadCounts.length; run++) {
+            int threads = Integer.parseInt(threadCounts[Math.max(0, run)]);
+            TableStats.setStatsThreads(threads);
+            // 每次都从头统计：删掉保存的统计信息，清空缓冲池
+            for (File f : statsFiles)
+                f.delete();
+            TableStats.getStatsMap().clear();
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+            long start = System.nanoTime();
+            TableStats.computeStatistics();
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (run < 0)
+                continue;
+            if (serialMillis == 0)
+                serialMillis = millis;
+            long tuples = 0;
+            for (TableStats s : TableStats.getStatsMap().values())
+                tuples += s.totalTuples();
+            System.out.printf("%2d threads: %9.1f ms, %6.2fx, %d tuples%n",
+                    threads, millis, serialMillis / millis, tuples);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Large transaction benchmark. One transaction inserts tuples with random
+ * keys into a B+ tree, in batches, until it has dirtied more pages than
+ * the buffer pool holds, with NO-STEAL and with STEAL.
+ * Reports tuples/s, evictions and the share of evictions that had to write
+ * the page themselves rather than find it written by the page cleaner.
+ * <p>
+ * Usage: StealBenchmark [tuples] [poolPages] [batch]
+ */
+public class StealBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : 504;
+
+        System.out.printf("%d tuples in one transaction, %d page pool%n", tuples, poolPages);
+        System.out.printf("%-10s %12s %10s %16s%n", "mode", "tuples/s", "evictions", "eviction writes");
+        for (boolean steal : new boolean[] {false, true}) {
+            run(steal, tuples, poolPages, batch);
+        }
+    }
+
+    private static void run(boolean steal, int tuples, int poolPages, int batch) throws Exception {
+        Database.reset();
+        File f = new File("steal.db");
+        f.delete();
+        BTreeFile file = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        BufferPool pool = Database.resetBufferPool(poolPages);
+        pool.setStealPages(steal);
+
+        Random random = new Random(0);
+        Transaction t = new Transaction();
+        t.start();
+        int done = 0;
+        long start = System.nanoTime();
+        try {
+            while (done < tuples) {
+                List<Tuple> rows = new ArrayList<>();
+                for (int i = 0; i < batch && done + i < tuples; i++) {
+                    Tuple tup = new Tuple(Utility.getTupleDesc(2));
+                    tup.setField(0, new IntField(random.nextInt()));
+                    tup.setField(1, new IntField(0));
+                    rows.add(tup);
+                }
+                Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), file.getId());
+                insert.open();
+                insert.next();
+                insert.close();
+                done += rows.size();
+            }
+            t.commit();
+        } catch (DbException e) {
+            System.out.printf("%-10s failed after %d tuples: %s%n", steal ? "steal" : "no-steal", done, e.getMessage());
+            t.abort();
+            return;
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        long evictions = pool.getNumEvictions();
+        System.out.printf("%-10s %12.0f %10d %15.1f%%%n", steal ? "steal" : "no-steal", tuples / secs,
+                evictions, evictions == 0 ? 0 : 100.0 * pool.getNumEvictionWrites() / evictions);
+        f.delete();
+    }
+}
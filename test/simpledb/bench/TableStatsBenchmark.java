@@ -0,0 +1,80 @@
+package simpledb.bench;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Statistics collection benchmark. Writes heap tables of increasing numbers
+ * of rows with four integer columns and builds their TableStats by scanning
+ * every page and by sampling samplePages pages, and loads the saved sample
+ * statistics the way a restarted database does, reporting the time each takes
+ * and, for the sample, the estimated number of tuples and the estimated number
+ * of tuples with c0 below the median against the actual ones.
+ * <p>
+ * Usage: TableStatsBenchmark [rowCounts] [samplePages], e.g. 100000,1000000,3000000 1000
+ */
+public class TableStatsBenchmark {
+
+    private static final int IO_COST = 100;
+    private static final int COLUMNS = 4;
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "100000,1000000,3000000").split(",");
+        int samplePages = args.length > 1 ? Integer.parseInt(args[1]) : TableStats.DEFAULT_SAMPLE_PAGES;
+
+        Random random = new Random(0);
+        for (String c : counts) {
+            int rows = Integer.parseInt(c);
+            // c0 在 0 ... 999 间均匀分布，一半的行小于 500
+            List<List<Integer>> tuples = new ArrayList<>(rows);
+            int below = 0;
+            for (int r = 0; r < rows; r++) {
+                List<Integer> t = new ArrayList<>(COLUMNS);
+                for (int i = 0; i < COLUMNS; i++)
+                    t.add(random.nextInt(1000));
+                if (t.get(0) < 500)
+                    below++;
+                tuples.add(t);
+            }
+            File f = File.createTempFile("table", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), COLUMNS);
+            tuples = null;
+            HeapFile hf = Utility.openHeapFile(COLUMNS, "c", f);
+            Database.getCatalog().addTable(hf, "t" + rows);
+
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            long start = System.nanoTime();
+            new TableStats(hf.getId(), IO_COST, 0);
+            double scanMillis = (System.nanoTime() - start) / 1e6;
+
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            start = System.nanoTime();
+            TableStats sampled = new TableStats(hf.getId(), IO_COST, samplePages);
+            double sampleMillis = (System.nanoTime() - start) / 1e6;
+
+            sampled.save();
+            new File(f.getPath() + TableStats.STATS_FILE_SUFFIX).deleteOnExit();
+            TableStats.getStatsMap().remove("t" + rows);
+            start = System.nanoTime();
+            TableStats.getTableStats("t" + rows);
+            double loadMillis = (System.nanoTime() - start) / 1e6;
+
+            double sel = sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(500));
+            System.out.printf("%8d rows, %5d pages: scan %9.1f ms, sample of %d pages %7.1f ms, "
+                            + "load saved %5.1f ms, tuples %d (actual %d), c0 < 500 %d +- %.0f (actual %d)%n",
+                    rows, hf.numPages(), scanMillis, sampled.getSampledPages(), sampleMillis, loadMillis,
+                    sampled.totalTuples(), rows, sampled.estimateTableCardinality(sel),
+                    sampled.estimateCardinalityError(sel), below);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Base class for the tests of logging and recovery. The tests use up to two
+ * heap files with two integer columns, hf1 and hf2, which are opened again
+ * after a simulated crash.
+ */
+public abstract class LogTestBase extends SimpleDbTestBase {
+    protected File file1;
+    protected File file2;
+    protected HeapFile hf1;
+    protected HeapFile hf2;
+
+    // create empty heap files w/ 2 columns, adding them to the catalog;
+    // name2 may be null for a test with one table.
+    // does *not* reset the database or initiate log file recovery
+    protected void createTables(String name1, String name2)
+            throws IOException {
+        file1 = new File(name1);
+        file1.delete();
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        if(name2 != null){
+            file2 = new File(name2);
+            file2.delete();
+            hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        }
+    }
+
+    protected Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    // insert the rows (v, 0) for v in [from, to) in one Insert
+    protected void insertRows(HeapFile hf, Transaction t, int from, int to)
+            throws DbException, TransactionAbortedException {
+        TupleDesc twoIntColumns = Utility.getTupleDesc(2);
+        List<Tuple> rows = new ArrayList<>();
+        for(int v = from; v < to; v++){
+            Tuple value = new Tuple(twoIntColumns);
+            value.setField(0, new IntField(v));
+            value.setField(1, new IntField(0));
+            rows.add(value);
+        }
+
+        Insert insert = new Insert(t.getId(), new TupleIterator(twoIntColumns, rows), hf.getId());
+        insert.open();
+        Tuple result = insert.next();
+        assertEquals(SystemTestUtil.SINGLE_INT_DESCRIPTOR, result.getTupleDesc());
+        assertEquals(to - from, ((IntField)result.getField(0)).getValue());
+        assertFalse(insert.hasNext());
+        insert.close();
+    }
+
+    protected void insertRow(HeapFile hf, Transaction t, int v1)
+            throws DbException, TransactionAbortedException {
+        insertRows(hf, t, v1, v1 + 1);
+    }
+
+    // insert one row in a transaction of its own and commit it
+    protected void commitRow(HeapFile hf, int v1)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = begin();
+        insertRow(hf, t, v1);
+        t.commit();
+    }
+
+    // count the rows whose first column is in [from, to), in a transaction of its own
+    protected int count(HeapFile hf, int from, int to)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = begin();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while(scan.hasNext()){
+            int v = ((IntField)scan.next().getField(0)).getValue();
+            if(v >= from && v < to)
+                count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    // the number of tuples on the first page of the file on disk, bypassing the buffer pool
+    protected int tuplesOnDisk(HeapFile hf) {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        int n = 0;
+        for(Iterator<Tuple> it = p.iterator(); it.hasNext(); it.next())
+            n++;
+        return n;
+    }
+
+    // restart Database and open the tables again, without recovery
+    protected void restart() {
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        if(file2 != null)
+            hf2 = Utility.openHeapFile(2, file2);
+    }
+
+    // simulate crash
+    // restart Database
+    // run log recovery
+    protected void crash()
+            throws IOException {
+        restart();
+        Database.getLogFile().recover();
+    }
+}